@@ -0,0 +1,129 @@
+// DaemonBenchmark - part of bprimport, compares a request on a warm daemon
+// connection with a run that logs in for one device
+// Copyright (C) 2012  Matt Reath
+
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+package com.cci.bprimport;
+
+import com.cisco.provisioning.cpe.*;
+import com.cisco.provisioning.cpe.api.*;
+import java.lang.reflect.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Times one IMPORT through {@link BprDaemon#execute} on a connection that
+ * is already logged in, against what a BprImport run for that one device
+ * pays: a login, the same single device batch and a disconnect. The RDU is
+ * a stand-in whose login takes {@link #loginMillis} and whose every post
+ * takes {@link #postMillis}, so the difference is the login the daemon
+ * saves per request:
+ * <pre>
+ * ant bench -Dbench.args=Daemon
+ * </pre>
+ * <p>
+ * @author Matt Reath
+ * @version 0.1
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DaemonBenchmark {
+
+	@Param({ "200" })
+	public long loginMillis;
+
+	@Param({ "5" })
+	public long postMillis;
+
+	@Setup(Level.Trial)
+	public void startDaemon() throws MalformedRecordException {
+		daemon = new BprDaemon();
+		daemon.addSession(login());
+		record = DeviceRecordReader.parseLine(RECORD.getBytes(), 0, RECORD.length(), 0);
+	}
+
+	@Benchmark
+	public String daemon() {
+		return daemon.execute("IMPORT -d " + RECORD);
+	}
+
+	@Benchmark
+	public boolean oneShot() {
+		BprImport importer = new BprImport();
+		importer.setConnection(login());
+		importer.setDeviceMode("-d");
+		boolean added = importer.importDevice(record);
+		importer.disconnect();
+		return added;
+	}
+
+	/**
+	 * @return A connection to the stand-in RDU, after the login delay
+	 */
+	private PACEConnection login() {
+		pause(loginMillis);
+		return proxy(PACEConnection.class, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				if (method.getName().equals("newBatch")) {
+					return newBatch();
+				}
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * @return A batch that takes the post delay and then goes through
+	 */
+	private Batch newBatch() {
+		return proxy(Batch.class, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				if (method.getName().equals("post")) {
+					pause(postMillis);
+					return proxy(BatchStatus.class, new InvocationHandler() {
+						public Object invoke(Object proxy, Method method, Object[] args) {
+							return method.getReturnType() == boolean.class ? Boolean.FALSE : null;
+						}
+					});
+				}
+				return null;
+			}
+		});
+	}
+
+	private static void pause(long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+		return (T)Proxy.newProxyInstance(DaemonBenchmark.class.getClassLoader(), new Class<?>[] { type }, handler);
+	}
+
+
+	private static final String RECORD = "000CE532D06A|1,6,00:0C:E5:32:D0:6A|silver|provisioned-docsis";
+
+	private BprDaemon daemon;
+	private DeviceRecord record;
+
+}
@@ -0,0 +1,107 @@
+// MacIndexBenchmark - part of bprimport, compares the packed MAC index
+// with a HashMap keyed by the MAC string
+// Copyright (C) 2012  Matt Reath
+
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+package com.cci.bprimport;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Indexes {@link #devices} MACs, as DeltaSync and Preflight do, in a
+ * {@link LongHashMap} through {@link MacAddressCodec} and in a
+ * HashMap&lt;String, Long&gt;, and looks MACs up in each. Every lookup key is
+ * a new String, like one just read from the billing file, so its hash is not
+ * cached. The heap each index holds is printed during setup. Run with
+ * ant bench -Dbench.args=MacIndex.
+ * <p>
+ * @author Matt Reath
+ * @version 0.1
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MacIndexBenchmark {
+
+	@Param({ "400000" })
+	public int devices;
+
+	@Setup(Level.Trial)
+	public void buildIndexes() {
+		Random random = new Random(1);
+		macs = new String[devices];
+		for (int i = 0; i < devices; i++) {
+			macs[i] = String.format("1,6,00:%02X:%02X:%02X:%02X:%02X", random.nextInt(256), random.nextInt(256),
+				random.nextInt(256), random.nextInt(256), random.nextInt(256));
+		}
+
+		long before = usedHeap();
+		packed = new LongHashMap(devices);
+		for (int i = 0; i < devices; i++) {
+			packed.put(MacAddressCodec.encode(macs[i]), i);
+		}
+		long packedBytes = usedHeap() - before;
+
+		before = usedHeap();
+		strings = new HashMap<String, Long>(devices * 2);
+		for (int i = 0; i < devices; i++) {
+			// A copy of the string, as a map loaded from a file holds its own
+			strings.put(new String(macs[i].toCharArray()), Long.valueOf(i));
+		}
+		long stringBytes = usedHeap() - before;
+
+		System.out.println(String.format("%nLongHashMap %.1f MB, HashMap<String, Long> %.1f MB for %d MACs",
+			packedBytes / 1e6, stringBytes / 1e6, devices));
+	}
+
+	@Benchmark
+	public long longHashMap() {
+		String mac = new String(nextMac().toCharArray());
+		return packed.get(MacAddressCodec.encode(mac), -1);
+	}
+
+	@Benchmark
+	public Long hashMap() {
+		String mac = new String(nextMac().toCharArray());
+		return strings.get(mac);
+	}
+
+	private String nextMac() {
+		if (++next == devices) {
+			next = 0;
+		}
+		return macs[next];
+	}
+
+	private static long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+
+	private String[] macs;
+	private LongHashMap packed;
+	private Map<String, Long> strings;
+	private int next;
+
+}
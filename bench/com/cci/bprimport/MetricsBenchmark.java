@@ -0,0 +1,87 @@
+// MetricsBenchmark - part of bprimport, measures what Metrics adds to
+// every post and every record
+// Copyright (C) 2012  Matt Reath
+
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+package com.cci.bprimport;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Times the calls the workers make for every batch, a post's start and
+ * finish with its latency recorded, and a records done count, against the
+ * plain AtomicLong count the tools kept before. A latency kept in a sorted
+ * list under a lock, the obvious way to get percentiles, is measured
+ * alongside for comparison. Every one should stay well under a microsecond,
+ * with 1 and with several threads:
+ * <pre>
+ * ant bench -Dbench.args="Metrics -t 1"
+ * ant bench -Dbench.args="Metrics -t 8"
+ * </pre>
+ * <p>
+ * @author Matt Reath
+ * @version 0.1
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MetricsBenchmark {
+
+	@Benchmark
+	public void atomicCount() {
+		count.incrementAndGet();
+	}
+
+	@Benchmark
+	public void recordsDone() {
+		metrics.recordsDone(1);
+	}
+
+	@Benchmark
+	public void histogramRecord() {
+		histogram.record(System.nanoTime() & 0xFFFFF);
+	}
+
+	@Benchmark
+	public void post() {
+		metrics.postFinished(metrics.postStarted());
+	}
+
+	@Benchmark
+	public void lockedSamples() {
+		long micros = System.nanoTime() & 0xFFFFF;
+		synchronized (samples) {
+			if (size == samples.length) {
+				size = 0;
+			}
+			samples[size++] = micros;
+		}
+	}
+
+
+	private static final int SAMPLES = 1 << 16;
+
+	private final Metrics metrics = Metrics.get();
+	private final AtomicLong count = new AtomicLong();
+	private final LatencyHistogram histogram = new LatencyHistogram();
+	private final long[] samples = new long[SAMPLES];
+	private int size;
+
+}
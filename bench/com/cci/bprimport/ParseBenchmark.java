@@ -0,0 +1,117 @@
+// ParseBenchmark - part of bprimport, compares the byte level record reader
+// with the split based loop it replaced
+// Copyright (C) 2012  Matt Reath
+
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+package com.cci.bprimport;
+
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Reads a generated import file of {@link #lines} lines once per
+ * invocation, with {@link DeviceRecordReader} and with the FileReader,
+ * readLine and split("\\|") loop BprImport used before, including its
+ * equals("null") checks. Run with ant bench -Dbench.args=Parse.
+ * <p>
+ * @author Matt Reath
+ * @version 0.1
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ParseBenchmark {
+
+	@Param({ "2000000" })
+	public int lines;
+
+	@Setup(Level.Trial)
+	public void writeFile() throws IOException {
+		file = File.createTempFile("parse-benchmark", ".txt");
+		file.deleteOnExit();
+
+		Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "ISO-8859-1"));
+		for (int i = 0; i < lines; i++) {
+			out.write(String.format("%012X|1,6,00:0C:%02X:%02X:%02X:%02X|%s|%s\n", i, (i >> 24) & 255,
+				(i >> 16) & 255, (i >> 8) & 255, i & 255, i % 10 == 0 ? "null" : "silver", "provisioned-docsis"));
+		}
+		out.close();
+	}
+
+	@TearDown(Level.Trial)
+	public void deleteFile() {
+		file.delete();
+	}
+
+	@Benchmark
+	public long recordReader(Blackhole hole) throws IOException {
+		DeviceRecordReader reader = new DeviceRecordReader(new FileInputStream(file));
+		long count = 0;
+
+		try {
+			DeviceRecord record;
+			while ((record = reader.next()) != null) {
+				hole.consume(record);
+				count++;
+			}
+		} finally {
+			reader.close();
+		}
+		return count;
+	}
+
+	@Benchmark
+	public long splitLoop(Blackhole hole) throws IOException {
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		long count = 0;
+
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] temp = line.split("\\|");
+				String ownerID = temp[0];
+				String classOfService = temp[2];
+				String dhcpCriteria = temp[3];
+
+				if (ownerID.equals("null")) {
+					ownerID = null;
+				}
+				if (classOfService.equals("null")) {
+					classOfService = null;
+				}
+				if (dhcpCriteria.equals("null")) {
+					dhcpCriteria = null;
+				}
+				hole.consume(ownerID);
+				hole.consume(temp[1]);
+				hole.consume(classOfService);
+				hole.consume(dhcpCriteria);
+				count++;
+			}
+		} finally {
+			reader.close();
+		}
+		return count;
+	}
+
+
+	private File file;
+
+}
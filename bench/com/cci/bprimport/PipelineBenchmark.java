@@ -0,0 +1,120 @@
+// PipelineBenchmark - part of bprimport, measures import throughput
+// against the number of RDU connections
+// Copyright (C) 2012  Matt Reath
+
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+package com.cci.bprimport;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Pushes {@link #BATCHES} batches of {@link #BATCH_SIZE} records through the
+ * import pipeline, {@link BatchDispatcher} to workers, as BprImport sets it
+ * up with a queue of twice the number of connections. Each worker stands in
+ * for an RDU connection that takes {@link #postMillis} per post. With the
+ * RDU's latency as the limit, the time per run should drop close to in
+ * proportion to the number of connections:
+ * <pre>
+ * ant bench -Dbench.args=Pipeline
+ * </pre>
+ * <p>
+ * @author Matt Reath
+ * @version 0.1
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PipelineBenchmark {
+
+	@Param({ "1", "8" })
+	public int connections;
+
+	@Param({ "5" })
+	public long postMillis;
+
+	@Setup(Level.Trial)
+	public void buildBatches() {
+		batches = new ArrayList<List<DeviceRecord>>();
+		for (int i = 0; i < BATCHES; i++) {
+			List<DeviceRecord> records = new ArrayList<DeviceRecord>(BATCH_SIZE);
+			for (int j = 0; j < BATCH_SIZE; j++) {
+				long line = i * BATCH_SIZE + j + 1;
+				records.add(new DeviceRecord(line, "owner" + line, String.format("1,6,00:0C:00:00:%02X:%02X",
+					(line >> 8) & 255, line & 255), "silver", "provisioned-docsis"));
+			}
+			batches.add(records);
+		}
+	}
+
+	@Benchmark
+	public long pipeline() throws InterruptedException {
+		List<SlowConnection> workers = new ArrayList<SlowConnection>();
+		for (int i = 0; i < connections; i++) {
+			workers.add(new SlowConnection(postMillis));
+		}
+
+		BatchDispatcher dispatcher = new BatchDispatcher(workers, connections * 2);
+		dispatcher.start();
+		for (int i = 0; i < BATCHES; i++) {
+			dispatcher.submit(new RecordBatch(i, batches.get(i)));
+		}
+		dispatcher.shutdown();
+
+		long records = 0;
+		for (SlowConnection worker : workers) {
+			records += worker.records;
+		}
+		return records;
+	}
+
+	/**
+	 * A worker whose every post takes a fixed time, like an RDU round trip.
+	 */
+	private static class SlowConnection implements BatchHandler {
+
+		SlowConnection(long postMillis) {
+			this.postMillis = postMillis;
+		}
+
+		public void process(RecordBatch batch) {
+			try {
+				Thread.sleep(postMillis);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			records += batch.size();
+		}
+
+		public void close() {
+		}
+
+
+		private long postMillis;
+		private volatile long records;
+
+	}
+
+
+	private static final int BATCHES = 240;
+	private static final int BATCH_SIZE = 100;
+
+	private List<List<DeviceRecord>> batches;
+
+}
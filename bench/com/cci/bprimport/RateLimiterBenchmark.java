@@ -0,0 +1,95 @@
+// RateLimiterBenchmark - part of bprimport, measures what RateLimiter adds
+// to every batch.post()
+// Copyright (C) 2012  Matt Reath
+
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+package com.cci.bprimport;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Times one acquire(1) with no limit set, and with a rate high enough that
+ * nobody sleeps, so only the bookkeeping is measured. The same bucket kept
+ * under a lock is measured alongside for comparison. Run with 1 and with
+ * several threads to see the contended case:
+ * <pre>
+ * ant bench -Dbench.args="RateLimiter -t 1"
+ * ant bench -Dbench.args="RateLimiter -t 8"
+ * </pre>
+ * <p>
+ * @author Matt Reath
+ * @version 0.1
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RateLimiterBenchmark {
+
+	@Benchmark
+	public void unlimited() {
+		unlimited.acquire(1);
+	}
+
+	@Benchmark
+	public void limited() {
+		limited.acquire(1);
+	}
+
+	@Benchmark
+	public void lockedBucket() {
+		locked.acquire(1);
+	}
+
+	/**
+	 * The same theoretical arrival time bucket as RateLimiter, updated under
+	 * a lock instead of with a compare-and-set.
+	 */
+	private static class LockedBucket {
+
+		LockedBucket(double permitsPerSecond) {
+			intervalNanos = (long)(1e9 / permitsPerSecond);
+		}
+
+		void acquire(int permits) {
+			long now = System.nanoTime();
+			long wait;
+
+			synchronized (this) {
+				arrival = Math.max(arrival, now) + intervalNanos * permits;
+				wait = arrival - intervalNanos - now;
+			}
+			if (wait > 0) {
+				LockSupport.parkNanos(wait);
+			}
+		}
+
+		private final long intervalNanos;
+		private long arrival = System.nanoTime();
+
+	}
+
+
+	private static final double NO_WAIT_RATE = 1e9;
+
+	private final RateLimiter unlimited = new RateLimiter(0, 1);
+	private final RateLimiter limited = new RateLimiter(NO_WAIT_RATE, 1000000);
+	private final LockedBucket locked = new LockedBucket(NO_WAIT_RATE);
+
+}
@@ -0,0 +1,132 @@
+// AdaptiveBatchController - part of bprimport, sizes batches and the
+// number of batches in flight from the RDU's observed response times
+// Copyright (C) 2012  Matt Reath
+
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+package com.cci.bprimport;
+
+/**
+ * AdaptiveBatchController adjusts the number of commands per batch and the
+ * number of batches posted at the same time, AIMD style, within the bounds
+ * set by the operator.
+ * <p>
+ * Every batch.post() reports its latency and whether the batch as a whole
+ * failed. A post that comes back within the target latency grows the batch
+ * size by a fixed step, and once the batch size is at its maximum each
+ * further good post adds one batch in flight. A post over the target or a
+ * batch level failure halves both. A failed command with a reason of its own
+ * (a bad MAC, a duplicate device) says nothing about RDU load and is not
+ * counted.
+ * <p>
+ * Batches already posted when the controller backs off come back slow as
+ * well. Only results from batches posted after the last decrease can cause
+ * another one, so a single slow spell halves the sizes once and not once
+ * per batch in flight.
+ * <p>
+ * @author Matt Reath
+ * @version 0.1
+ *
+ */
+public class AdaptiveBatchController {
+
+	/**
+	 * @param minBatchSize		Smallest number of commands per batch
+	 * @param maxBatchSize		Largest number of commands per batch
+	 * @param maxInFlight		Largest number of batches posted at once
+	 * @param targetLatency		Post latency in milliseconds above which the
+	 * 							RDU is treated as overloaded
+	 */
+	public AdaptiveBatchController(int minBatchSize, int maxBatchSize, int maxInFlight, long targetLatency) {
+		this.minBatchSize = minBatchSize;
+		this.maxBatchSize = Math.max(minBatchSize, maxBatchSize);
+		this.maxInFlight = Math.max(1, maxInFlight);
+		this.targetLatency = targetLatency;
+		this.step = Math.max(1, minBatchSize);
+		this.batchSize = minBatchSize;
+		this.inFlightLimit = 1;
+	}
+
+	/**
+	 * @return The number of commands the next batch should hold
+	 */
+	public synchronized int getBatchSize() {
+		return batchSize;
+	}
+
+	public synchronized int getInFlightLimit() {
+		return inFlightLimit;
+	}
+
+	/**
+	 * Waits until another batch may be posted. An interrupt does not cut the
+	 * wait short, it is passed on once the slot is taken.
+	 *
+	 * @return A ticket to pass back to {@link #release}
+	 */
+	public synchronized long acquire() {
+		boolean interrupted = false;
+
+		while (inFlight >= inFlightLimit) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		inFlight++;
+
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		return epoch;
+	}
+
+	/**
+	 * Reports the outcome of a post and frees its slot.
+	 *
+	 * @param ticket		The value {@link #acquire} returned
+	 * @param latency		Time batch.post() took, in milliseconds
+	 * @param batchFailed	True if the batch failed as a whole or the post threw
+	 */
+	public synchronized void release(long ticket, long latency, boolean batchFailed) {
+		inFlight--;
+
+		if (batchFailed || latency > targetLatency) {
+			if (ticket == epoch) {
+				batchSize = Math.max(minBatchSize, batchSize / 2);
+				inFlightLimit = Math.max(1, inFlightLimit / 2);
+				epoch++;
+			}
+		} else if (batchSize < maxBatchSize) {
+			batchSize = Math.min(maxBatchSize, batchSize + step);
+		} else if (inFlightLimit < maxInFlight) {
+			inFlightLimit++;
+		}
+
+		notifyAll();
+	}
+
+
+	private int minBatchSize;
+	private int maxBatchSize;
+	private int maxInFlight;
+	private long targetLatency;
+	private int step;
+
+	private int batchSize;
+	private int inFlightLimit;
+	private int inFlight;
+	private long epoch;
+
+}
@@ -0,0 +1,343 @@
+// AsyncLog - part of bprimport, takes log lines off the provisioning
+// threads and writes them to rotated files from a thread of its own
+// Copyright (C) 2012  Matt Reath
+
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+package com.cci.bprimport;
+
+import java.io.*;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * AsyncLog is where the worker threads report failures and progress. A
+ * worker puts its line into a lock free ring buffer, one atomic increment
+ * to claim a slot, and goes back to the RDU. A single background thread
+ * drains the ring, writes the lines to the log file in large blocks and
+ * rotates the file once it reaches its size limit, keeping a fixed number
+ * of old files (run.log.1, run.log.2, ...).
+ * <p>
+ * Everything goes to the log file. How much of it is echoed to the console,
+ * also from the background thread, depends on the verbosity:
+ * <ul>
+ * <li>counts - nothing, the console only shows the status line and totals</li>
+ * <li>failures - every failure</li>
+ * <li>all - failures and progress messages</li>
+ * </ul>
+ * Failures are never dropped: a worker that finds the ring full waits for a
+ * free slot. {@link #close}, which also runs from a shutdown hook, drains
+ * the ring and forces the file to disk, so every failure logged before the
+ * process exits is on disk when it does. Until {@link #open} is called,
+ * lines go straight to the console as they always did.
+ * <p>
+ * @author Matt Reath
+ * @version 0.1
+ *
+ */
+public class AsyncLog {
+
+	public static final int COUNTS = 0;
+	public static final int FAILURES = 1;
+	public static final int ALL = 2;
+
+	private AsyncLog() {
+
+	}
+
+	/**
+	 * @param name	counts, failures or all
+	 */
+	public static int verbosityFor(String name) {
+		if (name.equals("counts")) {
+			return COUNTS;
+		} else if (name.equals("failures")) {
+			return FAILURES;
+		} else if (name.equals("all")) {
+			return ALL;
+		}
+		throw new IllegalArgumentException("Unknown verbosity " + name + ", expected counts, failures or all");
+	}
+
+	/**
+	 * Starts logging to a file.
+	 *
+	 * @param file		The log file, rotated to file.1, file.2, ...
+	 * @param verbosity	How much is echoed to the console
+	 * @param maxBytes	Size at which the file is rotated
+	 * @param keep		Number of rotated files kept
+	 */
+	public static synchronized void open(File file, int verbosity, long maxBytes, int keep) throws IOException {
+		if (writer != null) {
+			return;
+		}
+
+		AsyncLog.file = file;
+		AsyncLog.verbosity = verbosity;
+		AsyncLog.maxBytes = Math.max(1, maxBytes);
+		AsyncLog.keep = Math.max(0, keep);
+		AsyncLog.out = new FileOutputStream(file, true);
+		AsyncLog.written = file.length();
+
+		writer = new Thread(new Runnable() {
+			public void run() {
+				drain();
+			}
+		}, "log-writer");
+		writer.setDaemon(true);
+		writer.start();
+
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			public void run() {
+				close();
+			}
+		}, "log-close"));
+	}
+
+	/**
+	 * Starts logging as the --log, --verbosity, --log-size (MB) and
+	 * --log-files options say, printing why if it cannot.
+	 *
+	 * @param defaultFile	Log file if --log is not given
+	 */
+	static void open(CommandLine cli, String defaultFile) {
+		try {
+			open(new File(cli.getOption("log", defaultFile)), verbosityFor(cli.getOption("verbosity", "counts")),
+				cli.getIntOption("log-size", 64) * 1024L * 1024L, cli.getIntOption("log-files", 5));
+		} catch (IllegalArgumentException e) {
+			System.out.println(e.getMessage());
+			System.exit(1);
+		} catch (IOException e) {
+			System.out.println("Could not open log: " + e.getMessage());
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * @return The log file, null if the log was never opened
+	 */
+	public static File getFile() {
+		return file;
+	}
+
+	/**
+	 * Logs something that went wrong with a record or a batch.
+	 */
+	public static void failure(String message) {
+		log(FAILURE, message);
+	}
+
+	/**
+	 * Logs progress that is only worth seeing with verbosity all.
+	 */
+	public static void info(String message) {
+		log(INFO, message);
+	}
+
+	/**
+	 * Writes out everything logged so far, forces it to disk and stops the
+	 * background thread. Safe to call more than once.
+	 */
+	public static void close() {
+		Thread thread = writer;
+		if (thread == null) {
+			return;
+		}
+
+		closing = true;
+		LockSupport.unpark(thread);
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static void log(char level, String message) {
+		if (writer == null || closing) {
+			if (level == FAILURE || verbosity >= ALL) {
+				System.out.println(message);
+			}
+			return;
+		}
+
+		long sequence = tail.getAndIncrement();
+		while (sequence - head >= CAPACITY) {
+			LockSupport.unpark(writer);
+			Thread.yield();
+		}
+
+		int slot = (int)(sequence & (CAPACITY - 1));
+		levels[slot] = level;
+		messages[slot] = message;
+		times[slot] = System.currentTimeMillis();
+		published.set(slot, sequence);
+
+		if (sequence >= drainedTo) {
+			// Claimed just as the log closed, after the last line it wrote
+			System.out.println(message);
+		} else if (level == FAILURE) {
+			LockSupport.unpark(writer);
+		}
+	}
+
+	/**
+	 * The background thread: takes every published line off the ring in
+	 * order, writes it, and sleeps briefly when there is nothing to do.
+	 */
+	private static void drain() {
+		StringBuilder block = new StringBuilder(BLOCK_SIZE);
+		StringBuilder console = new StringBuilder();
+		SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+		String stamp = "";
+		long stampTime = -1;
+
+		while (true) {
+			boolean stopping = closing;
+			long next = head;
+			int slot = (int)(next & (CAPACITY - 1));
+
+			if (published.get(slot) == next) {
+				char level = levels[slot];
+				String message = messages[slot];
+				long time = times[slot];
+				messages[slot] = null;
+				head = next + 1;
+
+				if (time != stampTime) {
+					stamp = format.format(new Date(time));
+					stampTime = time;
+				}
+				block.append(stamp).append(' ')
+					.append(level == FAILURE ? "FAIL " : "INFO ").append(message).append('\n');
+				if (level == FAILURE ? verbosity >= FAILURES : verbosity >= ALL) {
+					console.append(message).append('\n');
+				}
+				if (block.length() >= BLOCK_SIZE) {
+					write(block, console, false);
+				}
+				continue;
+			}
+
+			// The ring is empty, or the next line is claimed but not yet
+			// published. A line claimed after this point is printed by the
+			// thread that logged it.
+			if (stopping && next == tail.get()) {
+				drainedTo = next;
+				if (tail.get() == next) {
+					write(block, console, true);
+					break;
+				}
+				drainedTo = Long.MAX_VALUE;
+			}
+			write(block, console, false);
+			LockSupport.parkNanos(IDLE_NANOS);
+		}
+
+		try {
+			out.close();
+		} catch (IOException e) {
+			System.out.println("Could not close log " + file + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Writes a block to the file, rotating it first if it is full, and the
+	 * console lines to the console.
+	 *
+	 * @param force	Also force the file to disk
+	 */
+	private static void write(StringBuilder block, StringBuilder console, boolean force) {
+		try {
+			if (block.length() > 0) {
+				if (written >= maxBytes) {
+					rotate();
+				}
+				byte[] bytes = block.toString().getBytes("ISO-8859-1");
+				out.write(bytes);
+				written += bytes.length;
+			}
+			if (force) {
+				out.getFD().sync();
+			}
+		} catch (IOException e) {
+			System.out.println("Could not write log " + file + ": " + e.getMessage());
+			System.out.print(block);
+		}
+		block.setLength(0);
+
+		if (console.length() > 0) {
+			System.out.print(console);
+			console.setLength(0);
+		}
+	}
+
+	/**
+	 * Shifts file.1 to file.2 and so on, dropping the oldest, and starts a
+	 * new file.
+	 */
+	private static void rotate() throws IOException {
+		out.close();
+
+		new File(file.getPath() + "." + keep).delete();
+		for (int i = keep - 1; i >= 1; i--) {
+			new File(file.getPath() + "." + i).renameTo(new File(file.getPath() + "." + (i + 1)));
+		}
+		if (keep > 0) {
+			file.renameTo(new File(file.getPath() + ".1"));
+		} else {
+			file.delete();
+		}
+
+		out = new FileOutputStream(file);
+		written = 0;
+	}
+
+
+	private static final char FAILURE = 'F';
+	private static final char INFO = 'I';
+	private static final int CAPACITY = 1 << 14;
+	private static final int BLOCK_SIZE = 256 * 1024;
+	private static final long IDLE_NANOS = 2000000;
+
+	private static final AtomicLong tail = new AtomicLong();
+	private static volatile long head;
+	private static volatile long drainedTo = Long.MAX_VALUE;
+	private static final AtomicLongArray published = initialPublished();
+	private static final char[] levels = new char[CAPACITY];
+	private static final String[] messages = new String[CAPACITY];
+	private static final long[] times = new long[CAPACITY];
+
+	private static volatile Thread writer;
+	private static volatile boolean closing;
+	private static volatile int verbosity = ALL;
+	private static File file;
+	private static long maxBytes;
+	private static int keep;
+	private static FileOutputStream out;
+	private static long written;
+
+	/**
+	 * No slot is published to begin with, not even sequence 0.
+	 */
+	private static AtomicLongArray initialPublished() {
+		AtomicLongArray published = new AtomicLongArray(CAPACITY);
+		for (int i = 0; i < CAPACITY; i++) {
+			published.set(i, -1);
+		}
+		return published;
+	}
+
+}
@@ -0,0 +1,220 @@
+// BatchDispatcher - part of bprimport, feeds record batches from the file
+// reader to a pool of RDU connections
+// Copyright (C) 2012  Matt Reath
+
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+package com.cci.bprimport;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * BatchDispatcher runs one worker thread per {@link BatchHandler} (and so per
+ * RDU connection) and hands them batches through a bounded queue.
+ * <p>
+ * Backpressure: {@link #submit} blocks once the queue is full, so the reader
+ * never gets more than the queue capacity ahead of the RDU.
+ * <p>
+ * Ordering: each batch is a run of consecutive lines and is posted as a
+ * unit, but batches are picked up by whichever worker is free and can
+ * complete out of order. Two lines for the same MAC in different batches can
+ * therefore reach the RDU in either order.
+ * <p>
+ * Retries: a worker can hand a batch back with {@link #submitLater}. It waits
+ * out its delay in a separate queue and then joins the back of the main
+ * queue, so retries are interleaved with new batches instead of holding up a
+ * worker.
+ * <p>
+ * Shutdown: {@link #shutdown} waits until every batch submitted so far,
+ * and every retry they gave rise to, has been processed, then queues one
+ * stop marker per worker, waits for the workers to finish and closes every
+ * handler.
+ * <p>
+ * @author Matt Reath
+ * @version 0.1
+ *
+ */
+public class BatchDispatcher {
+
+	public BatchDispatcher(List<? extends BatchHandler> handlers, int queueCapacity) {
+		this.handlers = new ArrayList<BatchHandler>(handlers);
+		this.queue = new ArrayBlockingQueue<RecordBatch>(Math.max(1, queueCapacity));
+	}
+
+	/**
+	 * Starts one worker thread per handler.
+	 */
+	public void start() {
+		for (int i = 0; i < handlers.size(); i++) {
+			final BatchHandler handler = handlers.get(i);
+
+			Thread worker = new Thread(new Runnable() {
+				public void run() {
+					work(handler);
+				}
+			}, "rdu-worker-" + i);
+
+			workers.add(worker);
+			worker.start();
+		}
+
+		feeder = new Thread(new Runnable() {
+			public void run() {
+				feed();
+			}
+		}, "retry-feeder");
+		feeder.setDaemon(true);
+		feeder.start();
+	}
+
+	/**
+	 * Queues a batch, blocking while the queue is full.
+	 */
+	public void submit(RecordBatch batch) throws InterruptedException {
+		outstanding.incrementAndGet();
+		try {
+			queue.put(batch);
+		} catch (InterruptedException e) {
+			finished();
+			throw e;
+		}
+	}
+
+	/**
+	 * Queues a batch once a delay has passed, without blocking. Meant for
+	 * workers handing back a batch to be tried again.
+	 *
+	 * @param delay	Milliseconds to wait before the batch is queued
+	 */
+	public void submitLater(RecordBatch batch, long delay) {
+		outstanding.incrementAndGet();
+		delayed.put(new DelayedBatch(batch, delay));
+	}
+
+	/**
+	 * @return Batches waiting out a retry delay
+	 */
+	public int getDelayedCount() {
+		return delayed.size();
+	}
+
+	/**
+	 * Lets the workers finish everything already queued, including retries
+	 * still waiting out their delay, then releases all of the connections.
+	 */
+	public void shutdown() throws InterruptedException {
+		synchronized (outstanding) {
+			while (outstanding.get() > 0) {
+				outstanding.wait();
+			}
+		}
+		if (feeder != null) {
+			feeder.interrupt();
+		}
+
+		for (int i = 0; i < workers.size(); i++) {
+			queue.put(STOP);
+		}
+
+		for (Thread worker : workers) {
+			worker.join();
+		}
+
+		for (BatchHandler handler : handlers) {
+			handler.close();
+		}
+	}
+
+	private void work(BatchHandler handler) {
+		while (true) {
+			RecordBatch batch;
+
+			try {
+				batch = queue.take();
+			} catch (InterruptedException e) {
+				return;
+			}
+
+			if (batch == STOP) {
+				return;
+			}
+
+			try {
+				handler.process(batch);
+			} catch (RuntimeException e) {
+				// Keep the worker alive so the queue still drains
+				System.out.println("Batch " + batch.getSequence() + " failed: " + e);
+			} finally {
+				finished();
+			}
+		}
+	}
+
+	/**
+	 * Moves batches whose retry delay is over to the back of the main queue.
+	 */
+	private void feed() {
+		while (true) {
+			try {
+				queue.put(delayed.take().batch);
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+	private void finished() {
+		if (outstanding.decrementAndGet() == 0) {
+			synchronized (outstanding) {
+				outstanding.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * A batch waiting in the delay queue until it is due.
+	 */
+	private static class DelayedBatch implements Delayed {
+
+		DelayedBatch(RecordBatch batch, long delay) {
+			this.batch = batch;
+			this.due = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delay));
+		}
+
+		public long getDelay(TimeUnit unit) {
+			return unit.convert(due - System.nanoTime(), TimeUnit.NANOSECONDS);
+		}
+
+		public int compareTo(Delayed other) {
+			long diff = due - ((DelayedBatch)other).due;
+			return diff < 0 ? -1 : diff > 0 ? 1 : 0;
+		}
+
+		final RecordBatch batch;
+		final long due;
+
+	}
+
+
+	private static final RecordBatch STOP = new RecordBatch(-1, Collections.<DeviceRecord>emptyList());
+
+	private List<BatchHandler> handlers;
+	private List<Thread> workers = new ArrayList<Thread>();
+	private BlockingQueue<RecordBatch> queue;
+	private DelayQueue<DelayedBatch> delayed = new DelayQueue<DelayedBatch>();
+	private AtomicInteger outstanding = new AtomicInteger();
+	private Thread feeder;
+
+}
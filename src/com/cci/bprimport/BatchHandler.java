@@ -0,0 +1,40 @@
+// BatchHandler - part of bprimport, a worker that owns one RDU connection
+// and sends record batches over it
+// Copyright (C) 2012  Matt Reath
+
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+package com.cci.bprimport;
+
+/**
+ * A BatchHandler owns one connection to the RDU and is only ever called from
+ * the single worker thread the {@link BatchDispatcher} gives it, so it can
+ * keep its batch and status in plain fields.
+ * <p>
+ * @author Matt Reath
+ * @version 0.1
+ *
+ */
+public interface BatchHandler {
+
+	/**
+	 * Sends every record in the batch to the RDU and reports the results.
+	 */
+	void process(RecordBatch batch);
+
+	/**
+	 * Releases the connection once the dispatcher has drained its queue.
+	 */
+	void close();
+
+}
@@ -0,0 +1,243 @@
+// BprDaemon - part of bprimport, keeps logged in RDU connections open and
+// serves import, reset and lookup requests over a local socket
+// Copyright (C) 2012  Matt Reath
+
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+package com.cci.bprimport;
+
+import com.cisco.provisioning.cpe.*;
+import com.cisco.provisioning.cpe.api.*;
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * BprDaemon logs in to the RDU once per connection at startup and then
+ * answers requests on a loopback TCP port, so a caller such as the billing
+ * system pays neither JVM startup nor an RDU login per customer action.
+ * <p>
+ * The protocol is one request per line and one reply per line:
+ * <pre>
+ * IMPORT -d ownerID|macAddress|classOfService|dhcpCriteria
+ * IMPORT -m ownerID|macAddress|classOfService|dhcpCriteria
+ * RESET macAddress
+ * LOOKUP macAddress
+ * QUIT
+ * </pre>
+ * A reply is "OK", "OK &lt;export line&gt;" for a lookup, or "ERR &lt;reason&gt;".
+ * A request borrows one of the warm connections for as long as it runs, so
+ * up to --connections requests are served at the same time.
+ * <p>
+ * Usage: java com.cci.bprimport.BprDaemon <rdu address> <port> <username> <password> [--listen port] [--connections n]
+ * <p>
+ * @author Matt Reath
+ * @version 0.1
+ *
+ */
+public class BprDaemon {
+
+	/**
+	 * Entry point into the BprDaemon application.
+	 *
+	 * @param args	Contains the CLI arguments
+	 */
+	public static void main(String[] args) {
+
+		CommandLine cli = new CommandLine(args);
+		int listenPort = cli.getIntOption("listen", DEFAULT_LISTEN_PORT);
+		int connections = cli.getIntOption("connections", 2);
+
+		if (cli.hasOption("throttle")) {
+			try {
+				RduThrottle.watch(new File(cli.getOption("throttle", null)));
+			} catch (IOException ioe) {
+				System.out.println(ioe.getMessage());
+				System.exit(1);
+			}
+		}
+
+		BprDaemon daemon = new BprDaemon();
+
+		// Step 1 - Log in once per connection up front
+		System.out.print("Connecting to the RDU...");
+		for (int i = 0; i < Math.max(1, connections); i++) {
+			daemon.addSession(cli.arg(0), Integer.parseInt(cli.arg(1)), cli.arg(2), cli.arg(3));
+		}
+		System.out.print("Success\n\n");
+
+		// Step 2 - Serve requests until killed, counting them over JMX
+		Metrics.get().start("bprdaemon", 0, 0);
+		try {
+			daemon.serve(listenPort);
+		} catch (IOException ioe) {
+			System.out.println(ioe.getMessage());
+			System.exit(1);
+		}
+	}
+
+	public BprDaemon() {
+
+	}
+
+	/**
+	 * Opens one more RDU connection and adds it to the pool.
+	 */
+	public void addSession(String hostname, int port, String userName, String password) {
+		BprImport importer = new BprImport();
+		importer.initializeConnectionToRDU(hostname, port, userName, password);
+		sessions.add(new Session(importer));
+	}
+
+	/**
+	 * Adds a connection that is already logged in to the pool.
+	 */
+	void addSession(PACEConnection connection) {
+		BprImport importer = new BprImport();
+		importer.setConnection(connection);
+		sessions.add(new Session(importer));
+	}
+
+	/**
+	 * Accepts clients on the loopback interface only, each on its own thread.
+	 */
+	public void serve(int listenPort) throws IOException {
+		ServerSocket server = new ServerSocket(listenPort, 50, InetAddress.getByName(null));
+		System.out.println("Listening on " + server.getLocalSocketAddress());
+
+		while (true) {
+			final Socket client = server.accept();
+
+			clients.execute(new Runnable() {
+				public void run() {
+					handle(client);
+				}
+			});
+		}
+	}
+
+	private void handle(Socket client) {
+		try {
+			BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream(), "ISO-8859-1"));
+			Writer out = new BufferedWriter(new OutputStreamWriter(client.getOutputStream(), "ISO-8859-1"));
+			String line;
+
+			while ((line = in.readLine()) != null) {
+				line = line.trim();
+
+				if (line.equalsIgnoreCase("QUIT")) {
+					break;
+				}
+				if (line.length() == 0) {
+					continue;
+				}
+
+				out.write(execute(line));
+				out.write("\n");
+				out.flush();
+			}
+		} catch (IOException e) {
+			// Client went away
+		} finally {
+			try {
+				client.close();
+			} catch (IOException e) {
+				// Nothing left to do
+			}
+		}
+	}
+
+	/**
+	 * Runs one request on a borrowed connection.
+	 *
+	 * @return The reply line
+	 */
+	String execute(String request) {
+		String[] words = request.split("\\s+", 3);
+		String command = words[0].toUpperCase();
+
+		Session session;
+		try {
+			session = sessions.take();
+		} catch (InterruptedException e) {
+			return "ERR interrupted";
+		}
+
+		try {
+			if (command.equals("IMPORT") && words.length == 3) {
+				byte[] bytes = words[2].getBytes("ISO-8859-1");
+				DeviceRecord record = DeviceRecordReader.parseLine(bytes, 0, bytes.length, 0);
+
+				session.importer.setDeviceMode(words[1]);
+				if (session.importer.importDevice(record)) {
+					return "OK";
+				}
+				return "ERR " + session.importer.getLastError();
+
+			} else if (command.equals("RESET") && words.length == 2) {
+				if (session.reset.resetOne(words[1])) {
+					return "OK";
+				}
+				return "ERR " + session.reset.getLastError();
+
+			} else if (command.equals("LOOKUP") && words.length == 2) {
+				String device = session.export.lookupDevice(words[1]);
+				if (device != null) {
+					return "OK " + device;
+				}
+				return "ERR " + session.export.getLastError();
+			}
+
+			return "ERR expected IMPORT <-d|-m> <record>, RESET <mac>, LOOKUP <mac> or QUIT";
+
+		} catch (MalformedRecordException e) {
+			return "ERR " + e.getReason();
+		} catch (IllegalArgumentException e) {
+			return "ERR " + e.getMessage();
+		} catch (UnsupportedEncodingException e) {
+			return "ERR " + e.getMessage();
+		} finally {
+			sessions.add(session);
+		}
+	}
+
+	/**
+	 * One logged in RDU connection, shared by the three tools that use it.
+	 * Only one request uses a session at a time.
+	 */
+	private static class Session {
+
+		Session(BprImport importer) {
+			this.importer = importer;
+			this.reset = new DeviceReset();
+			this.export = new BprExport();
+
+			PACEConnection connection = importer.getConnection();
+			reset.setConnection(connection);
+			export.setConnection(connection);
+		}
+
+		final BprImport importer;
+		final DeviceReset reset;
+		final BprExport export;
+
+	}
+
+
+	private static final int DEFAULT_LISTEN_PORT = 49190;
+
+	private BlockingQueue<Session> sessions = new LinkedBlockingQueue<Session>();
+	private ExecutorService clients = Executors.newCachedThreadPool();
+
+}
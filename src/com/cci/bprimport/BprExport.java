@@ -23,22 +23,26 @@ import com.cisco.*;
 import com.cisco.provisioning.cpe.constants.*;
 import java.io.*;
 import java.util.*;
-import java.io.BufferedWriter;
-import java.io.FileNotFoundException;
-import java.io.FileWriter;
-import java.io.IOException;
 
 /**
  * BprExport connects to an RDU device, queries all MTA and DOCSIS devices out of the
  * database and writes them to a file. 
  * <p>
- * Usage: com.cci.bprimport.BprExport <rdu address> <port> <username> <password> <file name>
+ * Each device type is searched on a connection of its own at the same time,
+ * and the detail workers are shared by all of them.
+ * <p>
+ * Usage: com.cci.bprimport.BprExport <rdu address> <port> <username> <password> [--output file] [--format pipe|csv|ndjson]
+ *        [--device-types docsis,mta,computer|all [--split-types]] [--shards [--shard-depth n] [--resume]]
+ *        [--connections n] [--detail-batch-size n] [--page-size n|auto [--max-page-size n]] [--search-only] [--throttle file]
+ *        [--status-interval s] [--log file] [--verbosity counts|failures|all] [--log-size mb] [--log-files n]
+ *        [--retries n] [--retry-delay ms] [--max-retry-delay ms] [--transient-errors a,b,...]
+ *        [--standby host[:port]] [--spare-connections n] [--health-interval s]
  * <p>
  * @author Matt Reath
  * @version 0.2
  * 
  */
-public class BprExport {
+public class BprExport implements BatchHandler {
 
 	/**
 	 * Entry point into the BprExport application.
@@ -47,32 +51,409 @@ public class BprExport {
 	 */
 	public static void main(String[] args) {
 		
-		BprExport bpr = new BprExport();
+		CommandLine cli = new CommandLine(args, "search-only", "split-types", "shards", "resume");
+		String output = cli.getOption("output", "-");
+		
+		if (output.equals("-")) {
+			// Standard output is the export's own, everything else the tool
+			// prints goes to standard error, from the throttle and the log
+			// on. See ExportWriter.open.
+			System.setOut(System.err);
+		}
+		
+		int connections = cli.getIntOption("connections", 1);
+		int detailBatchSize = cli.getIntOption("detail-batch-size", DEFAULT_DETAIL_BATCH_SIZE);
+		
+		if (connections < 1 || detailBatchSize < 1) {
+			System.out.println("--connections and --detail-batch-size must be at least 1");
+			System.exit(1);
+		}
+		
+		if (cli.hasOption("throttle")) {
+			try {
+				RduThrottle.watch(new File(cli.getOption("throttle", null)));
+			} catch (IOException ioe) {
+				System.out.println(ioe.getMessage());
+				System.exit(1);
+			}
+		}
+		
+		AsyncLog.open(cli, "bprexport.log");
+		
+		if (cli.hasOption("shards")) {
+			exportShards(cli);
+			return;
+		}
+		
+		String[] types = cli.getOption("device-types", "docsis").split(",");
+		boolean split = cli.hasOption("split-types");
+		
+		if (types.length == 1 && types[0].equals("all")) {
+			types = ALL_DEVICE_TYPES;
+		}
+		if (split && output.equals("-")) {
+			System.out.println("--split-types needs an --output file");
+			System.exit(1);
+		}
+		
+		int pageSize = DEFAULT_PAGE_SIZE;
+		PageSizeTuner tuner = null;
+		try {
+			tuner = pageSizeTuner(cli);
+			if (tuner == null) {
+				pageSize = cli.getIntOption("page-size", DEFAULT_PAGE_SIZE);
+			}
+		} catch (IllegalArgumentException iae) {
+			System.out.println(iae.getMessage());
+			System.exit(1);
+		}
+		
+		// Step 1 - Open the output, one file per device type with
+		// --split-types, and connect to the RDU once for each search cursor
+		// and once for each detail worker
+		List<BprExport> searches = new ArrayList<BprExport>();
+		List<ExportWriter> writers = new ArrayList<ExportWriter>();
+		
+		try {
+			ExportFormat format = ExportFormat.forName(cli.getOption("format", "pipe"));
+			ExportWriter shared = split ? null : ExportWriter.open(output, format);
+			
+			if (shared != null) {
+				writers.add(shared);
+			}
+			
+			for (String type : types) {
+				BprExport search = new BprExport();
+				search.setDeviceType(type);
+				search.setSearchOnly(cli.hasOption("search-only"));
+				search.setDetailBatchSize(detailBatchSize);
+				search.setPageSize(pageSize);
+				search.setPageSizeTuner(tuner);
+				
+				if (split) {
+					ExportWriter writer = ExportWriter.open(outputForType(output, type), format);
+					writers.add(writer);
+					search.setWriter(writer);
+				} else {
+					search.setWriter(shared);
+				}
+				searches.add(search);
+			}
+		} catch (IllegalArgumentException iae) {
+			System.out.println(iae.getMessage());
+			System.exit(1);
+		} catch (IOException ioe) {
+			System.out.println(ioe.getMessage());
+			System.exit(1);
+		}
 		
-		// Step 1 - Connect to the RDU
 		System.out.print("Connecting to the RDU...");
-		bpr.initializeConnectionToRDU(args[0], Integer.parseInt(args[1]), args[2], args[3]);
+		ConnectionManager rdu = ConnectionManager.open(cli, 0);
+		for (BprExport search : searches) {
+			search.setConnection(rdu.acquire());
+			search.setConnectionManager(rdu);
+		}
+		
+		List<BprExport> workers = new ArrayList<BprExport>();
+		for (int i = 0; i < connections; i++) {
+			BprExport worker = new BprExport();
+			worker.setConnection(rdu.acquire());
+			worker.setConnectionManager(rdu);
+			workers.add(worker);
+		}
+		rdu.start();
 		System.out.print("Success\n\n");
 		
-		List modems = null;
+		// Step 2 - Walk the search pages of every device type at once while
+		// the workers resolve details
+		final BatchDispatcher dispatcher = new BatchDispatcher(workers, connections * 2);
+		RetryPolicy retries = RetryPolicy.open(cli, dispatcher,
+			new File(output.equals("-") ? "bprexport.dead" : output + ".dead"), false);
+		for (BprExport search : searches) {
+			search.setRetryPolicy(retries);
+		}
+		for (BprExport worker : workers) {
+			worker.setRetryPolicy(retries);
+		}
+		dispatcher.start();
+		Metrics.get().start("bprexport", 0, cli.getIntOption("status-interval", 10));
+		
+		System.out.print("Exporting ...");
+		List<Thread> cursors = new ArrayList<Thread>();
+		for (final BprExport search : searches) {
+			Thread cursor = new Thread(new Runnable() {
+				public void run() {
+					search.getAllDevices(dispatcher);
+				}
+			}, "search-" + search.deviceType);
+			cursor.start();
+			cursors.add(cursor);
+		}
+		
+		try {
+			for (Thread cursor : cursors) {
+				cursor.join();
+			}
+			dispatcher.shutdown();
+			rdu.close();
+			retries.close();
+		} catch (InterruptedException ie) {
+			System.out.println("Interrupted while waiting for the workers");
+		} catch (IOException ioe) {
+			System.out.println(ioe.getMessage());
+		}
+		
+		Metrics.get().stop();
+		AsyncLog.close();
 		
-		modems = bpr.getAllDOCSISModems();
-		//modems = bpr.getAllMTAs();
+		for (ExportWriter writer : writers) {
+			try {
+				writer.close();
+			} catch (IOException ioe) {
+				System.out.println("Could not write the export: " + ioe.getMessage());
+			}
+		}
+		
+		// The lines do not say which type each device is, --sync reads the
+		// types from here before it deletes anything
+		if (!output.equals("-")) {
+			try {
+				if (split) {
+					for (String type : types) {
+						DeltaSync.writeTypes(new File(outputForType(output, type)), Collections.singletonList(type));
+					}
+				} else {
+					DeltaSync.writeTypes(new File(output), new LinkedHashSet<String>(Arrays.asList(types)));
+				}
+			} catch (IOException ioe) {
+				System.out.println("Could not write the device types: " + ioe.getMessage());
+			}
+		}
+		
+		int exported = 0;
+		for (BprExport search : searches) {
+			exported += search.modem_count;
+			if (split) {
+				System.out.println("\n" + search.writer.getCount() + " " + search.deviceType + " device(s) exported to "
+					+ outputForType(output, search.deviceType));
+			}
+		}
+		for (BprExport worker : workers) {
+			exported += worker.modem_count;
+		}
+		System.out.println("\n" + Integer.toString(exported) + " device(s) exported.");
+		if (retries.getRetriedCount() > 0 || retries.getDeadLetterCount() > 0) {
+			System.out.println(retries.getRetriedCount() + " retry attempt(s), " + retries.getDeadLetterCount()
+				+ " device(s) given up on in " + retries.getDeadLetterFile());
+		}
+		reportConnections(rdu);
+		reportPageSize(tuner);
 		
+		// A search that stopped early or a device that could not be looked
+		// up leaves a gap in the export, which --sync would take for devices
+		// that are gone
+		boolean complete = retries.getDeadLetterCount() == 0;
+		for (BprExport search : searches) {
+			if (search.getSearchFailure() != null) {
+				System.out.println("The " + search.deviceType + " search stopped early: " + search.getSearchFailure());
+				complete = false;
+			}
+		}
+		for (BprExport worker : workers) {
+			complete &= worker.failedBatches == 0;
+		}
 		
-		// Step 5 - Verify the batch.
-		bpr.endBatch();
-		// Step 6 - Disconnect
+		// Step 3 - Disconnect
 		System.out.print("Disconnecting...");
-		bpr.disconnect();
+		for (BprExport search : searches) {
+			search.disconnect();
+		}
 		System.out.print("Success\n");
 		
+		if (!complete) {
+			System.out.println("The export is incomplete, do not use it as a --sync snapshot.");
+			System.exit(1);
+		}
+		
 	}
 	
 	public BprExport() {
 		
 	}
 	
+	/**
+	 * Reads --page-size.
+	 * 
+	 * @return A tuner for --page-size auto, otherwise null
+	 */
+	private static PageSizeTuner pageSizeTuner(CommandLine cli) {
+		if (!cli.getOption("page-size", "").equals("auto")) {
+			if (cli.getIntOption("page-size", DEFAULT_PAGE_SIZE) < 1) {
+				throw new IllegalArgumentException("--page-size must be at least 1 or auto");
+			}
+			return null;
+		}
+		return new PageSizeTuner(DEFAULT_PAGE_SIZE, cli.getIntOption("max-page-size", DEFAULT_MAX_PAGE_SIZE));
+	}
+	
+	private static void reportConnections(ConnectionManager rdu) {
+		if (rdu.getReplacedCount() > 0) {
+			System.out.println(rdu.getReplacedCount() + " broken connection(s) replaced, "
+				+ rdu.getFailoverCount() + " login(s) to the standby RDU.");
+		}
+	}
+	
+	private static void reportPageSize(PageSizeTuner tuner) {
+		if (tuner != null) {
+			System.out.println("Page size " + tuner.getPageSize() + (tuner.isSettled() ? "" : ", still tuning")
+				+ ", " + Math.round(tuner.getBestThroughput()) + " device(s)/s per search connection.");
+		}
+	}
+	
+	/**
+	 * Exports every device by MAC address shard, each of the --connections
+	 * connections walking shards and looking up their details on its own.
+	 * See {@link ShardedExport}.
+	 * 
+	 * @param cli	The parsed CLI arguments
+	 */
+	private static void exportShards(CommandLine cli) {
+		
+		String output = cli.getOption("output", "-");
+		int connections = cli.getIntOption("connections", 1);
+		
+		if (output.equals("-") || cli.hasOption("device-types") || cli.hasOption("split-types")) {
+			System.out.println("--shards needs an --output file and walks every device type");
+			System.exit(1);
+		}
+		
+		ExportFormat format = null;
+		PageSizeTuner tuner = null;
+		try {
+			format = ExportFormat.forName(cli.getOption("format", "pipe"));
+			tuner = pageSizeTuner(cli);
+		} catch (IllegalArgumentException iae) {
+			System.out.println(iae.getMessage());
+			System.exit(1);
+		}
+		
+		// Step 1 - Connect to the RDU once per shard cursor
+		System.out.print("Connecting to the RDU...");
+		ConnectionManager rdu = ConnectionManager.open(cli, 0);
+		List<BprExport> cursors = new ArrayList<BprExport>();
+		for (int i = 0; i < Math.max(1, connections); i++) {
+			BprExport cursor = new BprExport();
+			cursor.setConnection(rdu.acquire());
+			cursor.setConnectionManager(rdu);
+			cursor.setSearchOnly(cli.hasOption("search-only"));
+			cursor.setDetailBatchSize(cli.getIntOption("detail-batch-size", DEFAULT_DETAIL_BATCH_SIZE));
+			if (tuner == null) {
+				cursor.setPageSize(cli.getIntOption("page-size", DEFAULT_PAGE_SIZE));
+			}
+			cursor.setPageSizeTuner(tuner);
+			cursors.add(cursor);
+		}
+		rdu.start();
+		System.out.print("Success\n\n");
+		
+		// Step 2 - Walk the shards, then put the part files together
+		ShardedExport shards = new ShardedExport(ShardedExport.directoryFor(output), format,
+			cli.getIntOption("shard-depth", 4));
+		
+		System.out.print("Exporting ...");
+		Metrics.get().start("bprexport", 0, cli.getIntOption("status-interval", 10));
+		boolean complete = false;
+		try {
+			shards.run(cursors, cli.hasOption("resume"));
+			rdu.close();
+			Metrics.get().stop();
+			AsyncLog.close();
+			
+			List<String> failed = shards.getFailedShards();
+			System.out.println("\n" + shards.getShardCount() + " shard(s) exported, " + shards.getSplitCount()
+				+ " split.");
+			
+			if (failed.isEmpty()) {
+				ExportWriter writer = ExportWriter.open(output, format);
+				shards.assemble(writer);
+				writer.close();
+				// Shards hold every device type, which keeps --sync from
+				// deleting against this export
+				DeltaSync.writeTypes(new File(output), Arrays.asList(ALL_DEVICE_TYPES));
+				System.out.println(writer.getCount() + " device(s) exported.");
+				complete = true;
+			} else {
+				System.out.println(failed.size() + " shard(s) failed, run again with --resume to retry them: " + failed);
+			}
+			reportConnections(rdu);
+			reportPageSize(tuner);
+		} catch (IOException ioe) {
+			System.out.println(ioe.getMessage());
+		} catch (InterruptedException ie) {
+			System.out.println("Interrupted while exporting shards");
+		}
+		
+		// Step 3 - Disconnect
+		System.out.print("Disconnecting...");
+		for (BprExport cursor : cursors) {
+			cursor.disconnect();
+		}
+		System.out.print("Success\n");
+		
+		if (!complete) {
+			System.exit(1);
+		}
+		
+	}
+	
+	/**
+	 * Names the output file of one device type for --split-types by putting
+	 * the type in front of the extension, export.txt.gz becomes
+	 * export-mta.txt.gz.
+	 */
+	static String outputForType(String output, String type) {
+		int name = output.lastIndexOf(File.separatorChar) + 1;
+		int dot = output.indexOf('.', name);
+		
+		if (dot <= name) {
+			return output + "-" + type;
+		}
+		return output.substring(0, dot) + "-" + type + output.substring(dot);
+	}
+	
+	/**
+	 * Sets the policy that decides which failed lookups and searches are
+	 * tried again. Without one, a failure is final.
+	 */
+	public void setRetryPolicy(RetryPolicy retries) {
+		this.retries = retries;
+	}
+	
+	/**
+	 * Sets where a connection that failed is swapped for a working one.
+	 */
+	public void setConnectionManager(ConnectionManager connections) {
+		this.connections = connections;
+	}
+	
+	/**
+	 * Selects the device type {@link #getAllDevices} searches for.
+	 * 
+	 * @param type	docsis, mta or computer
+	 */
+	public void setDeviceType(String type) {
+		if (type.equals("docsis")) {
+			searchType = DeviceType.getDeviceType(DeviceTypeValues.DOCSIS_MODEM);
+		} else if (type.equals("mta")) {
+			searchType = DeviceType.PACKET_CABLE_MTA;
+		} else if (type.equals("computer")) {
+			searchType = DeviceType.COMPUTER;
+		} else {
+			throw new IllegalArgumentException("Unknown device type " + type + ", expected docsis, mta, computer or all");
+		}
+		deviceType = type;
+	}
+	
 	/**
 	 * Initializes a connection to the BAC RDU server.
 	 * 
@@ -93,58 +474,180 @@ public class BprExport {
 		{
 			// Connection failed
 			System.out.println(e.getMessage());
-			System.exit(0);
+			System.exit(1);
 		}
 		catch(AuthenticationException e)
 		{
 			// Authentication failure
 			System.out.println(e.getMessage());
-			System.exit(0);
+			System.exit(1);
+		}
+	}
+	
+	/**
+	 * Fetches one page of a search. With a {@link PageSizeTuner} the page
+	 * size comes from the tuner, which learns from the result, and a search
+	 * that failed is tried again if the tuner lowers the size.
+	 * <p>
+	 * A null page is never the end of the search, which is a page without a
+	 * bookmark. Callers must treat it as a failure: the export is missing
+	 * whatever came after it.
+	 * 
+	 * @param sb	Where the previous page ended, null for the first page
+	 * @return The page, or null with why the search was given up on, and
+	 * 			after how many attempts, in {@link #getSearchError}
+	 */
+	RecordSearchResults searchDevice(DeviceSearchType dst, SearchBookmark sb) {
+		
+		int attempt = 0;
+		
+		while (true) {
+			int size = tuner != null ? tuner.getPageSize() : pageSize;
+			long start = System.nanoTime();
+			RecordSearchResults rs = searchDevice(dst, sb, size);
+			Metrics.get().searchFinished((System.nanoTime() - start) / 1000);
+			
+			if (rs != null) {
+				if (tuner != null) {
+					tuner.pageFetched(size, rs.getRecordData().size(), postLatency);
+				}
+				return rs;
+			}
+			
+			if (retries != null && retries.isTransient(searchError) && attempt < retries.getMaxAttempts()) {
+				// The same page again after a backoff, this thread only
+				// walks the search
+				long delay = retries.delay(++attempt);
+				AsyncLog.info("Searching again in " + delay + " ms, attempt " + attempt);
+				try {
+					Thread.sleep(delay);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					searchError = "interrupted while waiting to search again";
+					return null;
+				}
+			} else if (tuner != null && tuner.pageFailed(size)) {
+				AsyncLog.info("Searching again with pages of " + tuner.getPageSize());
+			} else {
+				searchError = (searchError != null ? searchError : "search failed") + " (gave up after "
+					+ (attempt + 1) + " attempt(s))";
+				AsyncLog.failure("Giving up on the search page: " + searchError);
+				return null;
+			}
 		}
+		
+	}
+	
+	/**
+	 * Fetches one page of the devices whose MAC address matches a pattern
+	 * such as 1,6,00:0C:*, for a sharded export.
+	 * 
+	 * @see #searchDevice(DeviceSearchType, SearchBookmark)
+	 */
+	RecordSearchResults searchPattern(String pattern, SearchBookmark sb) {
+		
+		return searchDevice(DeviceSearchType.getByMACAddressPattern(new MACAddressPattern(pattern),
+			ReturnParameters.ALL), sb);
+		
 	}
 	
-	private RecordSearchResults searchDevice(DeviceSearchType dst, SearchBookmark sb) throws Exception {
+	private RecordSearchResults searchDevice(DeviceSearchType dst, SearchBookmark sb, int size) {
 	
-		RecordSearchResults rs = null;
 		CommandStatus comStatus = null;
 		
 		startBatch();
-		batch.searchDevice(dst, sb, 100);
+		batch.searchDevice(dst, sb, size);
+		commandCount++;
 		postBatch();
 		
+		searchError = postError;
+		if (status == null) {
+			AsyncLog.failure("Search failed: " + postError);
+			return null;
+		}
+		
 		if(0 < status.getCommandCount()) {
 				comStatus = status.getCommandStatus(0);
 		}
 			
 		if (status.isError()) {
-			System.out.println("\n" + status.getErrorMessage());
+			searchError = status.getErrorMessage();
+			AsyncLog.failure("Search failed: " + searchError);
+			return null;
+		} else if (comStatus == null) {
+			searchError = "the RDU returned no command status";
+			AsyncLog.failure("Search failed: " + searchError);
+			return null;
 		} else if (comStatus.isError()) {
-			System.out.println("\n" + comStatus.getErrorMessage());
+			searchError = comStatus.getErrorMessage();
+			AsyncLog.failure("Search failed: " + searchError);
+			return null;
 		} else if (status.isWarning()) {
-			System.out.println("\n" + status.getErrorMessage());
-		} else if (comStatus == null) {
-			System.out.println("\ncomStatus was null");
+			AsyncLog.info("Search warning: " + status.getErrorMessage());
+		}
+		
+		return (RecordSearchResults)comStatus.getData();
+		
+	}
+	
+	/**
+	 * Splits the devices of a search page into detail batches and queues
+	 * them for the detail workers, tagged with the writer of this search.
+	 * 
+	 * @return The next free batch sequence number
+	 */
+	private long queueRecordSearchResults(RecordSearchResults rs, BatchDispatcher dispatcher, long sequence)
+			throws InterruptedException {
+	
+		List<DeviceRecord> devices = pageDevices(rs, writer);
+		
+		for (int i = 0; i < devices.size(); i += detailBatchSize) {
+			List<DeviceRecord> macs = devices.subList(i, Math.min(devices.size(), i + detailBatchSize));
+			dispatcher.submit(new DeviceTypeBatch(sequence++, macs, writer));
+		}
+	
+		return sequence;
+	
+	}
+	
+	/**
+	 * Looks up the details of the devices of a search page on this
+	 * connection and writes them out, for a sharded export where every
+	 * connection walks shards of its own.
+	 * 
+	 * @return False if a detail batch failed as a whole and its devices
+	 * 			were not written
+	 */
+	boolean exportPage(RecordSearchResults rs, ExportWriter out) {
+		
+		List<DeviceRecord> devices = pageDevices(rs, out);
+		int failures = failedBatches;
+		
+		for (int i = 0; i < devices.size(); i += detailBatchSize) {
+			List<DeviceRecord> macs = devices.subList(i, Math.min(devices.size(), i + detailBatchSize));
+			process(new DeviceTypeBatch(0, macs, out));
 		}
 		
-		rs = (RecordSearchResults)comStatus.getData();
-		return rs;
+		return failedBatches == failures;
 		
 	}
 	
-	private SearchBookmark printRecordSearchResults(RecordSearchResults rs, BufferedWriter buf) throws Exception {
+	/**
+	 * Collects the secondary keys of a search page. In search-only mode a
+	 * device whose search data already holds every exported field is printed
+	 * straight away and only the others are returned.
+	 * 
+	 * @return The devices that still need getDetails
+	 */
+	private List<DeviceRecord> pageDevices(RecordSearchResults rs, ExportWriter out) {
 	
-		SearchBookmark sb = rs.getSearchBookmark();
-		CommandStatus comStatus = null;
+		List<DeviceRecord> macs = new ArrayList<DeviceRecord>();
 		List<RecordData> rdlist = rs.getRecordData();
 		Iterator<RecordData> iter = rdlist.iterator();
 		
 		while(iter.hasNext()) {
 			
 			RecordData rdObj = iter.next();
-			Key keyObj = rdObj.getPrimaryKey();
-			
-			//System.out.println("DeviceOID: " + ((DeviceID)keyObj).getDeviceId());
-			
 			List<Key> deviceList = rdObj.getSecondaryKeys();
 			
 			if (deviceList != null && !deviceList.isEmpty()) {
@@ -152,275 +655,225 @@ public class BprExport {
 				for (int i = 0; i <deviceList.size(); i++)
 				{
 					Key key = deviceList.get(i);
-					//System.out.println("DeviceID :" + key.toString());
-					DeviceID id = new MACAddress(key.toString());
-					Map detailMap = null;
-				
-				startBatch();
-				batch.getDetails(id,null);
-				postBatch();
-				
-				if(0 < status.getCommandCount()) {
-					comStatus = status.getCommandStatus(0);
-				}
-
-				if (status.isError()) {
-					System.out.println("\n" + status.getErrorMessage());
-				} else if (comStatus.isError()) {
-					System.out.println("\n" + comStatus.getErrorMessage());
-				} else if (status.isWarning()) {
-					System.out.println("\n" + status.getErrorMessage());
-				} else if (comStatus == null) {
-					System.out.println("\ncomStatus was null");
-				}
-
-				detailMap = (Map)comStatus.getData();
-				modem_count++;
-				
-				String ownerID = (String)detailMap.get("/ownerID");
-				String dhcpCriteria = (String)detailMap.get("/provisioning/dhcpCriteria");
-				String cos = (String)detailMap.get("/provisioning/classOfService");
-				String macAddress = (String)detailMap.get("/network/macAddress");
-				String dversion = (String)detailMap.get("/network/docsisVersion");
-
-				String device = ownerID + "|" + key.toString() + "|" + cos + "|" + dhcpCriteria;
-				System.out.println(device);
 					
+					if (searchOnly && hasDeviceFields(rdObj.getData())) {
+						printDevice(out, key.toString(), rdObj.getData());
+						continue;
+					}
+					
+					macs.add(new DeviceRecord(0, null, key.toString(), null, null));
 				}
 			}
 			
 		}
 	
-		return sb;
+		return macs;
 	
 	}
 	
-	public List getAllDOCSISModems() {
-		
-		List modems = null;
-		String startMac = null;
-		BatchStatus curStatus = null;
-		CommandStatus comStatus = null;
-		//int modem_count = 0;
-		
-		// MACAddressPattern pattern = new MACAddressPattern("*");
-		// MACAddressSearchType mst = MACAddressSearchType.getByDeviceType(DeviceType.DOCSIS, pattern);
-		// MACAddressSearchFilter msf = new MACAddressSearchFilter(mst,true,100);
-		
-		DeviceSearchType dst = DeviceSearchType.getByDeviceType(
-		DeviceType.getDeviceType(DeviceTypeValues.DOCSIS_MODEM),ReturnParameters.ALL);
+	/**
+	 * Looks up the details of every device in the batch with a single RDU
+	 * round trip and prints one line per device.
+	 * <p>
+	 * A command that failed is reported and dropped, or handed back to be
+	 * retried later if it failed for a transient reason. Commands that came
+	 * back without data because another command failed are posted again.
+	 * 
+	 * @param devices	Devices from a search page, MAC address only
+	 */
+	public void process(RecordBatch devices) {
 		
+		ExportWriter out = writer;
+		if (devices instanceof DeviceTypeBatch) {
+			out = ((DeviceTypeBatch)devices).writer;
+		}
 		
-		try {
-			// create output file
-			BufferedWriter buff = new BufferedWriter(new FileWriter(new File("duo_county_docsis_export.txt"), false));
-	
-			System.out.print("Exporting ...");
-			modem_count = 0;
-			RecordSearchResults rs = null;
-			SearchBookmark sb = null;
+		List<DeviceRecord> remaining = devices.getRecords();
+		List<DeviceRecord> later = new ArrayList<DeviceRecord>();
+		String reason = null;
 		
-			rs = searchDevice(dst, sb);
-			sb = rs.getSearchBookmark();
-			 
-			while(sb != null) {
-				
-				sb = printRecordSearchResults(rs,buff);
-				
-				rs = searchDevice(dst, sb);
-			}
-			
-			/*
-		while((modems == null || modems.size() == 100)) {
-				
-			
+		while (!remaining.isEmpty()) {
 			startBatch();
-			
-			batch.search(msf,startMac);
-			postBatch();
-			
-			
-			if(0 < status.getCommandCount()) {
-				comStatus = status.getCommandStatus(0);
-			}
-			
-			if (status.isError()) {
-				System.out.println("\n" + status.getErrorMessage());
-			} else if (comStatus.isError()) {
-				System.out.println("\n" + comStatus.getErrorMessage());
-			} else if (status.isWarning()) {
-				System.out.println("\n" + status.getErrorMessage());
-			} else if (comStatus == null) {
-				System.out.println("\ncomStatus was null");
+			for (DeviceRecord device : remaining) {
+				batch.getDetails(new MACAddress(device.getMacAddress()), null);
 			}
+			commandCount += remaining.size();
+			postBatch();
 			
-		
-			modems = (List)comStatus.getData();
+			List<DeviceRecord> retry = new ArrayList<DeviceRecord>();
 			
-			Iterator iter = modems.iterator();
-			// need to process the modem counts
-			while (iter.hasNext()) {
-				startMac = (String) iter.next();
+			for (int i = 0; status != null && i < remaining.size(); i++) {
+				DeviceRecord device = remaining.get(i);
+				CommandStatus comStatus = null;
 				
-				Map detailMap = null;
-				
-				startBatch();
-				batch.getDetails(startMac,false);
-				postBatch();
+				if (i < status.getCommandCount()) {
+					comStatus = status.getCommandStatus(i);
+				}
 				
-				if(0 < status.getCommandCount()) {
-					comStatus = status.getCommandStatus(0);
+				if (comStatus != null && comStatus.isError()) {
+					String error = comStatus.getErrorMessage();
+					if (retries != null && retries.isTransient(error) && retries.canRetry(devices)) {
+						later.add(device);
+						reason = error;
+					} else {
+						AsyncLog.failure(device.getMacAddress() + ": " + error);
+						Metrics.get().recordsFailed(1, error);
+						if (retries != null) {
+							retries.deadLetter(device, error);
+						}
+					}
+				} else if (comStatus != null && comStatus.getData() != null) {
+					printDevice(out, device.getMacAddress(), (Map)comStatus.getData());
+				} else {
+					retry.add(device);
 				}
-
-				if (status.isError()) {
-					System.out.println("\n" + status.getErrorMessage());
-				} else if (comStatus.isError()) {
-					System.out.println("\n" + comStatus.getErrorMessage());
-				} else if (status.isWarning()) {
-					System.out.println("\n" + status.getErrorMessage());
-				} else if (comStatus == null) {
-					System.out.println("\ncomStatus was null");
+			}
+			
+			if (status == null || retry.size() == remaining.size()) {
+				// No progress, the batch itself failed
+				String error = status != null ? status.getErrorMessage() : postError;
+				if (retries != null && (status == null || error == null || retries.isTransient(error))
+						&& retries.canRetry(devices)) {
+					later.addAll(remaining);
+					reason = error != null ? error : "batch failed";
+					break;
 				}
-
-				detailMap = (Map)comStatus.getData();
-				modem_count++;
-				
-				String ownerID = (String)detailMap.get("/ownerID");
-				String dhcpCriteria = (String)detailMap.get("/provisioning/dhcpCriteria");
-				String cos = (String)detailMap.get("/provisioning/classOfService");
-				String macAddress = (String)detailMap.get("/network/macAddress");
-				String dversion = (String)detailMap.get("/network/docsisVersion");
-				
-				//write out to file
-				System.out.print("#");
-
-				String device = ownerID + "|" + macAddress + "|" + cos + "|" + dhcpCriteria;
-				
-				buff.write(device);
-				buff.newLine();
 				
+				AsyncLog.failure((status != null ? status.getBatchID() : "Post") + ": " + error + " ("
+					+ remaining.size() + " device(s))");
+				Metrics.get().recordsFailed(remaining.size(), error);
+				if (retries != null) {
+					for (DeviceRecord device : remaining) {
+						retries.deadLetter(device, error);
+					}
+				}
+				failedBatches++;
+				break;
 			}
-			//System.out.println(modems.size());
 			
+			remaining = retry;
 		}
-	
-		*/
-		buff.close();
-		System.out.println("\n" + Integer.toString(modem_count) + " modem(s) exported.");
-	} catch (Exception e) { 
-		System.out.println(e.toString());
+		
+		if (!later.isEmpty()) {
+			retries.retry(devices, later, reason);
 		}
 		
-		return modems;
+	}
+	
+	/**
+	 * Checks whether the properties returned with a search record hold every
+	 * field of the export line. A property that is present but null counts,
+	 * since the device simply has no value for it.
+	 */
+	private static boolean hasDeviceFields(Map data) {
+		return data != null
+			&& data.containsKey(OWNER_ID)
+			&& data.containsKey(CLASS_OF_SERVICE)
+			&& data.containsKey(DHCP_CRITERIA);
+	}
+	
+	private void printDevice(ExportWriter out, String key, Map detailMap) {
+		
+		modem_count++;
+		Metrics.get().recordsDone(1);
+		out.writeDevice((String)detailMap.get(OWNER_ID), key, (String)detailMap.get(CLASS_OF_SERVICE),
+			(String)detailMap.get(DHCP_CRITERIA));
 		
 	}
 	
-	/*
-	public List getAllMTAs() {
+	private static String formatDevice(String key, Map detailMap) {
 		
-		List modems = null;
-		String startMac = null;
-		BatchStatus curStatus = null;
-		CommandStatus comStatus = null;
-		int modem_count = 0;
+		String ownerID = (String)detailMap.get(OWNER_ID);
+		String dhcpCriteria = (String)detailMap.get(DHCP_CRITERIA);
+		String cos = (String)detailMap.get(CLASS_OF_SERVICE);
 		
-		MACAddressPattern pattern = new MACAddressPattern("*");
-		MACAddressSearchType mst = MACAddressSearchType.getByDeviceType(DeviceType.PACKET_CABLE_MTA, pattern);
-		MACAddressSearchFilter msf = new MACAddressSearchFilter(mst,true,100);
+		return ownerID + "|" + key + "|" + cos + "|" + dhcpCriteria;
 		
-		try {
-		// create output file
-		BufferedWriter buff = new BufferedWriter(new FileWriter(new File("duo_county_pktcbl_export.txt"), false));
+	}
 	
-		System.out.print("Exporting ...");
+	public void close() {
+		disconnect();
+	}
 	
-		while((modems == null || modems.size() == 100)) {
-				
-			
-			startBatch();
-			
-			batch.search(msf,startMac);
-			postBatch();
-			
-			
-			if(0 < status.getCommandCount()) {
-				comStatus = status.getCommandStatus(0);
-			}
-			
-			if (status.isError()) {
-				System.out.println("\n" + status.getErrorMessage());
-			} else if (comStatus.isError()) {
-				System.out.println("\n" + comStatus.getErrorMessage());
-			} else if (status.isWarning()) {
-				System.out.println("\n" + status.getErrorMessage());
-			} else if (comStatus == null) {
-				System.out.println("\ncomStatus was null");
-			}
-			
+	/**
+	 * Walks every search page of the device type and queues the devices on
+	 * each page for the detail workers. The next page is fetched as soon as
+	 * the current one is queued, so the search keeps running ahead of the
+	 * detail lookups until the dispatcher's queue is full.
+	 * <p>
+	 * A page that cannot be fetched ends the walk early, with the reason in
+	 * {@link #getSearchFailure}.
+	 * 
+	 * @param dispatcher	Detail workers, one RDU connection each
+	 */
+	public void getAllDevices(BatchDispatcher dispatcher) {
 		
-			modems = (List)comStatus.getData();
-			
-			Iterator iter = modems.iterator();
-			// need to process the modem counts
-			while (iter.hasNext()) {
-				startMac = (String) iter.next();
-				
-				Map detailMap = null;
-				
-				startBatch();
-				batch.getDetails(startMac,false);
-				postBatch();
-				
-				if(0 < status.getCommandCount()) {
-					comStatus = status.getCommandStatus(0);
-				}
-
-				if (status.isError()) {
-					System.out.println("\n" + status.getErrorMessage());
-				} else if (comStatus.isError()) {
-					System.out.println("\n" + comStatus.getErrorMessage());
-				} else if (status.isWarning()) {
-					System.out.println("\n" + status.getErrorMessage());
-				} else if (comStatus == null) {
-					System.out.println("\ncomStatus was null");
+		DeviceSearchType dst = DeviceSearchType.getByDeviceType(searchType, ReturnParameters.ALL);
+		
+		try {
+			RecordSearchResults rs = null;
+			SearchBookmark sb = null;
+			long sequence = 0;
+			int pages = 0;
+		
+			do {
+				rs = searchDevice(dst, sb);
+				if (rs == null) {
+					searchFailure = (searchError != null ? searchError : "search failed") + " on page " + (pages + 1);
+					AsyncLog.failure("The " + deviceType + " search stopped early: " + searchFailure);
+					break;
 				}
-
-				detailMap = (Map)comStatus.getData();
-				modem_count++;
-				
-				String ownerID = (String)detailMap.get("/ownerID");
-				String dhcpCriteria = (String)detailMap.get("/provisioning/dhcpCriteria");
-				String cos = (String)detailMap.get("/provisioning/classOfService");
-				String macAddress = (String)detailMap.get("/network/macAddress");
-				String dversion = (String)detailMap.get("/network/docsisVersion");
 				
-				//write out to file
-				System.out.print("#");
-
-				String device = ownerID + "|" + macAddress + "|" + cos + "|" + dhcpCriteria;
-				
-				buff.write(device);
-				buff.newLine();
-				
-			}
-			//System.out.println(modems.size());
+				sequence = queueRecordSearchResults(rs, dispatcher, sequence);
+				pages++;
+				sb = rs.getSearchBookmark();
+			} while(sb != null);
 			
+		} catch (InterruptedException e) { 
+			searchFailure = e.toString();
+			System.out.println(e.toString());
 		}
+		
+	}
 	
-		buff.close();
-		System.out.println("\n" + Integer.toString(modem_count) + " mta(s) exported.");
-	} catch (Exception e) { 
-		System.out.println(e.toString());
+	/**
+	 * @return Why {@link #getAllDevices} did not reach the last page, or null
+	 * 			if it did
+	 */
+	public String getSearchFailure() {
+		return searchFailure;
+	}
+	
+	/**
+	 * A detail batch along with the writer of the search that found it, so
+	 * the shared detail workers write each device type to its own output.
+	 */
+	private static class DeviceTypeBatch extends RecordBatch {
+		
+		DeviceTypeBatch(long sequence, List<DeviceRecord> records, ExportWriter writer) {
+			super(sequence, records);
+			this.writer = writer;
+		}
+		
+		DeviceTypeBatch(DeviceTypeBatch original, List<DeviceRecord> records) {
+			super(original, records);
+			this.writer = original.writer;
+		}
+		
+		@Override
+		public RecordBatch retry(List<DeviceRecord> records) {
+			return new DeviceTypeBatch(this, records);
 		}
 		
-		return modems;
+		final ExportWriter writer;
 		
 	}
-	*/
+	
 	/**
 	 * Initializes the batch using the connection object.
 	 */
 	public void startBatch() {
+		commandCount = 0;
 		if(connection != null) {
 			batch = connection.newBatch(ActivationMode.NO_ACTIVATION,ConfirmationMode.NO_CONFIRMATION,PublishingMode.NO_PUBLISHING);
 		}
@@ -432,40 +885,105 @@ public class BprExport {
 	public void postBatch() {
 		status = null;
 		
+		RduThrottle.beforePost(commandCount);
+		
+		postError = null;
+		long posted = Metrics.get().postStarted();
 		try {
+			long start = System.currentTimeMillis();
 			status = batch.post();
+			postLatency = System.currentTimeMillis() - start;
 		}
 		catch(ProvisioningException e)
 		{
-			System.out.println("Error");
-			System.out.println(e.getMessage());
-			System.exit(0);
+			// Nothing reached the RDU, the caller decides whether to try again
+			postError = e.getMessage() != null ? e.getMessage() : e.toString();
+			AsyncLog.failure("Post failed: " + postError);
+			
+			// The connection may be what failed, carry on with a fresh one
+			if(connections != null) {
+				try {
+					connection = connections.replace(connection);
+				} catch (IOException ioe) {
+					// Neither RDU gave us one in time, the batch fails and
+					// the next post tries the old connection again
+					postError += "; " + ioe.getMessage();
+					AsyncLog.failure(ioe.getMessage());
+				}
+			}
+		}
+		finally
+		{
+			Metrics.get().postFinished(posted);
 		}
 	}
 	
 	/**
-	 * Verifies the status of the batch.
+	 * Uses a connection that is already open, for callers such as the
+	 * daemon that keep their own warm connections.
 	 */
-	public void endBatch() {
-		
-		CommandStatus cStatus = null;
+	public void setConnection(PACEConnection connection) {
+		this.connection = connection;
+	}
+	
+	/**
+	 * @return Why the last search page that came back null was given up on
+	 */
+	public String getSearchError() {
+		return searchError;
+	}
+	
+	/**
+	 * @return The RDU's reason the last single device request failed
+	 */
+	public String getLastError() {
+		return lastError;
+	}
+	
+	/**
+	 * Looks up a single device, for the daemon.
+	 * 
+	 * @param macAddress	MAC address of the device
+	 * @return The device as an export line, or null with the reason in
+	 * 			{@link #getLastError}
+	 */
+	public String lookupDevice(String macAddress) {
+		startBatch();
+		batch.getDetails(new MACAddress(macAddress), null);
+		commandCount++;
+		postBatch();
 		
-		if(status.isError()) {
-			System.out.println("There were errors during batch processing.");
+		lastError = batchError();
+		if (lastError != null) {
+			return null;
+		}
 		
-			cStatus = status.getFailedCommandStatus();
-			
-			if (cStatus != null && cStatus.getErrorMessage() != null) {
-				System.out.println(cStatus.getErrorMessage());
-			}
-			else
-			{
-				System.out.println(status.getBatchID() + ": " + status.getErrorMessage());
-			}
-			
-		} else {
-			System.out.println("Batch was processed successfully.");
+		CommandStatus comStatus = status.getCommandStatus(0);
+		if (comStatus == null || comStatus.getData() == null) {
+			lastError = "no details returned";
+			return null;
+		}
+		return formatDevice(macAddress, (Map)comStatus.getData());
+	}
+	
+	/**
+	 * Picks the error message out of the last posted batch.
+	 *
+	 * @return The message, or null if the batch went through
+	 */
+	private String batchError() {
+		if (status == null) {
+			return postError;
+		}
+		if (!status.isError()) {
+			return null;
 		}
+	
+		CommandStatus cStatus = status.getFailedCommandStatus();
+		if (cStatus != null && cStatus.getErrorMessage() != null) {
+			return cStatus.getErrorMessage();
+		}
+		return status.getBatchID() + ": " + status.getErrorMessage();
 	}
 	
 	/**
@@ -476,9 +994,76 @@ public class BprExport {
 	}
 	
 	
+	/**
+	 * Sets where exported devices are written. Workers of one export share
+	 * the same writer.
+	 */
+	public void setWriter(ExportWriter writer) {
+		this.writer = writer;
+	}
+	
+	
+	/**
+	 * Sets how many devices each search page asks for.
+	 */
+	public void setPageSize(int pageSize) {
+		this.pageSize = pageSize;
+	}
+	
+	
+	/**
+	 * Lets a tuner, shared by every search connection, pick the page size.
+	 */
+	public void setPageSizeTuner(PageSizeTuner tuner) {
+		this.tuner = tuner;
+	}
+	
+	
+	/**
+	 * Sets how many getDetails commands go into one batch.
+	 */
+	public void setDetailBatchSize(int detailBatchSize) {
+		this.detailBatchSize = detailBatchSize;
+	}
+	
+	
+	/**
+	 * Uses the properties returned by the search and only falls back to
+	 * getDetails for devices that are missing one of the exported fields.
+	 */
+	public void setSearchOnly(boolean searchOnly) {
+		this.searchOnly = searchOnly;
+	}
+	
+	
+	private static final int DEFAULT_DETAIL_BATCH_SIZE = 100;
+	private static final int DEFAULT_PAGE_SIZE = 100;
+	private static final int DEFAULT_MAX_PAGE_SIZE = 10000;
+	private static final String[] ALL_DEVICE_TYPES = { "docsis", "mta", "computer" };
+	
+	private static final String OWNER_ID = "/ownerID";
+	private static final String CLASS_OF_SERVICE = "/provisioning/classOfService";
+	private static final String DHCP_CRITERIA = "/provisioning/dhcpCriteria";
+	
 	private PACEConnection connection;
+	private ConnectionManager connections;
 	private Batch batch;
 	private BatchStatus status;
+	private String postError;
+	private String searchError;
+	private String searchFailure;
+	private RetryPolicy retries;
 	private int modem_count;
+	private int failedBatches;
+	private int pageSize = DEFAULT_PAGE_SIZE;
+	private PageSizeTuner tuner;
+	private long postLatency;
+	private int detailBatchSize = DEFAULT_DETAIL_BATCH_SIZE;
+	private boolean searchOnly;
+	private ExportWriter writer;
+	private DeviceType searchType = DeviceType.getDeviceType(DeviceTypeValues.DOCSIS_MODEM);
+	private String deviceType = "docsis";
+	private int commandCount;
+	private String lastError;
 
 }
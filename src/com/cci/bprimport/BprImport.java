@@ -27,13 +27,18 @@ import java.util.*;
  * to the BAC RDU component, creates a batch, adds the modems to the batch, posts the batch,
  * verifies it was successful, and then closes the connection to the RDU.
  * <p>
- * Usage: java bprimport <rdu address> <port> <username> <password> <file name>
+ * Usage: java bprimport <-d|-m> <rdu address> <port> <username> <password> <file name> [--batch-size n] [--connections n] [--mmap [--parse-threads n]] [--resume] [--throttle file]
+ *        [--sync snapshot [--no-deletes]] [--allowed-cos a,b,...] [--allowed-dhcp a,b,...] [--check-names [--names-ttl s]]
+ *        [--adaptive [--min-batch-size n] [--max-batch-size n] [--target-latency ms]] [--status-interval s]
+ *        [--log file] [--verbosity counts|failures|all] [--log-size mb] [--log-files n] [--ledger file]
+ *        [--retries n] [--retry-delay ms] [--max-retry-delay ms] [--transient-errors a,b,...]
+ *        [--standby host[:port]] [--spare-connections n] [--health-interval s]
  * <p>
  * @author Matt Reath
  * @version 0.1
  * 
  */
-public class BprImport {
+public class BprImport implements BatchHandler {
 
 	/**
 	 * Entry point into the BprImport application.
@@ -42,87 +47,274 @@ public class BprImport {
 	 */
 	public static void main(String[] args) {
 		
-		BprImport bpr = new BprImport();
+		CommandLine cli = new CommandLine(args, "mmap", "resume", "adaptive", "no-deletes", "check-names");
+		int batchSize = cli.getIntOption("batch-size", DEFAULT_BATCH_SIZE);
 		
-		// Step 1 - Connect to the RDU
+		if (batchSize < 1) {
+			System.out.println("--batch-size must be at least 1");
+			System.exit(1);
+		}
+		
+		int connections = cli.getIntOption("connections", 1);
+		
+		if (connections < 1) {
+			System.out.println("--connections must be at least 1");
+			System.exit(1);
+		}
+		
+		AdaptiveBatchController controller = null;
+		if (cli.hasOption("adaptive")) {
+			controller = new AdaptiveBatchController(
+				cli.getIntOption("min-batch-size", 10),
+				cli.getIntOption("max-batch-size", 1000),
+				connections,
+				cli.getIntOption("target-latency", 2000));
+		}
+		
+		if (cli.hasOption("throttle")) {
+			try {
+				RduThrottle.watch(new File(cli.getOption("throttle", null)));
+			} catch (IOException ioe) {
+				System.out.println(ioe.getMessage());
+				System.exit(1);
+			}
+		}
+		
+		// Step 1 - Find out where the last run stopped and open the journal,
+		// or load the snapshot a delta sync compares against
+		File input = new File(cli.arg(5));
+		AsyncLog.open(cli, input.getPath() + ".log");
+		File journalFile = CheckpointJournal.journalFor(input);
+		boolean resume = cli.hasOption("resume");
+		long[] checkpoint = new long[] { 0, 0 };
+		CheckpointJournal journal = null;
+		ResultLedger ledger = null;
+		DeltaSync sync = null;
+		Preflight preflight = null;
+		
+		try {
+			preflight = new Preflight(Preflight.rejectsFor(input), cli.arg(0), resume);
+			if (cli.hasOption("allowed-cos")) {
+				preflight.setAllowedClassesOfService(Arrays.asList(cli.getOption("allowed-cos", null).split(",")));
+			}
+			if (cli.hasOption("allowed-dhcp")) {
+				preflight.setAllowedDhcpCriteria(Arrays.asList(cli.getOption("allowed-dhcp", null).split(",")));
+			}
+			
+			if (cli.hasOption("sync")) {
+				// Deletes depend on seeing the whole billing file, so a sync
+				// always runs from the top and is not journaled
+				if (resume) {
+					System.out.println("--resume cannot be used with --sync");
+					System.exit(1);
+				}
+				sync = new DeltaSync(cli.arg(0));
+				System.out.println(sync.load(new File(cli.getOption("sync", null))) + " device(s) in the snapshot");
+			} else {
+				if (resume) {
+					checkpoint = CheckpointJournal.readCheckpoint(journalFile);
+					System.out.println("Resuming after line " + checkpoint[0]);
+				}
+				journal = new CheckpointJournal(journalFile, resume);
+			}
+			
+			// Every record's outcome, for LedgerQuery to reconcile and retry
+			ledger = new ResultLedger(new File(cli.getOption("ledger", ResultLedger.ledgerFor(input).getPath())),
+				resume);
+		} catch (IOException ioe) {
+			System.out.println(ioe.getMessage());
+			System.exit(1);
+		}
+		
+		// Step 2 - Open one connection to the RDU per worker, with spares
+		// kept warm for workers whose connection breaks
 		System.out.print("Connecting to the RDU...");
-		bpr.initializeConnectionToRDU(args[1], Integer.parseInt(args[2]), args[3], args[4]);
+		ConnectionManager rdu = ConnectionManager.open(cli, 1);
+		List<BprImport> workers = new ArrayList<BprImport>();
+		for (int i = 0; i < connections; i++) {
+			BprImport bpr = new BprImport();
+			bpr.setDeviceMode(cli.arg(0));
+			bpr.setConnection(rdu.acquire());
+			bpr.setConnectionManager(rdu);
+			bpr.setJournal(journal);
+			bpr.setLedger(ledger);
+			bpr.setController(controller);
+			workers.add(bpr);
+		}
+		
+		// Class of service and DHCP criteria names are looked up on a
+		// connection of their own so the workers never wait on them
+		BprImport names = null;
+		if (cli.hasOption("check-names")) {
+			names = new BprImport();
+			names.setConnection(rdu.acquire());
+			ProvisioningNameCache nameCache = new ProvisioningNameCache(names.getConnection(), cli.arg(0),
+				cli.getIntOption("names-ttl", 300) * 1000L);
+			try {
+				nameCache.load();
+			} catch (IOException ioe) {
+				System.out.println(ioe.getMessage());
+				System.exit(1);
+			}
+			preflight.setNameCache(nameCache);
+		}
+		rdu.start();
 		System.out.print("Success\n\n");
 		
-		// Step 2 - Create a batch to use
-		//System.out.print("Creating the batch...");
+		// Transient failures go back on the dispatcher after a backoff,
+		// the rest to <text file>.dead
+		BatchDispatcher dispatcher = new BatchDispatcher(workers, connections * 2);
+		RetryPolicy retries = RetryPolicy.open(cli, dispatcher, RetryPolicy.deadLettersFor(input), resume);
+		for (BprImport bpr : workers) {
+			bpr.setRetryPolicy(retries);
+		}
+		dispatcher.start();
 		
-		//System.out.print("Success\n\n");
+		Metrics.get().start("bprimport", CompressedFiles.isCompressed(input) ? 0 : input.length(),
+			cli.getIntOption("status-interval", 10));
 		
-		// Step 3 - Loop through devices in file and add each one
+		// Step 3 - Loop through devices in file and hand them to the workers
+		// batchSize devices at a time
 		// 12345|1,6,00:11:22:33:44:55|silver|provisioned-docsis
 		// ownerID|macAddress|classOfService|dhcp-criteria
 		
-		System.out.print("Adding devices to the batch");
+		if (controller != null) {
+			System.out.println("Adding devices in adaptive batches over " + connections + " connection(s)");
+		} else {
+			System.out.println("Adding devices in batches of " + batchSize + " over " + connections + " connection(s)");
+		}
 		try {
-			FileReader input = new FileReader(args[5]);
+			RecordSource reader = openInput(cli, input, checkpoint[0], checkpoint[1]);
 			
-			BufferedReader bufRead  = new BufferedReader(input);
+			long sequence = 0;
+			List<DeviceRecord> records = new ArrayList<DeviceRecord>(batchSize);
 			
-			String line;
-			
-			line = bufRead.readLine();
-			
-			while(line != null) {
-				//System.out.println(line);
+			while(true) {
+				DeviceRecord record;
 				
-				String temp [] = null;
+				try {
+					record = reader.next();
+				} catch (MalformedRecordException mre) {
+					preflight.reject(mre);
+					if (sync != null) {
+						sync.keep(mre.getMacAddress());
+					}
+					continue;
+				}
 				
-				temp = line.split("\\|");
+				if (record == null) {
+					break;
+				}
 				
-				// temp[0] = Owner ID
-				// temp[1] = MAC Address
-				// temp[2] = Class of Service
-				// temp[3] = DHCP Criteria
+				Metrics.get().recordRead(record.getEndOffset());
 				
-				/*
-				System.out.println("ID: " + temp[0]);
-				System.out.println("MAC: " + temp[1]);
-				System.out.println("COS: " + temp[2]);
-				System.out.println("DHCP:" + temp[3]);
-				System.out.println("---------------");
-				*/
-				bpr.startBatch();
+				if (!preflight.accept(record)) {
+					// Left alone on the RDU until the line is fixed
+					if (sync != null) {
+						sync.keep(record.getMacAddress());
+					}
+					continue;
+				}
 				
-				// need to put a flag in here to select either MTA or DOCSIS
-				if(args[0].equals("-d")) {
-					bpr.addCableModem(temp[0], temp[1], temp[2], temp[3]);
-				} else if(args[0].equals("-m")) {
-					bpr.addPacketCableMTA(temp[0], temp[1], temp[2], temp[3]);
+				if (sync != null && !sync.diff(record)) {
+					continue;
 				}
 				
-				bpr.postBatch();
-				bpr.endBatch();
-				//System.out.print(".");
+				records.add(record);
+				
+				if (controller != null) {
+					batchSize = controller.getBatchSize();
+				}
 				
-				// Get next line
-				line = bufRead.readLine();
+				if (records.size() >= batchSize) {
+					dispatcher.submit(new RecordBatch(sequence++, records));
+					records = new ArrayList<DeviceRecord>(batchSize);
+				}
 			}
 			
+			// Step 4 - Delete what billing no longer has, then hand over
+			// whatever is left over
+			if (sync != null && !cli.hasOption("no-deletes") && !sync.canDelete()) {
+				System.out.println("Not deleting anything: " + sync.whyNotDelete());
+			} else if (sync != null && !cli.hasOption("no-deletes")) {
+				for (DeviceRecord record : sync.getDeletes()) {
+					records.add(record);
+					
+					if (records.size() >= batchSize) {
+						dispatcher.submit(new RecordBatch(sequence++, records));
+						records = new ArrayList<DeviceRecord>(batchSize);
+					}
+				}
+			}
+			
+			if (!records.isEmpty()) {
+				dispatcher.submit(new RecordBatch(sequence++, records));
+			}
+			
+			reader.close();
+			preflight.close();
+			
 		} catch (FileNotFoundException fnfe) {
 			System.out.println(fnfe.getMessage());
 		} catch (IOException ioe) {
 			System.out.println(ioe.getMessage());
+		} catch (InterruptedException ie) {
+			System.out.println("Interrupted while queueing devices");
 		}
 		
-		// System.out.print("Success\n");
-		// 		
-		// 		System.out.print("Sending batch to the RDU (this may take several minutes)...");
-		// 		// Step 4 - Post the batch to the RDU
-		// 		bpr.postBatch();
-		// 		System.out.print("Success\n\n");
-		// 		
-		// 		System.out.print("Disconnecting...");
-		// Step 5 - Verify the batch.
+		// Step 5 - Drain the queue and disconnect every worker
+		try {
+			dispatcher.shutdown();
+			if (names != null) {
+				names.close();
+			}
+			rdu.close();
+			if (journal != null) {
+				journal.close();
+			}
+			ledger.close();
+			retries.close();
+		} catch (InterruptedException ie) {
+			System.out.println("Interrupted while waiting for the workers");
+		} catch (IOException ioe) {
+			System.out.println(ioe.getMessage());
+		}
+		
+		Metrics.get().stop();
+		AsyncLog.close();
+		
+		long added = 0;
+		long failed = 0;
+		for (BprImport bpr : workers) {
+			added += bpr.getAddedCount();
+			failed += bpr.getFailedCount();
+		}
+		if (preflight.getRejectCount() > 0) {
+			System.out.println(preflight.getRejectCount() + " line(s) rejected before import, see "
+				+ preflight.getRejectFile());
+		}
+		if (sync != null) {
+			System.out.println("Sync: " + sync);
+		}
+		System.out.println(added + " device(s) updated, " + failed + " failed."
+			+ (failed > 0 ? " Failures are in " + AsyncLog.getFile() : ""));
+		if (retries.getRetriedCount() > 0 || retries.getDeadLetterCount() > 0) {
+			System.out.println(retries.getRetriedCount() + " retry attempt(s), " + retries.getDeadLetterCount()
+				+ " device(s) given up on in " + retries.getDeadLetterFile());
+		}
+		if (rdu.getReplacedCount() > 0) {
+			System.out.println(rdu.getReplacedCount() + " broken connection(s) replaced, "
+				+ rdu.getFailoverCount() + " login(s) to the standby RDU.");
+		}
+		if (failed > 0) {
+			System.out.println("To retry them: java com.cci.bprimport.LedgerQuery "
+				+ cli.getOption("ledger", ResultLedger.ledgerFor(input).getPath()) + " --retry " + input);
+		}
 		
-		// Step 6 - Disconnect
-		bpr.disconnect();
-		System.out.print("Success\n");
+		if (controller != null) {
+			System.out.println("Final batch size " + controller.getBatchSize() + ", "
+				+ controller.getInFlightLimit() + " batch(es) in flight.");
+		}
 		
 	}
 	
@@ -130,6 +322,74 @@ public class BprImport {
 		
 	}
 	
+	/**
+	 * Opens the import file at a line boundary, either streamed or memory
+	 * mapped depending on --mmap. A gzip file is always streamed.
+	 * 
+	 * @param cli			The parsed CLI arguments
+	 * @param input			The import file
+	 * @param lineNumber	Number of lines before offset
+	 * @param offset		Byte offset to start reading at
+	 */
+	private static RecordSource openInput(CommandLine cli, File input, long lineNumber, long offset) throws IOException {
+		if (cli.hasOption("mmap") && CompressedFiles.isCompressed(input)) {
+			System.out.println("--mmap does not apply to a compressed file, reading it as a stream");
+		} else if (cli.hasOption("mmap")) {
+			int parseThreads = cli.getIntOption("parse-threads", Runtime.getRuntime().availableProcessors());
+			return new MappedRecordSource(input, Math.max(1, parseThreads), lineNumber, offset);
+		}
+		
+		return new DeviceRecordReader(CompressedFiles.openInput(input, offset), lineNumber, offset);
+	}
+	
+	/**
+	 * Sets the controller that decides how many batches may be posted at once
+	 * and learns from the latency of each post.
+	 */
+	public void setController(AdaptiveBatchController controller) {
+		this.controller = controller;
+	}
+	
+	/**
+	 * Sets the journal each processed batch is committed to.
+	 */
+	public void setJournal(CheckpointJournal journal) {
+		this.journal = journal;
+	}
+	
+	/**
+	 * Sets the policy that decides which failed records are tried again.
+	 */
+	public void setRetryPolicy(RetryPolicy retries) {
+		this.retries = retries;
+	}
+	
+	/**
+	 * Sets where a connection that failed is swapped for a working one.
+	 */
+	public void setConnectionManager(ConnectionManager connections) {
+		this.connections = connections;
+	}
+	
+	/**
+	 * Sets the ledger the outcome of every record is written to.
+	 */
+	public void setLedger(ResultLedger ledger) {
+		this.ledger = ledger;
+	}
+	
+	/**
+	 * Selects the type of device the file contains.
+	 * 
+	 * @param mode	-d for DOCSIS cable modems, -m for PacketCable MTAs
+	 */
+	public void setDeviceMode(String mode) {
+		if(!mode.equals("-d") && !mode.equals("-m")) {
+			throw new IllegalArgumentException("Unknown device mode " + mode + ", expected -d or -m");
+		}
+		deviceMode = mode;
+	}
+	
 	/**
 	 * Initializes a connection to the BAC RDU server.
 	 * 
@@ -150,38 +410,28 @@ public class BprImport {
 		{
 			// Connection failed
 			System.out.println(e.getMessage());
-			System.exit(0);
+			System.exit(1);
 		}
 		catch(AuthenticationException e)
 		{
 			// Authentication failure
 			System.out.println(e.getMessage());
-			System.exit(0);
+			System.exit(1);
 		}
 	}
 	
 	/**
-	 * Inserts an add cable modem command into the batch.
+	 * Inserts an add cable modem command into the batch. Fields the file
+	 * left as "null" have already been turned into null by the reader.
 	 * 
 	 * @param ownerID			Customer/Account ID for this cable modem
 	 * @param macAddress		MAC address of the cable modem
 	 * @param classOfService	The class of service to assign to this modem
+	 * @param dhcpCriteria		The DHCP criteria to assign to this modem
 	 */
 	public void addCableModem(String ownerID, String macAddress, String classOfService, String dhcpCriteria) {
 		if(batch != null) {
 			
-			if(ownerID.equals("null")){
-				ownerID = null;
-			}
-			
-			if(classOfService.equals("null")) {
-				classOfService = null;
-			}
-			
-			if(dhcpCriteria.equals("null")) {
-				dhcpCriteria = null;
-			}
-				
 			
 			List devIds = new ArrayList();
 			devIds.add(new MACAddress(macAddress));
@@ -201,27 +451,12 @@ public class BprImport {
 	public void addPacketCableMTA(String ownerID, String macAddress, String classOfService, String dhcpCriteria) {
 		if(batch != null) {
 			
-			if(ownerID.equals("null")){
-				ownerID = null;
-			}
-			
-			if(classOfService.equals("null")) {
-				classOfService = null;
-			}
-			
-			if(dhcpCriteria.equals("null")) {
-				dhcpCriteria = null;
-			}
-			
 			String hostname = macAddress.replace(':','-');
 			hostname = hostname.replace(',','-');
 			
 			String domainName = "duovoip.loc";
 			
-			if(dhcpCriteria != null && dhcpCriteria.equals("provisioned-packet-cable")) {
-				dhcpCriteria = "provisioned-packet-cable-mta";
-			}
-				
+			dhcpCriteria = normalizeDhcpCriteria("-m", dhcpCriteria);
 			
 			List devIds = new ArrayList();
 			devIds.add(new MACAddress(macAddress));
@@ -238,10 +473,81 @@ public class BprImport {
 		}
 	}
 	
+	/**
+	 * Maps the DHCP criteria billing uses to the name BAC knows it by. MTAs
+	 * are provisioned with provisioned-packet-cable-mta.
+	 * 
+	 * @param mode			-d or -m
+	 * @param dhcpCriteria	DHCP criteria as given in the file
+	 */
+	static String normalizeDhcpCriteria(String mode, String dhcpCriteria) {
+		if(mode.equals("-m") && dhcpCriteria != null && dhcpCriteria.equals("provisioned-packet-cable")) {
+			return "provisioned-packet-cable-mta";
+		}
+		return dhcpCriteria;
+	}
+	
+	/**
+	 * Inserts the commands for a record into the batch and remembers the
+	 * record so each command status can be matched back to its line. A
+	 * record is an add unless a delta sync marked it as a change or delete.
+	 * 
+	 * @param record	The device to add, change or delete
+	 */
+	public void addDevice(DeviceRecord record) {
+		if(batch != null) {
+			int operation = record.getOperation();
+			DeviceID id = new MACAddress(record.getMacAddress());
+			
+			if(operation == DeviceRecord.ADD) {
+				if(deviceMode.equals("-m")) {
+					addPacketCableMTA(record.getOwnerID(), record.getMacAddress(), record.getClassOfService(), record.getDhcpCriteria());
+				} else {
+					addCableModem(record.getOwnerID(), record.getMacAddress(), record.getClassOfService(), record.getDhcpCriteria());
+				}
+				commands.add(record);
+			} else if((operation & DeviceRecord.DELETE) != 0) {
+				batch.delete(id, false);
+				commands.add(record);
+			} else {
+				if((operation & DeviceRecord.CHANGE_OWNER) != 0) {
+					batch.changeOwnerID(id, record.getOwnerID());
+					commands.add(record);
+				}
+				if((operation & DeviceRecord.CHANGE_CLASS_OF_SERVICE) != 0) {
+					batch.changeClassOfService(id, record.getClassOfService());
+					commands.add(record);
+				}
+				if((operation & DeviceRecord.CHANGE_DHCP_CRITERIA) != 0) {
+					batch.changeDHCPCriteria(id, normalizeDhcpCriteria(deviceMode, record.getDhcpCriteria()));
+					commands.add(record);
+				}
+			}
+			pending.add(record);
+		}
+	}
+	
+	/**
+	 * @return The number of records added to the current batch
+	 */
+	public int getPendingCount() {
+		return pending.size();
+	}
+	
+	public long getAddedCount() {
+		return addedCount;
+	}
+	
+	public long getFailedCount() {
+		return failedCount;
+	}
+	
 	/**
 	 * Initializes the batch using the connection object.
 	 */
 	public void startBatch() {
+		pending.clear();
+		commands.clear();
 		if(connection != null) {
 			batch = connection.newBatch();
 		}
@@ -253,41 +559,304 @@ public class BprImport {
 	public void postBatch() {
 		status = null;
 		
+		RduThrottle.beforePost(commands.size());
+		
+		long ticket = controller != null ? controller.acquire() : 0;
+		long start = System.currentTimeMillis();
+		boolean batchFailed = true;
+		long posted = Metrics.get().postStarted();
+		
+		postError = null;
+		
 		try {
 			status = batch.post();
+			// Only the journal reads these, and the daemon never has one
+			if(journal != null) {
+				batchIds.add(status.getBatchID());
+			}
+			batchFailed = status.isError() && !hasFailedCommand(status);
 		}
 		catch(ProvisioningException e)
 		{
-			System.out.println(e.getMessage());
-			System.exit(0);
+			// Nothing reached the RDU, endBatch decides whether to try again
+			postError = e.getMessage() != null ? e.getMessage() : e.toString();
+			AsyncLog.failure("Post failed: " + postError);
+			
+			// The connection may be what failed, carry on with a fresh one
+			if(connections != null) {
+				try {
+					connection = connections.replace(connection);
+				} catch (IOException ioe) {
+					// Neither RDU gave us one in time, the batch fails and
+					// the next post tries the old connection again
+					postError += "; " + ioe.getMessage();
+					AsyncLog.failure(ioe.getMessage());
+				}
+			}
+		}
+		finally
+		{
+			Metrics.get().postFinished(posted);
+			if(controller != null) {
+				controller.release(ticket, System.currentTimeMillis() - start, batchFailed);
+			}
 		}
 	}
 	
 	/**
-	 * Verifies the status of the batch.
+	 * @return True if at least one command in the batch failed on its own
+	 */
+	private static boolean hasFailedCommand(BatchStatus status) {
+		for(int i = 0; i < status.getCommandCount(); i++) {
+			CommandStatus cStatus = status.getCommandStatus(i);
+			if(cStatus != null && cStatus.isError()) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Verifies the status of the batch and reports every failed command
+	 * against the line it came from.
+	 * <p>
+	 * The RDU rolls back the whole batch when any command in it fails, so the
+	 * records with a failed command are taken out and the rest of the records
+	 * are posted again in a new batch until it goes through clean. A record
+	 * whose command failed for a transient reason is set aside to be retried
+	 * later, the others are reported and dropped.
 	 */
 	public void endBatch() {
 		
-		CommandStatus cStatus = null;
-		
-		if(status.isError()) {
-			System.out.println("There were errors during batch processing.");
-		
-			cStatus = status.getFailedCommandStatus();
+		while(status == null || status.isError()) {
+			if(status == null) {
+				failBatch(postError, true);
+				return;
+			}
+			
+			Set<DeviceRecord> failed = new HashSet<DeviceRecord>();
 			
-			if (cStatus != null && cStatus.getErrorMessage() != null) {
-				System.out.println(cStatus.getErrorMessage());
+			for(int i = 0; i < commands.size(); i++) {
+				DeviceRecord record = commands.get(i);
+				CommandStatus cStatus = null;
+				
+				if(i < status.getCommandCount()) {
+					cStatus = status.getCommandStatus(i);
+				}
+				
+				if(cStatus != null && cStatus.isError() && failed.add(record)) {
+					String error = cStatus.getErrorMessage();
+					if(retries != null && retries.isTransient(error) && retries.canRetry(current)) {
+						retryLater(record, error);
+					} else {
+						failRecord(record, i, error);
+					}
+				}
 			}
-			else
-			{
-				System.out.println(status.getBatchID() + ": " + status.getErrorMessage());
+			
+			List<DeviceRecord> remaining = new ArrayList<DeviceRecord>();
+			for(DeviceRecord record : pending) {
+				if(!failed.contains(record)) {
+					remaining.add(record);
+				}
 			}
 			
-		} else {
-			System.out.println("Batch was processed successfully.");
+			if(failed.isEmpty()) {
+				// Nothing to blame on a single command, the batch itself failed
+				String error = status.getErrorMessage();
+				failBatch(error, error == null || retries != null && retries.isTransient(error));
+				return;
+			}
+			
+			writeLedger();
+			pending.clear();
+			if(remaining.isEmpty()) {
+				return;
+			}
+			
+			startBatch();
+			for(DeviceRecord record : remaining) {
+				addDevice(record);
+			}
+			postBatch();
+		}
+		
+		ledgerEntries(ResultLedger.OK, null);
+		writeLedger();
+		addedCount += pending.size();
+		Metrics.get().recordsDone(pending.size());
+		pending.clear();
+	}
+	
+	/**
+	 * Hands every record of the batch back to be tried again if the batch
+	 * failed for a transient reason and has tries left, otherwise gives up
+	 * on all of them.
+	 */
+	private void failBatch(String error, boolean transientError) {
+		String reason = error != null ? error : "batch failed";
+		
+		if(transientError && retries != null && retries.canRetry(current)) {
+			for(DeviceRecord record : pending) {
+				retryLater(record, reason);
+			}
+			pending.clear();
+			return;
+		}
+		
+		String batchId = status != null ? status.getBatchID() : null;
+		ledgerEntries(ResultLedger.BATCH_FAILED, reason);
+		writeLedger();
+		AsyncLog.failure("There were errors during batch processing. " + batchId + ": " + reason
+			+ " (" + pending.size() + " device(s))");
+		failedCount += pending.size();
+		Metrics.get().recordsFailed(pending.size(), reason);
+		if(retries != null) {
+			for(DeviceRecord record : pending) {
+				retries.deadLetter(record, reason);
+			}
+		}
+		pending.clear();
+	}
+	
+	private void failRecord(DeviceRecord record, int command, String error) {
+		failedCount++;
+		ledgerEntry(record, command, ResultLedger.FAILED, error);
+		Metrics.get().recordsFailed(1, error);
+		AsyncLog.failure("Line " + record.getLineNumber() + " (" + record.getMacAddress() + "): " + error);
+		if(retries != null) {
+			retries.deadLetter(record, error);
+		}
+	}
+	
+	/**
+	 * Sets a record aside to be retried once the whole record batch is done,
+	 * so one retry batch carries all of them.
+	 */
+	private void retryLater(DeviceRecord record, String reason) {
+		retryRecords.add(record);
+		retryReason = reason;
+	}
+	
+	/**
+	 * Adds a ledger entry for every record in the batch, against its first
+	 * command. A record's commands are always next to each other.
+	 */
+	private void ledgerEntries(int result, String error) {
+		for(int i = 0; i < commands.size(); i++) {
+			if(i == 0 || commands.get(i) != commands.get(i - 1)) {
+				ledgerEntry(commands.get(i), i, result, error);
+			}
+		}
+	}
+	
+	private void ledgerEntry(DeviceRecord record, int command, int result, String error) {
+		if(ledger != null) {
+			ledgerBlock.add(record, command, result, error);
+		}
+	}
+	
+	/**
+	 * Writes the ledger entries of the batch just posted.
+	 */
+	private void writeLedger() {
+		if(ledger != null && !ledgerBlock.isEmpty()) {
+			try {
+				ledger.append(status != null ? status.getBatchID() : null, ledgerBlock);
+			} catch (IOException e) {
+				AsyncLog.failure("Could not write ledger: " + e.getMessage());
+			}
 		}
 	}
 	
+	/**
+	 * Posts a whole batch of records from the dispatcher.
+	 * 
+	 * @param records	Consecutive records from the input file
+	 */
+	public void process(RecordBatch records) {
+		current = records;
+		batchIds.clear();
+		startBatch();
+		for(DeviceRecord record : records.getRecords()) {
+			addDevice(record);
+		}
+		postBatch();
+		endBatch();
+		
+		if(!retryRecords.isEmpty()) {
+			// The journal hears about the record batch once its retry is done
+			retries.retry(records, retryRecords, retryReason);
+			retryRecords.clear();
+		} else if(journal != null) {
+			try {
+				journal.commit(records, batchIds);
+			} catch (IOException e) {
+				AsyncLog.failure("Could not write checkpoint: " + e.getMessage());
+			}
+		}
+	}
+	
+	public void close() {
+		disconnect();
+	}
+	
+	/**
+	 * @return The connection opened by {@link #initializeConnectionToRDU}
+	 */
+	public PACEConnection getConnection() {
+		return connection;
+	}
+	
+	/**
+	 * Uses a connection that is already open, for callers such as the
+	 * daemon that keep their own warm connections.
+	 */
+	public void setConnection(PACEConnection connection) {
+		this.connection = connection;
+	}
+	
+	/**
+	 * @return The RDU's reason the last single device request failed
+	 */
+	public String getLastError() {
+		return lastError;
+	}
+	
+	/**
+	 * Adds a single device in a batch of its own, for the daemon.
+	 * 
+	 * @return True if the RDU accepted it, otherwise see {@link #getLastError}
+	 */
+	public boolean importDevice(DeviceRecord record) {
+		startBatch();
+		addDevice(record);
+		postBatch();
+		pending.clear();
+		lastError = batchError();
+		return lastError == null;
+	}
+	
+	/**
+	 * Picks the error message out of the last posted batch.
+	 *
+	 * @return The message, or null if the batch went through
+	 */
+	private String batchError() {
+		if (status == null) {
+			return postError;
+		}
+		if (!status.isError()) {
+			return null;
+		}
+	
+		CommandStatus cStatus = status.getFailedCommandStatus();
+		if (cStatus != null && cStatus.getErrorMessage() != null) {
+			return cStatus.getErrorMessage();
+		}
+		return status.getBatchID() + ": " + status.getErrorMessage();
+	}
+	
 	/**
 	 * Disconnects from the RDU server.
 	 */
@@ -296,8 +865,27 @@ public class BprImport {
 	}
 	
 	
+	private static final int DEFAULT_BATCH_SIZE = 100;
+	
 	private PACEConnection connection;
+	private ConnectionManager connections;
 	private Batch batch;
 	private BatchStatus status;
+	private String deviceMode = "-d";
+	private List<DeviceRecord> pending = new ArrayList<DeviceRecord>();
+	private List<DeviceRecord> commands = new ArrayList<DeviceRecord>();
+	private long addedCount;
+	private long failedCount;
+	private CheckpointJournal journal;
+	private ResultLedger ledger;
+	private ResultLedger.Block ledgerBlock = new ResultLedger.Block();
+	private RetryPolicy retries;
+	private RecordBatch current;
+	private List<DeviceRecord> retryRecords = new ArrayList<DeviceRecord>();
+	private String retryReason;
+	private String postError;
+	private AdaptiveBatchController controller;
+	private List<String> batchIds = new ArrayList<String>();
+	private String lastError;
 
 }
@@ -0,0 +1,139 @@
+// CheckpointJournal - part of bprimport, records how far an import got so
+// an interrupted run can be resumed
+// Copyright (C) 2012  Matt Reath
+
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+package com.cci.bprimport;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * CheckpointJournal is an append only text file kept next to the input
+ * file (input.txt.journal). Two kinds of line are written:
+ * <pre>
+ * B &lt;sequence&gt; &lt;batch id&gt;     an RDU batch posted for record batch &lt;sequence&gt;
+ * W &lt;line&gt; &lt;offset&gt;          every line up to and including &lt;line&gt; is done
+ * </pre>
+ * Workers finish record batches out of order, so the W watermark only moves
+ * once every earlier batch has been committed too. A resumed run starts
+ * reading at the byte offset of the last W line.
+ * <p>
+ * Each commit is a single write followed by a force, one per record batch,
+ * which is far cheaper than the RDU round trip it follows.
+ * <p>
+ * @author Matt Reath
+ * @version 0.1
+ *
+ */
+public class CheckpointJournal {
+
+	/**
+	 * @param file		The journal file
+	 * @param resume	Keep the existing entries instead of starting over
+	 */
+	public CheckpointJournal(File file, boolean resume) throws IOException {
+		FileOutputStream out = new FileOutputStream(file, resume);
+		this.channel = out.getChannel();
+	}
+
+	/**
+	 * @return The journal that belongs to an input file
+	 */
+	public static File journalFor(File input) {
+		return new File(input.getPath() + ".journal");
+	}
+
+	/**
+	 * Reads the last watermark from a journal.
+	 *
+	 * @return { line number, byte offset }, or { 0, 0 } if nothing was
+	 * 			committed yet
+	 */
+	public static long[] readCheckpoint(File file) throws IOException {
+		long[] checkpoint = new long[] { 0, 0 };
+
+		if (!file.exists()) {
+			return checkpoint;
+		}
+
+		BufferedReader in = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				String[] fields = line.split(" ");
+
+				// A torn last line from a crash is simply ignored
+				if (fields.length == 3 && fields[0].equals("W")) {
+					try {
+						checkpoint = new long[] { Long.parseLong(fields[1]), Long.parseLong(fields[2]) };
+					} catch (NumberFormatException e) {
+						break;
+					}
+				}
+			}
+		} finally {
+			in.close();
+		}
+
+		return checkpoint;
+	}
+
+	/**
+	 * Records that a record batch has been through the RDU and moves the
+	 * watermark as far as the batches committed so far allow.
+	 *
+	 * @param records	The record batch
+	 * @param batchIds	IDs of every RDU batch posted for it
+	 */
+	public synchronized void commit(RecordBatch records, List<String> batchIds) throws IOException {
+		StringBuilder entry = new StringBuilder();
+
+		for (String batchId : batchIds) {
+			entry.append("B ").append(records.getSequence()).append(' ').append(batchId).append('\n');
+		}
+
+		completed.put(records.getSequence(), records);
+
+		DeviceRecord last = null;
+		while (completed.containsKey(nextSequence)) {
+			RecordBatch done = completed.remove(nextSequence++);
+			if (done.getLastRecord() != null) {
+				last = done.getLastRecord();
+			}
+		}
+
+		if (last != null) {
+			entry.append("W ").append(last.getLineNumber()).append(' ').append(last.getEndOffset()).append('\n');
+		}
+
+		ByteBuffer bytes = ByteBuffer.wrap(entry.toString().getBytes("ISO-8859-1"));
+		while (bytes.hasRemaining()) {
+			channel.write(bytes);
+		}
+		channel.force(false);
+	}
+
+	public synchronized void close() throws IOException {
+		channel.close();
+	}
+
+
+	private FileChannel channel;
+	private long nextSequence;
+	private Map<Long, RecordBatch> completed = new HashMap<Long, RecordBatch>();
+
+}
@@ -0,0 +1,99 @@
+// CommandLine - part of bprimport, splits CLI arguments into positional
+// arguments and --options
+// Copyright (C) 2012  Matt Reath
+
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+package com.cci.bprimport;
+
+import java.util.*;
+
+/**
+ * CommandLine separates "--name value" options from the positional arguments
+ * the tools have always taken, so options can be given anywhere on the line
+ * without shifting args[0..n].
+ * <p>
+ * @author Matt Reath
+ * @version 0.1
+ *
+ */
+class CommandLine {
+
+	/**
+	 * @param args	The raw CLI arguments
+	 * @param flags	Names of options (without the leading --) that take no value
+	 */
+	public CommandLine(String[] args, String... flags) {
+		Set<String> flagNames = new HashSet<String>(Arrays.asList(flags));
+
+		for (int i = 0; i < args.length; i++) {
+			String arg = args[i];
+
+			if (arg.startsWith("--") && arg.length() > 2) {
+				String name = arg.substring(2);
+
+				if (flagNames.contains(name)) {
+					options.put(name, "true");
+				} else if (i + 1 < args.length) {
+					options.put(name, args[++i]);
+				} else {
+					throw new IllegalArgumentException("Option --" + name + " requires a value");
+				}
+			} else {
+				positional.add(arg);
+			}
+		}
+	}
+
+	/**
+	 * Returns the positional argument at index, ignoring any options.
+	 */
+	public String arg(int index) {
+		if (index >= positional.size()) {
+			throw new IllegalArgumentException("Missing argument " + (index + 1));
+		}
+		return positional.get(index);
+	}
+
+	public int argCount() {
+		return positional.size();
+	}
+
+	public boolean hasOption(String name) {
+		return options.containsKey(name);
+	}
+
+	public String getOption(String name, String defaultValue) {
+		String value = options.get(name);
+		return value != null ? value : defaultValue;
+	}
+
+	public int getIntOption(String name, int defaultValue) {
+		String value = options.get(name);
+
+		if (value == null) {
+			return defaultValue;
+		}
+
+		try {
+			return Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Option --" + name + " expects a number, got " + value);
+		}
+	}
+
+
+	private List<String> positional = new ArrayList<String>();
+	private Map<String, String> options = new HashMap<String, String>();
+
+}
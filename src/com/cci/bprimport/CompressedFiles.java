@@ -0,0 +1,92 @@
+// CompressedFiles - part of bprimport, opens plain or gzip files by their
+// extension
+// Copyright (C) 2012  Matt Reath
+
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+package com.cci.bprimport;
+
+import java.io.*;
+import java.util.zip.*;
+
+/**
+ * CompressedFiles opens the import, export and snapshot files. A name ending
+ * in .gz is read through a GZIPInputStream or written through a
+ * GZIPOutputStream, with the compression work on a thread of its own; any
+ * other name is a plain file.
+ * <p>
+ * Offsets, such as the ones the checkpoint journal records, always count
+ * bytes of the uncompressed text.
+ * <p>
+ * @author Matt Reath
+ * @version 0.1
+ *
+ */
+public class CompressedFiles {
+
+	private CompressedFiles() {
+
+	}
+
+	/**
+	 * @return True if the file is gzip compressed, judging by its name
+	 */
+	public static boolean isCompressed(File file) {
+		return file.getName().toLowerCase().endsWith(".gz");
+	}
+
+	public static InputStream openInput(File file) throws IOException {
+		return openInput(file, 0);
+	}
+
+	/**
+	 * Opens a file for reading.
+	 *
+	 * @param offset	Byte offset of the uncompressed text to start at. A
+	 * 					compressed file has to be decompressed up to it.
+	 */
+	public static InputStream openInput(File file, long offset) throws IOException {
+		if (!isCompressed(file)) {
+			FileInputStream in = new FileInputStream(file);
+			in.getChannel().position(offset);
+			return in;
+		}
+
+		InputStream in = new ReadAheadInputStream(new GZIPInputStream(new FileInputStream(file), BUFFER_SIZE));
+
+		long skipped = 0;
+		while (skipped < offset) {
+			long n = in.skip(offset - skipped);
+			if (n <= 0) {
+				in.close();
+				throw new EOFException(file + " ends before offset " + offset);
+			}
+			skipped += n;
+		}
+		return in;
+	}
+
+	/**
+	 * Creates or truncates a file for writing.
+	 */
+	public static OutputStream openOutput(File file) throws IOException {
+		if (!isCompressed(file)) {
+			return new FileOutputStream(file);
+		}
+		return new WriteBehindOutputStream(new GZIPOutputStream(new FileOutputStream(file), BUFFER_SIZE));
+	}
+
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+}
@@ -0,0 +1,409 @@
+// ConnectionManager - part of bprimport, keeps logged in RDU connections
+// ready and moves to the standby RDU when the primary goes away
+// Copyright (C) 2012  Matt Reath
+
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+package com.cci.bprimport;
+
+import com.cisco.provisioning.cpe.*;
+import com.cisco.provisioning.cpe.api.*;
+import java.io.IOException;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ConnectionManager hands out RDU connections to the workers and replaces
+ * the ones that stop working.
+ * <p>
+ * A background thread keeps a few spare connections logged in and checks
+ * every --health-interval seconds that they still answer, with a small
+ * batch that only reads the DHCP criteria. A worker whose batch.post()
+ * throws gives its connection up with {@link #replace} and carries on with
+ * a spare straight away. It only has to wait for a login when no spare is
+ * left, and then only until the background thread has one or
+ * {@value #REPLACE_TIMEOUT} ms have passed. There is always at least one
+ * spare, so a replacement is never waited for without a login under way.
+ * <p>
+ * Every login tries the primary RDU first and then the --standby one, so
+ * replacements come from the standby while the primary is down and from
+ * the primary again once it answers. Batches still queued in the
+ * {@link BatchDispatcher} are not touched, and the batch that was being
+ * posted goes back on the queue through the {@link RetryPolicy}.
+ * <p>
+ * @author Matt Reath
+ * @version 0.1
+ *
+ */
+public class ConnectionManager {
+
+	/**
+	 * @param primary	The RDU to use while it answers
+	 * @param standby	The RDU to use while the primary does not, or null
+	 */
+	public ConnectionManager(Endpoint primary, Endpoint standby, String userName, String password) {
+		this.primary = primary;
+		this.standby = standby;
+		this.userName = userName;
+		this.password = password;
+		this.active = primary;
+	}
+
+	/**
+	 * Sets up connections to the RDU named by four positional arguments,
+	 * address, port, user name and password, and the --standby,
+	 * --spare-connections and --health-interval options.
+	 *
+	 * @param first	Index of the RDU address among the positional arguments
+	 */
+	static ConnectionManager open(CommandLine cli, int first) {
+		Endpoint primary = new Endpoint(cli.arg(first), Integer.parseInt(cli.arg(first + 1)));
+		Endpoint standby = null;
+
+		if (cli.hasOption("standby")) {
+			standby = Endpoint.parse(cli.getOption("standby", null), primary.port);
+		}
+
+		ConnectionManager connections = new ConnectionManager(primary, standby, cli.arg(first + 2), cli.arg(first + 3));
+		connections.setSpares(cli.getIntOption("spare-connections", 1));
+		connections.setHealthInterval(cli.getIntOption("health-interval", 30));
+		return connections;
+	}
+
+	/**
+	 * @param spares	Connections to keep logged in beyond the ones in use,
+	 * 					at least 1
+	 */
+	public void setSpares(int spares) {
+		this.spareCount = Math.max(1, spares);
+	}
+
+	/**
+	 * @param seconds	Time between two checks of the spare connections
+	 */
+	public void setHealthInterval(int seconds) {
+		this.healthInterval = Math.max(1, seconds) * 1000L;
+	}
+
+	/**
+	 * @param millis	Longest {@link #replace} waits for a login, in place of
+	 * 					{@value #REPLACE_TIMEOUT} ms
+	 */
+	void setReplaceTimeout(long millis) {
+		this.replaceTimeout = millis;
+	}
+
+	/**
+	 * Logs in a connection for a worker, printing why and exiting if neither
+	 * RDU takes it. Meant for startup, before {@link #start}.
+	 */
+	public PACEConnection acquire() {
+		PACEConnection connection = spares.poll();
+		if (connection != null) {
+			return connection;
+		}
+
+		try {
+			return login();
+		} catch (IOException e) {
+			System.out.println(e.getMessage());
+			System.exit(1);
+			return null;
+		}
+	}
+
+	/**
+	 * Starts the background thread that keeps the spares logged in.
+	 */
+	public synchronized void start() {
+		if (connector != null) {
+			return;
+		}
+
+		connector = new Thread(new Runnable() {
+			public void run() {
+				maintain();
+			}
+		}, "rdu-connector");
+		connector.setDaemon(true);
+		connector.start();
+	}
+
+	/**
+	 * Gives up a connection that failed and returns one that works, a spare
+	 * if there is one. Waits for the background thread otherwise, but by
+	 * default no longer than {@value #REPLACE_TIMEOUT} ms. The broken
+	 * connection is only released once there is one to take its place.
+	 *
+	 * @param broken	The connection that failed
+	 * @return A logged in connection, or the broken one if interrupted
+	 * @throws IOException	If no connection was logged in in time, as
+	 * 						while neither RDU answers. The caller keeps the
+	 * 						broken one and fails the batch.
+	 */
+	public PACEConnection replace(PACEConnection broken) throws IOException {
+		wake();
+
+		try {
+			PACEConnection connection = spares.poll();
+			if (connection == null) {
+				AsyncLog.info("Waiting for a connection to " + active);
+				connection = spares.poll(replaceTimeout, TimeUnit.MILLISECONDS);
+			}
+			if (connection == null) {
+				throw new IOException("Timed out after " + (replaceTimeout % 1000 == 0 ? replaceTimeout / 1000 + " s"
+					: replaceTimeout + " ms") + " waiting for a connection to " + active);
+			}
+
+			release(broken);
+			replaced.incrementAndGet();
+			wake();
+			return connection;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return broken;
+		}
+	}
+
+	/**
+	 * @return The RDU the last login went to
+	 */
+	public Endpoint getActive() {
+		return active;
+	}
+
+	/**
+	 * @return Connections handed back as broken
+	 */
+	public long getReplacedCount() {
+		return replaced.get();
+	}
+
+	/**
+	 * @return Logins that went to the standby RDU
+	 */
+	public long getFailoverCount() {
+		return failovers.get();
+	}
+
+	/**
+	 * Stops the background thread and logs the spares out. Connections
+	 * handed out are released by the workers.
+	 */
+	public void close() {
+		Thread thread;
+		synchronized (this) {
+			closed = true;
+			thread = connector;
+			notifyAll();
+		}
+
+		if (thread != null) {
+			thread.interrupt();
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		PACEConnection connection;
+		while ((connection = spares.poll()) != null) {
+			release(connection);
+		}
+	}
+
+	/**
+	 * The background thread: tops the spares up, backing off while neither
+	 * RDU takes a login, and checks them when there is nothing else to do.
+	 */
+	private void maintain() {
+		long backoff = MIN_BACKOFF;
+		long nextCheck = System.currentTimeMillis() + healthInterval;
+
+		while (!closed) {
+			try {
+				if (spares.size() < spareCount) {
+					try {
+						spares.put(login());
+						backoff = MIN_BACKOFF;
+					} catch (IOException e) {
+						AsyncLog.failure(e.getMessage() + ", trying again in " + backoff / 1000 + " s");
+						sleep(backoff);
+						backoff = Math.min(MAX_BACKOFF, backoff * 2);
+					}
+					continue;
+				}
+
+				long now = System.currentTimeMillis();
+				if (now >= nextCheck) {
+					checkSpares();
+					nextCheck = now + healthInterval;
+				} else {
+					sleep(nextCheck - now);
+				}
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Posts a read only batch on every spare and drops the ones that throw.
+	 */
+	private void checkSpares() throws InterruptedException {
+		for (int i = spares.size(); i > 0; i--) {
+			PACEConnection connection = spares.poll();
+			if (connection == null) {
+				return;
+			}
+
+			try {
+				Batch batch = connection.newBatch();
+				batch.getAllDHCPCriteria();
+				batch.post();
+				spares.put(connection);
+			} catch (ProvisioningException e) {
+				AsyncLog.info("A spare connection to the RDU stopped answering, logging in again");
+				release(connection);
+			} catch (RuntimeException e) {
+				AsyncLog.info("A spare connection to the RDU failed (" + e + "), logging in again");
+				release(connection);
+			}
+		}
+	}
+
+	/**
+	 * Logs in to the primary RDU, or to the standby if the primary does not
+	 * take it.
+	 */
+	private PACEConnection login() throws IOException {
+		String error;
+
+		try {
+			PACEConnection connection = login(primary);
+			if (active != primary) {
+				AsyncLog.failure("Back on the primary RDU " + primary);
+			}
+			active = primary;
+			return connection;
+		} catch (IOException e) {
+			if (standby == null) {
+				throw e;
+			}
+			error = e.getMessage();
+		}
+
+		try {
+			PACEConnection connection = login(standby);
+			if (active != standby) {
+				AsyncLog.failure(error + ", failing over to the standby RDU " + standby);
+			}
+			active = standby;
+			failovers.incrementAndGet();
+			return connection;
+		} catch (IOException e) {
+			throw new IOException(error + "; " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Logs in to one RDU.
+	 */
+	PACEConnection login(Endpoint endpoint) throws IOException {
+		try {
+			return PACEConnectionFactory.getInstance(endpoint.host, endpoint.port, userName, password);
+		} catch (PACEConnectionException e) {
+			throw new IOException("Could not connect to " + endpoint + ": " + e.getMessage());
+		} catch (AuthenticationException e) {
+			throw new IOException("Could not log in to " + endpoint + ": " + e.getMessage());
+		}
+	}
+
+	private static void release(PACEConnection connection) {
+		try {
+			connection.releaseConnection();
+		} catch (RuntimeException e) {
+			// Already gone, nothing to release
+		}
+	}
+
+	private synchronized void wake() {
+		woken = true;
+		notifyAll();
+	}
+
+	/**
+	 * Waits until the time is up or {@link #wake} is called, including a
+	 * call made since the last sleep, while the background thread was busy.
+	 */
+	private synchronized void sleep(long millis) throws InterruptedException {
+		if (!closed && !woken && millis > 0) {
+			wait(millis);
+		}
+		woken = false;
+	}
+
+	/**
+	 * An RDU address and port.
+	 */
+	public static class Endpoint {
+
+		public Endpoint(String host, int port) {
+			this.host = host;
+			this.port = port;
+		}
+
+		/**
+		 * @param value			host or host:port
+		 * @param defaultPort	Port if none is given
+		 */
+		public static Endpoint parse(String value, int defaultPort) {
+			int colon = value.lastIndexOf(':');
+			if (colon < 0) {
+				return new Endpoint(value, defaultPort);
+			}
+			return new Endpoint(value.substring(0, colon), Integer.parseInt(value.substring(colon + 1)));
+		}
+
+		@Override
+		public String toString() {
+			return host + ":" + port;
+		}
+
+		final String host;
+		final int port;
+
+	}
+
+
+	private static final long MIN_BACKOFF = 1000;
+	private static final long MAX_BACKOFF = 30000;
+	private static final long REPLACE_TIMEOUT = 60000;
+
+	private Endpoint primary;
+	private Endpoint standby;
+	private String userName;
+	private String password;
+	private volatile Endpoint active;
+	private int spareCount = 1;
+	private long healthInterval = 30000;
+	private long replaceTimeout = REPLACE_TIMEOUT;
+	private BlockingQueue<PACEConnection> spares = new LinkedBlockingQueue<PACEConnection>();
+	private Thread connector;
+	private volatile boolean closed;
+	private boolean woken;
+	private AtomicLong replaced = new AtomicLong();
+	private AtomicLong failovers = new AtomicLong();
+
+}
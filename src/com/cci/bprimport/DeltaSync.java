@@ -0,0 +1,344 @@
+// DeltaSync - part of bprimport, works out what changed between the last
+// export snapshot and a new billing file
+// Copyright (C) 2012  Matt Reath
+
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+package com.cci.bprimport;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * DeltaSync loads the last BprExport output into memory, keyed by MAC
+ * address, and compares each billing record against it so only what
+ * changed is sent to the RDU:
+ * <ul>
+ * <li>a MAC that is not in the snapshot is added</li>
+ * <li>a MAC whose owner, class of service or DHCP criteria differ gets a
+ * change command for each field that differs</li>
+ * <li>a MAC in the snapshot that the billing file never mentions is deleted</li>
+ * </ul>
+ * Every snapshot entry a billing record matches is removed from the index,
+ * so whatever is left once the billing file is done is what to delete.
+ * Lines that are skipped instead of diffed must still be passed to
+ * {@link #keep}, or their devices would be deleted. A line whose MAC
+ * address cannot be read could be any device, so after one of those
+ * {@link #canDelete} is false.
+ * <p>
+ * A billing file holds one device type, but an export can hold several
+ * and its lines do not say which type each device is. BprExport writes the
+ * types next to the export, see {@link #typesFor}, and deletes are only
+ * sent when that file lists the type being imported and nothing else.
+ * <p>
+ * The index is a {@link LongHashMap} from the packed MAC to a 16 bit number
+ * each for the class of service and the DHCP criteria, which come from a
+ * few dozen names, and a second one from the packed MAC to a 64 bit
+ * {@link #fingerprint} of the owner ID. That is 32 bytes per device instead
+ * of a DeviceRecord and its strings, and it is all a diff needs.
+ * <p>
+ * @author Matt Reath
+ * @version 0.1
+ *
+ */
+public class DeltaSync {
+
+	/**
+	 * @param deviceMode	-d or -m, the DHCP criteria of MTAs are compared
+	 * 						under the name BAC stores them as
+	 */
+	public DeltaSync(String deviceMode) {
+		this.deviceMode = deviceMode;
+		this.deviceType = deviceMode.equals("-m") ? "mta" : "docsis";
+	}
+
+	/**
+	 * @return The file that lists the device types an export holds
+	 */
+	public static File typesFor(File snapshot) {
+		return new File(snapshot.getPath() + ".types");
+	}
+
+	/**
+	 * Writes the device types an export holds, one per line.
+	 */
+	public static void writeTypes(File snapshot, Collection<String> types) throws IOException {
+		Writer out = new OutputStreamWriter(new FileOutputStream(typesFor(snapshot)), "ISO-8859-1");
+
+		try {
+			for (String type : types) {
+				out.write(type + "\n");
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * @return The device types listed for an export, or null if it has no
+	 * 			list, such as an export written to standard output
+	 */
+	public static List<String> readTypes(File snapshot) throws IOException {
+		File file = typesFor(snapshot);
+
+		if (!file.exists()) {
+			return null;
+		}
+
+		List<String> types = new ArrayList<String>();
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "ISO-8859-1"));
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				if (line.trim().length() > 0) {
+					types.add(line.trim());
+				}
+			}
+		} finally {
+			in.close();
+		}
+		return types;
+	}
+
+	/**
+	 * Loads an export snapshot. Malformed lines are reported and skipped.
+	 *
+	 * @return The number of devices loaded
+	 */
+	public int load(File snapshot) throws IOException {
+		this.snapshot = snapshot;
+		this.snapshotTypes = readTypes(snapshot);
+
+		DeviceRecordReader reader = new DeviceRecordReader(CompressedFiles.openInput(snapshot));
+
+		try {
+			while (true) {
+				DeviceRecord record;
+
+				try {
+					record = reader.next();
+				} catch (MalformedRecordException e) {
+					System.out.println(snapshot + ": " + e.getMessage());
+					continue;
+				}
+
+				if (record == null) {
+					break;
+				}
+
+				long mac = MacAddressCodec.encode(record.getMacAddress());
+				if (mac == MacAddressCodec.INVALID) {
+					System.out.println(snapshot + ": Line " + record.getLineNumber() + ": bad MAC address "
+						+ record.getMacAddress());
+					continue;
+				}
+
+				index.put(mac, summarize(record));
+				owners.put(mac, fingerprint(record.getOwnerID()));
+			}
+		} finally {
+			reader.close();
+		}
+
+		return index.size();
+	}
+
+	/**
+	 * Compares a billing record with the snapshot and sets the operation the
+	 * record needs on it.
+	 *
+	 * @return False if the device is unchanged and nothing needs to be sent
+	 */
+	public boolean diff(DeviceRecord record) throws IOException {
+		long mac = MacAddressCodec.encode(record.getMacAddress());
+
+		if (mac == MacAddressCodec.INVALID) {
+			unreadable++;
+		}
+
+		if (mac == MacAddressCodec.INVALID || !index.containsKey(mac)) {
+			record.setOperation(DeviceRecord.ADD);
+			adds++;
+			return true;
+		}
+
+		long previous = index.get(mac, 0);
+		long current = summarize(record);
+		long previousOwner = owners.get(mac, 0);
+		index.remove(mac);
+		owners.remove(mac);
+
+		int operation = 0;
+
+		if (previousOwner != fingerprint(record.getOwnerID())) {
+			operation |= DeviceRecord.CHANGE_OWNER;
+		}
+		if ((previous & COS_MASK) != (current & COS_MASK)) {
+			operation |= DeviceRecord.CHANGE_CLASS_OF_SERVICE;
+		}
+		if ((previous & DHCP_MASK) != (current & DHCP_MASK)) {
+			operation |= DeviceRecord.CHANGE_DHCP_CRITERIA;
+		}
+
+		if (operation == 0) {
+			unchanged++;
+			return false;
+		}
+
+		record.setOperation(operation);
+		changes++;
+		return true;
+	}
+
+	/**
+	 * Marks a device as still in the billing file without diffing it, for a
+	 * line that is rejected or cannot be parsed. It is left alone on the RDU.
+	 *
+	 * @param macAddress	The line's MAC address field, null if it has none
+	 */
+	public void keep(String macAddress) {
+		long mac = MacAddressCodec.encode(macAddress);
+
+		if (mac == MacAddressCodec.INVALID) {
+			unreadable++;
+		} else {
+			index.remove(mac);
+			owners.remove(mac);
+		}
+	}
+
+	/**
+	 * @return False if the devices left in the snapshot cannot all be taken
+	 * 			for devices billing no longer has, see {@link #whyNotDelete}
+	 */
+	public boolean canDelete() {
+		return whyNotDelete() == null;
+	}
+
+	/**
+	 * @return Why the deletes cannot be trusted, or null if they can
+	 */
+	public String whyNotDelete() {
+		if (unreadable > 0) {
+			return unreadable + " billing line(s) had no readable MAC address";
+		}
+		if (snapshotTypes == null) {
+			return "there is no " + typesFor(snapshot) + " to say which device types the snapshot holds,"
+				+ " export it with --output and --device-types " + deviceType;
+		}
+		if (!snapshotTypes.equals(Collections.singletonList(deviceType))) {
+			return "the snapshot holds " + snapshotTypes + " devices, not only " + deviceType
+				+ ", export it with --device-types " + deviceType + " or --split-types";
+		}
+		return null;
+	}
+
+	/**
+	 * @return The number of billing lines without a readable MAC address
+	 */
+	public long getUnreadableCount() {
+		return unreadable;
+	}
+
+	/**
+	 * @return The snapshot devices no billing record matched, marked for
+	 * 			deletion. Only meaningful once the whole billing file is diffed.
+	 */
+	public List<DeviceRecord> getDeletes() {
+		long[] macs = index.keys();
+		List<DeviceRecord> deletes = new ArrayList<DeviceRecord>(macs.length);
+
+		for (int i = 0; i < macs.length; i++) {
+			DeviceRecord record = new DeviceRecord(0, null, MacAddressCodec.decode(macs[i]), null, null);
+			record.setOperation(DeviceRecord.DELETE);
+			deletes.add(record);
+		}
+		return deletes;
+	}
+
+	public String toString() {
+		return adds + " add(s), " + changes + " change(s), " + index.size() + " delete(s), "
+			+ unchanged + " unchanged" + (unreadable > 0 ? ", " + unreadable + " line(s) without a readable MAC" : "");
+	}
+
+	/**
+	 * 64 bit FNV-1a of an owner ID, one round per char. Owner IDs are
+	 * account numbers that mostly differ in a digit or two, which is where
+	 * String.hashCode() collides ("Aa" and "BB"); a change of owner hidden by
+	 * a collision would never be sent.
+	 *
+	 * @return The fingerprint, 0 for null
+	 */
+	static long fingerprint(String owner) {
+		if (owner == null) {
+			return 0;
+		}
+
+		long hash = FNV_OFFSET_BASIS;
+		for (int i = 0; i < owner.length(); i++) {
+			hash ^= owner.charAt(i);
+			hash *= FNV_PRIME;
+		}
+		return hash;
+	}
+
+	/**
+	 * Packs the names the diff compares: class of service number in bits 16
+	 * to 31, DHCP criteria number in the low 16.
+	 */
+	private long summarize(DeviceRecord record) throws IOException {
+		long cos = nameNumber(record.getClassOfService());
+		long dhcp = nameNumber(BprImport.normalizeDhcpCriteria(deviceMode, record.getDhcpCriteria()));
+
+		return (cos << 16) | dhcp;
+	}
+
+	/**
+	 * @return A small number for a class of service or DHCP criteria name, 0
+	 * 			for null
+	 */
+	private int nameNumber(String name) throws IOException {
+		if (name == null) {
+			return 0;
+		}
+
+		Integer number = names.get(name);
+		if (number == null) {
+			if (names.size() >= 0xFFFF) {
+				throw new IOException("More than " + 0xFFFF + " distinct class of service and DHCP criteria names");
+			}
+			number = names.size() + 1;
+			names.put(name, number);
+		}
+		return number;
+	}
+
+
+	private static final long FNV_OFFSET_BASIS = 0xCBF29CE484222325L;
+	private static final long FNV_PRIME = 0x100000001B3L;
+	private static final long COS_MASK = 0xFFFF0000L;
+	private static final long DHCP_MASK = 0xFFFFL;
+
+	private String deviceMode;
+	private String deviceType;
+	private File snapshot;
+	private List<String> snapshotTypes;
+	private LongHashMap index = new LongHashMap();
+	private LongHashMap owners = new LongHashMap();
+	private Map<String, Integer> names = new HashMap<String, Integer>();
+	private long adds;
+	private long changes;
+	private long unchanged;
+	private long unreadable;
+
+}
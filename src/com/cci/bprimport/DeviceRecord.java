@@ -0,0 +1,108 @@
+// DeviceRecord - part of bprimport, a single parsed line of an import
+// or export file
+// Copyright (C) 2012  Matt Reath
+
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+package com.cci.bprimport;
+
+/**
+ * DeviceRecord holds one device from a pipe delimited file along with the
+ * line it came from, so results coming back from the RDU can be traced to
+ * the input.
+ * <p>
+ * ownerID|macAddress|classOfService|dhcpCriteria
+ * <p>
+ * @author Matt Reath
+ * @version 0.1
+ *
+ */
+public class DeviceRecord {
+
+	/** Operations a delta sync can ask for, ADD unless set otherwise */
+	public static final int ADD = 0;
+	public static final int CHANGE_OWNER = 1;
+	public static final int CHANGE_CLASS_OF_SERVICE = 2;
+	public static final int CHANGE_DHCP_CRITERIA = 4;
+	public static final int DELETE = 8;
+
+	public DeviceRecord(long lineNumber, String ownerID, String macAddress, String classOfService, String dhcpCriteria) {
+		this.lineNumber = lineNumber;
+		this.ownerID = ownerID;
+		this.macAddress = macAddress;
+		this.classOfService = classOfService;
+		this.dhcpCriteria = dhcpCriteria;
+	}
+
+	public long getLineNumber() {
+		return lineNumber;
+	}
+
+	public String getOwnerID() {
+		return ownerID;
+	}
+
+	public String getMacAddress() {
+		return macAddress;
+	}
+
+	public String getClassOfService() {
+		return classOfService;
+	}
+
+	public String getDhcpCriteria() {
+		return dhcpCriteria;
+	}
+
+	/**
+	 * @return Byte offset in the input file just past this record's line, the
+	 * 			point a resumed run starts reading from once it is committed
+	 */
+	public long getEndOffset() {
+		return endOffset;
+	}
+
+	/**
+	 * Places the record in its file. Readers that parse chunks of a file out
+	 * of order only know the real line number once earlier chunks are counted.
+	 */
+	void setPosition(long lineNumber, long endOffset) {
+		this.lineNumber = lineNumber;
+		this.endOffset = endOffset;
+	}
+
+	/**
+	 * @return ADD, DELETE, or a combination of the CHANGE_ flags
+	 */
+	public int getOperation() {
+		return operation;
+	}
+
+	public void setOperation(int operation) {
+		this.operation = operation;
+	}
+
+	public String toString() {
+		return ownerID + "|" + macAddress + "|" + classOfService + "|" + dhcpCriteria;
+	}
+
+
+	private long lineNumber;
+	private long endOffset;
+	private String ownerID;
+	private String macAddress;
+	private String classOfService;
+	private String dhcpCriteria;
+	private int operation = ADD;
+
+}
@@ -0,0 +1,215 @@
+// DeviceRecordReader - part of bprimport, streams DeviceRecords out of a
+// pipe delimited import file
+// Copyright (C) 2012  Matt Reath
+
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+package com.cci.bprimport;
+
+import java.io.*;
+import java.nio.charset.Charset;
+
+/**
+ * DeviceRecordReader reads an import file one line at a time and splits it
+ * on '|' with a plain byte scan, so no regex is compiled or run and the only
+ * allocations per line are the record and its field strings. The read
+ * buffer is reused for the whole file.
+ * <p>
+ * The file is ASCII, decoded as ISO-8859-1 so no byte is ever lost:
+ * ownerID|macAddress|classOfService[|dhcpCriteria]. A
+ * field that is empty or the literal "null" becomes null. Blank lines are
+ * skipped. Any other line that does not have three or four fields is
+ * reported as a {@link MalformedRecordException} carrying its line number.
+ * <p>
+ * @author Matt Reath
+ * @version 0.1
+ *
+ */
+public class DeviceRecordReader implements RecordSource {
+
+	public DeviceRecordReader(InputStream in) {
+		this(in, 0, 0);
+	}
+
+	/**
+	 * Creates a reader for a stream that has already been positioned part way
+	 * into the file.
+	 *
+	 * @param in			Stream positioned at the start of a line
+	 * @param lineNumber	Number of lines before that position
+	 * @param offset		Byte offset of that position in the file
+	 */
+	public DeviceRecordReader(InputStream in, long lineNumber, long offset) {
+		this.in = in;
+		this.lineNumber = lineNumber;
+		this.offset = offset;
+	}
+
+	/**
+	 * Reads the next record.
+	 *
+	 * @return The record, or null at the end of the file
+	 * @throws MalformedRecordException	If the line cannot be parsed, the
+	 * 									reader is left at the following line
+	 */
+	public DeviceRecord next() throws IOException {
+		while (true) {
+			int end = findLineEnd();
+
+			if (end < 0) {
+				return null;
+			}
+
+			int start = pos;
+			int next = end < limit ? end + 1 : end;
+			offset += next - start;
+			pos = next;
+			lineNumber++;
+
+			if (end > start && buf[end - 1] == '\r') {
+				end--;
+			}
+
+			if (end > start) {
+				DeviceRecord record = parseLine(buf, start, end, lineNumber);
+				record.setPosition(lineNumber, offset);
+				return record;
+			}
+		}
+	}
+
+	/**
+	 * @return Number of lines read so far
+	 */
+	public long getLineNumber() {
+		return lineNumber;
+	}
+
+	/**
+	 * @return Byte offset in the file of the next line to be read
+	 */
+	public long getOffset() {
+		return offset;
+	}
+
+	public void close() throws IOException {
+		in.close();
+	}
+
+	/**
+	 * Parses the bytes of one line, not including the line terminator.
+	 *
+	 * @param line			Buffer holding the line
+	 * @param start			Offset of the first byte of the line
+	 * @param end			Offset just past the last byte of the line
+	 * @param lineNumber	Line number to put on the record or the error
+	 */
+	static DeviceRecord parseLine(byte[] line, int start, int end, long lineNumber) throws MalformedRecordException {
+		String[] fields = new String[FIELD_COUNT];
+		int field = 0;
+		int fieldStart = start;
+
+		for (int i = start; i <= end; i++) {
+			if (i == end || line[i] == '|') {
+				if (field == FIELD_COUNT) {
+					throw new MalformedRecordException(lineNumber, "more than " + FIELD_COUNT + " fields", fields[1]);
+				}
+				fields[field++] = decode(line, fieldStart, i);
+				fieldStart = i + 1;
+			}
+		}
+
+		if (field < FIELD_COUNT - 1) {
+			throw new MalformedRecordException(lineNumber, "expected ownerID|macAddress|classOfService|dhcpCriteria",
+				fields[1]);
+		}
+
+		if (fields[1] == null) {
+			throw new MalformedRecordException(lineNumber, "missing MAC address");
+		}
+
+		return new DeviceRecord(lineNumber, fields[0], fields[1], fields[2], fields[3]);
+	}
+
+	private static String decode(byte[] line, int start, int end) {
+		int length = end - start;
+
+		if (length == 0) {
+			return null;
+		}
+
+		if (length == 4 && line[start] == 'n' && line[start + 1] == 'u'
+				&& line[start + 2] == 'l' && line[start + 3] == 'l') {
+			return null;
+		}
+
+		return new String(line, start, length, LATIN1);
+	}
+
+	/**
+	 * Makes sure a whole line starting at pos is in the buffer, compacting and
+	 * growing it as needed.
+	 *
+	 * @return Index of the '\n' ending the line, limit for a last line without
+	 * 			one, or -1 at the end of the file
+	 */
+	private int findLineEnd() throws IOException {
+		int scan = pos;
+
+		while (true) {
+			for (; scan < limit; scan++) {
+				if (buf[scan] == '\n') {
+					return scan;
+				}
+			}
+
+			if (eof) {
+				return pos < limit ? limit : -1;
+			}
+
+			if (pos > 0) {
+				System.arraycopy(buf, pos, buf, 0, limit - pos);
+				scan -= pos;
+				limit -= pos;
+				pos = 0;
+			}
+
+			if (limit == buf.length) {
+				byte[] bigger = new byte[buf.length * 2];
+				System.arraycopy(buf, 0, bigger, 0, limit);
+				buf = bigger;
+			}
+
+			int read = in.read(buf, limit, buf.length - limit);
+			if (read < 0) {
+				eof = true;
+			} else {
+				limit += read;
+			}
+		}
+	}
+
+
+	private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+	private static final int FIELD_COUNT = 4;
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private InputStream in;
+	private byte[] buf = new byte[BUFFER_SIZE];
+	private int pos;
+	private int limit;
+	private boolean eof;
+	private long lineNumber;
+	private long offset;
+
+}
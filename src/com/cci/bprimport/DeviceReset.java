@@ -24,13 +24,19 @@ import java.util.*;
 /**
  * DeviceReset - simple utility for resetting devices in BAC
  * <p>
- * Usage: java com.cci.bprimport.DeviceReset <rdu address> <port> <username> <password> <mac address>
+ * Usage: java com.cci.bprimport.DeviceReset <rdu address> <port> <username> <password> <mac address> [--throttle file]
+ * <br>
+ *        java com.cci.bprimport.DeviceReset <rdu address> <port> <username> <password> --file <file|-> [--connections n]
+ *        [--batch-size n] [--rate resets/s] [--results file] [--throttle file]
+ *        [--log file] [--verbosity counts|failures|all] [--log-size mb] [--log-files n]
+ *        [--retries n] [--retry-delay ms] [--max-retry-delay ms] [--transient-errors a,b,...]
+ *        [--standby host[:port]] [--spare-connections n] [--health-interval s]
  * <p>
  * @author Matt Reath
  * @version 0.1
  *
  */
-public class DeviceReset {
+public class DeviceReset implements BatchHandler {
 
 	/**
 	 * Entry point into the BprImport application.
@@ -42,19 +48,40 @@ public class DeviceReset {
 
 	public static void main(String[] args) {
 
+		CommandLine cli = new CommandLine(args);
+
+		if (cli.hasOption("throttle")) {
+			try {
+				RduThrottle.watch(new File(cli.getOption("throttle", null)));
+			} catch (IOException ioe) {
+				System.out.println(ioe.getMessage());
+				System.exit(1);
+			}
+		}
+
+		if (cli.hasOption("file")) {
+			resetDevices(cli);
+			return;
+		}
+
+		deviceId = cli.arg(4);
+		if (MacAddressCodec.encode(deviceId) == MacAddressCodec.INVALID) {
+			System.out.println("Invalid MAC address: " + deviceId);
+			System.exit(1);
+		}
+
 		DeviceReset bpr = new DeviceReset();
 
 		// Step 1 - Connect to the RDU
 		System.out.print("Connecting to the RDU...");
-		bpr.initializeConnectionToRDU(args[0], Integer.parseInt(args[1]), args[2], args[3]);
+		bpr.initializeConnectionToRDU(cli.arg(0), Integer.parseInt(cli.arg(1)), cli.arg(2), cli.arg(3));
 		System.out.print("Success\n\n");
 
-		deviceId = args[4];
 		System.out.print("Resetting device ...\n");
 		bpr.startBatch();
-		bpr.resetDevice(args[4]);
+		bpr.resetDevice(deviceId);
 		bpr.postBatch();
-		// System.out.print("Device with ID: " + args[4] + " has been reset.\n");
+		bpr.endBatch();
 
 
 		bpr.disconnect();
@@ -62,6 +89,143 @@ public class DeviceReset {
 
 	}
 
+	/**
+	 * Resets every MAC address listed in a file, or on stdin for "--file -",
+	 * spread over --connections connections in batches of --batch-size, no
+	 * faster than --rate resets per second. The outcome for every device is
+	 * written to the --results file, lines without a valid MAC address
+	 * included.
+	 * <p>
+	 * A batch is reset all at once when it is posted, so no batch is made
+	 * larger than the rate; otherwise the limiter would save up a batch's
+	 * worth of permits and let them through together.
+	 *
+	 * @param cli	The parsed CLI arguments
+	 */
+	private static void resetDevices(CommandLine cli) {
+
+		String source = cli.getOption("file", null);
+		int connections = cli.getIntOption("connections", 1);
+		int batchSize = cli.getIntOption("batch-size", DEFAULT_BATCH_SIZE);
+		int rate = cli.getIntOption("rate", 0);
+		String resultFile = cli.getOption("results", source.equals("-") ? "reset-results.txt" : source + ".results");
+
+		if (connections < 1 || batchSize < 1) {
+			System.out.println("--connections and --batch-size must be at least 1");
+			System.exit(1);
+		}
+
+		if (rate > 0 && batchSize > rate) {
+			System.out.println("Batch size lowered to " + rate + " to stay within --rate");
+			batchSize = rate;
+		}
+
+		RateLimiter resets = new RateLimiter(rate, 1);
+		AsyncLog.open(cli, source.equals("-") ? "devicereset.log" : source + ".log");
+
+		try {
+			PrintWriter results = new PrintWriter(new BufferedWriter(new FileWriter(resultFile)));
+
+			// Step 1 - Connect to the RDU once per worker
+			System.out.print("Connecting to the RDU...");
+			ConnectionManager rdu = ConnectionManager.open(cli, 0);
+			List<DeviceReset> workers = new ArrayList<DeviceReset>();
+			for (int i = 0; i < connections; i++) {
+				DeviceReset bpr = new DeviceReset();
+				bpr.connection = rdu.acquire();
+				bpr.connections = rdu;
+				bpr.resets = resets;
+				bpr.results = results;
+				workers.add(bpr);
+			}
+			rdu.start();
+			System.out.print("Success\n\n");
+
+			BatchDispatcher dispatcher = new BatchDispatcher(workers, connections * 2);
+			RetryPolicy retries = RetryPolicy.open(cli, dispatcher,
+				source.equals("-") ? new File("reset-results.dead") : RetryPolicy.deadLettersFor(new File(source)),
+				false);
+			for (DeviceReset bpr : workers) {
+				bpr.retries = retries;
+			}
+			dispatcher.start();
+			Metrics.get().start("devicereset", 0, cli.getIntOption("status-interval", 10));
+
+			// Step 2 - Queue the MAC addresses, one per line. Lines from an
+			// import or export file are accepted too, the MAC is the second field.
+			InputStream in = source.equals("-") ? System.in : CompressedFiles.openInput(new File(source));
+			BufferedReader reader = new BufferedReader(new InputStreamReader(in, "ISO-8859-1"));
+			List<DeviceRecord> devices = new ArrayList<DeviceRecord>(batchSize);
+			long lineNumber = 0;
+			long sequence = 0;
+			long invalid = 0;
+			String line;
+
+			System.out.print("Resetting devices ...\n");
+			while ((line = reader.readLine()) != null) {
+				lineNumber++;
+				line = line.trim();
+
+				if (line.length() == 0 || line.startsWith("#")) {
+					continue;
+				}
+
+				String[] fields = line.split("\\|");
+				String mac = fields.length > 1 ? fields[1] : fields[0];
+				DeviceRecord device = new DeviceRecord(lineNumber, null, mac, null, null);
+
+				// The RDU would reject the whole batch over one bad address
+				if (MacAddressCodec.encode(mac) == MacAddressCodec.INVALID) {
+					results.println(mac + "|failed|" + INVALID_MAC);
+					retries.deadLetter(device, INVALID_MAC);
+					Metrics.get().recordsFailed(1, INVALID_MAC);
+					invalid++;
+					continue;
+				}
+				devices.add(device);
+
+				if (devices.size() >= batchSize) {
+					dispatcher.submit(new RecordBatch(sequence++, devices));
+					devices = new ArrayList<DeviceRecord>(batchSize);
+				}
+			}
+
+			if (!devices.isEmpty()) {
+				dispatcher.submit(new RecordBatch(sequence++, devices));
+			}
+			reader.close();
+
+			// Step 3 - Drain the queue and disconnect
+			dispatcher.shutdown();
+			rdu.close();
+			results.close();
+			retries.close();
+			Metrics.get().stop();
+			AsyncLog.close();
+
+			long reset = 0;
+			long failed = invalid;
+			for (DeviceReset bpr : workers) {
+				reset += bpr.resetCount;
+				failed += bpr.failedCount;
+			}
+			System.out.println(reset + " device(s) reset, " + failed + " failed. Results in " + resultFile);
+			if (retries.getRetriedCount() > 0 || retries.getDeadLetterCount() > 0) {
+				System.out.println(retries.getRetriedCount() + " retry attempt(s), " + retries.getDeadLetterCount()
+					+ " device(s) given up on in " + retries.getDeadLetterFile());
+			}
+			if (rdu.getReplacedCount() > 0) {
+				System.out.println(rdu.getReplacedCount() + " broken connection(s) replaced, "
+					+ rdu.getFailoverCount() + " login(s) to the standby RDU.");
+			}
+
+		} catch (IOException ioe) {
+			System.out.println(ioe.getMessage());
+		} catch (InterruptedException ie) {
+			System.out.println("Interrupted while resetting devices");
+		}
+	}
+
 	public DeviceReset() {
 
 	}
@@ -86,22 +250,20 @@ public class DeviceReset {
 		{
 			// Connection failed
 			System.out.println(e.getMessage());
-			System.exit(0);
+			System.exit(1);
 		}
 		catch(AuthenticationException e)
 		{
 			// Authentication failure
 			System.out.println(e.getMessage());
-			System.exit(0);
+			System.exit(1);
 		}
 	}
 
 	/**
-	 * Inserts an add cable modem command into the batch.
+	 * Inserts a reset command into the batch.
 	 *
-	 * @param ownerID			Customer/Account ID for this cable modem
-	 * @param macAddress		MAC address of the cable modem
-	 * @param classOfService	The class of service to assign to this modem
+	 * @param macAddress		MAC address of the device
 	 */
 	public void resetDevice(String macAddress) {
 		if(batch != null) {
@@ -115,10 +277,115 @@ public class DeviceReset {
 
 
 
+	/**
+	 * Resets a whole batch of devices from the dispatcher and writes a result
+	 * line for each one.
+	 * <p>
+	 * The RDU rolls back the whole batch when any command fails, so failed
+	 * devices are taken out and the rest are posted again. Devices that
+	 * failed for a transient reason are handed back to be retried later in
+	 * one batch, the others are recorded and dropped.
+	 *
+	 * @param devices	Devices to reset, MAC address only
+	 */
+	public void process(RecordBatch devices) {
+
+		List<DeviceRecord> remaining = devices.getRecords();
+		List<DeviceRecord> later = new ArrayList<DeviceRecord>();
+		String reason = null;
+
+		while (!remaining.isEmpty()) {
+			startBatch();
+			for (DeviceRecord device : remaining) {
+				resetDevice(device.getMacAddress());
+			}
+			commandCount = remaining.size();
+			resets.acquire(remaining.size());
+			postBatch();
+
+			if (status == null) {
+				// The post itself failed, the RDU never saw the batch
+				reason = postError;
+				if (retries.canRetry(devices)) {
+					later.addAll(remaining);
+				} else {
+					fail(remaining, reason);
+				}
+				break;
+			}
+
+			if (!status.isError()) {
+				for (DeviceRecord device : remaining) {
+					results.println(device.getMacAddress() + "|reset");
+				}
+				resetCount += remaining.size();
+				Metrics.get().recordsDone(remaining.size());
+				break;
+			}
+
+			List<DeviceRecord> retry = new ArrayList<DeviceRecord>();
+
+			for (int i = 0; i < remaining.size(); i++) {
+				DeviceRecord device = remaining.get(i);
+				CommandStatus cStatus = null;
+
+				if (i < status.getCommandCount()) {
+					cStatus = status.getCommandStatus(i);
+				}
+
+				if (cStatus != null && cStatus.isError()) {
+					if (retries.isTransient(cStatus.getErrorMessage()) && retries.canRetry(devices)) {
+						later.add(device);
+						reason = cStatus.getErrorMessage();
+					} else {
+						fail(Collections.singletonList(device), cStatus.getErrorMessage());
+					}
+				} else {
+					retry.add(device);
+				}
+			}
+
+			if (retry.size() == remaining.size()) {
+				// Nothing to blame on a single device, the batch itself failed
+				String error = status.getErrorMessage();
+				if ((error == null || retries.isTransient(error)) && retries.canRetry(devices)) {
+					later.addAll(remaining);
+					reason = error != null ? error : "batch failed";
+				} else {
+					fail(remaining, status.getBatchID() + ": " + error);
+				}
+				break;
+			}
+
+			remaining = retry;
+		}
+
+		if (!later.isEmpty()) {
+			retries.retry(devices, later, reason);
+		}
+	}
+
+	/**
+	 * Records devices that could not be reset and will not be tried again.
+	 */
+	private void fail(List<DeviceRecord> devices, String error) {
+		for (DeviceRecord device : devices) {
+			results.println(device.getMacAddress() + "|failed|" + error);
+			retries.deadLetter(device, error);
+		}
+		failedCount += devices.size();
+		Metrics.get().recordsFailed(devices.size(), error);
+	}
+
+	public void close() {
+		disconnect();
+	}
+
 	/**
 	 * Initializes the batch using the connection object.
 	 */
 	public void startBatch() {
+		commandCount = 1;
 		if(connection != null) {
 			batch = connection.newBatch(ActivationMode.AUTOMATIC);
 			// No Activation mode is not supported for DeviceOperation
@@ -132,14 +399,34 @@ public class DeviceReset {
 	public void postBatch() {
 		status = null;
 
+		RduThrottle.beforePost(commandCount);
+
+		postError = null;
+		long posted = Metrics.get().postStarted();
 		try {
 			status = batch.post();
-			endBatch();
 		}
 		catch(ProvisioningException e)
 		{
-			System.out.println(e.getMessage());
-			System.exit(0);
+			// Nothing reached the RDU, the caller decides whether to try again
+			postError = e.getMessage() != null ? e.getMessage() : e.toString();
+			AsyncLog.failure("Post failed: " + postError);
+
+			// The connection may be what failed, carry on with a fresh one
+			if(connections != null) {
+				try {
+					connection = connections.replace(connection);
+				} catch (IOException ioe) {
+					// Neither RDU gave us one in time, the batch fails and
+					// the next post tries the old connection again
+					postError += "; " + ioe.getMessage();
+					AsyncLog.failure(ioe.getMessage());
+				}
+			}
+		}
+		finally
+		{
+			Metrics.get().postFinished(posted);
 		}
 
 	}
@@ -151,7 +438,9 @@ public class DeviceReset {
 
 		CommandStatus cStatus = null;
 
-		if(status.isError()) {
+		if(status == null) {
+			System.out.println("Could not post the batch: " + postError);
+		} else if(status.isError()) {
 			System.out.println("There were errors during batch processing.");
 
 			cStatus = status.getFailedCommandStatus();
@@ -170,6 +459,89 @@ public class DeviceReset {
 		}
 	}
 
+	/**
+	 * Uses a connection that is already open, for callers such as the
+	 * daemon that keep their own warm connections.
+	 */
+	public void setConnection(PACEConnection connection) {
+		this.connection = connection;
+	}
+
+	/**
+	 * Sets the limiter every worker takes a permit from per reset.
+	 */
+	public void setRateLimiter(RateLimiter resets) {
+		this.resets = resets;
+	}
+
+	/**
+	 * Sets where the mac|reset or mac|failed|reason line of every device
+	 * goes.
+	 */
+	public void setResults(PrintWriter results) {
+		this.results = results;
+	}
+
+	/**
+	 * Sets the policy that decides which failed devices are tried again.
+	 */
+	public void setRetryPolicy(RetryPolicy retries) {
+		this.retries = retries;
+	}
+
+	public long getResetCount() {
+		return resetCount;
+	}
+
+	public long getFailedCount() {
+		return failedCount;
+	}
+
+	/**
+	 * @return The RDU's reason the last single device request failed
+	 */
+	public String getLastError() {
+		return lastError;
+	}
+
+	/**
+	 * Resets a single device in a batch of its own, for the daemon.
+	 *
+	 * @return True if the RDU accepted it, otherwise see {@link #getLastError}
+	 */
+	public boolean resetOne(String macAddress) {
+		if (MacAddressCodec.encode(macAddress) == MacAddressCodec.INVALID) {
+			lastError = INVALID_MAC;
+			return false;
+		}
+
+		startBatch();
+		resetDevice(macAddress);
+		postBatch();
+		lastError = batchError();
+		return lastError == null;
+	}
+
+	/**
+	 * Picks the error message out of the last posted batch.
+	 *
+	 * @return The message, or null if the batch went through
+	 */
+	private String batchError() {
+		if (status == null) {
+			return postError;
+		}
+		if (!status.isError()) {
+			return null;
+		}
+
+		CommandStatus cStatus = status.getFailedCommandStatus();
+		if (cStatus != null && cStatus.getErrorMessage() != null) {
+			return cStatus.getErrorMessage();
+		}
+		return status.getBatchID() + ": " + status.getErrorMessage();
+	}
+
 	/**
 	 * Disconnects from the RDU server.
 	 */
@@ -179,7 +551,19 @@ public class DeviceReset {
 
 
 	private PACEConnection connection;
+	private ConnectionManager connections;
 	private Batch batch;
 	private BatchStatus status;
+	private String postError;
+	private int commandCount;
+	private RateLimiter resets;
+	private RetryPolicy retries;
+	private PrintWriter results;
+	private long resetCount;
+	private long failedCount;
+	private String lastError;
+
+	private static final int DEFAULT_BATCH_SIZE = 50;
+	private static final String INVALID_MAC = "invalid MAC address";
 
 }
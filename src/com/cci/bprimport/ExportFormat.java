@@ -0,0 +1,185 @@
+// ExportFormat - part of bprimport, the line formats BprExport can write
+// Copyright (C) 2012  Matt Reath
+
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+package com.cci.bprimport;
+
+/**
+ * ExportFormat writes one device as one line straight into an
+ * {@link ExportWriter}'s buffer, field by field, without building a String
+ * for the line first.
+ * <ul>
+ * <li>pipe - ownerID|macAddress|classOfService|dhcpCriteria, the format
+ * BprImport reads, with null for a missing value</li>
+ * <li>csv - the same four fields with a header line, quoted where needed</li>
+ * <li>ndjson - one JSON object per line</li>
+ * </ul>
+ * <p>
+ * @author Matt Reath
+ * @version 0.1
+ *
+ */
+public abstract class ExportFormat {
+
+	public static final ExportFormat PIPE = new Pipe();
+	public static final ExportFormat CSV = new Csv();
+	public static final ExportFormat NDJSON = new NdJson();
+
+	/**
+	 * @param name	pipe, csv or ndjson
+	 */
+	public static ExportFormat forName(String name) {
+		if (name.equalsIgnoreCase("pipe")) {
+			return PIPE;
+		} else if (name.equalsIgnoreCase("csv")) {
+			return CSV;
+		} else if (name.equalsIgnoreCase("ndjson")) {
+			return NDJSON;
+		}
+		throw new IllegalArgumentException("Unknown format " + name + ", expected pipe, csv or ndjson");
+	}
+
+	/**
+	 * Writes whatever comes before the first device.
+	 */
+	void writeHeader(ExportWriter out) {
+
+	}
+
+	/**
+	 * Writes one device, including the line break.
+	 */
+	abstract void writeDevice(ExportWriter out, String ownerID, String macAddress, String classOfService,
+		String dhcpCriteria);
+
+
+	private static class Pipe extends ExportFormat {
+
+		void writeDevice(ExportWriter out, String ownerID, String macAddress, String classOfService,
+				String dhcpCriteria) {
+			out.put(ownerID);
+			out.put('|');
+			out.put(macAddress);
+			out.put('|');
+			out.put(classOfService);
+			out.put('|');
+			out.put(dhcpCriteria);
+			out.put('\n');
+		}
+
+	}
+
+	private static class Csv extends ExportFormat {
+
+		void writeHeader(ExportWriter out) {
+			out.put("ownerID,macAddress,classOfService,dhcpCriteria\n");
+		}
+
+		void writeDevice(ExportWriter out, String ownerID, String macAddress, String classOfService,
+				String dhcpCriteria) {
+			field(out, ownerID);
+			out.put(',');
+			field(out, macAddress);
+			out.put(',');
+			field(out, classOfService);
+			out.put(',');
+			field(out, dhcpCriteria);
+			out.put('\n');
+		}
+
+		/**
+		 * Quotes a value only if it holds a comma, quote or line break, which
+		 * a MAC address such as 1,6,00:0C:E5:32:D0:6A always does. A null is
+		 * an empty field.
+		 */
+		private static void field(ExportWriter out, String value) {
+			if (value == null) {
+				return;
+			}
+
+			boolean quote = false;
+			for (int i = 0; i < value.length() && !quote; i++) {
+				char c = value.charAt(i);
+				quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+			}
+
+			if (!quote) {
+				out.put(value);
+				return;
+			}
+
+			out.put('"');
+			for (int i = 0; i < value.length(); i++) {
+				char c = value.charAt(i);
+				if (c == '"') {
+					out.put('"');
+				}
+				out.put(c);
+			}
+			out.put('"');
+		}
+
+	}
+
+	private static class NdJson extends ExportFormat {
+
+		void writeDevice(ExportWriter out, String ownerID, String macAddress, String classOfService,
+				String dhcpCriteria) {
+			out.put("{\"ownerID\":");
+			string(out, ownerID);
+			out.put(",\"macAddress\":");
+			string(out, macAddress);
+			out.put(",\"classOfService\":");
+			string(out, classOfService);
+			out.put(",\"dhcpCriteria\":");
+			string(out, dhcpCriteria);
+			out.put("}\n");
+		}
+
+		/**
+		 * Writes a JSON string, or null. Anything outside printable ASCII is
+		 * written as a \\u escape, so the output is valid UTF-8 whatever the
+		 * values hold.
+		 */
+		private static void string(ExportWriter out, String value) {
+			if (value == null) {
+				out.put("null");
+				return;
+			}
+
+			out.put('"');
+			for (int i = 0; i < value.length(); i++) {
+				char c = value.charAt(i);
+
+				if (c == '"' || c == '\\') {
+					out.put('\\');
+					out.put(c);
+				} else if (c < 0x20 || c > 0x7E) {
+					out.put("\\u");
+					out.put(HEX[(c >> 12) & 0xF]);
+					out.put(HEX[(c >> 8) & 0xF]);
+					out.put(HEX[(c >> 4) & 0xF]);
+					out.put(HEX[c & 0xF]);
+				} else {
+					out.put(c);
+				}
+			}
+			out.put('"');
+		}
+
+		private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	}
+
+}
@@ -0,0 +1,189 @@
+// ExportWriter - part of bprimport, buffers exported devices and writes
+// them out in large blocks
+// Copyright (C) 2012  Matt Reath
+
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+package com.cci.bprimport;
+
+import java.io.*;
+
+/**
+ * ExportWriter is the single output stage every export worker writes its
+ * devices to. The {@link ExportFormat} encodes each device straight into a
+ * 1 MB byte buffer, one ISO-8859-1 byte per character, and the buffer goes
+ * to the file in one write when it is full. A device costs a few hundred
+ * byte stores under a short lock, far less than the getDetails round trip
+ * that produced it.
+ * <p>
+ * Like a PrintWriter, writing a device never throws. The first I/O error is
+ * kept, later devices are dropped, and {@link #close} throws the error.
+ * <p>
+ * @author Matt Reath
+ * @version 0.1
+ *
+ */
+public class ExportWriter {
+
+	/**
+	 * @param out		Where the export goes, closed by {@link #close}
+	 * @param format	How each device is written
+	 */
+	public ExportWriter(OutputStream out, ExportFormat format) {
+		this(out, format, true);
+	}
+
+	/**
+	 * @param out		Where the export goes, closed by {@link #close}
+	 * @param format	How each device is written
+	 * @param header	False for a part of an export that is appended to
+	 * 					the whole later, see {@link #append}
+	 */
+	public ExportWriter(OutputStream out, ExportFormat format, boolean header) {
+		this.out = out;
+		this.format = format;
+		if (header) {
+			format.writeHeader(this);
+		}
+	}
+
+	/**
+	 * Opens the export output.
+	 *
+	 * @param path		Output file, or - for standard output. A name ending
+	 * 					in .gz is compressed.
+	 * @param format	How each device is written
+	 */
+	public static ExportWriter open(String path, ExportFormat format) throws IOException {
+		if (path.equals("-")) {
+			// The descriptor itself, not System.out, which the tools point
+			// at standard error for their messages while the export runs
+			return new ExportWriter(new FilterOutputStream(new FileOutputStream(FileDescriptor.out)) {
+				public void write(byte[] b, int off, int len) throws IOException {
+					out.write(b, off, len);
+				}
+
+				public void close() throws IOException {
+					flush();
+				}
+			}, format);
+		}
+		return new ExportWriter(CompressedFiles.openOutput(new File(path)), format);
+	}
+
+	/**
+	 * Writes one device. A null value is written the way the format writes
+	 * a missing value.
+	 */
+	public synchronized void writeDevice(String ownerID, String macAddress, String classOfService,
+			String dhcpCriteria) {
+		if (error != null) {
+			return;
+		}
+		format.writeDevice(this, ownerID, macAddress, classOfService, dhcpCriteria);
+		count++;
+	}
+
+	/**
+	 * Copies a part written by a headerless writer of the same format,
+	 * counting one device per line.
+	 */
+	public synchronized void append(File part) throws IOException {
+		InputStream in = new FileInputStream(part);
+		try {
+			int n;
+			drain();
+			while (error == null && (n = in.read(buffer)) != -1) {
+				for (int i = 0; i < n; i++) {
+					if (buffer[i] == '\n') {
+						count++;
+					}
+				}
+				length = n;
+				drain();
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * @return The number of devices written
+	 */
+	public synchronized long getCount() {
+		return count;
+	}
+
+	/**
+	 * Writes what is left in the buffer and closes the output.
+	 *
+	 * @throws IOException	The first error writing the export hit
+	 */
+	public synchronized void close() throws IOException {
+		drain();
+		try {
+			out.close();
+		} catch (IOException e) {
+			if (error == null) {
+				error = e;
+			}
+		}
+		if (error != null) {
+			throw error;
+		}
+	}
+
+	/**
+	 * Appends one character for a format. The caller holds the lock.
+	 */
+	void put(char c) {
+		if (length == buffer.length) {
+			drain();
+		}
+		buffer[length++] = c > 0xFF ? (byte)'?' : (byte)c;
+	}
+
+	/**
+	 * Appends a string for a format, the literal null for null.
+	 */
+	void put(String s) {
+		if (s == null) {
+			s = "null";
+		}
+		for (int i = 0; i < s.length(); i++) {
+			put(s.charAt(i));
+		}
+	}
+
+	private void drain() {
+		if (length > 0 && error == null) {
+			try {
+				out.write(buffer, 0, length);
+			} catch (IOException e) {
+				error = e;
+			}
+		}
+		length = 0;
+	}
+
+
+	private static final int BUFFER_SIZE = 1 << 20;
+
+	private OutputStream out;
+	private ExportFormat format;
+	private byte[] buffer = new byte[BUFFER_SIZE];
+	private int length;
+	private long count;
+	private IOException error;
+
+}
@@ -0,0 +1,119 @@
+// LatencyHistogram - part of bprimport, counts latencies in log scaled
+// buckets
+// Copyright (C) 2012  Matt Reath
+
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+package com.cci.bprimport;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * LatencyHistogram counts latencies in microseconds, HdrHistogram style:
+ * every power of two is split into 8 buckets, so a percentile read back is
+ * within 12.5% of the true value from 1 microsecond to days. Recording is
+ * a few shifts and one atomic increment with no lock, so any number of
+ * threads can record at once.
+ * <p>
+ * @author Matt Reath
+ * @version 0.1
+ *
+ */
+public class LatencyHistogram {
+
+	/**
+	 * @param micros	The latency, in microseconds
+	 */
+	public void record(long micros) {
+		counts.incrementAndGet(bucket(Math.max(0, micros)));
+	}
+
+	/**
+	 * @return The number of latencies recorded
+	 */
+	public long getCount() {
+		long total = 0;
+		for (int i = 0; i < counts.length(); i++) {
+			total += counts.get(i);
+		}
+		return total;
+	}
+
+	/**
+	 * @param percentile	From 0 to 100
+	 * @return The latency in microseconds that the given share of recorded
+	 * 			latencies is at or under, 0 if nothing was recorded
+	 */
+	public long getPercentile(double percentile) {
+		long total = getCount();
+		if (total == 0) {
+			return 0;
+		}
+
+		long rank = Math.max(1, (long)Math.ceil(total * percentile / 100));
+		long seen = 0;
+
+		for (int i = 0; i < counts.length(); i++) {
+			seen += counts.get(i);
+			if (seen >= rank) {
+				return upperBound(i);
+			}
+		}
+		return upperBound(counts.length() - 1);
+	}
+
+	/**
+	 * @return The upper bound of the highest bucket holding a latency
+	 */
+	public long getMax() {
+		for (int i = counts.length() - 1; i >= 0; i--) {
+			if (counts.get(i) > 0) {
+				return upperBound(i);
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Values under 16 get a bucket each. Above that, the position of the
+	 * highest bit picks the power of two and the next three bits the bucket
+	 * within it.
+	 */
+	private static int bucket(long value) {
+		if (value < LINEAR) {
+			return (int)value;
+		}
+
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int bucket = LINEAR + (exponent - 4) * SUB_BUCKETS + (int)((value >>> (exponent - 3)) & (SUB_BUCKETS - 1));
+		return Math.min(bucket, BUCKETS - 1);
+	}
+
+	private static long upperBound(int bucket) {
+		if (bucket < LINEAR) {
+			return bucket;
+		}
+
+		int exponent = (bucket - LINEAR) / SUB_BUCKETS + 4;
+		long sub = (bucket - LINEAR) % SUB_BUCKETS;
+		return ((SUB_BUCKETS + sub + 1) << (exponent - 3)) - 1;
+	}
+
+
+	private static final int LINEAR = 16;
+	private static final int SUB_BUCKETS = 8;
+	private static final int BUCKETS = LINEAR + 40 * SUB_BUCKETS;
+
+	private AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+}
@@ -0,0 +1,265 @@
+// LedgerQuery - part of bprimport, lists the outcome of an import from its
+// result ledger and builds a file of the lines to try again
+// Copyright (C) 2012  Matt Reath
+
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+package com.cci.bprimport;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * LedgerQuery reads a {@link ResultLedger} and prints the entries that
+ * match, one per line:
+ * <pre>
+ * line|macAddress|batchID|command|status|error
+ * </pre>
+ * With --retry it instead copies the input lines of the matching entries to
+ * a retry file that BprImport takes as it is.
+ * <p>
+ * A line that was posted more than once, as happens to the lines after the
+ * last checkpoint when an import is resumed, counts with its last outcome
+ * only.
+ * <p>
+ * Usage: java com.cci.bprimport.LedgerQuery <ledger> [--status failures|failed|batch-failed|ok|all] [--error text]
+ *        [--batch id] [--retry <input file> [--output file]]
+ * <p>
+ * @author Matt Reath
+ * @version 0.1
+ *
+ */
+public class LedgerQuery {
+
+	/**
+	 * Entry point into the LedgerQuery application.
+	 *
+	 * @param args	Contains the CLI arguments
+	 */
+	public static void main(String[] args) {
+
+		CommandLine cli = new CommandLine(args);
+		LedgerQuery query = null;
+
+		try {
+			query = new LedgerQuery(new File(cli.arg(0)), cli.getOption("status", "failures"));
+			query.setError(cli.getOption("error", null));
+			query.setBatchId(cli.getOption("batch", null));
+		} catch (IllegalArgumentException iae) {
+			System.out.println(iae.getMessage());
+			System.exit(1);
+		}
+
+		try {
+			if (cli.hasOption("retry")) {
+				File input = new File(cli.getOption("retry", null));
+				File output = new File(cli.getOption("output", retryFileFor(input).getPath()));
+				long written = query.writeRetryFile(input, output);
+
+				System.out.println(written + " line(s) written to " + output);
+				if (query.getUnjoinedCount() > 0) {
+					System.out.println(query.getUnjoinedCount() + " matching device(s) have no input line (sync deletes)"
+						+ " and are not in the retry file");
+				}
+			} else {
+				PrintStream out = new PrintStream(new BufferedOutputStream(System.out, 64 * 1024), false);
+				for (ResultLedger.Entry entry : query.select()) {
+					out.println(entry);
+				}
+				out.flush();
+			}
+		} catch (IOException ioe) {
+			System.out.println(ioe.getMessage());
+			System.exit(1);
+		}
+
+	}
+
+	/**
+	 * @param ledger	The ledger to read
+	 * @param status	failures (failed or batch-failed), failed, batch-failed,
+	 * 					ok or all
+	 */
+	public LedgerQuery(File ledger, String status) {
+		this.ledger = ledger;
+
+		if (status.equals("failures")) {
+			statuses = new boolean[] { false, true, true };
+		} else if (status.equals("all")) {
+			statuses = new boolean[] { true, true, true };
+		} else if (status.equals("ok")) {
+			statuses = new boolean[] { true, false, false };
+		} else if (status.equals("failed")) {
+			statuses = new boolean[] { false, true, false };
+		} else if (status.equals("batch-failed")) {
+			statuses = new boolean[] { false, false, true };
+		} else {
+			throw new IllegalArgumentException("Unknown status " + status
+				+ ", expected failures, failed, batch-failed, ok or all");
+		}
+	}
+
+	/**
+	 * Only selects entries whose error message contains the given text.
+	 */
+	public void setError(String error) {
+		this.error = error;
+	}
+
+	/**
+	 * Only selects entries posted in the given RDU batch.
+	 */
+	public void setBatchId(String batchId) {
+		this.batchId = batchId;
+	}
+
+	/**
+	 * @return The retry file that goes with an input file, input.txt.retry
+	 * 			or input.txt.retry.gz for a compressed one
+	 */
+	public static File retryFileFor(File input) {
+		String path = input.getPath();
+
+		if (CompressedFiles.isCompressed(input)) {
+			return new File(path.substring(0, path.length() - 3) + ".retry.gz");
+		}
+		return new File(path + ".retry");
+	}
+
+	/**
+	 * Reads the ledger twice: once to find the last entry of every line,
+	 * then to pick out the matching ones.
+	 *
+	 * @return The matching entries in ledger order
+	 */
+	public List<ResultLedger.Entry> select() throws IOException {
+		LongHashMap last = new LongHashMap();
+		List<ResultLedger.Entry> selected = new ArrayList<ResultLedger.Entry>();
+
+		ResultLedger.Reader reader = new ResultLedger.Reader(ledger);
+		try {
+			ResultLedger.Entry entry;
+			long ordinal = 0;
+			while ((entry = reader.next()) != null) {
+				if (entry.getLineNumber() > 0) {
+					last.put(entry.getLineNumber(), ordinal);
+				}
+				ordinal++;
+			}
+		} finally {
+			reader.close();
+		}
+
+		reader = new ResultLedger.Reader(ledger);
+		try {
+			ResultLedger.Entry entry;
+			long ordinal = 0;
+			while ((entry = reader.next()) != null) {
+				boolean latest = entry.getLineNumber() <= 0 || last.get(entry.getLineNumber(), -1) == ordinal;
+				if (latest && matches(entry)) {
+					selected.add(entry);
+				}
+				ordinal++;
+			}
+		} finally {
+			reader.close();
+		}
+
+		return selected;
+	}
+
+	/**
+	 * Copies the input lines of the matching entries, in input order, to the
+	 * output file. Lines are counted the way the importer counts them, so
+	 * the line numbers in the ledger point at the same lines.
+	 *
+	 * @return The number of lines written
+	 */
+	public long writeRetryFile(File input, File output) throws IOException {
+		List<ResultLedger.Entry> selected = select();
+		long[] lines = new long[selected.size()];
+		int count = 0;
+
+		unjoined = 0;
+		for (ResultLedger.Entry entry : selected) {
+			if (entry.getLineNumber() > 0) {
+				lines[count++] = entry.getLineNumber();
+			} else {
+				unjoined++;
+			}
+		}
+		Arrays.sort(lines, 0, count);
+
+		InputStream in = new BufferedInputStream(CompressedFiles.openInput(input), 64 * 1024);
+		OutputStream out = new BufferedOutputStream(CompressedFiles.openOutput(output), 64 * 1024);
+		long written = 0;
+
+		try {
+			long lineNumber = 1;
+			int next = 0;
+			boolean copying = count > 0 && lines[0] == 1;
+			int b = -1;
+
+			while (next < count && (b = in.read()) >= 0) {
+				if (copying) {
+					out.write(b);
+				}
+				if (b == '\n') {
+					if (copying) {
+						written++;
+						next++;
+						// The same line can be in the ledger more than once
+						while (next < count && lines[next] == lineNumber) {
+							next++;
+						}
+					}
+					lineNumber++;
+					copying = next < count && lines[next] == lineNumber;
+				}
+			}
+
+			if (copying && b != '\n') {
+				// The last line of the input had no line break
+				out.write('\n');
+				written++;
+			}
+		} finally {
+			in.close();
+			out.close();
+		}
+
+		return written;
+	}
+
+	/**
+	 * @return Matching entries that --retry could not put in the retry file
+	 * 			because they have no input line
+	 */
+	public long getUnjoinedCount() {
+		return unjoined;
+	}
+
+	private boolean matches(ResultLedger.Entry entry) {
+		return entry.getStatus() >= 0 && entry.getStatus() < statuses.length && statuses[entry.getStatus()]
+			&& (error == null || entry.getError() != null && entry.getError().contains(error))
+			&& (batchId == null || batchId.equals(entry.getBatchId()));
+	}
+
+
+	private File ledger;
+	private boolean[] statuses;
+	private String error;
+	private String batchId;
+	private long unjoined;
+
+}
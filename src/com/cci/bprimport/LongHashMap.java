@@ -0,0 +1,185 @@
+// LongHashMap - part of bprimport, an open addressing map from long to long
+// Copyright (C) 2012  Matt Reath
+
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+package com.cci.bprimport;
+
+/**
+ * LongHashMap maps long keys, normally MACs from {@link MacAddressCodec}, to
+ * long values in two flat arrays with linear probing. An entry costs 16
+ * bytes of table plus slack, with no object per entry, against well over a
+ * hundred bytes for a HashMap&lt;String, ...&gt; entry.
+ * <p>
+ * The key 0 marks an empty slot and cannot be stored, which is why the codec
+ * never encodes a MAC to 0. Removal shifts later entries of the probe run
+ * back, so the table never fills up with tombstones. Not thread safe.
+ * <p>
+ * @author Matt Reath
+ * @version 0.1
+ *
+ */
+public class LongHashMap {
+
+	public LongHashMap() {
+		this(1024);
+	}
+
+	/**
+	 * @param expectedSize	Number of entries to size the table for
+	 */
+	public LongHashMap(int expectedSize) {
+		int capacity = 16;
+		while (capacity * LOAD_FACTOR < expectedSize) {
+			capacity <<= 1;
+		}
+		allocate(capacity);
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean containsKey(long key) {
+		return keys[slot(key)] != 0;
+	}
+
+	/**
+	 * @return The value for key, or defaultValue if there is none
+	 */
+	public long get(long key, long defaultValue) {
+		int slot = slot(key);
+		return keys[slot] != 0 ? values[slot] : defaultValue;
+	}
+
+	/**
+	 * Stores a value, replacing any value the key already had.
+	 *
+	 * @return True if the key was not in the map before
+	 */
+	public boolean put(long key, long value) {
+		if (key == 0) {
+			throw new IllegalArgumentException("0 cannot be used as a key");
+		}
+
+		int slot = slot(key);
+		boolean added = keys[slot] == 0;
+
+		keys[slot] = key;
+		values[slot] = value;
+
+		if (added && ++size > threshold) {
+			allocate(keys.length << 1);
+		}
+		return added;
+	}
+
+	/**
+	 * @return True if the key was in the map
+	 */
+	public boolean remove(long key) {
+		int slot = slot(key);
+
+		if (keys[slot] == 0) {
+			return false;
+		}
+
+		// Move later entries of the probe run into the hole when their home
+		// slot does not lie between the hole and where they sit now
+		int hole = slot;
+		int next = (hole + 1) & mask;
+		while (keys[next] != 0) {
+			int home = hash(keys[next]) & mask;
+			if (((next - home) & mask) >= ((next - hole) & mask)) {
+				keys[hole] = keys[next];
+				values[hole] = values[next];
+				hole = next;
+			}
+			next = (next + 1) & mask;
+		}
+
+		keys[hole] = 0;
+		values[hole] = 0;
+		size--;
+		return true;
+	}
+
+	/**
+	 * @return A copy of every key, in no particular order
+	 */
+	public long[] keys() {
+		long[] copy = new long[size];
+		int n = 0;
+
+		for (int i = 0; i < keys.length; i++) {
+			if (keys[i] != 0) {
+				copy[n++] = keys[i];
+			}
+		}
+		return copy;
+	}
+
+	/**
+	 * @return The slot holding key, or the empty slot where it would go
+	 */
+	private int slot(long key) {
+		int slot = hash(key) & mask;
+
+		while (keys[slot] != 0 && keys[slot] != key) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	/**
+	 * Mixes all 64 bits, MACs from one vendor share their top 40 bits.
+	 */
+	private static int hash(long key) {
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		key *= 0xc4ceb9fe1a85ec53L;
+		key ^= key >>> 33;
+		return (int)key;
+	}
+
+	private void allocate(int capacity) {
+		long[] oldKeys = keys;
+		long[] oldValues = values;
+
+		keys = new long[capacity];
+		values = new long[capacity];
+		mask = capacity - 1;
+		threshold = (int)(capacity * LOAD_FACTOR);
+
+		if (oldKeys != null) {
+			for (int i = 0; i < oldKeys.length; i++) {
+				if (oldKeys[i] != 0) {
+					int slot = slot(oldKeys[i]);
+					keys[slot] = oldKeys[i];
+					values[slot] = oldValues[i];
+				}
+			}
+		}
+	}
+
+
+	private static final double LOAD_FACTOR = 0.75;
+
+	private long[] keys;
+	private long[] values;
+	private int mask;
+	private int threshold;
+	private int size;
+
+}
@@ -0,0 +1,116 @@
+// MacAddressCodec - part of bprimport, packs BAC MAC address strings
+// into a long
+// Copyright (C) 2012  Matt Reath
+
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+package com.cci.bprimport;
+
+/**
+ * MacAddressCodec converts between the BAC form of a MAC address,
+ * "1,6,00:0C:E5:32:D0:6A" (hardware type, length, address), and a long:
+ * <pre>
+ * bits 63-56  hardware type
+ * bits 55-48  hardware length, always 6
+ * bits 47-0   the address
+ * </pre>
+ * A long is 8 bytes where the String form costs around a hundred, which is
+ * what lets a whole plant's worth of MACs be indexed in memory. A valid
+ * address never encodes to 0 (the hardware type is at least 1), so 0 is
+ * used for "not a MAC address".
+ * <p>
+ * @author Matt Reath
+ * @version 0.1
+ *
+ */
+public class MacAddressCodec {
+
+	public static final long INVALID = 0;
+
+	private MacAddressCodec() {
+
+	}
+
+	/**
+	 * Parses a MAC address in BAC form. Hex digits may be either case.
+	 *
+	 * @return The packed address, or INVALID if the string is not one
+	 */
+	public static long encode(String macAddress) {
+		if (macAddress == null) {
+			return INVALID;
+		}
+
+		int length = macAddress.length();
+		int pos = 0;
+		long htype = 0;
+
+		// Hardware type, 1 to 3 decimal digits
+		while (pos < length && macAddress.charAt(pos) != ',') {
+			int digit = macAddress.charAt(pos) - '0';
+			if (digit < 0 || digit > 9 || pos >= 3) {
+				return INVALID;
+			}
+			htype = htype * 10 + digit;
+			pos++;
+		}
+
+		if (htype < 1 || htype > 255 || !macAddress.startsWith(",6,", pos)) {
+			return INVALID;
+		}
+		pos += 3;
+
+		// Six octets, two hex digits each, separated by colons
+		if (length - pos != 17) {
+			return INVALID;
+		}
+
+		long address = 0;
+		for (int octet = 0; octet < 6; octet++) {
+			if (octet > 0 && macAddress.charAt(pos++) != ':') {
+				return INVALID;
+			}
+
+			int high = Character.digit(macAddress.charAt(pos++), 16);
+			int low = Character.digit(macAddress.charAt(pos++), 16);
+			if (high < 0 || low < 0) {
+				return INVALID;
+			}
+			address = (address << 8) | (high << 4) | low;
+		}
+
+		return (htype << 56) | (6L << 48) | address;
+	}
+
+	/**
+	 * Turns a packed address back into BAC form with upper case hex digits.
+	 */
+	public static String decode(long mac) {
+		StringBuilder buf = new StringBuilder(21);
+
+		buf.append((int)(mac >>> 56)).append(',').append((int)((mac >>> 48) & 0xFF)).append(',');
+		for (int shift = 40; shift >= 0; shift -= 8) {
+			int octet = (int)((mac >>> shift) & 0xFF);
+			buf.append(HEX[octet >> 4]).append(HEX[octet & 0xF]);
+			if (shift > 0) {
+				buf.append(':');
+			}
+		}
+
+		return buf.toString();
+	}
+
+
+	private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+}
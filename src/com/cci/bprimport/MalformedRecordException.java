@@ -0,0 +1,72 @@
+// MalformedRecordException - part of bprimport, thrown for a line of an
+// import file that cannot be parsed
+// Copyright (C) 2012  Matt Reath
+
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+package com.cci.bprimport;
+
+import java.io.IOException;
+
+/**
+ * Thrown by {@link DeviceRecordReader} for a line that does not have the
+ * ownerID|macAddress|classOfService|dhcpCriteria layout. The reader has
+ * already moved past the line, so the caller can report it and carry on.
+ * <p>
+ * @author Matt Reath
+ * @version 0.1
+ *
+ */
+public class MalformedRecordException extends IOException {
+
+	public MalformedRecordException(long lineNumber, String message) {
+		this(lineNumber, message, null);
+	}
+
+	/**
+	 * @param macAddress	The second field of the line, if it has one
+	 */
+	public MalformedRecordException(long lineNumber, String message, String macAddress) {
+		super("Line " + lineNumber + ": " + message);
+		this.lineNumber = lineNumber;
+		this.reason = message;
+		this.macAddress = macAddress;
+	}
+
+	public long getLineNumber() {
+		return lineNumber;
+	}
+
+	/**
+	 * @return What was wrong with the line, without the line number
+	 */
+	public String getReason() {
+		return reason;
+	}
+
+	/**
+	 * @return What is in the MAC address field of the line, which may not be
+	 * 			a MAC address at all, or null if the line has no such field
+	 */
+	public String getMacAddress() {
+		return macAddress;
+	}
+
+
+	private static final long serialVersionUID = 1L;
+
+	private long lineNumber;
+	private String reason;
+	private String macAddress;
+
+}
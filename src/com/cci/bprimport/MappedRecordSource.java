@@ -0,0 +1,262 @@
+// MappedRecordSource - part of bprimport, reads very large import files
+// through memory mapped, line aligned chunks parsed in parallel
+// Copyright (C) 2012  Matt Reath
+
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+package com.cci.bprimport;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * MappedRecordSource cuts the file into chunks of roughly CHUNK_SIZE bytes,
+ * each ending on a line break, and maps each chunk as its own region with
+ * FileChannel.map. A single mapping is limited to 2 GB, mapping chunk by
+ * chunk is what lets the source read files of any size.
+ * <p>
+ * Chunks are parsed by a pool of threads independently of each other and
+ * handed out in file order. Line numbers are only known once every earlier
+ * chunk has been counted, so they are filled in as chunks are handed out.
+ * Every record carries the byte offset just past its line, which is where
+ * a restarted run can begin.
+ * <p>
+ * A parsed chunk takes several times its size on the heap, so no more than
+ * one chunk per parse thread is queued ahead of the one being handed out,
+ * and records are let go of as soon as they are handed out. Memory stays at
+ * about parseThreads + 1 chunks however large the file is.
+ * <p>
+ * @author Matt Reath
+ * @version 0.1
+ *
+ */
+public class MappedRecordSource implements RecordSource {
+
+	public MappedRecordSource(File file, int parseThreads) throws IOException {
+		this(file, parseThreads, 0, 0);
+	}
+
+	/**
+	 * @param file			The import file
+	 * @param parseThreads	Number of chunks parsed at the same time
+	 * @param lineNumber	Number of lines before startOffset
+	 * @param startOffset	Byte offset of a line start to begin reading at
+	 */
+	public MappedRecordSource(File file, int parseThreads, long lineNumber, long startOffset) throws IOException {
+		this(file, parseThreads, lineNumber, startOffset, CHUNK_SIZE);
+	}
+
+	/**
+	 * @param chunkSize	Bytes per chunk before aligning to a line break
+	 */
+	MappedRecordSource(File file, int parseThreads, long lineNumber, long startOffset, long chunkSize)
+			throws IOException {
+		this.channel = new RandomAccessFile(file, "r").getChannel();
+		this.size = channel.size();
+		this.nextChunk = startOffset;
+		this.lineNumber = lineNumber;
+		this.chunkSize = chunkSize;
+		this.readAhead = Math.max(1, parseThreads);
+		this.parsers = Executors.newFixedThreadPool(parseThreads, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "chunk-parser");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	public DeviceRecord next() throws IOException {
+		while (current == null || index == current.entries.size()) {
+			// Let go of the chunk before more are parsed
+			current = null;
+			fillReadAhead();
+
+			if (chunks.isEmpty()) {
+				return null;
+			}
+
+			current = take(chunks.removeFirst());
+			index = 0;
+		}
+
+		Object entry = current.entries.set(index++, null);
+
+		if (entry instanceof MalformedRecordException) {
+			MalformedRecordException e = (MalformedRecordException)entry;
+			throw new MalformedRecordException(current.firstLine + e.getLineNumber(), e.getReason(),
+				e.getMacAddress());
+		}
+
+		DeviceRecord record = (DeviceRecord)entry;
+		record.setPosition(current.firstLine + record.getLineNumber(), record.getEndOffset());
+		return record;
+	}
+
+	public void close() throws IOException {
+		parsers.shutdownNow();
+		channel.close();
+	}
+
+	/**
+	 * Keeps readAhead chunks queued with the parsers.
+	 */
+	private void fillReadAhead() throws IOException {
+		while (chunks.size() < readAhead && nextChunk < size) {
+			long start = nextChunk;
+			long end = alignedEnd(start);
+			nextChunk = end;
+			chunks.addLast(parsers.submit(new ChunkParser(start, end)));
+		}
+	}
+
+	/**
+	 * Finds the end of the chunk starting at start: chunkSize bytes on, then
+	 * forward to just past the next line break.
+	 */
+	private long alignedEnd(long start) throws IOException {
+		long end = start + chunkSize;
+		ByteBuffer probe = ByteBuffer.allocate(4096);
+
+		while (end < size) {
+			probe.clear();
+			int read = channel.read(probe, end);
+
+			if (read <= 0) {
+				break;
+			}
+
+			for (int i = 0; i < read; i++) {
+				if (probe.get(i) == '\n') {
+					return end + i + 1;
+				}
+			}
+			end += read;
+		}
+
+		return size;
+	}
+
+	/**
+	 * @return Chunks queued with the parsers or parsed and waiting
+	 */
+	int getQueuedChunks() {
+		return chunks.size();
+	}
+
+	private Chunk take(Future<Chunk> future) throws IOException {
+		Chunk chunk;
+
+		try {
+			chunk = future.get();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted while parsing");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException)e.getCause();
+			}
+			throw new IOException(e.getCause().toString());
+		}
+
+		chunk.firstLine = lineNumber;
+		lineNumber += chunk.lines;
+		return chunk;
+	}
+
+	/**
+	 * Parsed contents of one chunk. Entries are records or the
+	 * MalformedRecordException for a bad line, in file order, with line
+	 * numbers counted from the start of the chunk.
+	 */
+	private static class Chunk {
+		List<Object> entries = new ArrayList<Object>();
+		long lines;
+		long firstLine;
+	}
+
+	private class ChunkParser implements Callable<Chunk> {
+
+		ChunkParser(long start, long end) {
+			this.start = start;
+			this.end = end;
+		}
+
+		public Chunk call() throws IOException {
+			MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+			Chunk chunk = new Chunk();
+			byte[] line = new byte[256];
+			int limit = map.limit();
+			int lineStart = 0;
+
+			for (int i = 0; i <= limit; i++) {
+				if (i < limit && map.get(i) != '\n') {
+					continue;
+				}
+
+				if (i == limit && lineStart == limit) {
+					break;
+				}
+
+				chunk.lines++;
+				int length = i - lineStart;
+				if (length > 0 && map.get(i - 1) == '\r') {
+					length--;
+				}
+
+				if (length > 0) {
+					if (length > line.length) {
+						line = new byte[Math.max(length, line.length * 2)];
+					}
+					map.position(lineStart);
+					map.get(line, 0, length);
+
+					try {
+						DeviceRecord record = DeviceRecordReader.parseLine(line, 0, length, chunk.lines);
+						record.setPosition(chunk.lines, start + Math.min(i + 1, limit));
+						chunk.entries.add(record);
+					} catch (MalformedRecordException e) {
+						chunk.entries.add(e);
+					}
+				}
+
+				lineStart = i + 1;
+			}
+
+			return chunk;
+		}
+
+
+		private long start;
+		private long end;
+
+	}
+
+
+	private static final long CHUNK_SIZE = 16L * 1024 * 1024;
+
+	private FileChannel channel;
+	private long size;
+	private long nextChunk;
+	private long chunkSize;
+	private long lineNumber;
+	private int readAhead;
+	private ExecutorService parsers;
+	private LinkedList<Future<Chunk>> chunks = new LinkedList<Future<Chunk>>();
+	private Chunk current;
+	private int index;
+
+}
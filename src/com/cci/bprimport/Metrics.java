@@ -0,0 +1,351 @@
+// Metrics - part of bprimport, counts what a run is doing and reports it
+// over JMX and as a periodic status line
+// Copyright (C) 2012  Matt Reath
+
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+package com.cci.bprimport;
+
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import javax.management.ObjectName;
+
+/**
+ * Metrics is the one set of counters a run of any of the tools updates from
+ * its hot paths: records read by the parse stage, records done, failed and
+ * retried, batch.post() latency and the number of posts in flight, export
+ * search latency, and failures counted by RDU error message. Every update is
+ * an atomic increment or a {@link LatencyHistogram} record, well under a
+ * microsecond, and nothing on the hot path locks or prints.
+ * <p>
+ * {@link #start} registers the counters as an MBean and prints a status line
+ * every few seconds with the rate over the last interval and, when the
+ * input size is known, an ETA. The status line goes to standard error, so
+ * it never ends up in an export written to standard output.
+ * <p>
+ * RDU error messages usually name the device or owner they are about, so
+ * before they are counted every word holding a digit becomes # and every
+ * quoted value '*'. "Device 1,6,00:0C:E5:32:D0:6A already exists" and the
+ * same message for the next MAC are then one count, not two of the
+ * {@value #MAX_ERROR_MESSAGES} messages kept.
+ * <p>
+ * @author Matt Reath
+ * @version 0.1
+ *
+ */
+public class Metrics implements MetricsMBean {
+
+	private Metrics() {
+
+	}
+
+	/**
+	 * @return The metrics of this run
+	 */
+	public static Metrics get() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Registers the MBean and starts the status line.
+	 *
+	 * @param tool				Name shown in the status line and the MBean name
+	 * @param inputSize			Bytes of input, 0 if unknown
+	 * @param statusInterval	Seconds between status lines, 0 for none
+	 */
+	public synchronized void start(String tool, long inputSize, int statusInterval) {
+		this.tool = tool;
+		this.inputSize = inputSize;
+		this.started = System.nanoTime();
+
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+				new ObjectName("com.cci.bprimport:type=Metrics,name=" + tool));
+		} catch (Exception e) {
+			System.err.println("Could not register metrics with JMX: " + e.getMessage());
+		}
+
+		if (statusInterval > 0 && status == null) {
+			status = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "status");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			status.scheduleAtFixedRate(new Runnable() {
+				public void run() {
+					System.err.println(tick());
+				}
+			}, statusInterval, statusInterval, TimeUnit.SECONDS);
+		}
+	}
+
+	/**
+	 * Stops the status line and prints a last one for the whole run.
+	 */
+	public synchronized void stop() {
+		if (status != null) {
+			status.shutdownNow();
+			status = null;
+		}
+		System.err.println(getStatusLine());
+	}
+
+	/**
+	 * A record came out of the parse stage.
+	 *
+	 * @param offset	Byte offset of the input it ends at
+	 */
+	public void recordRead(long offset) {
+		read.incrementAndGet();
+		inputOffset = offset;
+	}
+
+	/**
+	 * @return The start time to pass to {@link #postFinished}
+	 */
+	public long postStarted() {
+		inFlight.incrementAndGet();
+		return System.nanoTime();
+	}
+
+	public void postFinished(long start) {
+		post.record((System.nanoTime() - start) / 1000);
+		inFlight.decrementAndGet();
+		posted.incrementAndGet();
+	}
+
+	/**
+	 * @param micros	How long one export search page took
+	 */
+	public void searchFinished(long micros) {
+		search.record(micros);
+	}
+
+	public void recordsDone(int count) {
+		done.addAndGet(count);
+	}
+
+	/**
+	 * @param count		Records that failed
+	 * @param message	The RDU's reason
+	 */
+	public void recordsFailed(int count, String message) {
+		failed.addAndGet(count);
+
+		message = message == null ? "(no message)" : errorKey(message);
+		AtomicLong counter = errors.get(message);
+		if (counter == null) {
+			if (errors.size() >= MAX_ERROR_MESSAGES) {
+				message = "(other)";
+			}
+			errors.putIfAbsent(message, new AtomicLong());
+			counter = errors.get(message);
+		}
+		counter.addAndGet(count);
+	}
+
+	/**
+	 * @return The message with the values that differ from device to device
+	 * 			taken out, see the class comment
+	 */
+	static String errorKey(String message) {
+		StringBuilder key = new StringBuilder(Math.min(message.length(), MAX_ERROR_LENGTH));
+		int length = message.length();
+		int i = 0;
+
+		while (i < length && key.length() < MAX_ERROR_LENGTH) {
+			char c = message.charAt(i);
+
+			if (Character.isWhitespace(c)) {
+				key.append(c);
+				i++;
+				continue;
+			}
+
+			if (c == '\'' || c == '"') {
+				int close = message.indexOf(c, i + 1);
+				if (close > i) {
+					key.append(c).append('*').append(c);
+					i = close + 1;
+					continue;
+				}
+			}
+
+			int end = i;
+			boolean digit = false;
+			while (end < length && !Character.isWhitespace(message.charAt(end))) {
+				digit |= Character.isDigit(message.charAt(end));
+				end++;
+			}
+
+			if (digit) {
+				key.append('#');
+			} else {
+				key.append(message, i, end);
+			}
+			i = end;
+		}
+		return key.toString();
+	}
+
+	/**
+	 * @param count	Records handed back to be tried again
+	 */
+	public void recordsRetried(int count) {
+		retried.addAndGet(count);
+	}
+
+	public long getRecordsRead() {
+		return read.get();
+	}
+
+	public long getRecordsDone() {
+		return done.get();
+	}
+
+	public long getRecordsFailed() {
+		return failed.get();
+	}
+
+	public long getRecordsRetried() {
+		return retried.get();
+	}
+
+	public double getRecordsPerSecond() {
+		double seconds = (System.nanoTime() - started) / 1e9;
+		return seconds > 0 ? (done.get() + failed.get()) / seconds : 0;
+	}
+
+	public int getBatchesInFlight() {
+		return inFlight.get();
+	}
+
+	public long getBatchesPosted() {
+		return posted.get();
+	}
+
+	public double getPostLatencyP50() {
+		return post.getPercentile(50) / 1000.0;
+	}
+
+	public double getPostLatencyP99() {
+		return post.getPercentile(99) / 1000.0;
+	}
+
+	public double getPostLatencyMax() {
+		return post.getMax() / 1000.0;
+	}
+
+	public double getSearchLatencyP50() {
+		return search.getPercentile(50) / 1000.0;
+	}
+
+	public double getSearchLatencyP99() {
+		return search.getPercentile(99) / 1000.0;
+	}
+
+	public String[] getErrorCounts() {
+		List<String> counts = new ArrayList<String>();
+		for (Map.Entry<String, AtomicLong> error : errors.entrySet()) {
+			counts.add(error.getValue().get() + " " + error.getKey());
+		}
+		return counts.toArray(new String[counts.size()]);
+	}
+
+	public long getEtaSeconds() {
+		long offset = inputOffset;
+		if (inputSize <= 0 || offset <= 0) {
+			return -1;
+		}
+
+		double seconds = (System.nanoTime() - started) / 1e9;
+		return Math.round(seconds * (inputSize - Math.min(offset, inputSize)) / offset);
+	}
+
+	/**
+	 * @return The status for the whole run so far
+	 */
+	public String getStatusLine() {
+		return statusLine(getRecordsPerSecond());
+	}
+
+	/**
+	 * @return The status with the rate since the last tick
+	 */
+	private synchronized String tick() {
+		long now = System.nanoTime();
+		long records = done.get() + failed.get();
+		double seconds = (now - lastTick) / 1e9;
+		double rate = lastTick == 0 || seconds <= 0 ? getRecordsPerSecond() : (records - lastRecords) / seconds;
+
+		lastTick = now;
+		lastRecords = records;
+		return statusLine(rate);
+	}
+
+	private String statusLine(double rate) {
+		StringBuilder line = new StringBuilder();
+
+		line.append('[').append(tool).append("] ")
+			.append(done.get()).append(" done, ")
+			.append(failed.get()).append(" failed, ")
+			.append(retried.get() > 0 ? retried.get() + " retried, " : "")
+			.append(Math.round(rate)).append("/s, ")
+			.append(inFlight.get()).append(" in flight");
+
+		if (post.getCount() > 0) {
+			line.append(", post p50 ").append(Math.round(getPostLatencyP50()))
+				.append(" ms p99 ").append(Math.round(getPostLatencyP99())).append(" ms");
+		}
+		if (search.getCount() > 0) {
+			line.append(", search p50 ").append(Math.round(getSearchLatencyP50())).append(" ms");
+		}
+
+		long eta = getEtaSeconds();
+		if (eta >= 0) {
+			line.append(", ").append(Math.min(100, inputOffset * 100 / inputSize)).append("%, ETA ")
+				.append(eta / 3600).append(':')
+				.append(eta / 60 % 60 < 10 ? "0" : "").append(eta / 60 % 60).append(':')
+				.append(eta % 60 < 10 ? "0" : "").append(eta % 60);
+		}
+		return line.toString();
+	}
+
+
+	private static final Metrics INSTANCE = new Metrics();
+	private static final int MAX_ERROR_MESSAGES = 100;
+	private static final int MAX_ERROR_LENGTH = 200;
+
+	private String tool = "bprimport";
+	private long inputSize;
+	private long started = System.nanoTime();
+	private ScheduledExecutorService status;
+	private long lastTick;
+	private long lastRecords;
+
+	private AtomicLong read = new AtomicLong();
+	private AtomicLong done = new AtomicLong();
+	private AtomicLong failed = new AtomicLong();
+	private AtomicLong retried = new AtomicLong();
+	private AtomicInteger inFlight = new AtomicInteger();
+	private AtomicLong posted = new AtomicLong();
+	private volatile long inputOffset;
+	private LatencyHistogram post = new LatencyHistogram();
+	private LatencyHistogram search = new LatencyHistogram();
+	private ConcurrentMap<String, AtomicLong> errors = new ConcurrentHashMap<String, AtomicLong>();
+
+}
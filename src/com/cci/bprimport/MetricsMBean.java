@@ -0,0 +1,64 @@
+// MetricsMBean - part of bprimport, what a running tool reports over JMX
+// Copyright (C) 2012  Matt Reath
+
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+package com.cci.bprimport;
+
+/**
+ * MetricsMBean is the JMX view of {@link Metrics}, registered as
+ * com.cci.bprimport:type=Metrics. Latencies are in milliseconds.
+ * <p>
+ * @author Matt Reath
+ * @version 0.1
+ *
+ */
+public interface MetricsMBean {
+
+	public long getRecordsRead();
+
+	public long getRecordsDone();
+
+	public long getRecordsFailed();
+
+	public long getRecordsRetried();
+
+	public double getRecordsPerSecond();
+
+	public int getBatchesInFlight();
+
+	public long getBatchesPosted();
+
+	public double getPostLatencyP50();
+
+	public double getPostLatencyP99();
+
+	public double getPostLatencyMax();
+
+	public double getSearchLatencyP50();
+
+	public double getSearchLatencyP99();
+
+	/**
+	 * @return One "count message" entry per distinct RDU error
+	 */
+	public String[] getErrorCounts();
+
+	/**
+	 * @return Seconds until the input is done, -1 if unknown
+	 */
+	public long getEtaSeconds();
+
+	public String getStatusLine();
+
+}
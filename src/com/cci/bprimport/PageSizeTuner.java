@@ -0,0 +1,140 @@
+// PageSizeTuner - part of bprimport, finds the search page size with the
+// best throughput
+// Copyright (C) 2012  Matt Reath
+
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+package com.cci.bprimport;
+
+/**
+ * PageSizeTuner picks the number of devices asked for per search page while
+ * the export runs. Larger pages save round trips, but past some size the RDU
+ * spends longer building a page than the round trips saved, and very large
+ * pages fail outright once the RDU runs out of memory for them.
+ * <p>
+ * The tuner starts at the initial size and measures devices per second over
+ * a few full pages at each size, doubling the size for as long as that
+ * improves throughput by more than 5%. It then settles on the best size it
+ * saw. A search that fails at some size caps every later size at half of it
+ * and settles at once. Pages that come back short, the end of a search,
+ * say nothing about throughput and are not counted.
+ * <p>
+ * Search cursors on several connections share one tuner. A result measured
+ * at a size the tuner has already moved away from is ignored.
+ * <p>
+ * @author Matt Reath
+ * @version 0.1
+ *
+ */
+public class PageSizeTuner {
+
+	/**
+	 * @param initialSize	Page size to start at
+	 * @param maxSize		Largest page size ever asked for
+	 */
+	public PageSizeTuner(int initialSize, int maxSize) {
+		this.size = Math.max(1, initialSize);
+		this.maxSize = Math.max(this.size, maxSize);
+		this.bestSize = this.size;
+	}
+
+	public synchronized int getPageSize() {
+		return size;
+	}
+
+	/**
+	 * @return False while the tuner is still trying larger sizes
+	 */
+	public synchronized boolean isSettled() {
+		return settled;
+	}
+
+	/**
+	 * @return The best throughput seen, in devices per second on one
+	 * 			connection
+	 */
+	public synchronized double getBestThroughput() {
+		return bestThroughput * 1000;
+	}
+
+	/**
+	 * Reports a page that came back.
+	 *
+	 * @param pageSize	The size the page was asked for with
+	 * @param devices	The number of devices on the page
+	 * @param latency	Milliseconds the search took
+	 */
+	public synchronized void pageFetched(int pageSize, int devices, long latency) {
+		if (settled || pageSize != size || devices < pageSize) {
+			return;
+		}
+
+		sampleDevices += devices;
+		sampleTime += Math.max(1, latency);
+
+		if (++samples < SAMPLES) {
+			return;
+		}
+
+		double throughput = (double)sampleDevices / sampleTime;
+		samples = 0;
+		sampleDevices = 0;
+		sampleTime = 0;
+
+		if (throughput > bestThroughput * 1.05) {
+			bestThroughput = throughput;
+			bestSize = size;
+
+			if (size < maxSize) {
+				size = Math.min(maxSize, size * 2);
+				return;
+			}
+		}
+
+		size = bestSize;
+		settled = true;
+	}
+
+	/**
+	 * Reports a search that failed, which may have been too large for the
+	 * RDU.
+	 *
+	 * @param pageSize	The size the search was asked for with
+	 * @return True if the size was lowered and the search is worth trying
+	 * 			again at {@link #getPageSize}
+	 */
+	public synchronized boolean pageFailed(int pageSize) {
+		if (pageSize <= 1 || pageSize <= bestSize && settled) {
+			return false;
+		}
+
+		maxSize = Math.max(1, pageSize / 2);
+		size = Math.min(maxSize, bestSize);
+		bestSize = size;
+		settled = true;
+		return size < pageSize;
+	}
+
+
+	private static final int SAMPLES = 3;
+
+	private int size;
+	private int maxSize;
+	private int bestSize;
+	private double bestThroughput;
+	private boolean settled;
+	private int samples;
+	private long sampleDevices;
+	private long sampleTime;
+
+}
@@ -0,0 +1,180 @@
+// Preflight - part of bprimport, checks import records locally before any
+// of them are sent to the RDU
+// Copyright (C) 2012  Matt Reath
+
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+package com.cci.bprimport;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Preflight looks at every record as it is read and turns away the ones the
+ * RDU would reject anyway, each of which would otherwise cost a round trip:
+ * <ul>
+ * <li>a MAC address that is not in "1,6,00:0C:E5:32:D0:6A" form</li>
+ * <li>a class of service or DHCP criteria that is not on the allow list,
+ * when one is given, or not defined on the RDU, when a
+ * {@link ProvisioningNameCache} is given</li>
+ * <li>a MAC that already appeared earlier in the file, reported as a
+ * conflict when the owner ID differs</li>
+ * </ul>
+ * Rejected records and unparseable lines are written to the reject file as
+ * line|reason|record. The first occurrence of a MAC has already gone on by
+ * the time a duplicate shows up, so only the later lines are rejected.
+ * <p>
+ * Memory is bounded by the number of distinct MACs: two 16 byte
+ * {@link LongHashMap} entries each, one holding the first line number and
+ * one a 64 bit {@link DeltaSync#fingerprint} of its owner.
+ * <p>
+ * @author Matt Reath
+ * @version 0.1
+ *
+ */
+public class Preflight {
+
+	/**
+	 * @param rejectFile	Where rejected lines are written
+	 * @param deviceMode	-d or -m, DHCP criteria are checked under the name
+	 * 						BAC stores them as
+	 * @param resume		Append to the lines the earlier run rejected instead
+	 * 						of starting over
+	 */
+	public Preflight(File rejectFile, String deviceMode, boolean resume) throws IOException {
+		this.rejects = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(rejectFile, resume),
+			"ISO-8859-1"));
+		this.rejectFile = rejectFile;
+		this.deviceMode = deviceMode;
+	}
+
+	/**
+	 * @return The reject file that belongs to an input file
+	 */
+	public static File rejectsFor(File input) {
+		return new File(input.getPath() + ".rejects");
+	}
+
+	/**
+	 * Only accepts records whose class of service is in the list.
+	 */
+	public void setAllowedClassesOfService(Collection<String> names) {
+		allowedCos = new HashSet<String>(names);
+	}
+
+	/**
+	 * Only accepts records whose DHCP criteria is in the list.
+	 */
+	public void setAllowedDhcpCriteria(Collection<String> names) {
+		allowedDhcp = new HashSet<String>(names);
+	}
+
+	/**
+	 * Only accepts classes of service and DHCP criteria the RDU knows.
+	 */
+	public void setNameCache(ProvisioningNameCache nameCache) {
+		this.nameCache = nameCache;
+	}
+
+	/**
+	 * Checks a record, writing it to the reject file if it fails.
+	 *
+	 * @return True if the record may go on to the RDU
+	 */
+	public boolean accept(DeviceRecord record) throws IOException {
+		long mac = MacAddressCodec.encode(record.getMacAddress());
+
+		if (mac == MacAddressCodec.INVALID) {
+			return reject(record, "bad MAC address");
+		}
+
+		String cos = record.getClassOfService();
+		if (allowedCos != null && cos != null && !allowedCos.contains(cos)) {
+			return reject(record, "unknown class of service " + cos);
+		}
+
+		String dhcp = BprImport.normalizeDhcpCriteria(deviceMode, record.getDhcpCriteria());
+		if (allowedDhcp != null && dhcp != null && !allowedDhcp.contains(dhcp)) {
+			return reject(record, "unknown DHCP criteria " + dhcp);
+		}
+
+		if (nameCache != null) {
+			if (cos != null && !nameCache.isClassOfService(cos)) {
+				return reject(record, "class of service " + cos + " is not defined on the RDU");
+			}
+			if (dhcp != null && !nameCache.isDhcpCriteria(dhcp)) {
+				return reject(record, "DHCP criteria " + dhcp + " is not defined on the RDU");
+			}
+		}
+
+		long owner = DeltaSync.fingerprint(record.getOwnerID());
+		long firstLine = seen.get(mac, -1);
+
+		if (firstLine != -1) {
+			if (owners.get(mac, 0) != owner) {
+				return reject(record, "conflicting owner with line " + firstLine);
+			}
+			return reject(record, "duplicate of line " + firstLine);
+		}
+
+		seen.put(mac, record.getLineNumber());
+		owners.put(mac, owner);
+		return true;
+	}
+
+	/**
+	 * Writes a line that could not be parsed to the reject file.
+	 */
+	public void reject(MalformedRecordException e) throws IOException {
+		write(e.getLineNumber(), e.getReason(), "");
+	}
+
+	public long getRejectCount() {
+		return rejectCount;
+	}
+
+	public File getRejectFile() {
+		return rejectFile;
+	}
+
+	public void close() throws IOException {
+		rejects.close();
+	}
+
+	private boolean reject(DeviceRecord record, String reason) throws IOException {
+		write(record.getLineNumber(), reason, record.toString());
+		return false;
+	}
+
+	private void write(long lineNumber, String reason, String record) throws IOException {
+		rejectCount++;
+		rejects.write(Long.toString(lineNumber));
+		rejects.write('|');
+		rejects.write(reason);
+		rejects.write('|');
+		rejects.write(record);
+		rejects.write('\n');
+	}
+
+
+	private Writer rejects;
+	private File rejectFile;
+	private String deviceMode;
+	private Set<String> allowedCos;
+	private Set<String> allowedDhcp;
+	private ProvisioningNameCache nameCache;
+	private LongHashMap seen = new LongHashMap(1 << 16);
+	private LongHashMap owners = new LongHashMap(1 << 16);
+	private long rejectCount;
+
+}
@@ -0,0 +1,198 @@
+// ProvisioningNameCache - part of bprimport, keeps the RDU's class of
+// service and DHCP criteria names so records can be checked locally
+// Copyright (C) 2012  Matt Reath
+
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+package com.cci.bprimport;
+
+import com.cisco.provisioning.cpe.*;
+import com.cisco.provisioning.cpe.api.*;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * ProvisioningNameCache fetches the names of every class of service and
+ * DHCP criteria defined on the RDU and answers whether a name exists without
+ * a round trip, so a typo in the billing file costs a set lookup instead of
+ * a failed batch.
+ * <p>
+ * The names are fetched when the cache is first used and again once they
+ * are older than the TTL. A name the cache does not know also causes a
+ * fetch, in case it was defined on the RDU during the run, but at most once
+ * per refresh interval: a file with the same typo on ten thousand lines
+ * fetches once, not ten thousand times.
+ * <p>
+ * The first fetch, normally {@link #load} at startup, fails loudly when the
+ * RDU returns no names or something that is not a list of them, since every
+ * record would be rejected otherwise. A later fetch that fails only logs the
+ * error and the names already fetched are kept, so a short RDU hiccup does
+ * not stop an import that is half way through.
+ * <p>
+ * @author Matt Reath
+ * @version 0.1
+ *
+ */
+public class ProvisioningNameCache {
+
+	/**
+	 * @param connection	RDU connection used only for fetching names
+	 * @param deviceMode	-d or -m, selects the DOCSIS or PacketCable
+	 * 						classes of service
+	 * @param ttl			Milliseconds before the names are fetched again
+	 */
+	public ProvisioningNameCache(PACEConnection connection, String deviceMode, long ttl) {
+		this.connection = connection;
+		this.cosType = deviceMode.equals("-m") ? ClassOfServiceType.PACKET_CABLE_MTA : ClassOfServiceType.DOCSIS;
+		this.ttl = ttl;
+	}
+
+	/**
+	 * Fetches the names now rather than on the first lookup.
+	 *
+	 * @throws IOException	If the RDU could not be asked or returned no names
+	 */
+	public synchronized void load() throws IOException {
+		refresh(now());
+	}
+
+	/**
+	 * @return True if the RDU has a class of service by this name
+	 */
+	public synchronized boolean isClassOfService(String name) throws IOException {
+		return lookup(name, true);
+	}
+
+	/**
+	 * @return True if the RDU has a DHCP criteria by this name
+	 */
+	public synchronized boolean isDhcpCriteria(String name) throws IOException {
+		return lookup(name, false);
+	}
+
+	/**
+	 * @return The number of times the names were fetched from the RDU
+	 */
+	public synchronized int getRefreshCount() {
+		return refreshCount;
+	}
+
+	/**
+	 * @return The time the TTL and the refresh interval are measured by
+	 */
+	long now() {
+		return System.currentTimeMillis();
+	}
+
+	private boolean lookup(String name, boolean cos) throws IOException {
+		long now = now();
+
+		if (now - fetched > ttl) {
+			refresh(now);
+		}
+
+		Set<String> names = cos ? classesOfService : dhcpCriteria;
+		if (names.contains(name)) {
+			return true;
+		}
+
+		if (now - fetched > MIN_REFRESH_INTERVAL) {
+			refresh(now);
+			names = cos ? classesOfService : dhcpCriteria;
+		}
+		return names.contains(name);
+	}
+
+	private void refresh(long now) throws IOException {
+		Set<String> newClassesOfService;
+		Set<String> newDhcpCriteria;
+
+		try {
+			newClassesOfService = fetch(true);
+			newDhcpCriteria = fetch(false);
+		} catch (IOException e) {
+			if (refreshCount == 0) {
+				throw e;
+			}
+
+			// Keep the names we have and try again after the interval, not
+			// on every record
+			AsyncLog.failure(e.getMessage() + ", keeping the names fetched earlier");
+			fetched = now;
+			return;
+		}
+
+		classesOfService = newClassesOfService;
+		dhcpCriteria = newDhcpCriteria;
+		fetched = now;
+		refreshCount++;
+	}
+
+	/**
+	 * Posts one batch that lists either the classes of service or the DHCP
+	 * criteria.
+	 */
+	private Set<String> fetch(boolean cos) throws IOException {
+		String what = cos ? "classes of service" : "DHCP criteria";
+		Batch batch = connection.newBatch();
+
+		if (cos) {
+			batch.getAllClassOfService(cosType);
+		} else {
+			batch.getAllDHCPCriteria();
+		}
+
+		BatchStatus status;
+		try {
+			status = batch.post();
+		} catch (ProvisioningException e) {
+			throw new IOException("Could not list " + what + ": "
+				+ (e.getMessage() != null ? e.getMessage() : e.toString()));
+		}
+		CommandStatus cStatus = status.getCommandStatus(0);
+
+		if (status.isError() || cStatus == null || cStatus.isError()) {
+			String message = cStatus != null && cStatus.getErrorMessage() != null
+				? cStatus.getErrorMessage() : status.getErrorMessage();
+			throw new IOException("Could not list " + what + ": " + message);
+		}
+
+		Object data = cStatus.getData();
+		if (!(data instanceof Collection)) {
+			throw new IOException("Could not list " + what + ": the RDU returned "
+				+ (data == null ? "nothing" : data.getClass().getName()));
+		}
+
+		Set<String> names = new HashSet<String>();
+		for (Object name : (Collection) data) {
+			names.add(String.valueOf(name));
+		}
+
+		if (names.isEmpty()) {
+			throw new IOException("Could not list " + what + ": the RDU returned none");
+		}
+		return names;
+	}
+
+
+	private static final long MIN_REFRESH_INTERVAL = 10000;
+
+	private PACEConnection connection;
+	private ClassOfServiceType cosType;
+	private long ttl;
+	private long fetched = Long.MIN_VALUE / 2;
+	private int refreshCount;
+	private Set<String> classesOfService = Collections.emptySet();
+	private Set<String> dhcpCriteria = Collections.emptySet();
+
+}
@@ -0,0 +1,104 @@
+// RateLimiter - part of bprimport, a lock free token bucket
+// Copyright (C) 2012  Matt Reath
+
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+package com.cci.bprimport;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * RateLimiter is a token bucket kept as a single "theoretical arrival time"
+ * (the GCRA form of the bucket). Taking permits is one compare-and-set on
+ * that time, after which the caller sleeps off whatever it owes outside of
+ * any lock. Up to burst permits can be taken at once after an idle spell.
+ * <p>
+ * The rate and burst can be changed at any time with {@link #setRate}; they
+ * are swapped in as one immutable object so a caller never sees a rate from
+ * one setting and a burst from another.
+ * <p>
+ * @author Matt Reath
+ * @version 0.1
+ *
+ */
+public class RateLimiter {
+
+	/**
+	 * @param permitsPerSecond	Sustained rate, 0 or less for no limit
+	 * @param burst				Permits that may be taken at once after idling
+	 */
+	public RateLimiter(double permitsPerSecond, int burst) {
+		setRate(permitsPerSecond, burst);
+	}
+
+	public void setRate(double permitsPerSecond, int burst) {
+		settings = new Settings(permitsPerSecond, burst);
+	}
+
+	public double getRate() {
+		return settings.permitsPerSecond;
+	}
+
+	public int getBurst() {
+		return settings.burst;
+	}
+
+	/**
+	 * Takes permits, sleeping as long as needed to stay within the rate.
+	 */
+	public void acquire(int permits) {
+		Settings current = settings;
+
+		if (current.intervalNanos == 0 || permits <= 0) {
+			return;
+		}
+
+		long cost = current.intervalNanos * permits;
+		long now = System.nanoTime();
+		long previous;
+		long next;
+
+		do {
+			previous = arrival.get();
+			next = Math.max(previous, now) + cost;
+		} while (!arrival.compareAndSet(previous, next));
+
+		long wait = next - current.burstNanos - now;
+		while (wait > 0) {
+			LockSupport.parkNanos(wait);
+			wait = next - current.burstNanos - System.nanoTime();
+		}
+	}
+
+	private static class Settings {
+
+		Settings(double permitsPerSecond, int burst) {
+			this.permitsPerSecond = permitsPerSecond;
+			this.burst = Math.max(1, burst);
+			this.intervalNanos = permitsPerSecond > 0 ? Math.max(1, (long)(1e9 / permitsPerSecond)) : 0;
+			this.burstNanos = intervalNanos * this.burst;
+		}
+
+		final double permitsPerSecond;
+		final int burst;
+		final long intervalNanos;
+		final long burstNanos;
+
+	}
+
+
+	private volatile Settings settings;
+	private final AtomicLong arrival = new AtomicLong(System.nanoTime());
+
+}
@@ -0,0 +1,123 @@
+// RduThrottle - part of bprimport, limits how hard the tools push the RDU
+// Copyright (C) 2012  Matt Reath
+
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+package com.cci.bprimport;
+
+import java.io.*;
+import java.util.Properties;
+
+/**
+ * RduThrottle holds the two limits every batch.post() in the tools goes
+ * through: devices per second and batches per second. It is unlimited until
+ * {@link #watch} loads a properties file:
+ * <pre>
+ * devices.per.second=200
+ * devices.burst=500
+ * batches.per.second=5
+ * batches.burst=5
+ * </pre>
+ * A missing or non-positive rate means no limit. The file is checked for
+ * changes every few seconds, so the limits can be tightened for business
+ * hours and opened up at night without restarting a run.
+ * <p>
+ * @author Matt Reath
+ * @version 0.1
+ *
+ */
+public class RduThrottle {
+
+	private RduThrottle() {
+
+	}
+
+	/**
+	 * Waits until a batch of the given number of commands may be posted.
+	 */
+	public static void beforePost(int commands) {
+		batches.acquire(1);
+		devices.acquire(commands);
+	}
+
+	/**
+	 * Loads the limits from a properties file and starts a daemon thread that
+	 * reloads them whenever the file changes.
+	 */
+	public static void watch(final File file) throws IOException {
+		load(file);
+
+		Thread watcher = new Thread(new Runnable() {
+			public void run() {
+				long lastModified = file.lastModified();
+
+				while (true) {
+					try {
+						Thread.sleep(WATCH_INTERVAL);
+					} catch (InterruptedException e) {
+						return;
+					}
+
+					long modified = file.lastModified();
+					if (modified != lastModified) {
+						lastModified = modified;
+						try {
+							load(file);
+						} catch (IOException e) {
+							System.out.println("Could not reload " + file + ": " + e.getMessage());
+						}
+					}
+				}
+			}
+		}, "throttle-watcher");
+
+		watcher.setDaemon(true);
+		watcher.start();
+	}
+
+	private static void load(File file) throws IOException {
+		Properties props = new Properties();
+		InputStream in = new FileInputStream(file);
+
+		try {
+			props.load(in);
+		} finally {
+			in.close();
+		}
+
+		try {
+			devices.setRate(Double.parseDouble(props.getProperty("devices.per.second", "0")),
+				Integer.parseInt(props.getProperty("devices.burst", "1")));
+			batches.setRate(Double.parseDouble(props.getProperty("batches.per.second", "0")),
+				Integer.parseInt(props.getProperty("batches.burst", "1")));
+		} catch (NumberFormatException e) {
+			throw new IOException("Bad number in " + file + ": " + e.getMessage());
+		}
+
+		System.out.println("RDU throttle: " + describe(devices) + " devices/s, " + describe(batches) + " batches/s");
+	}
+
+	private static String describe(RateLimiter limiter) {
+		if (limiter.getRate() <= 0) {
+			return "unlimited";
+		}
+		return limiter.getRate() + " (burst " + limiter.getBurst() + ")";
+	}
+
+
+	private static final long WATCH_INTERVAL = 5000;
+
+	private static final RateLimiter devices = new RateLimiter(0, 1);
+	private static final RateLimiter batches = new RateLimiter(0, 1);
+
+}
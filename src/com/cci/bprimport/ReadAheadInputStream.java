@@ -0,0 +1,157 @@
+// ReadAheadInputStream - part of bprimport, reads and decompresses an
+// input file on a thread of its own
+// Copyright (C) 2012  Matt Reath
+
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+package com.cci.bprimport;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.concurrent.*;
+
+/**
+ * ReadAheadInputStream reads its source on a background thread, a chunk at
+ * a time, a few chunks ahead of the reader. Wrapped around a
+ * GZIPInputStream it moves decompression off the thread that parses
+ * records, so the two run at the same time.
+ * <p>
+ * An error reading the source is thrown to the reader once it has read
+ * every chunk that came before it.
+ * <p>
+ * @author Matt Reath
+ * @version 0.1
+ *
+ */
+public class ReadAheadInputStream extends InputStream {
+
+	/**
+	 * Starts reading the source straight away.
+	 *
+	 * @param source	The stream to read ahead of the caller, closed by
+	 * 					{@link #close}
+	 */
+	public ReadAheadInputStream(InputStream source) {
+		this.source = source;
+		this.reader = new Thread(new Runnable() {
+			public void run() {
+				readSource();
+			}
+		}, "read-ahead");
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	public int read() throws IOException {
+		if (!fill()) {
+			return -1;
+		}
+		return current.get() & 0xFF;
+	}
+
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		if (!fill()) {
+			return -1;
+		}
+
+		int n = Math.min(len, current.remaining());
+		current.get(b, off, n);
+		return n;
+	}
+
+	public int available() {
+		return current == null ? 0 : current.remaining();
+	}
+
+	public void close() throws IOException {
+		closed = true;
+		reader.interrupt();
+		source.close();
+	}
+
+	/**
+	 * Makes sure current has something left to read.
+	 *
+	 * @return False at the end of the source
+	 */
+	private boolean fill() throws IOException {
+		while (current == null || !current.hasRemaining()) {
+			if (current == END) {
+				return false;
+			}
+
+			try {
+				current = chunks.take();
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException("Interrupted while reading ahead");
+			}
+
+			if (current == END && error != null) {
+				throw error;
+			}
+		}
+		return true;
+	}
+
+	private void readSource() {
+		try {
+			while (!closed) {
+				byte[] chunk = new byte[CHUNK_SIZE];
+				int length = 0;
+				int n;
+
+				try {
+					while (length < chunk.length
+							&& (n = source.read(chunk, length, chunk.length - length)) != -1) {
+						length += n;
+					}
+				} catch (IOException e) {
+					// Hand over what was read before the error first
+					error = e;
+				}
+
+				if (length > 0) {
+					chunks.put(ByteBuffer.wrap(chunk, 0, length));
+				}
+				if (error != null || length < chunk.length) {
+					break;
+				}
+			}
+		} catch (InterruptedException e) {
+			// Closed by the reader
+			return;
+		}
+
+		try {
+			chunks.put(END);
+		} catch (InterruptedException e) {
+			// Closed by the reader
+		}
+	}
+
+
+	private static final int CHUNK_SIZE = 256 * 1024;
+	private static final int CHUNKS_AHEAD = 4;
+	private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+	private InputStream source;
+	private Thread reader;
+	private BlockingQueue<ByteBuffer> chunks = new ArrayBlockingQueue<ByteBuffer>(CHUNKS_AHEAD);
+	private ByteBuffer current;
+	private volatile IOException error;
+	private volatile boolean closed;
+
+}
@@ -0,0 +1,96 @@
+// RecordBatch - part of bprimport, a run of consecutive records from an
+// input file that is sent to the RDU as one batch
+// Copyright (C) 2012  Matt Reath
+
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+package com.cci.bprimport;
+
+import java.util.*;
+
+/**
+ * RecordBatch is a run of consecutive records from the input file. The
+ * sequence number is assigned by the reader in file order so results from
+ * workers that finish out of order can still be put back in order.
+ * <p>
+ * @author Matt Reath
+ * @version 0.1
+ *
+ */
+public class RecordBatch {
+
+	public RecordBatch(long sequence, List<DeviceRecord> records) {
+		this.sequence = sequence;
+		this.records = records;
+		this.last = records.isEmpty() ? null : records.get(records.size() - 1);
+	}
+
+	/**
+	 * Makes a batch that tries some of the records of another one again.
+	 *
+	 * @param original	The batch the records failed in
+	 * @param records	The records to try again
+	 */
+	protected RecordBatch(RecordBatch original, List<DeviceRecord> records) {
+		this.sequence = original.sequence;
+		this.records = records;
+		this.attempt = original.attempt + 1;
+		this.last = original.last;
+	}
+
+	public long getSequence() {
+		return sequence;
+	}
+
+	public List<DeviceRecord> getRecords() {
+		return records;
+	}
+
+	public int size() {
+		return records.size();
+	}
+
+	/**
+	 * @return Number of times the records were tried before, 0 for a batch
+	 * 			straight from the input
+	 */
+	public int getAttempt() {
+		return attempt;
+	}
+
+	/**
+	 * @return The last record of the batch as it was read, even in a retry
+	 * 			that only holds some of the records
+	 */
+	public DeviceRecord getLastRecord() {
+		return last;
+	}
+
+	/**
+	 * Makes the batch that tries some of the records again. It keeps the
+	 * sequence number and last record, so the checkpoint journal still sees
+	 * the batch in file order.
+	 *
+	 * @param records	The records to try again
+	 */
+	public RecordBatch retry(List<DeviceRecord> records) {
+		return new RecordBatch(this, records);
+	}
+
+
+	private long sequence;
+	private List<DeviceRecord> records;
+	private int attempt;
+	private DeviceRecord last;
+
+}
@@ -0,0 +1,41 @@
+// RecordSource - part of bprimport, anything the importer can read
+// DeviceRecords from
+// Copyright (C) 2012  Matt Reath
+
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+package com.cci.bprimport;
+
+import java.io.IOException;
+
+/**
+ * A RecordSource hands out the records of an import file in file order.
+ * <p>
+ * @author Matt Reath
+ * @version 0.1
+ *
+ */
+public interface RecordSource {
+
+	/**
+	 * Reads the next record.
+	 *
+	 * @return The record, or null at the end of the file
+	 * @throws MalformedRecordException	For a line that cannot be parsed, the
+	 * 									next call carries on after it
+	 */
+	DeviceRecord next() throws IOException;
+
+	void close() throws IOException;
+
+}
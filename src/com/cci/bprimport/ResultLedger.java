@@ -0,0 +1,374 @@
+// ResultLedger - part of bprimport, records the outcome of every record of
+// an import in a compact binary file
+// Copyright (C) 2012  Matt Reath
+
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+package com.cci.bprimport;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * ResultLedger is an append only binary file kept next to the input file
+ * (input.txt.ledger) with one entry for every record an import sent to the
+ * RDU: input line, MAC address, RDU batch ID, command index within the
+ * batch, status and the RDU's error message. {@link LedgerQuery} reads it
+ * back.
+ * <p>
+ * Each worker fills a {@link Block} with the outcome of one RDU batch and
+ * appends it with a single write, so workers only hold the lock for the
+ * length of that write. A block is laid out as
+ * <pre>
+ * int     length of the rest of the block
+ * UTF     batch ID
+ * short   number of distinct error messages, then each one as UTF
+ * int     number of entries, then per entry:
+ *   byte  status, with RAW_MAC set if the MAC address follows as UTF
+ *   long  input line, 0 for a device that is not on a line (sync deletes)
+ *   short command index
+ *   short error message index, -1 for none
+ *   long  MAC address packed by {@link MacAddressCodec}, or UTF
+ * </pre>
+ * A block cut short by a crash is ignored when the ledger is read.
+ * <p>
+ * @author Matt Reath
+ * @version 0.1
+ *
+ */
+public class ResultLedger {
+
+	public static final int OK = 0;
+	public static final int FAILED = 1;
+	public static final int BATCH_FAILED = 2;
+
+	/**
+	 * @param file		The ledger file
+	 * @param resume	Append to the existing entries instead of starting over
+	 */
+	public ResultLedger(File file, boolean resume) throws IOException {
+		long end = resume && file.exists() ? validLength(file) : 0;
+		FileOutputStream out = new FileOutputStream(file, resume);
+		this.channel = out.getChannel();
+
+		// Drop a block cut short by a crash so the new ones follow on from
+		// the last whole block
+		channel.truncate(end);
+
+		if (end == 0) {
+			ByteBuffer header = ByteBuffer.allocate(6);
+			header.putInt(MAGIC).putShort(VERSION).flip();
+			write(header);
+		}
+	}
+
+	/**
+	 * @return The ledger that belongs to an input file
+	 */
+	public static File ledgerFor(File input) {
+		return new File(input.getPath() + ".ledger");
+	}
+
+	/**
+	 * @return Bytes of the ledger up to the end of its last whole block, 0 if
+	 * 			it has no valid header
+	 */
+	private static long validLength(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+		long length = file.length();
+		long end = 0;
+
+		try {
+			if (length < 6 || in.readInt() != MAGIC || in.readShort() != VERSION) {
+				return 0;
+			}
+			end = 6;
+
+			while (end + 4 <= length) {
+				int size = in.readInt();
+				if (size <= 0 || end + 4 + size > length) {
+					break;
+				}
+				in.skipBytes(size);
+				end += 4 + size;
+			}
+		} finally {
+			in.close();
+		}
+
+		return end;
+	}
+
+	/**
+	 * @return ok, failed or batch-failed
+	 */
+	public static String statusName(int status) {
+		return status == OK ? "ok" : status == FAILED ? "failed" : "batch-failed";
+	}
+
+	/**
+	 * Writes the entries of a block and empties it.
+	 *
+	 * @param batchId	ID of the RDU batch the entries were posted in
+	 */
+	public void append(String batchId, Block block) throws IOException {
+		if (block.count == 0) {
+			return;
+		}
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(block.entries.size() + 256);
+		DataOutputStream head = new DataOutputStream(bytes);
+
+		head.writeInt(0);
+		head.writeUTF(batchId != null ? batchId : "");
+		head.writeShort(block.errors.size());
+		for (String error : block.errors) {
+			head.writeUTF(error);
+		}
+		head.writeInt(block.count);
+		block.entries.writeTo(head);
+		head.flush();
+
+		ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+		buffer.putInt(0, buffer.limit() - 4);
+		block.clear();
+
+		synchronized (this) {
+			write(buffer);
+		}
+	}
+
+	/**
+	 * Forces the ledger to disk and closes it.
+	 */
+	public synchronized void close() throws IOException {
+		channel.force(false);
+		channel.close();
+	}
+
+	private void write(ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	/**
+	 * The entries of one RDU batch, collected by one worker. A block is
+	 * reused from batch to batch and is not thread safe.
+	 */
+	public static class Block {
+
+		/**
+		 * @param record	The record, for its line and MAC address
+		 * @param command	Index of the record's command in the RDU batch
+		 * @param status	OK, FAILED or BATCH_FAILED
+		 * @param error		The RDU's error message, or null
+		 */
+		public void add(DeviceRecord record, int command, int status, String error) {
+			long mac = MacAddressCodec.encode(record.getMacAddress());
+			int errorIndex = -1;
+
+			if (error != null) {
+				error = shorten(error);
+				Integer index = errorIndexes.get(error);
+				if (index == null && errors.size() < Short.MAX_VALUE) {
+					index = errors.size();
+					errors.add(error);
+					errorIndexes.put(error, index);
+				}
+				errorIndex = index != null ? index : -1;
+			}
+
+			try {
+				out.writeByte(mac == MacAddressCodec.INVALID ? status | RAW_MAC : status);
+				out.writeLong(record.getLineNumber());
+				out.writeShort(command);
+				out.writeShort(errorIndex);
+				if (mac == MacAddressCodec.INVALID) {
+					out.writeUTF(record.getMacAddress() != null ? shorten(record.getMacAddress()) : "");
+				} else {
+					out.writeLong(mac);
+				}
+			} catch (IOException e) {
+				// Cannot happen, the stream writes to memory
+				throw new IllegalStateException(e);
+			}
+			count++;
+		}
+
+		public boolean isEmpty() {
+			return count == 0;
+		}
+
+		/**
+		 * Keeps a string well inside the 64K a UTF field can hold.
+		 */
+		private static String shorten(String value) {
+			return value.length() > MAX_STRING ? value.substring(0, MAX_STRING) : value;
+		}
+
+		void clear() {
+			entries.reset();
+			errors.clear();
+			errorIndexes.clear();
+			count = 0;
+		}
+
+
+		private ByteArrayOutputStream entries = new ByteArrayOutputStream(4096);
+		private DataOutputStream out = new DataOutputStream(entries);
+		private List<String> errors = new ArrayList<String>();
+		private Map<String, Integer> errorIndexes = new HashMap<String, Integer>();
+		private int count;
+
+	}
+
+	/**
+	 * One record's outcome as read back from the ledger.
+	 */
+	public static class Entry {
+
+		public long getLineNumber() {
+			return lineNumber;
+		}
+
+		public String getMacAddress() {
+			return macAddress;
+		}
+
+		public String getBatchId() {
+			return batchId;
+		}
+
+		public int getCommand() {
+			return command;
+		}
+
+		public int getStatus() {
+			return status;
+		}
+
+		/**
+		 * @return The RDU's error message, or null
+		 */
+		public String getError() {
+			return error;
+		}
+
+		@Override
+		public String toString() {
+			return lineNumber + "|" + macAddress + "|" + batchId + "|" + command + "|" + statusName(status)
+				+ "|" + (error != null ? error : "");
+		}
+
+
+		private long lineNumber;
+		private String macAddress;
+		private String batchId;
+		private int command;
+		private int status;
+		private String error;
+
+	}
+
+	/**
+	 * Reads the entries of a ledger in the order they were written.
+	 */
+	public static class Reader {
+
+		public Reader(File file) throws IOException {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+
+			if (in.readInt() != MAGIC || in.readShort() != VERSION) {
+				in.close();
+				throw new IOException(file + " is not a result ledger");
+			}
+		}
+
+		/**
+		 * @return The next entry, or null at the end of the ledger
+		 */
+		public Entry next() throws IOException {
+			while (remaining == 0) {
+				if (!nextBlock()) {
+					return null;
+				}
+			}
+			remaining--;
+
+			Entry entry = new Entry();
+			int status = block.readUnsignedByte();
+			entry.status = status & ~RAW_MAC;
+			entry.lineNumber = block.readLong();
+			entry.command = block.readUnsignedShort();
+			int errorIndex = block.readShort();
+			entry.error = errorIndex >= 0 && errorIndex < errors.length ? errors[errorIndex] : null;
+			entry.macAddress = (status & RAW_MAC) != 0 ? block.readUTF() : MacAddressCodec.decode(block.readLong());
+			entry.batchId = batchId;
+			return entry;
+		}
+
+		public void close() throws IOException {
+			in.close();
+		}
+
+		/**
+		 * Reads a whole block into memory, so a block cut short by a crash
+		 * is recognized before any of its entries is returned.
+		 *
+		 * @return False at the end of the ledger
+		 */
+		private boolean nextBlock() throws IOException {
+			byte[] bytes;
+
+			try {
+				int length = in.readInt();
+				if (length <= 0) {
+					return false;
+				}
+				bytes = new byte[length];
+				in.readFully(bytes);
+			} catch (EOFException e) {
+				return false;
+			}
+
+			block = new DataInputStream(new ByteArrayInputStream(bytes));
+			batchId = block.readUTF();
+			errors = new String[block.readShort()];
+			for (int i = 0; i < errors.length; i++) {
+				errors[i] = block.readUTF();
+			}
+			remaining = block.readInt();
+			return true;
+		}
+
+
+		private DataInputStream in;
+		private DataInputStream block;
+		private String batchId;
+		private String[] errors;
+		private int remaining;
+
+	}
+
+
+	private static final int MAGIC = 0x4250524C;
+	private static final short VERSION = 1;
+	private static final int RAW_MAC = 0x80;
+	private static final int MAX_STRING = 4096;
+
+	private FileChannel channel;
+
+}
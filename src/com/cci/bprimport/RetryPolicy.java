@@ -0,0 +1,237 @@
+// RetryPolicy - part of bprimport, decides which RDU failures are worth
+// trying again and when
+// Copyright (C) 2012  Matt Reath
+
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+package com.cci.bprimport;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * RetryPolicy sorts RDU failures into transient ones, such as a timeout,
+ * a lost connection or a busy RDU, and permanent ones, such as a device
+ * that already exists or an unknown class of service. A failure is
+ * transient if its message contains one of a list of phrases, which
+ * --transient-errors adds to. A ProvisioningException from batch.post() is
+ * always transient.
+ * <p>
+ * The workers hand the records that failed for a transient reason to
+ * {@link #retry}, which puts them back on the {@link BatchDispatcher} after
+ * an exponential backoff with jitter: attempt n waits between half and all
+ * of min(--retry-delay * 2^(n-1), --max-retry-delay), so batches that
+ * failed together do not all come back at once. Only the failed records
+ * are tried again, new batches keep flowing while they wait, and after
+ * --retries attempts they are given up on.
+ * <p>
+ * Permanent failures and records given up on go to a dead letter file,
+ * input.txt.dead, as line|reason|record.
+ * <p>
+ * @author Matt Reath
+ * @version 0.1
+ *
+ */
+public class RetryPolicy {
+
+	/**
+	 * @param dispatcher	Where retried records are queued again
+	 * @param deadLetters	File for the records that cannot be done
+	 * @param resume		Append to the records an earlier run gave up on
+	 * 						instead of starting over
+	 */
+	public RetryPolicy(BatchDispatcher dispatcher, File deadLetters, boolean resume) throws IOException {
+		this.dispatcher = dispatcher;
+		this.deadLetterFile = deadLetters;
+		this.deadLetters = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(deadLetters, resume),
+			"ISO-8859-1"));
+	}
+
+	/**
+	 * Sets up retries as the --retries, --retry-delay, --max-retry-delay and
+	 * --transient-errors options say, printing why if it cannot.
+	 */
+	static RetryPolicy open(CommandLine cli, BatchDispatcher dispatcher, File deadLetters, boolean resume) {
+		RetryPolicy policy = null;
+
+		try {
+			policy = new RetryPolicy(dispatcher, deadLetters, resume);
+		} catch (IOException e) {
+			System.out.println("Could not open " + deadLetters + ": " + e.getMessage());
+			System.exit(1);
+		}
+
+		policy.setMaxAttempts(cli.getIntOption("retries", DEFAULT_ATTEMPTS));
+		policy.setDelays(cli.getIntOption("retry-delay", DEFAULT_DELAY), cli.getIntOption("max-retry-delay", MAX_DELAY));
+		if (cli.hasOption("transient-errors")) {
+			policy.addTransientErrors(Arrays.asList(cli.getOption("transient-errors", null).split(",")));
+		}
+		return policy;
+	}
+
+	/**
+	 * @return The dead letter file that belongs to an input file
+	 */
+	public static File deadLettersFor(File input) {
+		return new File(input.getPath() + ".dead");
+	}
+
+	/**
+	 * @param attempts	Times records are tried again before giving up
+	 */
+	public void setMaxAttempts(int attempts) {
+		this.maxAttempts = Math.max(0, attempts);
+	}
+
+	/**
+	 * @param base	Milliseconds before the first retry
+	 * @param max	Longest wait between two retries, in milliseconds
+	 */
+	public void setDelays(long base, long max) {
+		this.baseDelay = Math.max(1, base);
+		this.maxDelay = Math.max(this.baseDelay, max);
+	}
+
+	/**
+	 * Adds to the phrases that mark a failure as transient. Case is ignored.
+	 */
+	public void addTransientErrors(Collection<String> phrases) {
+		for (String phrase : phrases) {
+			if (phrase.trim().length() > 0) {
+				transientErrors.add(phrase.trim().toLowerCase());
+			}
+		}
+	}
+
+	/**
+	 * @param message	The RDU's error message
+	 * @return True if the failure is likely to go away by itself
+	 */
+	public boolean isTransient(String message) {
+		if (message == null) {
+			return false;
+		}
+
+		String lower = message.toLowerCase();
+		for (String phrase : transientErrors) {
+			if (lower.contains(phrase)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public int getMaxAttempts() {
+		return maxAttempts;
+	}
+
+	/**
+	 * @return True if records of the batch may be tried again
+	 */
+	public boolean canRetry(RecordBatch batch) {
+		return batch.getAttempt() < maxAttempts;
+	}
+
+	/**
+	 * Queues records of a batch to be tried again after a backoff.
+	 *
+	 * @param batch		The batch the records failed in
+	 * @param records	The records to try again
+	 * @param reason	Why they failed
+	 * @return False if the records were tried too often already and are
+	 * 			not queued, the caller has to give up on them
+	 */
+	public boolean retry(RecordBatch batch, List<DeviceRecord> records, String reason) {
+		if (!canRetry(batch)) {
+			return false;
+		}
+
+		int attempt = batch.getAttempt() + 1;
+		long delay = delay(attempt);
+		dispatcher.submitLater(batch.retry(new ArrayList<DeviceRecord>(records)), delay);
+		retried.addAndGet(records.size());
+		Metrics.get().recordsRetried(records.size());
+		AsyncLog.info(records.size() + " device(s) of batch " + batch.getSequence() + " retried in " + delay
+			+ " ms, attempt " + attempt + ": " + reason);
+		return true;
+	}
+
+	/**
+	 * @return Milliseconds to wait before the given attempt, with jitter
+	 */
+	long delay(int attempt) {
+		long delay = baseDelay << Math.min(attempt - 1, 30);
+		if (delay <= 0 || delay > maxDelay) {
+			delay = maxDelay;
+		}
+		return delay / 2 + (long)(random.nextDouble() * (delay - delay / 2));
+	}
+
+	/**
+	 * Records a record that cannot be done.
+	 *
+	 * @param reason	Why, the RDU's error message or why it was given up on
+	 */
+	public synchronized void deadLetter(DeviceRecord record, String reason) {
+		try {
+			deadLetters.write(Long.toString(record.getLineNumber()));
+			deadLetters.write('|');
+			deadLetters.write(reason != null ? reason.replace('\n', ' ') : "");
+			deadLetters.write('|');
+			deadLetters.write(record.toString());
+			deadLetters.write('\n');
+		} catch (IOException e) {
+			AsyncLog.failure("Could not write " + deadLetterFile + ": " + e.getMessage());
+		}
+		deadLettered++;
+	}
+
+	/**
+	 * @return Records tried again, counting each attempt
+	 */
+	public long getRetriedCount() {
+		return retried.get();
+	}
+
+	public synchronized long getDeadLetterCount() {
+		return deadLettered;
+	}
+
+	public File getDeadLetterFile() {
+		return deadLetterFile;
+	}
+
+	public synchronized void close() throws IOException {
+		deadLetters.close();
+	}
+
+
+	private static final int DEFAULT_ATTEMPTS = 5;
+	private static final int DEFAULT_DELAY = 1000;
+	private static final int MAX_DELAY = 60000;
+
+	private BatchDispatcher dispatcher;
+	private File deadLetterFile;
+	private Writer deadLetters;
+	private long deadLettered;
+	private AtomicLong retried = new AtomicLong();
+	private int maxAttempts = DEFAULT_ATTEMPTS;
+	private long baseDelay = DEFAULT_DELAY;
+	private long maxDelay = MAX_DELAY;
+	private Random random = new Random();
+	private List<String> transientErrors = new ArrayList<String>(Arrays.asList(
+		"timeout", "timed out", "connection", "disconnected", "socket", "refused", "unavailable", "busy",
+		"overload", "too many", "try again", "temporarily", "locked", "lock wait"));
+
+}
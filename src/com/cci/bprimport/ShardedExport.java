@@ -0,0 +1,323 @@
+// ShardedExport - part of bprimport, splits an export into MAC prefix
+// shards that are searched in parallel
+// Copyright (C) 2012  Matt Reath
+
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+package com.cci.bprimport;
+
+import com.cisco.provisioning.cpe.api.search.*;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * ShardedExport walks the devices by MAC address pattern instead of through
+ * a single search cursor. A shard is every MAC that starts with a given
+ * run of octets, such as 1,6,00:0C:*, searched with a cursor of its own.
+ * <p>
+ * The export starts from one shard holding every MAC. A shard whose first
+ * page comes back with a bookmark has more devices than fit on one page, so
+ * instead of walking it, the first page is thrown away and the shard is
+ * split into 256 shards one octet longer. Dense prefixes, such as the OUI
+ * of the cable modem vendor, end up split into many shards and sparse ones
+ * stay whole, so the connections share the work evenly. Splitting stops at
+ * the depth given, where a shard is walked page by page however big it is.
+ * <p>
+ * Each connection takes the next shard from a shared queue, so a slow shard
+ * never holds up the others. Every finished shard is a part file in the
+ * shard directory, and every split shard leaves a .split marker there. A
+ * shard whose search or a detail batch fails is walked again on its own,
+ * from the start. After the last attempt it is left for a run with
+ * --resume, which skips every shard that already has its part file. The
+ * parts are put together into the export, in MAC order, only once every
+ * shard is done.
+ * <p>
+ * @author Matt Reath
+ * @version 0.1
+ *
+ */
+public class ShardedExport {
+
+	/**
+	 * @param directory	Where part files and split markers are kept
+	 * @param format	Format of the part files
+	 * @param maxDepth	Number of octets beyond which shards are not split
+	 */
+	public ShardedExport(File directory, ExportFormat format, int maxDepth) {
+		this.directory = directory;
+		this.format = format;
+		this.maxDepth = Math.max(0, Math.min(5, maxDepth));
+	}
+
+	/**
+	 * @return The shard directory that belongs to an output file
+	 */
+	public static File directoryFor(String output) {
+		return new File(output + ".shards");
+	}
+
+	/**
+	 * Exports every shard, one thread per connection.
+	 *
+	 * @param cursors	One exporter per RDU connection
+	 * @param resume	Keep the shards a previous run finished
+	 */
+	public void run(List<BprExport> cursors, boolean resume) throws IOException, InterruptedException {
+		if (!resume) {
+			clear();
+		}
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Could not create " + directory);
+		}
+
+		outstanding.set(1);
+		queue.add(new Shard(""));
+
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < cursors.size(); i++) {
+			final BprExport cursor = cursors.get(i);
+
+			Thread thread = new Thread(new Runnable() {
+				public void run() {
+					walk(cursor);
+				}
+			}, "shard-cursor-" + i);
+			thread.start();
+			threads.add(thread);
+		}
+
+		for (Thread thread : threads) {
+			thread.join();
+		}
+	}
+
+	/**
+	 * Appends every part file to the export in MAC order and removes the
+	 * shard directory. Only call this when no shard failed.
+	 */
+	public void assemble(ExportWriter out) throws IOException {
+		File[] parts = directory.listFiles(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return name.endsWith(PART);
+			}
+		});
+		Arrays.sort(parts);
+
+		for (File part : parts) {
+			out.append(part);
+		}
+		clear();
+	}
+
+	/**
+	 * @return The number of shards walked, including ones a resumed run found
+	 * 			already done
+	 */
+	public int getShardCount() {
+		return shards.get();
+	}
+
+	public int getSplitCount() {
+		return splits.get();
+	}
+
+	/**
+	 * @return The shards that failed every attempt, as MAC patterns
+	 */
+	public List<String> getFailedShards() {
+		synchronized (failed) {
+			return new ArrayList<String>(failed);
+		}
+	}
+
+	/**
+	 * Takes shards off the queue until every shard, including the ones
+	 * still being split by other threads, is done.
+	 */
+	private void walk(BprExport cursor) {
+		while (true) {
+			Shard shard;
+
+			try {
+				shard = queue.poll(100, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				return;
+			}
+
+			if (shard == null) {
+				if (outstanding.get() == 0) {
+					return;
+				}
+				continue;
+			}
+
+			try {
+				export(cursor, shard);
+			} catch (IOException e) {
+				AsyncLog.failure("Shard " + shard.pattern() + ": " + e.getMessage());
+				retry(shard);
+			} finally {
+				outstanding.decrementAndGet();
+			}
+		}
+	}
+
+	private void export(BprExport cursor, Shard shard) throws IOException {
+		File part = new File(directory, shard.name() + PART);
+		File marker = new File(directory, shard.name() + SPLIT);
+
+		if (part.exists()) {
+			shards.incrementAndGet();
+			return;
+		}
+		if (marker.exists()) {
+			split(shard);
+			return;
+		}
+
+		RecordSearchResults rs = cursor.searchPattern(shard.pattern(), null);
+		if (rs == null) {
+			AsyncLog.failure("Shard " + shard.pattern() + ": " + cursor.getSearchError());
+			retry(shard);
+			return;
+		}
+
+		SearchBookmark sb = rs.getSearchBookmark();
+		if (sb != null && shard.depth < maxDepth) {
+			new FileOutputStream(marker).close();
+			splits.incrementAndGet();
+			split(shard);
+			return;
+		}
+
+		File temp = new File(directory, shard.name() + PART + ".tmp");
+		ExportWriter out = new ExportWriter(new FileOutputStream(temp), format, false);
+		boolean complete = false;
+
+		try {
+			while (true) {
+				if (!cursor.exportPage(rs, out)) {
+					break;
+				}
+				if (sb == null) {
+					complete = true;
+					break;
+				}
+
+				rs = cursor.searchPattern(shard.pattern(), sb);
+				if (rs == null) {
+					AsyncLog.failure("Shard " + shard.pattern() + ": " + cursor.getSearchError());
+					break;
+				}
+				sb = rs.getSearchBookmark();
+			}
+		} finally {
+			out.close();
+		}
+
+		if (!complete) {
+			temp.delete();
+			retry(shard);
+			return;
+		}
+		if (!temp.renameTo(part)) {
+			throw new IOException("Could not rename " + temp + " to " + part);
+		}
+		shards.incrementAndGet();
+	}
+
+	/**
+	 * Queues the 256 shards one octet longer than the given one.
+	 */
+	private void split(Shard shard) {
+		outstanding.addAndGet(256);
+		for (int i = 0; i < 256; i++) {
+			String octet = HEX.substring(i >> 4, (i >> 4) + 1) + HEX.substring(i & 0xF, (i & 0xF) + 1);
+			queue.add(new Shard(shard.prefix.length() == 0 ? octet : shard.prefix + ":" + octet));
+		}
+	}
+
+	/**
+	 * Puts a failed shard back on the queue, or gives up on it after the
+	 * last attempt.
+	 */
+	private void retry(Shard shard) {
+		if (++shard.attempts < MAX_ATTEMPTS) {
+			outstanding.incrementAndGet();
+			queue.add(shard);
+		} else {
+			synchronized (failed) {
+				failed.add(shard.pattern());
+			}
+		}
+	}
+
+	/**
+	 * Removes whatever a previous run left in the shard directory.
+	 */
+	private void clear() {
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		directory.delete();
+	}
+
+	/**
+	 * Every MAC address that starts with the prefix, a run of octets such as
+	 * 00:0C. The empty prefix is every MAC address.
+	 */
+	private static class Shard {
+
+		Shard(String prefix) {
+			this.prefix = prefix;
+			this.depth = prefix.length() == 0 ? 0 : (prefix.length() + 1) / 3;
+		}
+
+		String pattern() {
+			return prefix.length() == 0 ? "1,6,*" : "1,6," + prefix + ":*";
+		}
+
+		/**
+		 * @return A file name that sorts in MAC order
+		 */
+		String name() {
+			return prefix.length() == 0 ? "all" : prefix.replace(':', '-');
+		}
+
+		final String prefix;
+		final int depth;
+		int attempts;
+
+	}
+
+
+	private static final String PART = ".part";
+	private static final String SPLIT = ".split";
+	private static final String HEX = "0123456789ABCDEF";
+	private static final int MAX_ATTEMPTS = 3;
+
+	private File directory;
+	private ExportFormat format;
+	private int maxDepth;
+	private BlockingQueue<Shard> queue = new LinkedBlockingQueue<Shard>();
+	private AtomicInteger outstanding = new AtomicInteger();
+	private AtomicInteger shards = new AtomicInteger();
+	private AtomicInteger splits = new AtomicInteger();
+	private List<String> failed = new ArrayList<String>();
+
+}
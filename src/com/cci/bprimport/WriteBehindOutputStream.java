@@ -0,0 +1,174 @@
+// WriteBehindOutputStream - part of bprimport, compresses and writes an
+// output file on a thread of its own
+// Copyright (C) 2012  Matt Reath
+
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+package com.cci.bprimport;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.concurrent.*;
+
+/**
+ * WriteBehindOutputStream collects what is written into chunks and hands
+ * each full chunk to a background thread that writes it to the target.
+ * Wrapped around a GZIPOutputStream it moves compression off the threads
+ * that produce the data. A few chunks are recycled between the two threads,
+ * so the writer only waits when the target falls that far behind.
+ * <p>
+ * An error writing the target is thrown by the next write, or by
+ * {@link #close}, which also waits for every chunk to be written.
+ * <p>
+ * @author Matt Reath
+ * @version 0.1
+ *
+ */
+public class WriteBehindOutputStream extends OutputStream {
+
+	/**
+	 * @param target	The stream written behind the caller, closed by
+	 * 					{@link #close}
+	 */
+	public WriteBehindOutputStream(OutputStream target) {
+		this.target = target;
+		for (int i = 0; i < CHUNKS_BEHIND; i++) {
+			free.add(ByteBuffer.allocate(CHUNK_SIZE));
+		}
+		this.writer = new Thread(new Runnable() {
+			public void run() {
+				writeTarget();
+			}
+		}, "write-behind");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	public void write(int b) throws IOException {
+		current().put((byte)b);
+	}
+
+	public void write(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			ByteBuffer chunk = current();
+			int n = Math.min(len, chunk.remaining());
+			chunk.put(b, off, n);
+			off += n;
+			len -= n;
+		}
+	}
+
+	/**
+	 * Hands what has been written so far to the background thread, without
+	 * waiting for it to reach the target.
+	 */
+	public void flush() throws IOException {
+		if (current != null && current.position() > 0) {
+			hand(current);
+			current = null;
+		}
+	}
+
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+
+		flush();
+		hand(END);
+
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted while writing behind");
+		}
+
+		try {
+			target.close();
+		} catch (IOException e) {
+			if (error == null) {
+				error = e;
+			}
+		}
+		if (error != null) {
+			throw error;
+		}
+	}
+
+	/**
+	 * @return A chunk with room left in it
+	 */
+	private ByteBuffer current() throws IOException {
+		if (error != null) {
+			throw error;
+		}
+		if (current != null && !current.hasRemaining()) {
+			hand(current);
+			current = null;
+		}
+		if (current == null) {
+			try {
+				current = free.take();
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException("Interrupted while writing behind");
+			}
+			current.clear();
+		}
+		return current;
+	}
+
+	private void hand(ByteBuffer chunk) throws IOException {
+		try {
+			full.put(chunk);
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted while writing behind");
+		}
+	}
+
+	private void writeTarget() {
+		try {
+			while (true) {
+				ByteBuffer chunk = full.take();
+				if (chunk == END) {
+					return;
+				}
+
+				if (error == null) {
+					try {
+						target.write(chunk.array(), 0, chunk.position());
+					} catch (IOException e) {
+						error = e;
+					}
+				}
+				free.put(chunk);
+			}
+		} catch (InterruptedException e) {
+			// Nothing else hands chunks over, so nothing is lost
+		}
+	}
+
+
+	private static final int CHUNK_SIZE = 256 * 1024;
+	private static final int CHUNKS_BEHIND = 4;
+	private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+	private OutputStream target;
+	private Thread writer;
+	private BlockingQueue<ByteBuffer> free = new ArrayBlockingQueue<ByteBuffer>(CHUNKS_BEHIND);
+	private BlockingQueue<ByteBuffer> full = new ArrayBlockingQueue<ByteBuffer>(CHUNKS_BEHIND + 1);
+	private ByteBuffer current;
+	private volatile IOException error;
+	private boolean closed;
+
+}
@@ -0,0 +1,198 @@
+// AdaptiveBatchControllerTest - part of bprimport
+// Copyright (C) 2012  Matt Reath
+
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+package com.cci.bprimport;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.*;
+import org.junit.Test;
+
+/**
+ * Checks the controller's additive increase and multiplicative decrease one
+ * post at a time, then runs it against a {@link DegradingRdu} that slows
+ * down past its capacity and loses most of it halfway through.
+ * <p>
+ * @author Matt Reath
+ * @version 0.1
+ *
+ */
+public class AdaptiveBatchControllerTest {
+
+	@Test
+	public void fastPostsGrowTheBatchSizeFirstThenTheBatchesInFlight() {
+		AdaptiveBatchController controller = new AdaptiveBatchController(10, 30, 3, TARGET);
+
+		assertEquals(10, controller.getBatchSize());
+		assertEquals(1, controller.getInFlightLimit());
+
+		post(controller, 100, false);
+		assertEquals(20, controller.getBatchSize());
+		post(controller, 100, false);
+		assertEquals(30, controller.getBatchSize());
+		assertEquals(1, controller.getInFlightLimit());
+
+		post(controller, 100, false);
+		assertEquals(30, controller.getBatchSize());
+		assertEquals(2, controller.getInFlightLimit());
+		post(controller, 100, false);
+		post(controller, 100, false);
+		assertEquals(3, controller.getInFlightLimit());
+	}
+
+	@Test
+	public void aSlowOrFailedPostHalvesBothDownToTheMinimum() {
+		AdaptiveBatchController controller = new AdaptiveBatchController(10, 100, 8, TARGET);
+		for (int i = 0; i < 20; i++) {
+			post(controller, 100, false);
+		}
+		assertEquals(100, controller.getBatchSize());
+		assertEquals(8, controller.getInFlightLimit());
+
+		post(controller, TARGET + 1, false);
+		assertEquals(50, controller.getBatchSize());
+		assertEquals(4, controller.getInFlightLimit());
+
+		post(controller, 100, true);
+		assertEquals(25, controller.getBatchSize());
+		assertEquals(2, controller.getInFlightLimit());
+
+		for (int i = 0; i < 5; i++) {
+			post(controller, TARGET * 10, true);
+		}
+		assertEquals(10, controller.getBatchSize());
+		assertEquals(1, controller.getInFlightLimit());
+	}
+
+	@Test
+	public void postsAlreadyInFlightBackOffOnlyOnce() {
+		AdaptiveBatchController controller = new AdaptiveBatchController(10, 100, 8, TARGET);
+		for (int i = 0; i < 20; i++) {
+			post(controller, 100, false);
+		}
+
+		long[] tickets = new long[8];
+		for (int i = 0; i < tickets.length; i++) {
+			tickets[i] = controller.acquire();
+		}
+		for (int i = 0; i < tickets.length; i++) {
+			controller.release(tickets[i], TARGET * 2, false);
+		}
+		assertEquals(50, controller.getBatchSize());
+		assertEquals(4, controller.getInFlightLimit());
+
+		// A batch posted after the decrease can bring on the next one
+		post(controller, TARGET * 2, false);
+		assertEquals(25, controller.getBatchSize());
+	}
+
+	@Test
+	public void acquireWaitsForAFreeSlot() throws Exception {
+		final AdaptiveBatchController controller = new AdaptiveBatchController(10, 10, 1, TARGET);
+		long ticket = controller.acquire();
+
+		ExecutorService other = Executors.newSingleThreadExecutor();
+		Future<Long> second = other.submit(new Callable<Long>() {
+			public Long call() {
+				return controller.acquire();
+			}
+		});
+
+		try {
+			second.get(200, TimeUnit.MILLISECONDS);
+			fail("a second batch went out with a limit of one in flight");
+		} catch (TimeoutException e) {
+			// Still waiting, as it should be
+		}
+
+		controller.release(ticket, 100, false);
+		second.get(5, TimeUnit.SECONDS);
+		other.shutdown();
+	}
+
+	@Test
+	public void settlesBelowTheRduCapacityAndFollowsItDownAndUp() {
+		AdaptiveBatchController controller = new AdaptiveBatchController(10, 200, 8, TARGET);
+		DegradingRdu rdu = new DegradingRdu(600, 50, 1);
+
+		// Below this load a batch comes back within the target
+		int healthy = 600 + (int)(TARGET - 50);
+
+		for (int i = 0; i < 100; i++) {
+			rdu.round(controller);
+		}
+		// A decrease halves both the batch size and the batches in flight,
+		// so the load saws between a quarter of the healthy load and just
+		// over it
+		double[] busy = settle(controller, rdu, 300, healthy);
+		assertTrue("average load " + busy[0] + " of " + healthy, busy[0] > healthy * 0.4);
+		assertTrue("slow rounds " + busy[1], busy[1] < 0.25);
+		assertEquals("rounds that failed as a whole", 0, busy[2], 0);
+
+		// The RDU's database gets busy and it can take a quarter of the load
+		rdu.setCapacity(150);
+		healthy = 150 + (int)(TARGET - 50);
+		int load = 0;
+		for (int i = 0; i < 3; i++) {
+			load = rdu.round(controller);
+		}
+		assertTrue("still at " + load + " after three rounds", load <= healthy);
+
+		double[] degraded = settle(controller, rdu, 300, healthy);
+		assertTrue("average load " + degraded[0] + " of " + healthy, degraded[0] > healthy * 0.4);
+		assertTrue("average load " + degraded[0] + " of " + healthy, degraded[0] < healthy);
+		assertTrue("slow rounds " + degraded[1], degraded[1] < 0.25);
+
+		// And it recovers
+		rdu.setCapacity(600);
+		for (int i = 0; i < 100; i++) {
+			rdu.round(controller);
+		}
+		double[] recovered = settle(controller, rdu, 300, 600 + (int)(TARGET - 50));
+		assertEquals(busy[0], recovered[0], busy[0] * 0.1);
+	}
+
+	/**
+	 * Runs a number of rounds against the RDU.
+	 *
+	 * @return The average load, the share of rounds over the healthy load
+	 * 			and the number of rounds that failed as a whole
+	 */
+	private static double[] settle(AdaptiveBatchController controller, DegradingRdu rdu, int rounds, int healthy) {
+		long total = 0;
+		int slow = 0;
+		int failed = 0;
+
+		for (int i = 0; i < rounds; i++) {
+			int load = rdu.round(controller);
+			total += load;
+			if (load > healthy) {
+				slow++;
+			}
+			if (rdu.fails(load)) {
+				failed++;
+			}
+		}
+		return new double[] { (double)total / rounds, (double)slow / rounds, failed };
+	}
+
+	private static void post(AdaptiveBatchController controller, long latency, boolean failed) {
+		controller.release(controller.acquire(), latency, failed);
+	}
+
+
+	private static final long TARGET = 200;
+
+}
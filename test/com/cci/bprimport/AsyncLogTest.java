@@ -0,0 +1,140 @@
+// AsyncLogTest - part of bprimport
+// Copyright (C) 2012  Matt Reath
+
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+package com.cci.bprimport;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * AsyncLog is opened once per JVM, so its whole life, from before
+ * {@link AsyncLog#open} to after {@link AsyncLog#close}, is one test.
+ * <p>
+ * @author Matt Reath
+ * @version 0.1
+ *
+ */
+public class AsyncLogTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void verbosityNames() {
+		assertEquals(AsyncLog.COUNTS, AsyncLog.verbosityFor("counts"));
+		assertEquals(AsyncLog.FAILURES, AsyncLog.verbosityFor("failures"));
+		assertEquals(AsyncLog.ALL, AsyncLog.verbosityFor("all"));
+		try {
+			AsyncLog.verbosityFor("quiet");
+			fail("unknown verbosity accepted");
+		} catch (IllegalArgumentException e) {
+			assertTrue(e.getMessage().contains("quiet"));
+		}
+	}
+
+	@Test(timeout = 60000)
+	public void everyLineFromEveryThreadReachesTheRotatedFiles() throws Exception {
+		PrintStream stdout = System.out;
+		ByteArrayOutputStream console = new ByteArrayOutputStream();
+		System.setOut(new PrintStream(console, true));
+		try {
+			AsyncLog.failure("before open");
+			assertEquals("before open", console.toString().trim());
+			console.reset();
+
+			File log = new File(folder.getRoot(), "run.log");
+			AsyncLog.open(log, AsyncLog.COUNTS, 256 * 1024, 50);
+			assertEquals(log, AsyncLog.getFile());
+
+			ExecutorService threads = Executors.newFixedThreadPool(THREADS);
+			List<Future<?>> done = new ArrayList<Future<?>>();
+			for (int i = 0; i < THREADS; i++) {
+				final int thread = i;
+				done.add(threads.submit(new Runnable() {
+					public void run() {
+						for (int j = 0; j < LINES; j++) {
+							if (j % 2 == 0) {
+								AsyncLog.failure("thread " + thread + " line " + j);
+							} else {
+								AsyncLog.info("thread " + thread + " line " + j);
+							}
+						}
+					}
+				}));
+			}
+			for (Future<?> future : done) {
+				future.get();
+			}
+			threads.shutdown();
+			AsyncLog.close();
+			AsyncLog.close();
+
+			assertEquals("counts echoes nothing", "", console.toString());
+			AsyncLog.failure("after close");
+			assertEquals("after close", console.toString().trim());
+
+			assertTrue("the log was never rotated", new File(log.getPath() + ".1").exists());
+			assertLinesInOrder(log);
+		} finally {
+			System.setOut(stdout);
+		}
+	}
+
+	/**
+	 * Reads the rotated files oldest first and checks each thread's lines
+	 * are all there, once and in the order they were logged.
+	 */
+	private static void assertLinesInOrder(File log) throws IOException {
+		List<File> files = new ArrayList<File>();
+		for (int i = 50; i >= 1; i--) {
+			File rotated = new File(log.getPath() + "." + i);
+			if (rotated.exists()) {
+				files.add(rotated);
+			}
+		}
+		files.add(log);
+
+		int[] next = new int[THREADS];
+		for (File file : files) {
+			BufferedReader in = new BufferedReader(new FileReader(file));
+			String line;
+			while ((line = in.readLine()) != null) {
+				assertTrue(line, line.matches("\\d{4}-\\d\\d-\\d\\d \\d\\d:\\d\\d:\\d\\d\\.\\d{3} (FAIL|INFO) thread \\d+ line \\d+"));
+				String[] words = line.split(" ");
+				int thread = Integer.parseInt(words[4]);
+				int number = Integer.parseInt(words[6]);
+
+				assertEquals(line, next[thread], number);
+				assertEquals(line, number % 2 == 0 ? "FAIL" : "INFO", words[2]);
+				next[thread]++;
+			}
+			in.close();
+		}
+
+		for (int i = 0; i < THREADS; i++) {
+			assertEquals("lines from thread " + i, LINES, next[i]);
+		}
+	}
+
+
+	private static final int THREADS = 4;
+	private static final int LINES = 20000;
+
+}
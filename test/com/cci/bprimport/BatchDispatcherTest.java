@@ -0,0 +1,164 @@
+// BatchDispatcherTest - part of bprimport
+// Copyright (C) 2012  Matt Reath
+
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+package com.cci.bprimport;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import org.junit.Test;
+
+/**
+ * Runs the dispatcher against {@link FakeHandler}s in place of RDU
+ * connections.
+ * <p>
+ * @author Matt Reath
+ * @version 0.1
+ *
+ */
+public class BatchDispatcherTest {
+
+	@Test
+	public void everyBatchIsProcessedOnceBeforeShutdownReturns() throws Exception {
+		List<FakeHandler> handlers = handlers(4, 1);
+		BatchDispatcher dispatcher = new BatchDispatcher(handlers, 8);
+		dispatcher.start();
+
+		for (int i = 0; i < 200; i++) {
+			dispatcher.submit(new RecordBatch(i, FakeHandler.records(i * 10 + 1, 10)));
+		}
+		dispatcher.shutdown();
+
+		Set<Long> sequences = new HashSet<Long>();
+		long records = 0;
+		for (FakeHandler handler : handlers) {
+			for (RecordBatch batch : handler.batches) {
+				assertTrue("batch " + batch.getSequence() + " processed twice", sequences.add(batch.getSequence()));
+			}
+			records += handler.recordCount.get();
+			assertTrue(handler.closed);
+		}
+		assertEquals(200, sequences.size());
+		assertEquals(2000, records);
+	}
+
+	@Test
+	public void workIsSpreadOverEveryWorker() throws Exception {
+		List<FakeHandler> handlers = handlers(4, 5);
+		BatchDispatcher dispatcher = new BatchDispatcher(handlers, 8);
+		dispatcher.start();
+
+		for (int i = 0; i < 40; i++) {
+			dispatcher.submit(new RecordBatch(i, FakeHandler.records(i + 1, 1)));
+		}
+		dispatcher.shutdown();
+
+		for (FakeHandler handler : handlers) {
+			assertFalse(handler.batches.isEmpty());
+		}
+	}
+
+	@Test
+	public void submitBlocksOnceTheQueueIsFull() throws Exception {
+		final FakeHandler handler = new FakeHandler(0);
+		handler.hold();
+		final BatchDispatcher dispatcher = new BatchDispatcher(Collections.singletonList(handler), 2);
+		dispatcher.start();
+
+		// One batch held by the worker, two in the queue
+		for (int i = 0; i < 3; i++) {
+			dispatcher.submit(new RecordBatch(i, FakeHandler.records(i + 1, 1)));
+		}
+
+		ExecutorService reader = Executors.newSingleThreadExecutor();
+		Future<?> fourth = reader.submit(new Callable<Void>() {
+			public Void call() throws Exception {
+				dispatcher.submit(new RecordBatch(3, FakeHandler.records(4, 1)));
+				return null;
+			}
+		});
+
+		try {
+			fourth.get(200, TimeUnit.MILLISECONDS);
+			fail("submit did not block on a full queue");
+		} catch (TimeoutException e) {
+			// Expected, the reader is held back
+		}
+
+		handler.release();
+		fourth.get(5, TimeUnit.SECONDS);
+		dispatcher.shutdown();
+		reader.shutdown();
+		assertEquals(4, handler.batches.size());
+	}
+
+	@Test
+	public void aBatchThatThrowsDoesNotStopTheWorker() throws Exception {
+		FakeHandler handler = new FakeHandler(0);
+		handler.failSequence = 1;
+		BatchDispatcher dispatcher = new BatchDispatcher(Collections.singletonList(handler), 4);
+		dispatcher.start();
+
+		for (int i = 0; i < 5; i++) {
+			dispatcher.submit(new RecordBatch(i, FakeHandler.records(i + 1, 1)));
+		}
+		dispatcher.shutdown();
+
+		assertEquals(5, handler.batches.size());
+		assertTrue(handler.closed);
+	}
+
+	@Test
+	public void shutdownWaitsForRetriesStillWaitingOutTheirDelay() throws Exception {
+		final List<RecordBatch> seen = new CopyOnWriteArrayList<RecordBatch>();
+		final BatchDispatcher[] dispatcher = new BatchDispatcher[1];
+
+		BatchHandler handler = new BatchHandler() {
+			public void process(RecordBatch batch) {
+				seen.add(batch);
+				if (batch.getAttempt() < 2) {
+					dispatcher[0].submitLater(batch.retry(batch.getRecords()), 50);
+				}
+			}
+
+			public void close() {
+			}
+		};
+
+		dispatcher[0] = new BatchDispatcher(Collections.singletonList(handler), 4);
+		dispatcher[0].start();
+
+		// The first delay can start as soon as the batch is submitted
+		long start = System.nanoTime();
+		dispatcher[0].submit(new RecordBatch(7, FakeHandler.records(1, 3)));
+		dispatcher[0].shutdown();
+
+		assertEquals(3, seen.size());
+		assertEquals(2, seen.get(2).getAttempt());
+		assertEquals(7, seen.get(2).getSequence());
+		assertTrue((System.nanoTime() - start) / 1000000 >= 100);
+		assertEquals(0, dispatcher[0].getDelayedCount());
+	}
+
+	private static List<FakeHandler> handlers(int count, long postMillis) {
+		List<FakeHandler> handlers = new ArrayList<FakeHandler>();
+		for (int i = 0; i < count; i++) {
+			handlers.add(new FakeHandler(postMillis));
+		}
+		return handlers;
+	}
+
+}
@@ -0,0 +1,152 @@
+// BprExportTest - part of bprimport
+// Copyright (C) 2012  Matt Reath
+
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+package com.cci.bprimport;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.util.*;
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Looks up device details through {@link BprExport#process} on a
+ * {@link FakeRdu} and checks what ends up in the export.
+ * <p>
+ * @author Matt Reath
+ * @version 0.1
+ *
+ */
+public class BprExportTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Before
+	public void setUp() throws IOException {
+		deadLetters = folder.newFile("export.dead");
+		dispatcher = new BatchDispatcher(Collections.singletonList(new FakeHandler(0)), 4);
+		retries = new RetryPolicy(dispatcher, deadLetters, false);
+		exported = new ByteArrayOutputStream();
+		writer = new ExportWriter(exported, ExportFormat.PIPE);
+	}
+
+	@Test
+	public void everyDeviceIsWrittenWithItsOwnDetails() throws IOException {
+		FakeRdu rdu = new DetailsRdu(null, null);
+		BprExport worker = worker(rdu);
+
+		worker.process(new RecordBatch(0, devices(4)));
+
+		assertEquals(1, rdu.posts.size());
+		assertEquals("getDetails", rdu.posts.get(0).get(0).name);
+		assertEquals(Arrays.asList(line(1), line(2), line(3), line(4)), exported());
+	}
+
+	@Test
+	public void aFailedLookupIsReportedAndTheRestPostedAgain() throws IOException {
+		FakeRdu rdu = new DetailsRdu(FakeHandler.mac(2), "Device not found");
+		BprExport worker = worker(rdu);
+
+		worker.process(new RecordBatch(0, devices(4)));
+
+		assertEquals(2, rdu.posts.size());
+		assertEquals(Arrays.asList(FakeHandler.mac(1), FakeHandler.mac(3), FakeHandler.mac(4)), rdu.macs(1));
+		assertEquals(Arrays.asList(line(1), line(3), line(4)), exported());
+
+		retries.close();
+		List<String> dead = BprImportTest.lines(deadLetters);
+		assertEquals(1, dead.size());
+		assertTrue(dead.get(0), dead.get(0).contains("|Device not found|"));
+		assertTrue(dead.get(0), dead.get(0).contains(FakeHandler.mac(2)));
+	}
+
+	@Test
+	public void aTransientFailureIsHandedBackForLater() throws IOException {
+		FakeRdu rdu = new DetailsRdu(FakeHandler.mac(3), "Read timed out");
+		BprExport worker = worker(rdu);
+
+		worker.process(new RecordBatch(0, devices(4)));
+
+		assertEquals(Arrays.asList(line(1), line(2), line(4)), exported());
+		assertEquals(1, retries.getRetriedCount());
+		assertEquals(1, dispatcher.getDelayedCount());
+		assertEquals(0, retries.getDeadLetterCount());
+	}
+
+	/**
+	 * Answers getDetails with properties made from the MAC address, and
+	 * fails one MAC if given.
+	 */
+	private static class DetailsRdu extends FakeRdu {
+
+		DetailsRdu(String failMac, String error) {
+			this.failMac = failMac;
+			this.error = error;
+		}
+
+		Answer answer(Command command) {
+			String mac = command.getMacAddress();
+			if (mac.equals(failMac)) {
+				return Answer.error(error);
+			}
+
+			Map<String, String> details = new HashMap<String, String>();
+			details.put("/ownerID", "owner-" + mac);
+			details.put("/provisioning/classOfService", "silver");
+			details.put("/provisioning/dhcpCriteria", "provisioned-docsis");
+			return Answer.ok(details);
+		}
+
+
+		private String failMac;
+		private String error;
+
+	}
+
+	private BprExport worker(FakeRdu rdu) {
+		BprExport worker = new BprExport();
+		worker.setConnection(rdu.connect());
+		worker.setWriter(writer);
+		worker.setRetryPolicy(retries);
+		return worker;
+	}
+
+	private static List<DeviceRecord> devices(int count) {
+		List<DeviceRecord> devices = new ArrayList<DeviceRecord>();
+		for (int i = 1; i <= count; i++) {
+			devices.add(new DeviceRecord(0, null, FakeHandler.mac(i), null, null));
+		}
+		return devices;
+	}
+
+	private List<String> exported() throws IOException {
+		writer.close();
+		return Arrays.asList(exported.toString("ISO-8859-1").split("\n"));
+	}
+
+	private static String line(int n) {
+		return "owner-" + FakeHandler.mac(n) + "|" + FakeHandler.mac(n) + "|silver|provisioned-docsis";
+	}
+
+
+	private File deadLetters;
+	private BatchDispatcher dispatcher;
+	private RetryPolicy retries;
+	private ByteArrayOutputStream exported;
+	private ExportWriter writer;
+
+}
@@ -0,0 +1,194 @@
+// BprImportTest - part of bprimport
+// Copyright (C) 2012  Matt Reath
+
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+package com.cci.bprimport;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.util.*;
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Posts record batches through {@link BprImport#process} to a
+ * {@link FakeRdu} and checks what is reported against each line.
+ * <p>
+ * @author Matt Reath
+ * @version 0.1
+ *
+ */
+public class BprImportTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Before
+	public void setUp() throws IOException {
+		deadLetters = folder.newFile("input.txt.dead");
+		dispatcher = new BatchDispatcher(Collections.singletonList(new FakeHandler(0)), 4);
+		retries = new RetryPolicy(dispatcher, deadLetters, false);
+		ledgerFile = folder.newFile("input.txt.ledger");
+		ledger = new ResultLedger(ledgerFile, false);
+	}
+
+	@Test
+	public void aCleanBatchIsPostedOnce() throws IOException {
+		FakeRdu rdu = new FakeRdu();
+		BprImport worker = worker(rdu);
+
+		worker.process(new RecordBatch(0, FakeHandler.records(1, 5)));
+
+		assertEquals(1, rdu.posts.size());
+		assertEquals(5, rdu.posts.get(0).size());
+		assertEquals("add", rdu.posts.get(0).get(0).name);
+		assertEquals(5, worker.getAddedCount());
+		assertEquals(0, worker.getFailedCount());
+		assertEquals(5, ledger(ResultLedger.OK).size());
+	}
+
+	@Test
+	public void aFailedCommandIsReportedAndTheRestPostedAgain() throws IOException {
+		FakeRdu rdu = new FakeRdu() {
+			Answer answer(Command command) {
+				return command.getMacAddress().equals(FakeHandler.mac(3)) ? Answer.error("Device already exists")
+					: Answer.ok(null);
+			}
+		};
+		BprImport worker = worker(rdu);
+
+		worker.process(new RecordBatch(0, FakeHandler.records(1, 5)));
+
+		assertEquals(2, rdu.posts.size());
+		assertEquals(Arrays.asList(FakeHandler.mac(1), FakeHandler.mac(2), FakeHandler.mac(4), FakeHandler.mac(5)),
+			rdu.macs(1));
+		assertEquals(4, worker.getAddedCount());
+		assertEquals(1, worker.getFailedCount());
+		assertEquals(0, retries.getRetriedCount());
+
+		retries.close();
+		List<String> dead = lines(deadLetters);
+		assertEquals(1, dead.size());
+		assertTrue(dead.get(0), dead.get(0).startsWith("3|Device already exists|"));
+
+		List<ResultLedger.Entry> failed = ledger(ResultLedger.FAILED);
+		assertEquals(1, failed.size());
+		assertEquals(3, failed.get(0).getLineNumber());
+		assertEquals(2, failed.get(0).getCommand());
+		assertEquals("batch-0", failed.get(0).getBatchId());
+		assertEquals(4, ledger(ResultLedger.OK).size());
+	}
+
+	@Test
+	public void aRecordWithSeveralCommandsFailsOnce() throws IOException {
+		FakeRdu rdu = new FakeRdu() {
+			Answer answer(Command command) {
+				return command.name.equals("changeClassOfService") && command.getMacAddress().equals(FakeHandler.mac(2))
+					? Answer.error("Unknown class of service") : Answer.ok(null);
+			}
+		};
+		BprImport worker = worker(rdu);
+		List<DeviceRecord> records = FakeHandler.records(1, 3);
+		for (DeviceRecord record : records) {
+			record.setOperation(DeviceRecord.CHANGE_OWNER | DeviceRecord.CHANGE_CLASS_OF_SERVICE);
+		}
+
+		worker.process(new RecordBatch(0, records));
+
+		assertEquals(6, rdu.posts.get(0).size());
+		assertEquals(Arrays.asList(FakeHandler.mac(1), FakeHandler.mac(1), FakeHandler.mac(3), FakeHandler.mac(3)),
+			rdu.macs(1));
+		assertEquals(2, worker.getAddedCount());
+		assertEquals(1, worker.getFailedCount());
+	}
+
+	@Test
+	public void aTransientFailureIsHandedBackForLater() throws IOException {
+		FakeRdu rdu = new FakeRdu() {
+			Answer answer(Command command) {
+				return command.getMacAddress().equals(FakeHandler.mac(4)) ? Answer.error("Lock wait timeout")
+					: Answer.ok(null);
+			}
+		};
+		BprImport worker = worker(rdu);
+
+		worker.process(new RecordBatch(0, FakeHandler.records(1, 5)));
+
+		assertEquals(2, rdu.posts.size());
+		assertEquals(4, rdu.posts.get(1).size());
+		assertEquals(4, worker.getAddedCount());
+		assertEquals(0, worker.getFailedCount());
+		assertEquals(1, retries.getRetriedCount());
+		assertEquals(1, dispatcher.getDelayedCount());
+		assertEquals(0, retries.getDeadLetterCount());
+	}
+
+	@Test
+	public void everyCommandFailingLeavesNothingToPostAgain() throws IOException {
+		FakeRdu rdu = new FakeRdu() {
+			Answer answer(Command command) {
+				return Answer.error("Device already exists");
+			}
+		};
+		BprImport worker = worker(rdu);
+
+		worker.process(new RecordBatch(0, FakeHandler.records(1, 3)));
+
+		assertEquals(1, rdu.posts.size());
+		assertEquals(0, worker.getAddedCount());
+		assertEquals(3, worker.getFailedCount());
+		assertEquals(3, retries.getDeadLetterCount());
+	}
+
+	private BprImport worker(FakeRdu rdu) {
+		BprImport worker = new BprImport();
+		worker.setConnection(rdu.connect());
+		worker.setRetryPolicy(retries);
+		worker.setLedger(ledger);
+		return worker;
+	}
+
+	private List<ResultLedger.Entry> ledger(int status) throws IOException {
+		List<ResultLedger.Entry> entries = new ArrayList<ResultLedger.Entry>();
+		ResultLedger.Reader reader = new ResultLedger.Reader(ledgerFile);
+		ResultLedger.Entry entry;
+		while ((entry = reader.next()) != null) {
+			if (entry.getStatus() == status) {
+				entries.add(entry);
+			}
+		}
+		reader.close();
+		return entries;
+	}
+
+	static List<String> lines(File file) throws IOException {
+		List<String> lines = new ArrayList<String>();
+		BufferedReader in = new BufferedReader(new FileReader(file));
+		String line;
+		while ((line = in.readLine()) != null) {
+			lines.add(line);
+		}
+		in.close();
+		return lines;
+	}
+
+
+	private File deadLetters;
+	private File ledgerFile;
+	private BatchDispatcher dispatcher;
+	private RetryPolicy retries;
+	private ResultLedger ledger;
+
+}
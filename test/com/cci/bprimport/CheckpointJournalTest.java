@@ -0,0 +1,96 @@
+// CheckpointJournalTest - part of bprimport
+// Copyright (C) 2012  Matt Reath
+
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+package com.cci.bprimport;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.util.*;
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * @author Matt Reath
+ * @version 0.1
+ *
+ */
+public class CheckpointJournalTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void nothingCommittedReadsAsTheStartOfTheFile() throws IOException {
+		File file = folder.newFile("input.txt.journal");
+		file.delete();
+
+		assertArrayEquals(new long[] { 0, 0 }, CheckpointJournal.readCheckpoint(file));
+	}
+
+	@Test
+	public void watermarkOnlyMovesPastBatchesCommittedInOrder() throws IOException {
+		File file = folder.newFile("input.txt.journal");
+		CheckpointJournal journal = new CheckpointJournal(file, false);
+		RecordBatch first = new RecordBatch(0, FakeHandler.records(1, 10));
+		RecordBatch second = new RecordBatch(1, FakeHandler.records(11, 10));
+		RecordBatch third = new RecordBatch(2, FakeHandler.records(21, 10));
+
+		journal.commit(second, Arrays.asList("b2"));
+		journal.commit(third, Arrays.asList("b3"));
+		assertArrayEquals(new long[] { 0, 0 }, CheckpointJournal.readCheckpoint(file));
+
+		journal.commit(first, Arrays.asList("b1"));
+		journal.close();
+		assertArrayEquals(new long[] { 30, 3000 }, CheckpointJournal.readCheckpoint(file));
+	}
+
+	@Test
+	public void aRetryOfPartOfABatchStillMovesTheWatermarkToItsLastLine() throws IOException {
+		File file = folder.newFile("input.txt.journal");
+		CheckpointJournal journal = new CheckpointJournal(file, false);
+		RecordBatch batch = new RecordBatch(0, FakeHandler.records(1, 10));
+
+		// Only the first record failed and was tried again
+		journal.commit(batch.retry(batch.getRecords().subList(0, 1)), Collections.<String>emptyList());
+		journal.close();
+
+		assertArrayEquals(new long[] { 10, 1000 }, CheckpointJournal.readCheckpoint(file));
+	}
+
+	@Test
+	public void aTornLastLineIsIgnored() throws IOException {
+		File file = folder.newFile("input.txt.journal");
+		Writer out = new FileWriter(file);
+		out.write("B 0 b1\nW 10 1000\nW 2");
+		out.close();
+
+		assertArrayEquals(new long[] { 10, 1000 }, CheckpointJournal.readCheckpoint(file));
+	}
+
+	@Test
+	public void resumeKeepsTheEntriesAlreadyWritten() throws IOException {
+		File file = folder.newFile("input.txt.journal");
+		CheckpointJournal journal = new CheckpointJournal(file, false);
+		journal.commit(new RecordBatch(0, FakeHandler.records(1, 5)), Arrays.asList("b1"));
+		journal.close();
+
+		journal = new CheckpointJournal(file, true);
+		journal.close();
+
+		assertArrayEquals(new long[] { 5, 500 }, CheckpointJournal.readCheckpoint(file));
+	}
+
+}
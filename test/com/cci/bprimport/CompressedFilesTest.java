@@ -0,0 +1,112 @@
+// CompressedFilesTest - part of bprimport
+// Copyright (C) 2012  Matt Reath
+
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+package com.cci.bprimport;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.util.zip.GZIPInputStream;
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * @author Matt Reath
+ * @version 0.1
+ *
+ */
+public class CompressedFilesTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void aGzFileRoundTripsThroughBothThreads() throws IOException {
+		File file = new File(folder.getRoot(), "export.txt.GZ");
+		assertTrue(CompressedFiles.isCompressed(file));
+
+		// Several chunks each way, written in odd sized pieces
+		byte[] text = text(3 * 256 * 1024 + 1234);
+		OutputStream out = CompressedFiles.openOutput(file);
+		assertTrue(out instanceof WriteBehindOutputStream);
+		for (int off = 0; off < text.length; off += 1000) {
+			out.write(text, off, Math.min(1000, text.length - off));
+		}
+		out.close();
+
+		// A plain GZIPInputStream can read it, so it is a real gzip file
+		assertArrayEquals(text, readAll(new GZIPInputStream(new FileInputStream(file))));
+
+		InputStream in = CompressedFiles.openInput(file);
+		assertTrue(in instanceof ReadAheadInputStream);
+		assertArrayEquals(text, readAll(in));
+	}
+
+	@Test
+	public void anOffsetCountsUncompressedBytes() throws IOException {
+		byte[] text = text(100000);
+		for (String name : new String[] { "macs.txt", "macs.txt.gz" }) {
+			File file = new File(folder.getRoot(), name);
+			OutputStream out = CompressedFiles.openOutput(file);
+			out.write(text);
+			out.close();
+
+			byte[] rest = readAll(CompressedFiles.openInput(file, 60000));
+			assertEquals(name, 40000, rest.length);
+			assertEquals(name, text[60000], rest[0]);
+			assertEquals(name, text[text.length - 1], rest[rest.length - 1]);
+		}
+	}
+
+	@Test(expected = EOFException.class)
+	public void anOffsetPastTheEndOfACompressedFileFails() throws IOException {
+		File file = new File(folder.getRoot(), "macs.txt.gz");
+		OutputStream out = CompressedFiles.openOutput(file);
+		out.write(text(10));
+		out.close();
+
+		CompressedFiles.openInput(file, 11);
+	}
+
+	/**
+	 * @return Numbered lines, as many bytes as asked for
+	 */
+	static byte[] text(int length) {
+		StringBuilder text = new StringBuilder(length + 16);
+		for (int line = 1; text.length() < length; line++) {
+			text.append(line).append("|1,6,00:0C:E5:32:D0:6A|silver|provisioned-docsis\n");
+		}
+		text.setLength(length);
+		return text.toString().getBytes();
+	}
+
+	/**
+	 * Reads a stream to the end and closes it.
+	 */
+	static byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int n;
+		try {
+			while ((n = in.read(buffer)) != -1) {
+				bytes.write(buffer, 0, n);
+			}
+		} finally {
+			in.close();
+		}
+		return bytes.toByteArray();
+	}
+
+}
@@ -0,0 +1,158 @@
+// ConnectionManagerTest - part of bprimport
+// Copyright (C) 2012  Matt Reath
+
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+package com.cci.bprimport;
+
+import static org.junit.Assert.*;
+
+import com.cisco.provisioning.cpe.PACEConnection;
+import java.io.IOException;
+import java.util.concurrent.*;
+import org.junit.*;
+
+/**
+ * Runs a {@link ConnectionManager} against two {@link FakeRdu}s, a primary
+ * and a standby, that a test takes down and brings back.
+ * <p>
+ * @author Matt Reath
+ * @version 0.1
+ *
+ */
+public class ConnectionManagerTest {
+
+	@Before
+	public void setUp() {
+		primary = new FakeRdu();
+		standby = new FakeRdu();
+		primaryUp = true;
+		standbyUp = true;
+	}
+
+	@After
+	public void tearDown() {
+		if (manager != null) {
+			manager.close();
+		}
+	}
+
+	@Test(timeout = 30000)
+	public void aBrokenConnectionIsSwappedForASpare() throws Exception {
+		manager = manager(false);
+		PACEConnection worker = manager.acquire();
+		assertEquals(1, primary.logins.get());
+
+		manager.start();
+		assertTrue(loggedIn.tryAcquire(2, 10, TimeUnit.SECONDS));
+
+		PACEConnection replacement = manager.replace(worker);
+		assertNotSame(worker, replacement);
+		assertEquals(1, primary.releases.get());
+		assertEquals(1, manager.getReplacedCount());
+
+		// The spare that was handed out is logged in again in the background
+		assertTrue(loggedIn.tryAcquire(10, TimeUnit.SECONDS));
+		assertEquals(3, primary.logins.get());
+		assertEquals(0, manager.getFailoverCount());
+	}
+
+	@Test(timeout = 30000)
+	public void replaceGivesUpAfterTheTimeoutAndKeepsTheBrokenConnection() throws Exception {
+		manager = manager(false);
+		PACEConnection worker = manager.acquire();
+		primaryUp = false;
+		manager.setReplaceTimeout(200);
+		manager.start();
+
+		long start = System.nanoTime();
+		try {
+			manager.replace(worker);
+			fail("replace() did not time out");
+		} catch (IOException e) {
+			assertEquals("Timed out after 200 ms waiting for a connection to primary:49187", e.getMessage());
+		}
+		assertTrue((System.nanoTime() - start) / 1000000 >= 200);
+		assertEquals(0, primary.releases.get());
+		assertEquals(0, manager.getReplacedCount());
+
+		// Once the RDU answers again the next replace gets a connection
+		primaryUp = true;
+		manager.setReplaceTimeout(10000);
+		assertNotSame(worker, manager.replace(worker));
+		assertEquals(1, primary.releases.get());
+	}
+
+	@Test(timeout = 30000)
+	public void loginsMoveToTheStandbyAndBackToThePrimary() throws Exception {
+		manager = manager(true);
+		manager.setReplaceTimeout(10000);
+		PACEConnection worker = manager.acquire();
+		assertEquals(1, primary.logins.get());
+
+		primaryUp = false;
+		manager.start();
+		assertTrue(standbyLogin.tryAcquire(10, TimeUnit.SECONDS));
+
+		// The spare came from the standby, the next one from the primary
+		primaryUp = true;
+		PACEConnection fromStandby = manager.replace(worker);
+		assertEquals(1, standby.logins.get());
+		assertEquals(1, manager.getFailoverCount());
+
+		PACEConnection fromPrimary = manager.replace(fromStandby);
+		assertNotSame(fromStandby, fromPrimary);
+		assertEquals("primary:49187", manager.getActive().toString());
+		assertEquals(2, primary.logins.get());
+		assertEquals(1, standby.releases.get());
+		assertEquals(1, manager.getFailoverCount());
+		assertEquals(2, manager.getReplacedCount());
+	}
+
+	@Test
+	public void anEndpointTakesThePortItIsGiven() {
+		assertEquals("standby:49187", ConnectionManager.Endpoint.parse("standby", 49187).toString());
+		assertEquals("10.0.0.2:4000", ConnectionManager.Endpoint.parse("10.0.0.2:4000", 49187).toString());
+	}
+
+	/**
+	 * @param withStandby	False for a primary RDU only
+	 */
+	private ConnectionManager manager(boolean withStandby) {
+		final ConnectionManager.Endpoint primaryEndpoint = new ConnectionManager.Endpoint("primary", 49187);
+
+		return new ConnectionManager(primaryEndpoint,
+				withStandby ? new ConnectionManager.Endpoint("standby", 49187) : null, "user", "password") {
+			PACEConnection login(Endpoint endpoint) throws IOException {
+				boolean isPrimary = endpoint == primaryEndpoint;
+				if (!(isPrimary ? primaryUp : standbyUp)) {
+					throw new IOException("Could not connect to " + endpoint + ": Connection refused");
+				}
+
+				PACEConnection connection = (isPrimary ? primary : standby).connect();
+				(isPrimary ? loggedIn : standbyLogin).release();
+				return connection;
+			}
+		};
+	}
+
+
+	private FakeRdu primary;
+	private FakeRdu standby;
+	private volatile boolean primaryUp;
+	private volatile boolean standbyUp;
+	private ConnectionManager manager;
+	private Semaphore loggedIn = new Semaphore(0);
+	private Semaphore standbyLogin = new Semaphore(0);
+
+}
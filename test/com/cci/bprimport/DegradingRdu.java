@@ -0,0 +1,98 @@
+// DegradingRdu - part of bprimport
+// Copyright (C) 2012  Matt Reath
+
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+package com.cci.bprimport;
+
+/**
+ * DegradingRdu stands in for an RDU whose response time depends on how many
+ * commands it is working on at once. Up to its capacity every batch takes
+ * the base latency; past it each extra command adds to the latency, and at
+ * twice the capacity batches start to fail as a whole, as they would on a
+ * timeout. The capacity can be lowered mid run to play the RDU's own
+ * database load.
+ * <p>
+ * Time is simulated, nothing sleeps, so a run of thousands of posts is
+ * instant and gives the same result every time.
+ * <p>
+ * @author Matt Reath
+ * @version 0.1
+ *
+ */
+class DegradingRdu {
+
+	/**
+	 * @param capacity				Commands in flight before it slows down
+	 * @param baseLatency			Milliseconds per batch within capacity
+	 * @param latencyPerCommand		Milliseconds added per command over capacity
+	 */
+	DegradingRdu(int capacity, long baseLatency, long latencyPerCommand) {
+		this.capacity = capacity;
+		this.baseLatency = baseLatency;
+		this.latencyPerCommand = latencyPerCommand;
+	}
+
+	void setCapacity(int capacity) {
+		this.capacity = capacity;
+	}
+
+	int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * @return How long each batch takes with load commands in flight
+	 */
+	long latency(int load) {
+		return baseLatency + Math.max(0, load - capacity) * latencyPerCommand;
+	}
+
+	/**
+	 * @return True if batches fail as a whole with load commands in flight
+	 */
+	boolean fails(int load) {
+		return load > capacity * 2;
+	}
+
+	/**
+	 * Posts as many batches at once as the controller allows, each of the
+	 * batch size it asks for, and reports every one back to it.
+	 *
+	 * @return The number of commands that were in flight
+	 */
+	int round(AdaptiveBatchController controller) {
+		int batches = controller.getInFlightLimit();
+		int size = controller.getBatchSize();
+		long[] tickets = new long[batches];
+
+		for (int i = 0; i < batches; i++) {
+			tickets[i] = controller.acquire();
+		}
+
+		int load = batches * size;
+		long latency = latency(load);
+		boolean failed = fails(load);
+
+		for (int i = 0; i < batches; i++) {
+			controller.release(tickets[i], latency, failed);
+		}
+		return load;
+	}
+
+
+	private int capacity;
+	private long baseLatency;
+	private long latencyPerCommand;
+
+}
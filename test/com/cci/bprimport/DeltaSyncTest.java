@@ -0,0 +1,176 @@
+// DeltaSyncTest - part of bprimport
+// Copyright (C) 2012  Matt Reath
+
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+package com.cci.bprimport;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.util.*;
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * @author Matt Reath
+ * @version 0.1
+ *
+ */
+public class DeltaSyncTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Before
+	public void loadSnapshot() throws IOException {
+		snapshot = folder.newFile("snapshot.txt");
+		Writer out = new FileWriter(snapshot);
+		for (int i = 1; i <= 5; i++) {
+			out.write("o" + i + "|" + FakeHandler.mac(i) + "|silver|provisioned-docsis\n");
+		}
+		out.close();
+		DeltaSync.writeTypes(snapshot, Collections.singletonList("docsis"));
+
+		sync = new DeltaSync("-d");
+		assertEquals(5, sync.load(snapshot));
+	}
+
+	@Test
+	public void onlyWhatChangedIsSent() throws IOException {
+		assertFalse(sync.diff(record(1, "o1", "silver")));
+
+		DeviceRecord changed = record(2, "o2", "gold");
+		assertTrue(sync.diff(changed));
+		assertEquals(DeviceRecord.CHANGE_CLASS_OF_SERVICE, changed.getOperation());
+
+		DeviceRecord moved = record(3, "o9", "gold");
+		assertTrue(sync.diff(moved));
+		assertEquals(DeviceRecord.CHANGE_OWNER | DeviceRecord.CHANGE_CLASS_OF_SERVICE, moved.getOperation());
+
+		DeviceRecord added = record(6, "o6", "silver");
+		assertTrue(sync.diff(added));
+		assertEquals(DeviceRecord.ADD, added.getOperation());
+
+		assertEquals(Arrays.asList(FakeHandler.mac(4), FakeHandler.mac(5)), deletes());
+		assertTrue(sync.canDelete());
+	}
+
+	@Test
+	public void aSkippedLineKeepsItsDevice() throws IOException {
+		sync.diff(record(1, "o1", "silver"));
+		sync.keep(FakeHandler.mac(2));
+		sync.keep(FakeHandler.mac(3).toLowerCase());
+
+		assertEquals(Arrays.asList(FakeHandler.mac(4), FakeHandler.mac(5)), deletes());
+		assertTrue(sync.canDelete());
+	}
+
+	@Test
+	public void aLineWithoutAReadableMacStopsTheDeletes() {
+		sync.keep(FakeHandler.mac(1));
+		assertTrue(sync.canDelete());
+
+		sync.keep("1,6,00:0C:E5:32:D0");
+		sync.keep(null);
+		assertFalse(sync.canDelete());
+		assertEquals(2, sync.getUnreadableCount());
+	}
+
+	@Test
+	public void malformedLinesCarryTheirMacField() throws IOException {
+		DeviceRecordReader reader = new DeviceRecordReader(new ByteArrayInputStream(
+			("o1|" + FakeHandler.mac(1) + "|silver|docsis|extra\n"
+				+ "o2|" + FakeHandler.mac(2) + "\n"
+				+ "o3\n").getBytes("ISO-8859-1")));
+
+		for (int i = 1; i <= 3; i++) {
+			try {
+				reader.next();
+				fail("line " + i + " was not reported");
+			} catch (MalformedRecordException e) {
+				sync.keep(e.getMacAddress());
+			}
+		}
+
+		assertEquals(Arrays.asList(FakeHandler.mac(3), FakeHandler.mac(4), FakeHandler.mac(5)), deletes());
+		assertEquals(1, sync.getUnreadableCount());
+	}
+
+	@Test
+	public void aSnapshotOfOtherDeviceTypesStopsTheDeletes() throws IOException {
+		DeltaSync.writeTypes(snapshot, Arrays.asList("docsis", "mta", "computer"));
+		assertEquals(Arrays.asList("docsis", "mta", "computer"), DeltaSync.readTypes(snapshot));
+
+		DeltaSync mixed = new DeltaSync("-d");
+		mixed.load(snapshot);
+		assertFalse(mixed.canDelete());
+		assertTrue(mixed.whyNotDelete(), mixed.whyNotDelete().contains("[docsis, mta, computer]"));
+
+		DeltaSync mta = new DeltaSync("-m");
+		mta.load(snapshot);
+		assertFalse(mta.canDelete());
+
+		DeltaSync.writeTypes(snapshot, Collections.singletonList("mta"));
+		mta = new DeltaSync("-m");
+		mta.load(snapshot);
+		assertNull(mta.whyNotDelete());
+	}
+
+	@Test
+	public void aSnapshotWithoutItsTypesStopsTheDeletes() throws IOException {
+		assertTrue(DeltaSync.typesFor(snapshot).delete());
+		assertNull(DeltaSync.readTypes(snapshot));
+
+		DeltaSync unknown = new DeltaSync("-d");
+		unknown.load(snapshot);
+		assertFalse(unknown.canDelete());
+	}
+
+	@Test
+	public void ownersWithTheSameHashCodeAreTold() throws IOException {
+		assertEquals("Aa".hashCode(), "BB".hashCode());
+		assertEquals("1000Aa".hashCode(), "1000BB".hashCode());
+		assertTrue(DeltaSync.fingerprint("Aa") != DeltaSync.fingerprint("BB"));
+		assertEquals(0, DeltaSync.fingerprint(null));
+
+		Writer out = new FileWriter(snapshot);
+		out.write("1000Aa|" + FakeHandler.mac(1) + "|silver|provisioned-docsis\n");
+		out.close();
+		DeltaSync owners = new DeltaSync("-d");
+		owners.load(snapshot);
+
+		DeviceRecord moved = record(1, "1000BB", "silver");
+		assertTrue(owners.diff(moved));
+		assertEquals(DeviceRecord.CHANGE_OWNER, moved.getOperation());
+	}
+
+	private List<String> deletes() {
+		List<String> macs = new ArrayList<String>();
+		for (DeviceRecord record : sync.getDeletes()) {
+			assertEquals(DeviceRecord.DELETE, record.getOperation());
+			macs.add(record.getMacAddress());
+		}
+		Collections.sort(macs);
+		return macs;
+	}
+
+	private static DeviceRecord record(long n, String owner, String classOfService) {
+		return new DeviceRecord(n, owner, FakeHandler.mac(n), classOfService, "provisioned-docsis");
+	}
+
+
+	private File snapshot;
+	private DeltaSync sync;
+
+}
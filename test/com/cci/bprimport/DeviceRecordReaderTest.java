@@ -0,0 +1,190 @@
+// DeviceRecordReaderTest - part of bprimport
+// Copyright (C) 2012  Matt Reath
+
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+package com.cci.bprimport;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.util.*;
+import org.junit.Test;
+
+/**
+ * @author Matt Reath
+ * @version 0.1
+ *
+ */
+public class DeviceRecordReaderTest {
+
+	@Test
+	public void parsesFourAndThreeFieldLines() throws IOException {
+		DeviceRecordReader reader = reader("o1|1,6,00:0C:E5:32:D0:6A|silver|provisioned-docsis\n"
+			+ "o2|1,6,00:0C:E5:32:D0:6B|gold\n");
+
+		DeviceRecord first = reader.next();
+		assertEquals("o1", first.getOwnerID());
+		assertEquals("1,6,00:0C:E5:32:D0:6A", first.getMacAddress());
+		assertEquals("silver", first.getClassOfService());
+		assertEquals("provisioned-docsis", first.getDhcpCriteria());
+
+		DeviceRecord second = reader.next();
+		assertEquals("gold", second.getClassOfService());
+		assertNull(second.getDhcpCriteria());
+		assertNull(reader.next());
+	}
+
+	@Test
+	public void emptyFieldsAndTheNullSentinelBecomeNull() throws IOException {
+		DeviceRecord record = reader("null|1,6,00:0C:E5:32:D0:6A||null\n").next();
+
+		assertNull(record.getOwnerID());
+		assertNull(record.getClassOfService());
+		assertNull(record.getDhcpCriteria());
+	}
+
+	@Test
+	public void nullOnlyMatchesTheWholeField() throws IOException {
+		DeviceRecord record = reader("nullable|1,6,00:0C:E5:32:D0:6A|nul|NULL\n").next();
+
+		assertEquals("nullable", record.getOwnerID());
+		assertEquals("nul", record.getClassOfService());
+		assertEquals("NULL", record.getDhcpCriteria());
+	}
+
+	@Test
+	public void crlfLineEndingsAreStripped() throws IOException {
+		DeviceRecordReader reader = reader("o1|1,6,00:0C:E5:32:D0:6A|silver|docsis\r\n"
+			+ "o2|1,6,00:0C:E5:32:D0:6B|silver\r\n");
+
+		assertEquals("docsis", reader.next().getDhcpCriteria());
+		DeviceRecord second = reader.next();
+		assertEquals("silver", second.getClassOfService());
+		assertNull(second.getDhcpCriteria());
+		assertEquals(2, second.getLineNumber());
+		assertNull(reader.next());
+	}
+
+	@Test
+	public void aLastLineWithoutANewlineIsRead() throws IOException {
+		String text = "o1|1,6,00:0C:E5:32:D0:6A|silver|a\no2|1,6,00:0C:E5:32:D0:6B|silver|b";
+		DeviceRecordReader reader = reader(text);
+
+		reader.next();
+		DeviceRecord last = reader.next();
+		assertEquals("b", last.getDhcpCriteria());
+		assertEquals(2, last.getLineNumber());
+		assertEquals(text.length(), last.getEndOffset());
+		assertNull(reader.next());
+	}
+
+	@Test
+	public void blankLinesAreSkippedButCounted() throws IOException {
+		DeviceRecordReader reader = reader("\n\r\no1|1,6,00:0C:E5:32:D0:6A|silver\n\n");
+
+		DeviceRecord record = reader.next();
+		assertEquals(3, record.getLineNumber());
+		assertNull(reader.next());
+		assertEquals(4, reader.getLineNumber());
+	}
+
+	@Test
+	public void malformedLinesAreReportedWithTheirLineNumberAndSkipped() throws IOException {
+		DeviceRecordReader reader = reader("o1|1,6,00:0C:E5:32:D0:6A\n"
+			+ "o2|1,6,00:0C:E5:32:D0:6B|silver|docsis|extra\n"
+			+ "o3||silver|docsis\n"
+			+ "o4|1,6,00:0C:E5:32:D0:6C|silver|docsis\n");
+
+		assertMalformed(reader, 1, "expected ownerID|macAddress|classOfService|dhcpCriteria");
+		assertMalformed(reader, 2, "more than 4 fields");
+		assertMalformed(reader, 3, "missing MAC address");
+		assertEquals("o4", reader.next().getOwnerID());
+	}
+
+	@Test
+	public void linesLongerThanTheBufferAreRead() throws IOException {
+		char[] owner = new char[200 * 1024];
+		Arrays.fill(owner, 'x');
+
+		DeviceRecordReader reader = reader(new String(owner) + "|1,6,00:0C:E5:32:D0:6A|silver\nnext|mac|cos\n");
+		assertEquals(owner.length, reader.next().getOwnerID().length());
+		assertEquals("next", reader.next().getOwnerID());
+	}
+
+	@Test
+	public void offsetsPointJustPastEachLine() throws IOException {
+		String first = "o1|1,6,00:0C:E5:32:D0:6A|silver|docsis\r\n";
+		String second = "o2|1,6,00:0C:E5:32:D0:6B|silver\n";
+		DeviceRecordReader reader = reader(first + second + "\n");
+
+		assertEquals(first.length(), reader.next().getEndOffset());
+		assertEquals(first.length() + second.length(), reader.next().getEndOffset());
+		assertNull(reader.next());
+		assertEquals(first.length() + second.length() + 1, reader.getOffset());
+	}
+
+	@Test
+	public void aResumedReaderCarriesOnWithTheSameLinesAndOffsets() throws IOException {
+		StringBuilder file = new StringBuilder();
+		for (int i = 1; i <= 100; i++) {
+			file.append("o").append(i).append('|').append(FakeHandler.mac(i)).append("|silver|docsis")
+				.append(i % 3 == 0 ? "\r\n" : "\n");
+			if (i % 10 == 0) {
+				file.append('\n');
+			}
+		}
+		byte[] bytes = file.toString().getBytes("ISO-8859-1");
+
+		List<DeviceRecord> all = new ArrayList<DeviceRecord>();
+		DeviceRecordReader whole = new DeviceRecordReader(new ByteArrayInputStream(bytes));
+		DeviceRecord record;
+		while ((record = whole.next()) != null) {
+			all.add(record);
+		}
+		assertEquals(100, all.size());
+
+		// Resume from the checkpoint a journal would hold after record 42
+		DeviceRecord checkpoint = all.get(41);
+		InputStream rest = new ByteArrayInputStream(bytes, (int)checkpoint.getEndOffset(),
+			bytes.length - (int)checkpoint.getEndOffset());
+		DeviceRecordReader resumed = new DeviceRecordReader(rest, checkpoint.getLineNumber(),
+			checkpoint.getEndOffset());
+
+		for (int i = 42; i < all.size(); i++) {
+			DeviceRecord expected = all.get(i);
+			DeviceRecord actual = resumed.next();
+			assertEquals(expected.getOwnerID(), actual.getOwnerID());
+			assertEquals(expected.getLineNumber(), actual.getLineNumber());
+			assertEquals(expected.getEndOffset(), actual.getEndOffset());
+		}
+		assertNull(resumed.next());
+		assertEquals(whole.getLineNumber(), resumed.getLineNumber());
+		assertEquals(bytes.length, resumed.getOffset());
+	}
+
+	private static DeviceRecordReader reader(String text) throws IOException {
+		return new DeviceRecordReader(new ByteArrayInputStream(text.getBytes("ISO-8859-1")));
+	}
+
+	private static void assertMalformed(DeviceRecordReader reader, long line, String reason) throws IOException {
+		try {
+			reader.next();
+			fail("line " + line + " was not reported");
+		} catch (MalformedRecordException e) {
+			assertEquals(line, e.getLineNumber());
+			assertEquals(reason, e.getReason());
+		}
+	}
+
+}
@@ -0,0 +1,139 @@
+// DeviceResetTest - part of bprimport
+// Copyright (C) 2012  Matt Reath
+
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+package com.cci.bprimport;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.util.*;
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Resets batches of devices through {@link DeviceReset#process} on a
+ * {@link FakeRdu} and checks the result line written for each one.
+ * <p>
+ * @author Matt Reath
+ * @version 0.1
+ *
+ */
+public class DeviceResetTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Before
+	public void setUp() throws IOException {
+		deadLetters = folder.newFile("macs.txt.dead");
+		dispatcher = new BatchDispatcher(Collections.singletonList(new FakeHandler(0)), 4);
+		retries = new RetryPolicy(dispatcher, deadLetters, false);
+		results = new StringWriter();
+	}
+
+	@Test
+	public void everyDeviceIsResetInOnePost() {
+		FakeRdu rdu = new FakeRdu();
+		DeviceReset worker = worker(rdu);
+
+		worker.process(new RecordBatch(0, devices(3)));
+
+		assertEquals(1, rdu.posts.size());
+		assertEquals("performOperation", rdu.posts.get(0).get(0).name);
+		assertEquals(Arrays.asList(FakeHandler.mac(1) + "|reset", FakeHandler.mac(2) + "|reset",
+			FakeHandler.mac(3) + "|reset"), results());
+		assertEquals(3, worker.getResetCount());
+	}
+
+	@Test
+	public void aFailedResetIsReportedAndTheRestPostedAgain() {
+		FakeRdu rdu = new FakeRdu() {
+			Answer answer(Command command) {
+				return command.getMacAddress().equals(FakeHandler.mac(2)) ? Answer.error("Device is offline")
+					: Answer.ok(null);
+			}
+		};
+		DeviceReset worker = worker(rdu);
+
+		worker.process(new RecordBatch(0, devices(4)));
+
+		assertEquals(2, rdu.posts.size());
+		assertEquals(Arrays.asList(FakeHandler.mac(1), FakeHandler.mac(3), FakeHandler.mac(4)), rdu.macs(1));
+		assertEquals(Arrays.asList(FakeHandler.mac(2) + "|failed|Device is offline", FakeHandler.mac(1) + "|reset",
+			FakeHandler.mac(3) + "|reset", FakeHandler.mac(4) + "|reset"), results());
+		assertEquals(3, worker.getResetCount());
+		assertEquals(1, worker.getFailedCount());
+		assertEquals(1, retries.getDeadLetterCount());
+	}
+
+	@Test
+	public void aTransientFailureIsHandedBackForLater() {
+		FakeRdu rdu = new FakeRdu() {
+			Answer answer(Command command) {
+				return command.getMacAddress().equals(FakeHandler.mac(1)) ? Answer.error("RDU is busy")
+					: Answer.ok(null);
+			}
+		};
+		DeviceReset worker = worker(rdu);
+
+		worker.process(new RecordBatch(0, devices(3)));
+
+		assertEquals(Arrays.asList(FakeHandler.mac(2) + "|reset", FakeHandler.mac(3) + "|reset"), results());
+		assertEquals(0, worker.getFailedCount());
+		assertEquals(1, retries.getRetriedCount());
+		assertEquals(1, dispatcher.getDelayedCount());
+	}
+
+	@Test
+	public void resetsTakeOnePermitEach() {
+		DeviceReset worker = worker(new FakeRdu());
+		RateLimiter limiter = new RateLimiter(20, 1);
+		worker.setRateLimiter(limiter);
+
+		// 10 resets at 20/s with a burst of 1: the batch waits for 9 permits
+		long start = System.nanoTime();
+		worker.process(new RecordBatch(0, devices(10)));
+		assertTrue((System.nanoTime() - start) / 1000000 >= 400);
+		assertEquals(10, worker.getResetCount());
+	}
+
+	private DeviceReset worker(FakeRdu rdu) {
+		DeviceReset worker = new DeviceReset();
+		worker.setConnection(rdu.connect());
+		worker.setRateLimiter(new RateLimiter(0, 1));
+		worker.setResults(new PrintWriter(results));
+		worker.setRetryPolicy(retries);
+		return worker;
+	}
+
+	private static List<DeviceRecord> devices(int count) {
+		List<DeviceRecord> devices = new ArrayList<DeviceRecord>();
+		for (int i = 1; i <= count; i++) {
+			devices.add(new DeviceRecord(i, null, FakeHandler.mac(i), null, null));
+		}
+		return devices;
+	}
+
+	private List<String> results() {
+		return Arrays.asList(results.toString().trim().split("\\r?\\n"));
+	}
+
+
+	private File deadLetters;
+	private BatchDispatcher dispatcher;
+	private RetryPolicy retries;
+	private StringWriter results;
+
+}
@@ -0,0 +1,109 @@
+// ExportFormatTest - part of bprimport
+// Copyright (C) 2012  Matt Reath
+
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+package com.cci.bprimport;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import org.junit.*;
+
+/**
+ * @author Matt Reath
+ * @version 0.1
+ *
+ */
+public class ExportFormatTest {
+
+	@Test
+	public void pipeWritesNullForAMissingValue() throws IOException {
+		assertEquals("000CE532D06A|" + MAC + "|null|provisioned-docsis\n",
+			export(ExportFormat.PIPE, "000CE532D06A", MAC, null, "provisioned-docsis"));
+	}
+
+	@Test
+	public void csvQuotesOnlyWhatNeedsIt() throws IOException {
+		assertEquals(HEADER + "000CE532D06A,\"" + MAC + "\",silver,\n",
+			export(ExportFormat.CSV, "000CE532D06A", MAC, "silver", null));
+
+		assertEquals(HEADER + "\"say \"\"hi\"\"\",\"two\nlines\",\"cr\rhere\",back\\slash\n",
+			export(ExportFormat.CSV, "say \"hi\"", "two\nlines", "cr\rhere", "back\\slash"));
+	}
+
+	@Test
+	public void csvWritesLatin1AsIsAndTheRestAsAQuestionMark() throws IOException {
+		assertEquals(HEADER + "caf\u00e9,?5,\"\u00e9,\u00e8\",tab\there\n",
+			export(ExportFormat.CSV, "caf\u00e9", "\u20ac5", "\u00e9,\u00e8", "tab\there"));
+
+		byte[] bytes = exportBytes(ExportFormat.CSV, "\u00e9", "\u4e2d", null, null);
+		assertEquals((byte)0xE9, bytes[HEADER.length()]);
+		assertEquals((byte)'?', bytes[HEADER.length() + 2]);
+	}
+
+	@Test
+	public void ndjsonEscapesQuotesBackslashesAndControlCharacters() throws IOException {
+		assertEquals("{\"ownerID\":\"000CE532D06A\",\"macAddress\":\"" + MAC
+			+ "\",\"classOfService\":null,\"dhcpCriteria\":\"provisioned-docsis\"}\n",
+			export(ExportFormat.NDJSON, "000CE532D06A", MAC, null, "provisioned-docsis"));
+
+		assertEquals("{\"ownerID\":\"say \\\"hi\\\"\",\"macAddress\":\"C:\\\\path\","
+			+ "\"classOfService\":\"a\\u000ab\\u000dc\\u0009d\",\"dhcpCriteria\":\"\\u0000\\u001f\\u007f\"}\n",
+			export(ExportFormat.NDJSON, "say \"hi\"", "C:\\path", "a\nb\rc\td", "\u0000\u001f\u007f"));
+	}
+
+	@Test
+	public void ndjsonWritesNonAsciiAsUnicodeEscapes() throws IOException {
+		String line = export(ExportFormat.NDJSON, "caf\u00e9", "\u20ac", "\u4e2d\u6587", "\ud83d\ude00");
+
+		assertEquals("{\"ownerID\":\"caf\\u00e9\",\"macAddress\":\"\\u20ac\",\"classOfService\":\"\\u4e2d\\u6587\","
+			+ "\"dhcpCriteria\":\"\\ud83d\\ude00\"}\n", line);
+		for (int i = 0; i < line.length(); i++) {
+			assertTrue(line.charAt(i) < 0x80);
+		}
+	}
+
+	@Test
+	public void formatsAreLookedUpByName() {
+		assertSame(ExportFormat.PIPE, ExportFormat.forName("pipe"));
+		assertSame(ExportFormat.CSV, ExportFormat.forName("CSV"));
+		assertSame(ExportFormat.NDJSON, ExportFormat.forName("NdJson"));
+		try {
+			ExportFormat.forName("xml");
+			fail("xml was accepted");
+		} catch (IllegalArgumentException e) {
+			assertEquals("Unknown format xml, expected pipe, csv or ndjson", e.getMessage());
+		}
+	}
+
+	private static String export(ExportFormat format, String ownerID, String macAddress, String classOfService,
+			String dhcpCriteria) throws IOException {
+		return new String(exportBytes(format, ownerID, macAddress, classOfService, dhcpCriteria), "ISO-8859-1");
+	}
+
+	private static byte[] exportBytes(ExportFormat format, String ownerID, String macAddress,
+			String classOfService, String dhcpCriteria) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ExportWriter out = new ExportWriter(bytes, format);
+		out.writeDevice(ownerID, macAddress, classOfService, dhcpCriteria);
+		out.close();
+		assertEquals(1, out.getCount());
+		return bytes.toByteArray();
+	}
+
+
+	private static final String MAC = "1,6,00:0C:E5:32:D0:6A";
+	private static final String HEADER = "ownerID,macAddress,classOfService,dhcpCriteria\n";
+
+}
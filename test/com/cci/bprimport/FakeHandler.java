@@ -0,0 +1,104 @@
+// FakeHandler - part of bprimport, a BatchHandler that stands in for an RDU
+// connection in the tests
+// Copyright (C) 2012  Matt Reath
+
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+package com.cci.bprimport;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * FakeHandler records every batch it is given, as a worker posting to the
+ * RDU would, and can be made to take a while per post, to hold its batches
+ * until released, or to throw.
+ * <p>
+ * @author Matt Reath
+ * @version 0.1
+ *
+ */
+class FakeHandler implements BatchHandler {
+
+	/**
+	 * @param postMillis	How long each batch takes, like an RDU round trip
+	 */
+	FakeHandler(long postMillis) {
+		this.postMillis = postMillis;
+	}
+
+	/**
+	 * Makes every batch wait until {@link #release} is called.
+	 */
+	void hold() {
+		gate = new CountDownLatch(1);
+	}
+
+	void release() {
+		gate.countDown();
+	}
+
+	public void process(RecordBatch batch) {
+		try {
+			if (gate != null) {
+				gate.await();
+			}
+			if (postMillis > 0) {
+				Thread.sleep(postMillis);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		batches.add(batch);
+		recordCount.addAndGet(batch.size());
+		if (failSequence == batch.getSequence()) {
+			throw new IllegalStateException("post failed");
+		}
+	}
+
+	public void close() {
+		closed = true;
+	}
+
+	/**
+	 * @return count records for lines first, first + 1, ...
+	 */
+	static List<DeviceRecord> records(long first, int count) {
+		List<DeviceRecord> records = new ArrayList<DeviceRecord>(count);
+		for (int i = 0; i < count; i++) {
+			long line = first + i;
+			DeviceRecord record = new DeviceRecord(line, "owner" + line, mac(line), "silver", "provisioned-docsis");
+			record.setPosition(line, line * 100);
+			records.add(record);
+		}
+		return records;
+	}
+
+	/**
+	 * @return A valid MAC address in the 1,6,... form for a number
+	 */
+	static String mac(long n) {
+		return String.format("1,6,00:0C:%02X:%02X:%02X:%02X", (n >> 24) & 255, (n >> 16) & 255, (n >> 8) & 255, n & 255);
+	}
+
+
+	final List<RecordBatch> batches = new CopyOnWriteArrayList<RecordBatch>();
+	final AtomicLong recordCount = new AtomicLong();
+	volatile long failSequence = -1;
+	volatile boolean closed;
+	private long postMillis;
+	private volatile CountDownLatch gate;
+
+}
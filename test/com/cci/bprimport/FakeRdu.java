@@ -0,0 +1,260 @@
+// FakeRdu - part of bprimport
+// Copyright (C) 2012  Matt Reath
+
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+package com.cci.bprimport;
+
+import com.cisco.provisioning.cpe.*;
+import com.cisco.provisioning.cpe.api.*;
+import java.lang.reflect.*;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * FakeRdu stands in for the RDU behind a PACEConnection. Connections,
+ * batches and statuses are proxies of the Cisco interfaces, so the stand-in
+ * only answers the methods the tools call and returns nothing for the rest.
+ * <p>
+ * Every command posted is recorded, one list per post. What a command comes
+ * back with is up to {@link #answer}, which a test overrides. As on the real
+ * RDU, a batch with a failed command is rolled back as a whole: the batch
+ * is an error and every other command comes back without an error and
+ * without data.
+ * <p>
+ * @author Matt Reath
+ * @version 0.1
+ *
+ */
+class FakeRdu {
+
+	/**
+	 * One command of a posted batch.
+	 */
+	static class Command {
+
+		Command(String name, Object[] args) {
+			this.name = name;
+			this.args = args != null ? args : new Object[0];
+		}
+
+		/**
+		 * @return The MAC address the command is for, from its device ID
+		 */
+		String getMacAddress() {
+			for (Object arg : args) {
+				if (arg instanceof DeviceID) {
+					return arg.toString();
+				}
+				if (arg instanceof List && !((List)arg).isEmpty()) {
+					return ((List)arg).get(0).toString();
+				}
+			}
+			return null;
+		}
+
+		@Override
+		public String toString() {
+			return name + " " + getMacAddress();
+		}
+
+
+		final String name;
+		final Object[] args;
+		int post;
+		int index;
+
+	}
+
+	/**
+	 * How a command came back: an error message, or the data it returns.
+	 */
+	static class Answer {
+
+		static Answer ok(Object data) {
+			return new Answer(null, data);
+		}
+
+		static Answer error(String message) {
+			return new Answer(message, null);
+		}
+
+		private Answer(String error, Object data) {
+			this.error = error;
+			this.data = data;
+		}
+
+
+		final String error;
+		final Object data;
+
+	}
+
+	/**
+	 * Override to fail commands or return data. Every command goes through
+	 * by default.
+	 *
+	 * @param command	The command, with the post and its index in it
+	 */
+	Answer answer(Command command) {
+		return Answer.ok(null);
+	}
+
+	/**
+	 * @return A connection to this RDU
+	 */
+	PACEConnection connect() {
+		logins.incrementAndGet();
+		return proxy(PACEConnection.class, new Handler() {
+			Object call(String method, Object[] args) {
+				if (method.equals("newBatch")) {
+					return newBatch();
+				}
+				if (method.equals("releaseConnection")) {
+					releases.incrementAndGet();
+				}
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * @return The MAC addresses of every command in a post, in order
+	 */
+	List<String> macs(int post) {
+		List<String> macs = new ArrayList<String>();
+		for (Command command : posts.get(post)) {
+			macs.add(command.getMacAddress());
+		}
+		return macs;
+	}
+
+	private Batch newBatch() {
+		final List<Command> commands = new ArrayList<Command>();
+
+		return proxy(Batch.class, new Handler() {
+			Object call(String method, Object[] args) {
+				if (method.equals("post")) {
+					return post(commands);
+				}
+				commands.add(new Command(method, args));
+				return null;
+			}
+		});
+	}
+
+	private BatchStatus post(List<Command> commands) {
+		int post;
+		synchronized (posts) {
+			post = posts.size();
+			posts.add(new ArrayList<Command>(commands));
+		}
+
+		final List<Answer> answers = new ArrayList<Answer>();
+		Answer failed = null;
+		for (int i = 0; i < commands.size(); i++) {
+			Command command = commands.get(i);
+			command.post = post;
+			command.index = i;
+			Answer answer = answer(command);
+			answers.add(answer);
+			if (answer.error != null && failed == null) {
+				failed = answer;
+			}
+		}
+
+		final String batchId = "batch-" + post;
+		final Answer firstFailed = failed;
+
+		return proxy(BatchStatus.class, new Handler() {
+			Object call(String method, Object[] args) {
+				if (method.equals("isError")) {
+					return firstFailed != null;
+				} else if (method.equals("getErrorMessage")) {
+					return firstFailed != null ? "Batch rolled back" : null;
+				} else if (method.equals("getBatchID")) {
+					return batchId;
+				} else if (method.equals("getCommandCount")) {
+					return answers.size();
+				} else if (method.equals("getCommandStatus")) {
+					Answer answer = answers.get((Integer)args[0]);
+					return commandStatus(answer.error, firstFailed == null ? answer.data : null);
+				} else if (method.equals("getFailedCommandStatus")) {
+					return firstFailed != null ? commandStatus(firstFailed.error, null) : null;
+				}
+				return null;
+			}
+		});
+	}
+
+	private static CommandStatus commandStatus(final String error, final Object data) {
+		return proxy(CommandStatus.class, new Handler() {
+			Object call(String method, Object[] args) {
+				if (method.equals("isError")) {
+					return error != null;
+				} else if (method.equals("getErrorMessage")) {
+					return error;
+				} else if (method.equals("getData")) {
+					return data;
+				}
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Answers the methods a proxy is called with. A null answer to a method
+	 * that returns a primitive becomes false or 0.
+	 */
+	abstract static class Handler implements InvocationHandler {
+
+		abstract Object call(String method, Object[] args) throws Exception;
+
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			if (method.getDeclaringClass() == Object.class) {
+				if (method.getName().equals("equals")) {
+					return proxy == args[0];
+				} else if (method.getName().equals("hashCode")) {
+					return System.identityHashCode(proxy);
+				}
+				return method.getDeclaringClass().getSimpleName() + "@" + System.identityHashCode(proxy);
+			}
+
+			Object result = call(method.getName(), args);
+			Class<?> type = method.getReturnType();
+			if (result != null || !type.isPrimitive() || type == void.class) {
+				return result;
+			} else if (type == boolean.class) {
+				return Boolean.FALSE;
+			} else if (type == long.class) {
+				return Long.valueOf(0);
+			} else if (type == double.class || type == float.class) {
+				return type == double.class ? (Object)Double.valueOf(0) : (Object)Float.valueOf(0);
+			}
+			return Integer.valueOf(0);
+		}
+
+	}
+
+	@SuppressWarnings("unchecked")
+	static <T> T proxy(Class<T> type, InvocationHandler handler) {
+		return (T)Proxy.newProxyInstance(FakeRdu.class.getClassLoader(), new Class<?>[] { type }, handler);
+	}
+
+
+	final List<List<Command>> posts = new CopyOnWriteArrayList<List<Command>>();
+	final AtomicInteger logins = new AtomicInteger();
+	final AtomicInteger releases = new AtomicInteger();
+
+}
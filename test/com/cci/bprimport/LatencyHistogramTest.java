@@ -0,0 +1,118 @@
+// LatencyHistogramTest - part of bprimport
+// Copyright (C) 2012  Matt Reath
+
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+package com.cci.bprimport;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import org.junit.Test;
+
+/**
+ * @author Matt Reath
+ * @version 0.1
+ *
+ */
+public class LatencyHistogramTest {
+
+	@Test
+	public void nothingRecordedReadsAsZero() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getPercentile(50));
+		assertEquals(0, histogram.getMax());
+	}
+
+	@Test
+	public void smallValuesAreExact() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (int i = 0; i < 16; i++) {
+			histogram.record(i);
+		}
+		histogram.record(-5);
+
+		assertEquals(17, histogram.getCount());
+		assertEquals(0, histogram.getPercentile(0));
+		assertEquals(7, histogram.getPercentile(50));
+		assertEquals(15, histogram.getMax());
+	}
+
+	@Test
+	public void largeValuesAreWithinAnEighth() {
+		Random random = new Random(1);
+		for (int i = 0; i < 100000; i++) {
+			long value = 16 + (long)(Math.pow(10, random.nextDouble() * 9));
+			LatencyHistogram histogram = new LatencyHistogram();
+			histogram.record(value);
+
+			long max = histogram.getMax();
+			assertTrue(value + " read back as " + max, max >= value && max <= value + value / 8);
+		}
+	}
+
+	@Test
+	public void percentilesFollowTheRecordedLatencies() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (int i = 1; i <= 1000; i++) {
+			histogram.record(i * 100);
+		}
+
+		assertWithinAnEighth(50000, histogram.getPercentile(50));
+		assertWithinAnEighth(99000, histogram.getPercentile(99));
+		assertWithinAnEighth(100000, histogram.getPercentile(100));
+		assertEquals(histogram.getPercentile(100), histogram.getMax());
+	}
+
+	@Test
+	public void aHugeValueLandsInTheTopBucket() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(Long.MAX_VALUE);
+		histogram.record(Long.MAX_VALUE / 2);
+
+		assertEquals(2, histogram.getCount());
+		assertTrue(histogram.getMax() > 0);
+	}
+
+	@Test
+	public void noRecordIsLostAcrossThreads() throws Exception {
+		final LatencyHistogram histogram = new LatencyHistogram();
+		ExecutorService threads = Executors.newFixedThreadPool(4);
+		List<Future<?>> done = new ArrayList<Future<?>>();
+
+		for (int i = 0; i < 4; i++) {
+			done.add(threads.submit(new Runnable() {
+				public void run() {
+					for (int j = 0; j < 100000; j++) {
+						histogram.record(j % 5000);
+					}
+				}
+			}));
+		}
+		for (Future<?> future : done) {
+			future.get();
+		}
+		threads.shutdown();
+
+		assertEquals(400000, histogram.getCount());
+		assertWithinAnEighth(4999, histogram.getMax());
+	}
+
+	private static void assertWithinAnEighth(long expected, long actual) {
+		assertTrue("expected about " + expected + ", got " + actual,
+			actual >= expected && actual <= expected + expected / 8);
+	}
+
+}
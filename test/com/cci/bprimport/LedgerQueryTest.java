@@ -0,0 +1,165 @@
+// LedgerQueryTest - part of bprimport
+// Copyright (C) 2012  Matt Reath
+
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+package com.cci.bprimport;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.util.*;
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Builds the ledger of an import of five lines that was resumed: lines 4
+ * and 5 were posted twice, and a sync delete, with no input line, failed.
+ * <p>
+ * @author Matt Reath
+ * @version 0.1
+ *
+ */
+public class LedgerQueryTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Before
+	public void writeLedger() throws IOException {
+		input = folder.newFile("input.txt");
+		Writer out = new OutputStreamWriter(new FileOutputStream(input), "ISO-8859-1");
+		for (int i = 1; i <= 5; i++) {
+			out.write(line(i));
+			if (i < 5) {
+				out.write('\n');
+			}
+		}
+		out.close();
+
+		ledger = ResultLedger.ledgerFor(input);
+		ResultLedger writer = new ResultLedger(ledger, false);
+		ResultLedger.Block block = new ResultLedger.Block();
+
+		block.add(ResultLedgerTest.record(1, FakeHandler.mac(1)), 0, ResultLedger.OK, null);
+		block.add(ResultLedgerTest.record(2, FakeHandler.mac(2)), 1, ResultLedger.FAILED, "Owner not found");
+		block.add(ResultLedgerTest.record(3, FakeHandler.mac(3)), 2, ResultLedger.FAILED, "Owner not found");
+		writer.append("first", block);
+
+		block.add(ResultLedgerTest.record(4, FakeHandler.mac(4)), 0, ResultLedger.BATCH_FAILED, "Timed out");
+		block.add(ResultLedgerTest.record(5, FakeHandler.mac(5)), 1, ResultLedger.BATCH_FAILED, "Timed out");
+		writer.append("second", block);
+
+		// Resumed: line 4 went through, line 5 failed on its own this time
+		block.add(ResultLedgerTest.record(4, FakeHandler.mac(4)), 0, ResultLedger.OK, null);
+		block.add(ResultLedgerTest.record(5, FakeHandler.mac(5)), 1, ResultLedger.FAILED, "Class of service unknown");
+		block.add(ResultLedgerTest.record(0, "1,6,00:0C:E5:32:D0"), 2, ResultLedger.FAILED, "Device not found");
+		writer.append("third", block);
+		writer.close();
+	}
+
+	@Test
+	public void onlyTheLastOutcomeOfALineCounts() throws IOException {
+		assertEquals(Arrays.asList(
+			"2|" + FakeHandler.mac(2) + "|first|1|failed|Owner not found",
+			"3|" + FakeHandler.mac(3) + "|first|2|failed|Owner not found",
+			"5|" + FakeHandler.mac(5) + "|third|1|failed|Class of service unknown",
+			"0|1,6,00:0C:E5:32:D0|third|2|failed|Device not found"),
+			select(new LedgerQuery(ledger, "failures")));
+
+		assertEquals(Arrays.asList(1L, 4L), lines(new LedgerQuery(ledger, "ok")));
+		assertEquals(Collections.<Long>emptyList(), lines(new LedgerQuery(ledger, "batch-failed")));
+		assertEquals(6, new LedgerQuery(ledger, "all").select().size());
+	}
+
+	@Test
+	public void errorAndBatchNarrowTheSelection() throws IOException {
+		LedgerQuery query = new LedgerQuery(ledger, "failed");
+		query.setError("Owner");
+		assertEquals(Arrays.asList(2L, 3L), lines(query));
+
+		query = new LedgerQuery(ledger, "all");
+		query.setBatchId("third");
+		assertEquals(Arrays.asList(4L, 5L, 0L), lines(query));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void anUnknownStatusIsRefused() {
+		new LedgerQuery(ledger, "broken");
+	}
+
+	@Test
+	public void theRetryFileHoldsTheFailedLinesInInputOrder() throws IOException {
+		File retry = LedgerQuery.retryFileFor(input);
+		assertEquals("input.txt.retry", retry.getName());
+		assertEquals("input.txt.retry.gz", LedgerQuery.retryFileFor(new File("input.txt.gz")).getName());
+
+		LedgerQuery query = new LedgerQuery(ledger, "failures");
+		assertEquals(3, query.writeRetryFile(input, retry));
+		assertEquals(1, query.getUnjoinedCount());
+
+		// Line 5 is the last of the input and had no line break
+		assertEquals(line(2) + "\n" + line(3) + "\n" + line(5) + "\n", read(retry));
+
+		// The retry file is itself an input BprImport can read
+		DeviceRecordReader reader = new DeviceRecordReader(new FileInputStream(retry));
+		assertEquals(FakeHandler.mac(2), reader.next().getMacAddress());
+		reader.close();
+	}
+
+	@Test
+	public void aRetryFileOfNothingIsEmpty() throws IOException {
+		File retry = folder.newFile("none.retry");
+		LedgerQuery query = new LedgerQuery(ledger, "batch-failed");
+		assertEquals(0, query.writeRetryFile(input, retry));
+		assertEquals(0, query.getUnjoinedCount());
+		assertEquals("", read(retry));
+	}
+
+	private static List<String> select(LedgerQuery query) throws IOException {
+		List<String> entries = new ArrayList<String>();
+		for (ResultLedger.Entry entry : query.select()) {
+			entries.add(entry.toString());
+		}
+		return entries;
+	}
+
+	private static List<Long> lines(LedgerQuery query) throws IOException {
+		List<Long> lines = new ArrayList<Long>();
+		for (ResultLedger.Entry entry : query.select()) {
+			lines.add(entry.getLineNumber());
+		}
+		return lines;
+	}
+
+	private static String read(File file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int n;
+		while ((n = in.read(buffer)) > 0) {
+			bytes.write(buffer, 0, n);
+		}
+		in.close();
+		return bytes.toString("ISO-8859-1");
+	}
+
+	private static String line(int n) {
+		return "o" + n + "|" + FakeHandler.mac(n) + "|silver|provisioned-docsis";
+	}
+
+
+	private File input;
+	private File ledger;
+
+}
@@ -0,0 +1,117 @@
+// LongHashMapTest - part of bprimport
+// Copyright (C) 2012  Matt Reath
+
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+package com.cci.bprimport;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+import org.junit.Test;
+
+/**
+ * @author Matt Reath
+ * @version 0.1
+ *
+ */
+public class LongHashMapTest {
+
+	@Test
+	public void putGetAndReplace() {
+		LongHashMap map = new LongHashMap();
+
+		assertTrue(map.put(42, 1));
+		assertFalse(map.put(42, 2));
+		assertEquals(2, map.get(42, -1));
+		assertEquals(-1, map.get(43, -1));
+		assertTrue(map.containsKey(42));
+		assertFalse(map.containsKey(0));
+		assertEquals(1, map.size());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void zeroCannotBeAKey() {
+		new LongHashMap().put(0, 1);
+	}
+
+	@Test
+	public void entriesSurviveTheTableGrowing() {
+		LongHashMap map = new LongHashMap(1);
+
+		for (long i = 1; i <= 100000; i++) {
+			map.put(i * 0x10000, i);
+		}
+		assertEquals(100000, map.size());
+		for (long i = 1; i <= 100000; i++) {
+			assertEquals(i, map.get(i * 0x10000, -1));
+		}
+		assertEquals(100000, map.keys().length);
+	}
+
+	@Test
+	public void removeShiftsTheRestOfTheProbeRunBack() {
+		// A small table kept three quarters full makes long probe runs, and
+		// every removal has to leave each of them reachable
+		Random random = new Random(12);
+		LongHashMap map = new LongHashMap(48);
+		Map<Long, Long> model = new HashMap<Long, Long>();
+
+		for (int i = 0; i < 200000; i++) {
+			long key = 1 + random.nextInt(64);
+
+			if (model.size() < 48 && random.nextBoolean()) {
+				assertEquals(!model.containsKey(key), map.put(key, i));
+				model.put(key, (long)i);
+			} else {
+				assertEquals(model.remove(key) != null, map.remove(key));
+			}
+
+			if (i % 97 == 0) {
+				assertSame(model, map);
+			}
+		}
+		assertSame(model, map);
+	}
+
+	@Test
+	public void removingAMissingKeyChangesNothing() {
+		LongHashMap map = new LongHashMap();
+		map.put(7, 70);
+
+		assertFalse(map.remove(8));
+		assertFalse(map.remove(0));
+		assertEquals(1, map.size());
+		assertTrue(map.remove(7));
+		assertEquals(0, map.size());
+		assertEquals(0, map.keys().length);
+	}
+
+	private static void assertSame(Map<Long, Long> model, LongHashMap map) {
+		assertEquals(model.size(), map.size());
+		for (long key = 1; key <= 64; key++) {
+			Long value = model.get(key);
+			assertEquals("key " + key, value != null ? value.longValue() : -1, map.get(key, -1));
+		}
+
+		long[] keys = map.keys();
+		Arrays.sort(keys);
+		List<Long> expected = new ArrayList<Long>(model.keySet());
+		Collections.sort(expected);
+		assertEquals(expected.size(), keys.length);
+		for (int i = 0; i < keys.length; i++) {
+			assertEquals(expected.get(i).longValue(), keys[i]);
+		}
+	}
+
+}
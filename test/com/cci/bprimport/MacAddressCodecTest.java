@@ -0,0 +1,92 @@
+// MacAddressCodecTest - part of bprimport
+// Copyright (C) 2012  Matt Reath
+
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+package com.cci.bprimport;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * @author Matt Reath
+ * @version 0.1
+ *
+ */
+public class MacAddressCodecTest {
+
+	@Test
+	public void encodeAndDecodeRoundTrip() {
+		Random random = new Random(5);
+
+		for (int i = 0; i < 10000; i++) {
+			String mac = String.format("%d,6,%02X:%02X:%02X:%02X:%02X:%02X", 1 + random.nextInt(255),
+				random.nextInt(256), random.nextInt(256), random.nextInt(256),
+				random.nextInt(256), random.nextInt(256), random.nextInt(256));
+			long packed = MacAddressCodec.encode(mac);
+
+			assertTrue(mac, packed != MacAddressCodec.INVALID);
+			assertEquals(mac, MacAddressCodec.decode(packed));
+		}
+	}
+
+	@Test
+	public void packsHardwareTypeLengthAndAddress() {
+		assertEquals(0x0106000CE532D06AL, MacAddressCodec.encode("1,6,00:0C:E5:32:D0:6A"));
+		assertEquals(0xFF06FFFFFFFFFFFFL, MacAddressCodec.encode("255,6,FF:FF:FF:FF:FF:FF"));
+		assertEquals("255,6,FF:FF:FF:FF:FF:FF", MacAddressCodec.decode(0xFF06FFFFFFFFFFFFL));
+	}
+
+	@Test
+	public void caseDoesNotMatterAndDecodingIsUpperCase() {
+		long packed = MacAddressCodec.encode("1,6,00:0c:e5:32:d0:6a");
+
+		assertEquals(MacAddressCodec.encode("1,6,00:0C:E5:32:D0:6A"), packed);
+		assertEquals("1,6,00:0C:E5:32:D0:6A", MacAddressCodec.decode(packed));
+	}
+
+	@Test
+	public void theLowestAddressIsNotInvalid() {
+		assertTrue(MacAddressCodec.encode("1,6,00:00:00:00:00:00") != MacAddressCodec.INVALID);
+	}
+
+	@Test
+	public void anythingElseIsInvalid() {
+		String[] bad = {
+			null,
+			"",
+			"00:0C:E5:32:D0:6A",
+			"1,6,00:0C:E5:32:D0",
+			"1,6,00:0C:E5:32:D0:6A:00",
+			"1,6,00:0C:E5:32:D0:6",
+			"1,6,00-0C-E5-32-D0-6A",
+			"1,6,00:0C:E5:32:D0:6G",
+			"1,6,000C:E5:32:D0:6A:",
+			"1,5,00:0C:E5:32:D0:6A",
+			"0,6,00:0C:E5:32:D0:6A",
+			"256,6,00:0C:E5:32:D0:6A",
+			"1000,6,00:0C:E5:32:D0:6A",
+			",6,00:0C:E5:32:D0:6A",
+			"x,6,00:0C:E5:32:D0:6A",
+			" 1,6,00:0C:E5:32:D0:6A",
+			"1,6,00:0C:E5:32:D0:6A ",
+		};
+
+		for (String mac : bad) {
+			assertEquals(String.valueOf(mac), MacAddressCodec.INVALID, MacAddressCodec.encode(mac));
+		}
+	}
+
+}
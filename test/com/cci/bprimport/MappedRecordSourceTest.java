@@ -0,0 +1,134 @@
+// MappedRecordSourceTest - part of bprimport
+// Copyright (C) 2012  Matt Reath
+
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+package com.cci.bprimport;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.util.*;
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Reads the same file with small chunks and with {@link DeviceRecordReader}
+ * and expects the same records, lines and offsets.
+ * <p>
+ * @author Matt Reath
+ * @version 0.1
+ *
+ */
+public class MappedRecordSourceTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Before
+	public void writeFile() throws IOException {
+		file = folder.newFile("input.txt");
+		Writer out = new OutputStreamWriter(new FileOutputStream(file), "ISO-8859-1");
+		for (int i = 1; i <= LINES; i++) {
+			if (i % 97 == 0) {
+				out.write("malformed line " + i + "\n");
+			} else {
+				out.write("o" + i + "|" + FakeHandler.mac(i) + "|silver|docsis" + (i % 5 == 0 ? "\r\n" : "\n"));
+			}
+		}
+		// No line break after the last line
+		out.write("last|" + FakeHandler.mac(0) + "|silver");
+		out.close();
+	}
+
+	@Test
+	public void chunksGiveTheSameRecordsAsTheStreamReader() throws IOException {
+		List<String> expected = readAll(new DeviceRecordReader(new FileInputStream(file)));
+		List<String> actual = readAll(new MappedRecordSource(file, 3, 0, 0, 1024));
+
+		assertEquals(LINES + 1, expected.size());
+		assertEquals(expected, actual);
+	}
+
+	@Test
+	public void aResumedSourceCarriesOnWithTheSameLinesAndOffsets() throws IOException {
+		DeviceRecordReader reader = new DeviceRecordReader(new FileInputStream(file));
+		DeviceRecord checkpoint = null;
+		for (int i = 0; i < 1234; i++) {
+			try {
+				checkpoint = reader.next();
+			} catch (MalformedRecordException e) {
+				i--;
+			}
+		}
+		List<String> expected = readAll(reader);
+
+		MappedRecordSource resumed = new MappedRecordSource(file, 2, checkpoint.getLineNumber(),
+			checkpoint.getEndOffset(), 1024);
+		assertEquals(expected, readAll(resumed));
+	}
+
+	@Test
+	public void noMoreThanOneChunkPerParseThreadIsQueued() throws IOException {
+		MappedRecordSource source = new MappedRecordSource(file, 3, 0, 0, 512);
+		int records = 0;
+
+		try {
+			while (true) {
+				try {
+					if (source.next() == null) {
+						break;
+					}
+					records++;
+				} catch (MalformedRecordException e) {
+					// Counted by the other tests
+				}
+				assertTrue(source.getQueuedChunks() <= 3);
+			}
+		} finally {
+			source.close();
+		}
+		assertTrue(records > LINES / 2);
+	}
+
+	/**
+	 * @return Every record and malformed line as line|offset|record or
+	 * 			line|error
+	 */
+	private static List<String> readAll(RecordSource source) throws IOException {
+		List<String> all = new ArrayList<String>();
+
+		try {
+			while (true) {
+				try {
+					DeviceRecord record = source.next();
+					if (record == null) {
+						break;
+					}
+					all.add(record.getLineNumber() + "|" + record.getEndOffset() + "|" + record);
+				} catch (MalformedRecordException e) {
+					all.add(e.getLineNumber() + "|" + e.getReason());
+				}
+			}
+		} finally {
+			source.close();
+		}
+		return all;
+	}
+
+
+	private static final int LINES = 5000;
+
+	private File file;
+
+}
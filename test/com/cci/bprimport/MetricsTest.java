@@ -0,0 +1,65 @@
+// MetricsTest - part of bprimport
+// Copyright (C) 2012  Matt Reath
+
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+package com.cci.bprimport;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+import org.junit.Test;
+
+/**
+ * @author Matt Reath
+ * @version 0.1
+ *
+ */
+public class MetricsTest {
+
+	@Test
+	public void identifiersAreTakenOutOfErrorMessages() {
+		assertEquals("Device # already exists",
+			Metrics.errorKey("Device 1,6,00:0C:E5:32:D0:6A already exists"));
+		assertEquals("Owner '*' not found for device #",
+			Metrics.errorKey("Owner 'acme corp' not found for device 00:0c:e5:32:d0:6a."));
+		assertEquals("Class of service \"*\" is not defined",
+			Metrics.errorKey("Class of service \"gold-plus\" is not defined"));
+		assertEquals("Lock wait timeout exceeded, try again",
+			Metrics.errorKey("Lock wait timeout exceeded, try again"));
+		assertEquals("Unbalanced 'quote #", Metrics.errorKey("Unbalanced 'quote 42"));
+	}
+
+	@Test
+	public void aLongMessageIsCut() {
+		StringBuilder message = new StringBuilder();
+		for (int i = 0; i < 100; i++) {
+			message.append("failure ");
+		}
+		assertTrue(Metrics.errorKey(message.toString()).length() <= 210);
+	}
+
+	@Test
+	public void theSameFailureForDifferentDevicesIsCountedOnce() {
+		Metrics metrics = Metrics.get();
+		for (int i = 1; i <= 150; i++) {
+			metrics.recordsFailed(1, "Device " + FakeHandler.mac(i) + " has no MetricsTest owner");
+		}
+		metrics.recordsFailed(2, null);
+
+		List<String> counts = Arrays.asList(metrics.getErrorCounts());
+		assertTrue(counts.toString(), counts.contains("150 Device # has no MetricsTest owner"));
+		assertTrue(counts.toString(), counts.contains("2 (no message)"));
+	}
+
+}
@@ -0,0 +1,154 @@
+// PageSizeTunerTest - part of bprimport
+// Copyright (C) 2012  Matt Reath
+
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+package com.cci.bprimport;
+
+import static org.junit.Assert.*;
+
+import org.junit.*;
+
+/**
+ * Feeds a {@link PageSizeTuner} made up page latencies, {@link #SAMPLES}
+ * full pages per size, and checks where it goes.
+ * <p>
+ * @author Matt Reath
+ * @version 0.1
+ *
+ */
+public class PageSizeTunerTest {
+
+	@Test
+	public void theSizeDoublesWhileThroughputImprovesAndSettlesOnTheBest() {
+		PageSizeTuner tuner = new PageSizeTuner(100, 10000);
+
+		fetch(tuner, 100, 100);
+		assertEquals(200, tuner.getPageSize());
+		fetch(tuner, 200, 100);
+		assertEquals(400, tuner.getPageSize());
+		assertFalse(tuner.isSettled());
+
+		// Twice the devices in twice the time is no better
+		fetch(tuner, 400, 200);
+		assertTrue(tuner.isSettled());
+		assertEquals(200, tuner.getPageSize());
+		assertEquals(2000, tuner.getBestThroughput(), 0.001);
+
+		fetch(tuner, 200, 1);
+		assertEquals(200, tuner.getPageSize());
+	}
+
+	@Test
+	public void anImprovementOfFivePercentOrLessDoesNotCount() {
+		PageSizeTuner tuner = new PageSizeTuner(100, 10000);
+
+		fetch(tuner, 100, 100);
+		fetch(tuner, 200, 191);
+		assertTrue(tuner.isSettled());
+		assertEquals(100, tuner.getPageSize());
+
+		tuner = new PageSizeTuner(100, 10000);
+		fetch(tuner, 100, 100);
+		fetch(tuner, 200, 190);
+		assertEquals(400, tuner.getPageSize());
+	}
+
+	@Test
+	public void theSizeNeverGoesPastTheMaximum() {
+		PageSizeTuner tuner = new PageSizeTuner(100, 300);
+
+		fetch(tuner, 100, 100);
+		assertEquals(200, tuner.getPageSize());
+		fetch(tuner, 200, 100);
+		assertEquals(300, tuner.getPageSize());
+		fetch(tuner, 300, 100);
+		assertTrue(tuner.isSettled());
+		assertEquals(300, tuner.getPageSize());
+	}
+
+	@Test
+	public void shortPagesAndOtherSizesAreNotCounted() {
+		PageSizeTuner tuner = new PageSizeTuner(100, 10000);
+
+		// The end of a search, and a cursor still on a size the tuner left
+		for (int i = 0; i < SAMPLES; i++) {
+			tuner.pageFetched(100, 99, 1);
+			tuner.pageFetched(50, 50, 1);
+		}
+		fetch(tuner, 100, 100, SAMPLES - 1);
+		assertEquals(100, tuner.getPageSize());
+
+		fetch(tuner, 100, 100, 1);
+		assertEquals(200, tuner.getPageSize());
+		assertEquals(1000, tuner.getBestThroughput(), 0.001);
+	}
+
+	@Test
+	public void aPageWithNoLatencyCountsAsOneMillisecond() {
+		PageSizeTuner tuner = new PageSizeTuner(100, 10000);
+
+		fetch(tuner, 100, 0);
+		assertEquals(100000, tuner.getBestThroughput(), 0.001);
+		assertEquals(200, tuner.getPageSize());
+	}
+
+	@Test
+	public void aFailedSearchCapsTheSizeAtHalfAndSettles() {
+		PageSizeTuner tuner = new PageSizeTuner(100, 10000);
+		fetch(tuner, 100, 100);
+		fetch(tuner, 200, 100);
+		assertEquals(400, tuner.getPageSize());
+
+		assertTrue(tuner.pageFailed(400));
+		assertEquals(200, tuner.getPageSize());
+		assertTrue(tuner.isSettled());
+
+		// Settled on a size that worked, so a failure there is not the size
+		assertFalse(tuner.pageFailed(200));
+		assertEquals(200, tuner.getPageSize());
+		fetch(tuner, 200, 1);
+		assertEquals(200, tuner.getPageSize());
+	}
+
+	@Test
+	public void aFailedFirstSearchHalvesTheInitialSize() {
+		PageSizeTuner tuner = new PageSizeTuner(500, 10000);
+
+		assertTrue(tuner.pageFailed(500));
+		assertEquals(250, tuner.getPageSize());
+		assertFalse(tuner.pageFailed(250));
+
+		PageSizeTuner smallest = new PageSizeTuner(0, -5);
+		assertEquals(1, smallest.getPageSize());
+		assertFalse(smallest.pageFailed(1));
+		assertEquals(1, smallest.getPageSize());
+	}
+
+	private static void fetch(PageSizeTuner tuner, int size, long latency) {
+		fetch(tuner, size, latency, SAMPLES);
+	}
+
+	/**
+	 * Reports full pages of a size, each taking the latency given.
+	 */
+	private static void fetch(PageSizeTuner tuner, int size, long latency, int pages) {
+		for (int i = 0; i < pages; i++) {
+			tuner.pageFetched(size, size, latency);
+		}
+	}
+
+
+	private static final int SAMPLES = 3;
+
+}
@@ -0,0 +1,79 @@
+// PipelineThroughputTest - part of bprimport
+// Copyright (C) 2012  Matt Reath
+
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+package com.cci.bprimport;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+import org.junit.Test;
+
+/**
+ * Checks the import pipeline, reader to {@link BatchDispatcher} to workers,
+ * keeps every connection busy. How fast it goes with 1 and with 8
+ * connections is measured by PipelineBenchmark in bench/, a wall clock
+ * ratio has no place in a unit test.
+ * <p>
+ * @author Matt Reath
+ * @version 0.1
+ *
+ */
+public class PipelineThroughputTest {
+
+	@Test
+	public void everyConnectionCarriesBatchesWhileTheOthersArePosting() throws Exception {
+		List<FakeHandler> handlers = new ArrayList<FakeHandler>();
+		for (int i = 0; i < CONNECTIONS; i++) {
+			FakeHandler handler = new FakeHandler(0);
+			handler.hold();
+			handlers.add(handler);
+		}
+
+		// A queue of twice the number of connections, as BprImport sets it up
+		BatchDispatcher dispatcher = new BatchDispatcher(handlers, CONNECTIONS * 2);
+		dispatcher.start();
+
+		// Every handler holds the batch it is posting, so the submits only
+		// get past a full queue once every connection has taken one
+		for (int i = 0; i < CONNECTIONS * 3; i++) {
+			dispatcher.submit(new RecordBatch(i, FakeHandler.records(i * BATCH_SIZE + 1, BATCH_SIZE)));
+		}
+		for (FakeHandler handler : handlers) {
+			handler.release();
+		}
+		for (int i = CONNECTIONS * 3; i < BATCHES; i++) {
+			dispatcher.submit(new RecordBatch(i, FakeHandler.records(i * BATCH_SIZE + 1, BATCH_SIZE)));
+		}
+		dispatcher.shutdown();
+
+		Set<Long> sequences = new HashSet<Long>();
+		long records = 0;
+		for (FakeHandler handler : handlers) {
+			assertFalse("a connection posted nothing", handler.batches.isEmpty());
+			for (RecordBatch batch : handler.batches) {
+				assertTrue("batch " + batch.getSequence() + " posted twice", sequences.add(batch.getSequence()));
+			}
+			records += handler.recordCount.get();
+		}
+		assertEquals(BATCHES, sequences.size());
+		assertEquals(BATCHES * BATCH_SIZE, records);
+	}
+
+
+	private static final int CONNECTIONS = 8;
+	private static final int BATCHES = 240;
+	private static final int BATCH_SIZE = 100;
+
+}
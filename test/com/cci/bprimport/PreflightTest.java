@@ -0,0 +1,81 @@
+// PreflightTest - part of bprimport
+// Copyright (C) 2012  Matt Reath
+
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+package com.cci.bprimport;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.util.*;
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * @author Matt Reath
+ * @version 0.1
+ *
+ */
+public class PreflightTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Before
+	public void setUp() throws IOException {
+		rejects = Preflight.rejectsFor(folder.newFile("macs.txt"));
+	}
+
+	@Test
+	public void aRepeatedMacIsADuplicateOrAConflict() throws IOException {
+		Preflight preflight = new Preflight(rejects, "-d", false);
+
+		assertTrue(preflight.accept(record(1, "1000Aa", FakeHandler.mac(1))));
+		assertFalse(preflight.accept(record(2, "1000Aa", FakeHandler.mac(1))));
+		assertFalse(preflight.accept(record(3, "1000BB", FakeHandler.mac(1))));
+		assertFalse(preflight.accept(record(4, "o4", "1,6,00:0C")));
+		preflight.close();
+
+		List<String> lines = BprImportTest.lines(rejects);
+		assertEquals(3, lines.size());
+		assertTrue(lines.get(0), lines.get(0).startsWith("2|duplicate of line 1|"));
+		assertTrue(lines.get(1), lines.get(1).startsWith("3|conflicting owner with line 1|"));
+		assertTrue(lines.get(2), lines.get(2).startsWith("4|bad MAC address|"));
+		assertEquals(3, preflight.getRejectCount());
+	}
+
+	@Test
+	public void aResumedRunKeepsTheEarlierRejects() throws IOException {
+		Preflight first = new Preflight(rejects, "-d", false);
+		first.accept(record(1, "o1", "1,6,00:0C"));
+		first.close();
+
+		Preflight resumed = new Preflight(rejects, "-d", true);
+		resumed.accept(record(2, "o2", "1,6,00:0D"));
+		resumed.close();
+		assertEquals(2, BprImportTest.lines(rejects).size());
+
+		Preflight again = new Preflight(rejects, "-d", false);
+		again.close();
+		assertEquals(0, rejects.length());
+	}
+
+	private static DeviceRecord record(long line, String owner, String mac) {
+		return new DeviceRecord(line, owner, mac, "silver", "provisioned-docsis");
+	}
+
+
+	private File rejects;
+
+}
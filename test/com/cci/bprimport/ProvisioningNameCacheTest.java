@@ -0,0 +1,154 @@
+// ProvisioningNameCacheTest - part of bprimport
+// Copyright (C) 2012  Matt Reath
+
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+package com.cci.bprimport;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.*;
+import org.junit.*;
+
+/**
+ * Runs a {@link ProvisioningNameCache} against a {@link FakeRdu} that lists
+ * whatever names the test sets, on a clock the test moves by hand.
+ * <p>
+ * @author Matt Reath
+ * @version 0.1
+ *
+ */
+public class ProvisioningNameCacheTest {
+
+	@Before
+	public void setUp() {
+		classesOfService = Arrays.asList("silver", "gold");
+		dhcpCriteria = Arrays.asList("provisioned-docsis");
+		failure = null;
+		clock = 1000000;
+
+		rdu = new FakeRdu() {
+			Answer answer(Command command) {
+				if (failure != null) {
+					return Answer.error(failure);
+				}
+				return Answer.ok(command.name.equals("getAllClassOfService") ? classesOfService : dhcpCriteria);
+			}
+		};
+		cache = new ProvisioningNameCache(rdu.connect(), "-d", TTL) {
+			long now() {
+				return clock;
+			}
+		};
+	}
+
+	@Test
+	public void namesAreFetchedOnceUntilTheTtlRunsOut() throws IOException {
+		cache.load();
+		assertEquals(2, rdu.posts.size());
+		assertEquals("getAllClassOfService", rdu.posts.get(0).get(0).name);
+		assertEquals("getAllDHCPCriteria", rdu.posts.get(1).get(0).name);
+
+		assertTrue(cache.isClassOfService("gold"));
+		assertTrue(cache.isDhcpCriteria("provisioned-docsis"));
+		assertFalse(cache.isDhcpCriteria("gold"));
+		clock += TTL;
+		assertTrue(cache.isClassOfService("silver"));
+		assertEquals(1, cache.getRefreshCount());
+
+		classesOfService = Arrays.asList("bronze");
+		clock += 1;
+		assertTrue(cache.isClassOfService("bronze"));
+		assertFalse(cache.isClassOfService("gold"));
+		assertEquals(2, cache.getRefreshCount());
+	}
+
+	@Test
+	public void anUnknownNameFetchesAtMostOncePerInterval() throws IOException {
+		cache.load();
+		classesOfService = Arrays.asList("silver", "gold", "platinum");
+
+		// Fetched too recently to ask again
+		for (int i = 0; i < 100; i++) {
+			assertFalse(cache.isClassOfService("platinum"));
+		}
+		assertEquals(1, cache.getRefreshCount());
+
+		clock += 10001;
+		assertTrue(cache.isClassOfService("platinum"));
+		assertFalse(cache.isClassOfService("platnum"));
+		assertEquals(2, cache.getRefreshCount());
+		assertEquals(4, rdu.posts.size());
+	}
+
+	@Test
+	public void aFailedRefreshKeepsTheNamesItHas() throws IOException {
+		cache.load();
+		failure = "RDU is busy";
+
+		clock += TTL + 1;
+		assertTrue(cache.isClassOfService("gold"));
+		assertEquals(1, cache.getRefreshCount());
+		assertEquals(3, rdu.posts.size());
+
+		// The failed fetch counts as a fetch, so the next record does not
+		// ask again
+		clock += 1;
+		assertTrue(cache.isClassOfService("silver"));
+		assertFalse(cache.isClassOfService("platinum"));
+		assertEquals(3, rdu.posts.size());
+
+		failure = null;
+		clock += TTL + 1;
+		assertTrue(cache.isClassOfService("gold"));
+		assertEquals(2, cache.getRefreshCount());
+	}
+
+	@Test
+	public void theFirstFetchFailsOnAnEmptyList() {
+		dhcpCriteria = Collections.emptyList();
+		assertLoadFails("Could not list DHCP criteria: the RDU returned none");
+	}
+
+	@Test
+	public void theFirstFetchFailsOnAnError() {
+		failure = "Not authorized";
+		assertLoadFails("Could not list classes of service: Not authorized");
+
+		failure = null;
+		classesOfService = null;
+		assertLoadFails("Could not list classes of service: the RDU returned nothing");
+	}
+
+	private void assertLoadFails(String message) {
+		try {
+			cache.load();
+			fail("load() did not fail");
+		} catch (IOException e) {
+			assertEquals(message, e.getMessage());
+		}
+		assertEquals(0, cache.getRefreshCount());
+	}
+
+
+	private static final long TTL = 60000;
+
+	private FakeRdu rdu;
+	private ProvisioningNameCache cache;
+	private volatile long clock;
+	private volatile List<String> classesOfService;
+	private volatile List<String> dhcpCriteria;
+	private volatile String failure;
+
+}
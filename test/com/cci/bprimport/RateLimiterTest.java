@@ -0,0 +1,137 @@
+// RateLimiterTest - part of bprimport
+// Copyright (C) 2012  Matt Reath
+
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+package com.cci.bprimport;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import org.junit.Test;
+
+/**
+ * Times are checked with a generous upper bound, a loaded build host can
+ * oversleep but the limiter must never let permits through early.
+ * <p>
+ * @author Matt Reath
+ * @version 0.1
+ *
+ */
+public class RateLimiterTest {
+
+	@Test
+	public void noRateMeansNoWait() {
+		RateLimiter limiter = new RateLimiter(0, 1);
+
+		long start = System.nanoTime();
+		for (int i = 0; i < 100000; i++) {
+			limiter.acquire(1000);
+		}
+		assertTrue(elapsed(start) < 100);
+	}
+
+	@Test
+	public void theBurstIsAvailableAtOnceAfterIdling() throws InterruptedException {
+		RateLimiter limiter = new RateLimiter(10, 20);
+		Thread.sleep(50);
+
+		long start = System.nanoTime();
+		limiter.acquire(20);
+		assertTrue(elapsed(start) < 50);
+	}
+
+	@Test
+	public void singlePermitsArePacedAtTheRate() {
+		RateLimiter limiter = new RateLimiter(100, 1);
+
+		long start = System.nanoTime();
+		for (int i = 0; i < 21; i++) {
+			limiter.acquire(1);
+		}
+		// The first goes through at once, the next 20 at 10 ms apart
+		assertBetween(elapsed(start), 190, 400);
+	}
+
+	@Test
+	public void aWholeBatchWaitsForAllItsPermitsThenGoesAtOnce() {
+		RateLimiter limiter = new RateLimiter(100, 1);
+
+		// 50 permits at 100/s with a burst of 1: the caller waits for 49 of
+		// them and then posts all 50 together, which is why DeviceReset
+		// splits batches into posts no larger than the rate
+		long start = System.nanoTime();
+		limiter.acquire(50);
+		assertBetween(elapsed(start), 480, 800);
+
+		// The next caller pays for what the batch took
+		start = System.nanoTime();
+		limiter.acquire(1);
+		assertBetween(elapsed(start), 5, 200);
+	}
+
+	@Test
+	public void theRateHoldsAcrossThreads() throws Exception {
+		final RateLimiter limiter = new RateLimiter(200, 1);
+		ExecutorService threads = Executors.newFixedThreadPool(4);
+		List<Future<?>> done = new ArrayList<Future<?>>();
+
+		long start = System.nanoTime();
+		for (int i = 0; i < 4; i++) {
+			done.add(threads.submit(new Runnable() {
+				public void run() {
+					for (int j = 0; j < 25; j++) {
+						limiter.acquire(1);
+					}
+				}
+			}));
+		}
+		for (Future<?> future : done) {
+			future.get();
+		}
+		threads.shutdown();
+
+		// 100 permits at 200/s, less the one the burst lets through
+		assertBetween(elapsed(start), 490, 900);
+	}
+
+	@Test
+	public void aNewRateTakesEffectForTheNextCaller() {
+		RateLimiter limiter = new RateLimiter(10, 1);
+		limiter.acquire(1);
+
+		limiter.setRate(1000, 1);
+		assertEquals(1000, limiter.getRate(), 0);
+		assertEquals(1, limiter.getBurst());
+
+		// Still owes the 100 ms of the old rate, but not a second more
+		long start = System.nanoTime();
+		for (int i = 0; i < 10; i++) {
+			limiter.acquire(1);
+		}
+		assertTrue(elapsed(start) < 300);
+
+		limiter.setRate(0, 0);
+		assertEquals(1, limiter.getBurst());
+	}
+
+	private static void assertBetween(long millis, long low, long high) {
+		assertTrue("took " + millis + " ms, expected " + low + " to " + high, millis >= low && millis < high);
+	}
+
+	private static long elapsed(long start) {
+		return (System.nanoTime() - start) / 1000000;
+	}
+
+}
@@ -0,0 +1,97 @@
+// RduThrottleTest - part of bprimport
+// Copyright (C) 2012  Matt Reath
+
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+package com.cci.bprimport;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * RduThrottle is shared by the whole process, so each test leaves it
+ * unlimited again.
+ * <p>
+ * @author Matt Reath
+ * @version 0.1
+ *
+ */
+public class RduThrottleTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@After
+	public void unlimited() throws IOException {
+		RduThrottle.watch(write("devices.per.second=0\n"));
+	}
+
+	@Test
+	public void postsArePacedByTheDeviceRateAfterTheBurst() throws IOException {
+		RduThrottle.watch(write("devices.per.second=1000\ndevices.burst=100\n"));
+
+		long start = System.nanoTime();
+		RduThrottle.beforePost(100);
+		assertTrue("the burst was held back", elapsed(start) < 50);
+
+		// 200 more devices at 1000/s, less the 100 the burst lets through early
+		start = System.nanoTime();
+		RduThrottle.beforePost(200);
+		long waited = elapsed(start);
+		assertTrue("waited " + waited + " ms", waited >= 180 && waited < 400);
+	}
+
+	@Test
+	public void postsArePacedByTheBatchRate() throws IOException {
+		RduThrottle.watch(write("batches.per.second=20\nbatches.burst=1\n"));
+
+		long start = System.nanoTime();
+		for (int i = 0; i < 5; i++) {
+			RduThrottle.beforePost(1);
+		}
+		long waited = elapsed(start);
+		assertTrue("waited " + waited + " ms", waited >= 180 && waited < 400);
+	}
+
+	@Test
+	public void aFileWithoutRatesIsUnlimited() throws IOException {
+		RduThrottle.watch(write("# nothing set\n"));
+
+		long start = System.nanoTime();
+		for (int i = 0; i < 1000; i++) {
+			RduThrottle.beforePost(1000);
+		}
+		assertTrue(elapsed(start) < 100);
+	}
+
+	@Test(expected = IOException.class)
+	public void aBadNumberIsRejected() throws IOException {
+		RduThrottle.watch(write("devices.per.second=lots\n"));
+	}
+
+	private File write(String text) throws IOException {
+		File file = folder.newFile();
+		Writer out = new FileWriter(file);
+		out.write(text);
+		out.close();
+		return file;
+	}
+
+	private static long elapsed(long start) {
+		return (System.nanoTime() - start) / 1000000;
+	}
+
+}
@@ -0,0 +1,129 @@
+// ReadAheadInputStreamTest - part of bprimport
+// Copyright (C) 2012  Matt Reath
+
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+package com.cci.bprimport;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import org.junit.*;
+
+/**
+ * @author Matt Reath
+ * @version 0.1
+ *
+ */
+public class ReadAheadInputStreamTest {
+
+	@Test
+	public void bytesComeOutInOrderByteAndBlockAtATime() throws IOException {
+		byte[] text = CompressedFilesTest.text(600000);
+		InputStream in = new ReadAheadInputStream(new ByteArrayInputStream(text));
+
+		assertEquals(text[0], in.read());
+		assertEquals(0, in.read(new byte[10], 0, 0));
+		byte[] rest = CompressedFilesTest.readAll(in);
+		assertEquals(text.length - 1, rest.length);
+		assertEquals(text[1], rest[0]);
+		assertEquals(text[text.length - 1], rest[rest.length - 1]);
+	}
+
+	@Test
+	public void anEmptySourceEndsStraightAway() throws IOException {
+		InputStream in = new ReadAheadInputStream(new ByteArrayInputStream(new byte[0]));
+		assertEquals(-1, in.read());
+		assertEquals(-1, in.read(new byte[10]));
+		in.close();
+	}
+
+	@Test(timeout = 10000)
+	public void aSourceErrorComesAfterTheBytesBeforeIt() throws IOException {
+		final byte[] text = CompressedFilesTest.text(300000);
+		InputStream in = new ReadAheadInputStream(new InputStream() {
+			public int read() throws IOException {
+				throw new UnsupportedOperationException();
+			}
+
+			public int read(byte[] b, int off, int len) throws IOException {
+				if (position == text.length) {
+					throw new IOException("Corrupt GZIP trailer");
+				}
+				int n = Math.min(len, text.length - position);
+				System.arraycopy(text, position, b, off, n);
+				position += n;
+				return n;
+			}
+
+			private int position;
+		});
+
+		byte[] buffer = new byte[text.length];
+		int length = 0;
+		try {
+			while (true) {
+				int n = in.read(buffer, length, buffer.length - length);
+				assertTrue(n > 0);
+				length += n;
+				if (length == buffer.length) {
+					in.read();
+					fail("the error was not thrown");
+				}
+			}
+		} catch (IOException e) {
+			assertEquals("Corrupt GZIP trailer", e.getMessage());
+		}
+		assertEquals(text.length, length);
+		assertArrayEquals(text, buffer);
+		in.close();
+	}
+
+	@Test(timeout = 10000)
+	public void closeStopsTheReaderAndClosesTheSource() throws Exception {
+		final boolean[] closed = new boolean[1];
+		// Endless, so the reader fills every chunk and waits for room
+		InputStream in = new ReadAheadInputStream(new InputStream() {
+			public int read() {
+				return 'x';
+			}
+
+			public int read(byte[] b, int off, int len) {
+				return len;
+			}
+
+			public void close() {
+				closed[0] = true;
+			}
+		});
+
+		assertEquals('\0', in.read());
+		in.close();
+		assertTrue(closed[0]);
+
+		for (Thread thread : threads()) {
+			if (thread.getName().equals("read-ahead")) {
+				thread.join();
+			}
+		}
+	}
+
+	private static Thread[] threads() {
+		Thread[] threads = new Thread[Thread.activeCount() + 8];
+		int n = Thread.enumerate(threads);
+		Thread[] found = new Thread[n];
+		System.arraycopy(threads, 0, found, 0, n);
+		return found;
+	}
+
+}
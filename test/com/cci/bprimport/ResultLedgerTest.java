@@ -0,0 +1,125 @@
+// ResultLedgerTest - part of bprimport
+// Copyright (C) 2012  Matt Reath
+
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+package com.cci.bprimport;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.util.*;
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * @author Matt Reath
+ * @version 0.1
+ *
+ */
+public class ResultLedgerTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Before
+	public void createLedger() throws IOException {
+		file = ResultLedger.ledgerFor(folder.newFile("input.txt"));
+		assertEquals("input.txt.ledger", file.getName());
+	}
+
+	@Test
+	public void entriesReadBackAsWritten() throws IOException {
+		ResultLedger ledger = new ResultLedger(file, false);
+		ResultLedger.Block block = new ResultLedger.Block();
+		assertTrue(block.isEmpty());
+
+		block.add(record(1, FakeHandler.mac(1)), 0, ResultLedger.OK, null);
+		block.add(record(2, FakeHandler.mac(2)), 1, ResultLedger.FAILED, "Device exists");
+		block.add(record(3, "not a mac"), 2, ResultLedger.FAILED, "Device exists");
+		block.add(record(0, FakeHandler.mac(4)), 3, ResultLedger.BATCH_FAILED, "Timed out");
+		ledger.append("batch-1", block);
+		assertTrue(block.isEmpty());
+
+		// An empty block writes nothing
+		ledger.append("batch-2", block);
+		ledger.close();
+
+		List<ResultLedger.Entry> entries = readAll();
+		assertEquals(4, entries.size());
+		assertEquals("1|" + FakeHandler.mac(1) + "|batch-1|0|ok|", entries.get(0).toString());
+		assertEquals("2|" + FakeHandler.mac(2) + "|batch-1|1|failed|Device exists", entries.get(1).toString());
+		assertEquals("3|not a mac|batch-1|2|failed|Device exists", entries.get(2).toString());
+		assertEquals("0|" + FakeHandler.mac(4) + "|batch-1|3|batch-failed|Timed out", entries.get(3).toString());
+		assertNull(entries.get(0).getError());
+	}
+
+	@Test
+	public void aBlockCutShortIsDroppedAndResumeCarriesOn() throws IOException {
+		ResultLedger ledger = new ResultLedger(file, false);
+		ResultLedger.Block block = new ResultLedger.Block();
+		block.add(record(1, FakeHandler.mac(1)), 0, ResultLedger.OK, null);
+		ledger.append("batch-1", block);
+		block.add(record(2, FakeHandler.mac(2)), 0, ResultLedger.OK, null);
+		ledger.append("batch-2", block);
+		ledger.close();
+
+		// A crash in the middle of the second block
+		RandomAccessFile crashed = new RandomAccessFile(file, "rw");
+		crashed.setLength(crashed.length() - 5);
+		crashed.close();
+		assertEquals(1, readAll().size());
+
+		ledger = new ResultLedger(file, true);
+		block.add(record(3, FakeHandler.mac(3)), 0, ResultLedger.FAILED, "Timed out");
+		ledger.append("batch-3", block);
+		ledger.close();
+
+		List<ResultLedger.Entry> entries = readAll();
+		assertEquals(2, entries.size());
+		assertEquals(1, entries.get(0).getLineNumber());
+		assertEquals("batch-3", entries.get(1).getBatchId());
+		assertEquals(3, entries.get(1).getLineNumber());
+
+		// Without --resume the ledger starts over
+		new ResultLedger(file, false).close();
+		assertEquals(0, readAll().size());
+	}
+
+	@Test(expected = IOException.class)
+	public void anotherFileIsNotALedger() throws IOException {
+		Writer out = new FileWriter(file);
+		out.write("o1|" + FakeHandler.mac(1) + "|silver|docsis\n");
+		out.close();
+		new ResultLedger.Reader(file);
+	}
+
+	private List<ResultLedger.Entry> readAll() throws IOException {
+		List<ResultLedger.Entry> entries = new ArrayList<ResultLedger.Entry>();
+		ResultLedger.Reader reader = new ResultLedger.Reader(file);
+		ResultLedger.Entry entry;
+		while ((entry = reader.next()) != null) {
+			entries.add(entry);
+		}
+		reader.close();
+		return entries;
+	}
+
+	static DeviceRecord record(long line, String macAddress) {
+		return new DeviceRecord(line, "o" + line, macAddress, "silver", "provisioned-docsis");
+	}
+
+
+	private File file;
+
+}
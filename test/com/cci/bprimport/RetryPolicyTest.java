@@ -0,0 +1,144 @@
+// RetryPolicyTest - part of bprimport
+// Copyright (C) 2012  Matt Reath
+
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+package com.cci.bprimport;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.util.*;
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * @author Matt Reath
+ * @version 0.1
+ *
+ */
+public class RetryPolicyTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Before
+	public void setUp() throws IOException {
+		handler = new FakeHandler(0);
+		dispatcher = new BatchDispatcher(Collections.singletonList(handler), 4);
+		deadLetters = folder.newFile("input.txt.dead");
+		policy = new RetryPolicy(dispatcher, deadLetters, false);
+	}
+
+	@Test
+	public void timeoutsAndLostConnectionsAreTransient() {
+		assertTrue(policy.isTransient("Read timed out"));
+		assertTrue(policy.isTransient("Connection reset by peer"));
+		assertTrue(policy.isTransient("RDU is BUSY"));
+		assertTrue(policy.isTransient("Lock wait timeout on device"));
+		assertFalse(policy.isTransient("Device already exists"));
+		assertFalse(policy.isTransient(null));
+	}
+
+	@Test
+	public void transientErrorsCanBeAdded() {
+		assertFalse(policy.isTransient("Database is in maintenance"));
+		policy.addTransientErrors(Arrays.asList(" Maintenance ", ""));
+		assertTrue(policy.isTransient("Database is in maintenance"));
+	}
+
+	@Test
+	public void delayDoublesUpToTheMaximumWithJitter() {
+		policy.setDelays(100, 1000);
+
+		for (int i = 0; i < 1000; i++) {
+			long first = policy.delay(1);
+			assertTrue(first >= 50 && first <= 100);
+			long third = policy.delay(3);
+			assertTrue(third >= 200 && third <= 400);
+			long late = policy.delay(40);
+			assertTrue(late >= 500 && late <= 1000);
+		}
+	}
+
+	@Test
+	public void onlyTheFailedRecordsAreQueuedAgain() throws Exception {
+		policy.setDelays(1, 1);
+		dispatcher.start();
+		RecordBatch batch = new RecordBatch(3, FakeHandler.records(1, 10));
+
+		assertTrue(policy.retry(batch, batch.getRecords().subList(2, 4), "timed out"));
+		dispatcher.shutdown();
+
+		assertEquals(1, handler.batches.size());
+		RecordBatch retry = handler.batches.get(0);
+		assertEquals(3, retry.getSequence());
+		assertEquals(1, retry.getAttempt());
+		assertEquals(2, retry.size());
+		assertEquals(3, retry.getRecords().get(0).getLineNumber());
+		assertEquals(10, retry.getLastRecord().getLineNumber());
+		assertEquals(2, policy.getRetriedCount());
+	}
+
+	@Test
+	public void recordsAreGivenUpOnAfterTheLastAttempt() {
+		policy.setMaxAttempts(2);
+		RecordBatch batch = new RecordBatch(0, FakeHandler.records(1, 1));
+
+		assertTrue(policy.canRetry(batch));
+		assertTrue(policy.canRetry(batch.retry(batch.getRecords())));
+		RecordBatch last = batch.retry(batch.getRecords()).retry(batch.getRecords());
+		assertFalse(policy.canRetry(last));
+		assertFalse(policy.retry(last, last.getRecords(), "timed out"));
+		assertEquals(0, dispatcher.getDelayedCount());
+	}
+
+	@Test
+	public void deadLettersAreWrittenAsLineReasonRecord() throws IOException {
+		DeviceRecord record = FakeHandler.records(42, 1).get(0);
+
+		policy.deadLetter(record, "Device already\nexists");
+		policy.close();
+
+		BufferedReader in = new BufferedReader(new FileReader(deadLetters));
+		assertEquals("42|Device already exists|" + record, in.readLine());
+		assertNull(in.readLine());
+		in.close();
+		assertEquals(1, policy.getDeadLetterCount());
+	}
+
+	@Test
+	public void aResumedRunKeepsTheEarlierDeadLetters() throws IOException {
+		policy.deadLetter(FakeHandler.records(1, 1).get(0), "Device already exists");
+		policy.close();
+
+		RetryPolicy resumed = new RetryPolicy(dispatcher, deadLetters, true);
+		resumed.deadLetter(FakeHandler.records(7, 1).get(0), "Invalid owner");
+		resumed.close();
+
+		List<String> lines = BprImportTest.lines(deadLetters);
+		assertEquals(2, lines.size());
+		assertTrue(lines.get(0), lines.get(0).startsWith("1|Device already exists|"));
+		assertTrue(lines.get(1), lines.get(1).startsWith("7|Invalid owner|"));
+
+		new RetryPolicy(dispatcher, deadLetters, false).close();
+		assertEquals(0, deadLetters.length());
+	}
+
+
+	private FakeHandler handler;
+	private BatchDispatcher dispatcher;
+	private File deadLetters;
+	private RetryPolicy policy;
+
+}
@@ -0,0 +1,292 @@
+// ShardedExportTest - part of bprimport
+// Copyright (C) 2012  Matt Reath
+
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+package com.cci.bprimport;
+
+import static org.junit.Assert.*;
+
+import com.cisco.provisioning.cpe.api.search.*;
+import java.io.*;
+import java.lang.reflect.Constructor;
+import java.util.*;
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Runs a {@link ShardedExport} on cursors that search a sorted set of MAC
+ * addresses instead of the RDU, a page of {@link #PAGE_SIZE} at a time, and
+ * fail the shards a test tells them to.
+ * <p>
+ * @author Matt Reath
+ * @version 0.1
+ *
+ */
+public class ShardedExportTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Before
+	public void setUp() {
+		directory = new File(folder.getRoot(), "export.txt.shards");
+
+		// 25 devices under 00:0C, 3 under 00:10 and one each under 01 and FF
+		for (int i = 0; i < 25; i++) {
+			devices.add(String.format("1,6,00:0C:E5:32:%02X:6A", i * 7));
+		}
+		devices.add("1,6,00:10:95:00:00:01");
+		devices.add("1,6,00:10:95:00:00:02");
+		devices.add("1,6,00:10:95:00:00:03");
+		devices.add("1,6,01:00:00:00:00:01");
+		devices.add("1,6,FF:FF:FF:FF:FF:FF");
+	}
+
+	@Test
+	public void denseShardsAreSplitAndThePartsAssembledInMacOrder() throws Exception {
+		ShardedExport export = new ShardedExport(directory, ExportFormat.PIPE, 2);
+		export.run(cursors(2), false);
+
+		// The root and 00 are split, 00:0C is walked in 3 pages
+		assertEquals(2, export.getSplitCount());
+		assertEquals(255 + 256, export.getShardCount());
+		assertTrue(export.getFailedShards().isEmpty());
+		assertTrue(new File(directory, "all.split").exists());
+		assertTrue(new File(directory, "00.split").exists());
+		assertEquals(3, count("1,6,00:0C:*"));
+		assertEquals(1, count("1,6,00:10:*"));
+
+		assertEquals(new ArrayList<String>(devices), assemble(export));
+		assertFalse(directory.exists());
+	}
+
+	@Test
+	public void aShardIsWalkedAgainFromTheStartUntilItsLastAttempt() throws Exception {
+		ShardedExport export = new ShardedExport(directory, ExportFormat.PIPE, 0);
+
+		// Fails on the second page, then goes through
+		searchFailures.put("1,6,*", 1);
+		exportFailures.put("1,6,*", 1);
+		export.run(cursors(1), false);
+
+		assertTrue(export.getFailedShards().isEmpty());
+		assertEquals(0, export.getSplitCount());
+		assertEquals(1, export.getShardCount());
+		assertEquals(new ArrayList<String>(devices), assemble(export));
+	}
+
+	@Test
+	public void aShardThatFailsEveryAttemptIsLeftOut() throws Exception {
+		ShardedExport export = new ShardedExport(directory, ExportFormat.PIPE, 0);
+
+		searchFailures.put("1,6,*", 3);
+		export.run(cursors(2), false);
+
+		assertEquals(Arrays.asList("1,6,*"), export.getFailedShards());
+		assertEquals(3, count("1,6,*"));
+		assertEquals(0, export.getShardCount());
+		assertEquals(0, directory.list().length);
+	}
+
+	@Test
+	public void aResumedRunOnlyWalksWhatIsNotDone() throws Exception {
+		ShardedExport first = new ShardedExport(directory, ExportFormat.PIPE, 1);
+		searchFailures.put("1,6,01:*", 3);
+		exportFailures.put("1,6,00:*", 3);
+		first.run(cursors(2), false);
+
+		assertEquals(Arrays.asList("1,6,00:*", "1,6,01:*"), sorted(first.getFailedShards()));
+		assertEquals(1, first.getSplitCount());
+		assertEquals(254, first.getShardCount());
+
+		searches.clear();
+		ShardedExport resumed = new ShardedExport(directory, ExportFormat.PIPE, 1);
+		resumed.run(cursors(2), true);
+
+		// The root is split from its marker without a search, the finished
+		// shards are skipped
+		assertTrue(resumed.getFailedShards().isEmpty());
+		assertEquals(0, resumed.getSplitCount());
+		assertEquals(256, resumed.getShardCount());
+		assertEquals(Arrays.asList("1,6,00:*", "1,6,00:*", "1,6,00:*", "1,6,01:*"), sorted(searches));
+		assertEquals(new ArrayList<String>(devices), assemble(resumed));
+	}
+
+	@Test
+	public void aRunWithoutResumeStartsOver() throws Exception {
+		ShardedExport first = new ShardedExport(directory, ExportFormat.PIPE, 1);
+		searchFailures.put("1,6,01:*", 3);
+		first.run(cursors(1), false);
+		assertEquals(1, first.getFailedShards().size());
+
+		searches.clear();
+		ShardedExport again = new ShardedExport(directory, ExportFormat.PIPE, 1);
+		again.run(cursors(1), false);
+
+		// The root, every shard it splits into and two more pages of 00
+		assertEquals(1, again.getSplitCount());
+		assertEquals(256, again.getShardCount());
+		assertEquals(1 + 256 + 2, searches.size());
+		assertEquals(new ArrayList<String>(devices), assemble(again));
+	}
+
+	/**
+	 * A cursor on the devices of the test. Searches and failures are shared
+	 * by every cursor, like the RDU they stand in for.
+	 */
+	private class FakeCursor extends BprExport {
+
+		RecordSearchResults searchPattern(String pattern, SearchBookmark sb) {
+			synchronized (ShardedExportTest.this) {
+				searches.add(pattern);
+				if (fail(searchFailures, pattern)) {
+					return null;
+				}
+
+				String prefix = pattern.substring(0, pattern.length() - 1);
+				List<String> matches = new ArrayList<String>();
+				for (String mac : devices.tailSet(prefix)) {
+					if (!mac.startsWith(prefix)) {
+						break;
+					}
+					matches.add(mac);
+				}
+
+				int start = sb == null ? 0 : bookmarks.get(sb);
+				int end = Math.min(matches.size(), start + PAGE_SIZE);
+				SearchBookmark next = null;
+				if (end < matches.size()) {
+					next = bookmark();
+					bookmarks.put(next, end);
+				}
+				return page(pattern, matches.subList(start, end), sb == null, next);
+			}
+		}
+
+		boolean exportPage(RecordSearchResults rs, ExportWriter out) {
+			Page page;
+			synchronized (ShardedExportTest.this) {
+				page = pages.get(rs);
+				// Only a page after the first fails, so the shard has to be
+				// walked again from the start
+				if (!page.first && fail(exportFailures, page.pattern)) {
+					return false;
+				}
+			}
+			for (String mac : page.macs) {
+				out.writeDevice("owner", mac, "silver", "provisioned-docsis");
+			}
+			return true;
+		}
+
+	}
+
+	/**
+	 * What a search returned, kept by the search results it came back as.
+	 */
+	private static class Page {
+
+		Page(String pattern, List<String> macs, boolean first) {
+			this.pattern = pattern;
+			this.macs = new ArrayList<String>(macs);
+			this.first = first;
+		}
+
+		final String pattern;
+		final List<String> macs;
+		final boolean first;
+
+	}
+
+	private RecordSearchResults page(String pattern, List<String> macs, boolean first, final SearchBookmark next) {
+		RecordSearchResults rs = FakeRdu.proxy(RecordSearchResults.class, new FakeRdu.Handler() {
+			Object call(String method, Object[] args) {
+				return method.equals("getSearchBookmark") ? next : null;
+			}
+		});
+		pages.put(rs, new Page(pattern, macs, first));
+		return rs;
+	}
+
+	/**
+	 * A bookmark the way the RDU makes them, without a public constructor.
+	 */
+	private static SearchBookmark bookmark() {
+		try {
+			Constructor<SearchBookmark> constructor = SearchBookmark.class.getDeclaredConstructor();
+			constructor.setAccessible(true);
+			return constructor.newInstance();
+		} catch (Exception e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	/**
+	 * Takes one failure off a pattern's count.
+	 *
+	 * @return True if the pattern had one left
+	 */
+	private static boolean fail(Map<String, Integer> failures, String pattern) {
+		Integer left = failures.get(pattern);
+		if (left == null || left == 0) {
+			return false;
+		}
+		failures.put(pattern, left - 1);
+		return true;
+	}
+
+	private List<BprExport> cursors(int count) {
+		List<BprExport> cursors = new ArrayList<BprExport>();
+		for (int i = 0; i < count; i++) {
+			cursors.add(new FakeCursor());
+		}
+		return cursors;
+	}
+
+	private synchronized int count(String pattern) {
+		return Collections.frequency(searches, pattern);
+	}
+
+	private List<String> assemble(ShardedExport export) throws IOException {
+		File output = new File(folder.getRoot(), "export.txt");
+		ExportWriter out = new ExportWriter(new FileOutputStream(output), ExportFormat.PIPE);
+		export.assemble(out);
+		out.close();
+		assertEquals(devices.size(), out.getCount());
+
+		List<String> macs = new ArrayList<String>();
+		for (String line : BprImportTest.lines(output)) {
+			macs.add(line.split("\\|")[1]);
+		}
+		return macs;
+	}
+
+	private static List<String> sorted(List<String> list) {
+		List<String> sorted = new ArrayList<String>(list);
+		Collections.sort(sorted);
+		return sorted;
+	}
+
+
+	private static final int PAGE_SIZE = 10;
+
+	private File directory;
+	private TreeSet<String> devices = new TreeSet<String>();
+	private List<String> searches = new ArrayList<String>();
+	private Map<String, Integer> searchFailures = new HashMap<String, Integer>();
+	private Map<String, Integer> exportFailures = new HashMap<String, Integer>();
+	private Map<SearchBookmark, Integer> bookmarks = new IdentityHashMap<SearchBookmark, Integer>();
+	private Map<RecordSearchResults, Page> pages = new IdentityHashMap<RecordSearchResults, Page>();
+
+}
@@ -0,0 +1,141 @@
+// WriteBehindOutputStreamTest - part of bprimport
+// Copyright (C) 2012  Matt Reath
+
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+package com.cci.bprimport;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import org.junit.*;
+
+/**
+ * @author Matt Reath
+ * @version 0.1
+ *
+ */
+public class WriteBehindOutputStreamTest {
+
+	@Test
+	public void everyChunkReachesTheTargetBeforeItIsClosed() throws IOException {
+		byte[] text = CompressedFilesTest.text(5 * 256 * 1024 + 77);
+		Target target = new Target();
+		OutputStream out = new WriteBehindOutputStream(target);
+
+		out.write(text[0]);
+		out.write(text, 1, 999);
+		out.flush();
+		out.write(text, 1000, text.length - 1000);
+		out.close();
+
+		assertArrayEquals(text, target.bytes.toByteArray());
+		assertEquals("close", target.events.get(target.events.size() - 1));
+		assertEquals(1, Collections.frequency(target.events, "close"));
+		// The flush handed the first 1000 bytes over as a chunk of their own
+		assertEquals("write 1000", target.events.get(0));
+
+		out.close();
+		assertEquals(1, Collections.frequency(target.events, "close"));
+	}
+
+	@Test
+	public void flushOnlyHandsOverWhatWasWritten() throws IOException {
+		Target target = new Target();
+		OutputStream out = new WriteBehindOutputStream(target);
+
+		out.flush();
+		out.write(new byte[10]);
+		out.flush();
+		out.flush();
+		out.close();
+
+		assertEquals(Arrays.asList("write 10", "close"), target.events);
+	}
+
+	@Test(timeout = 10000)
+	public void aTargetErrorReachesTheWriterAndClose() throws Exception {
+		Target target = new Target();
+		target.failure = new IOException("No space left on device");
+		OutputStream out = new WriteBehindOutputStream(target);
+
+		out.write(new byte[100]);
+		out.flush();
+
+		// The background thread fails in its own time; a later write sees it
+		IOException thrown = null;
+		while (thrown == null) {
+			try {
+				out.write(1);
+				Thread.sleep(1);
+			} catch (IOException e) {
+				thrown = e;
+			}
+		}
+		assertSame(target.failure, thrown);
+
+		try {
+			out.close();
+			fail("close() did not throw");
+		} catch (IOException e) {
+			assertSame(target.failure, e);
+		}
+		assertEquals("close", target.events.get(target.events.size() - 1));
+	}
+
+	@Test(timeout = 10000)
+	public void aTargetErrorOnTheLastChunkIsThrownByClose() throws IOException {
+		Target target = new Target();
+		target.failure = new IOException("Broken pipe");
+		OutputStream out = new WriteBehindOutputStream(target);
+
+		out.write(new byte[100]);
+		try {
+			out.close();
+			fail("close() did not throw");
+		} catch (IOException e) {
+			assertSame(target.failure, e);
+		}
+	}
+
+	/**
+	 * Keeps what is written to it and the order of its writes and close.
+	 */
+	private static class Target extends OutputStream {
+
+		public void write(int b) {
+			throw new UnsupportedOperationException();
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+			events.add("write " + len);
+			if (failure != null) {
+				throw failure;
+			}
+			bytes.write(b, off, len);
+		}
+
+		public void close() {
+			events.add("close");
+		}
+
+
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final List<String> events = new CopyOnWriteArrayList<String>();
+		volatile IOException failure;
+
+	}
+
+}